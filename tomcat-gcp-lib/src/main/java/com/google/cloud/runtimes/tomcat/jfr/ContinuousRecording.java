@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.jfr;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.time.Duration;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+
+/**
+ * A rolling Flight Recorder recording kept on disk, only loaded when the Flight Recorder API is
+ * available.
+ *
+ * <p>The settings are either the name of a configuration of the JDK or the path of a
+ * {@code .jfc} file.</p>
+ */
+final class ContinuousRecording implements Closeable {
+
+  private final Recording recording;
+  private final String dumpFile;
+
+  ContinuousRecording(String name, String settings, Duration maxAge, long maxSize,
+      String dumpFile) throws IOException {
+    Configuration configuration;
+    try {
+      Path settingsFile = settings.endsWith(".jfc") ? Paths.get(settings) : null;
+      configuration = settingsFile != null
+          ? Configuration.create(settingsFile) : Configuration.getConfiguration(settings);
+    } catch (ParseException e) {
+      throw new IOException("Invalid Flight Recorder settings: " + settings, e);
+    }
+
+    this.recording = new Recording(configuration);
+    this.dumpFile = dumpFile;
+    recording.setName(name);
+    recording.setToDisk(true);
+    recording.setMaxAge(maxAge);
+    recording.setMaxSize(maxSize);
+  }
+
+  void start() {
+    recording.start();
+  }
+
+  /**
+   * Stop the recording, writing its content to the dump file if one is configured.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      if (dumpFile != null && !dumpFile.isEmpty()) {
+        recording.dump(Paths.get(dumpFile));
+      }
+    } finally {
+      recording.close();
+    }
+  }
+}
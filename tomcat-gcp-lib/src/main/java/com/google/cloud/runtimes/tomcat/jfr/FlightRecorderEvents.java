@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.jfr;
+
+/**
+ * Emit JDK Flight Recorder events for the session persistence and the valves.
+ *
+ * <p>This class does not reference the Flight Recorder API so it can be loaded on JVMs without
+ * it. When the Flight Recorder is unavailable, or when the events are disabled in the current
+ * recording, {@link #begin(Type)} returns null and {@link #commit} is a no-op.</p>
+ *
+ * <p>Example:</p>
+ * <pre>
+ *   {@code
+ *   Object event = FlightRecorderEvents.begin(Type.SESSION_LOAD);
+ *   // Load the session
+ *   FlightRecorderEvents.commit(event, sessionId, entityCount, byteCount);
+ *   }
+ * </pre>
+ */
+public final class FlightRecorderEvents {
+
+  /**
+   * The operations recorded as events.
+   */
+  public enum Type {
+    SESSION_LOAD,
+    SESSION_SAVE,
+    SESSION_EXPIRATION,
+    SESSION_SERIALIZATION,
+    SESSION_DESERIALIZATION,
+    VALVE_INVOKE
+  }
+
+  private static final boolean available = isFlightRecorderAvailable();
+
+  private FlightRecorderEvents() {}
+
+  private static boolean isFlightRecorderAvailable() {
+    try {
+      Class.forName("jdk.jfr.Event", false, FlightRecorderEvents.class.getClassLoader());
+      return true;
+    } catch (ClassNotFoundException | LinkageError e) {
+      return false;
+    }
+  }
+
+  public static boolean isAvailable() {
+    return available;
+  }
+
+  /**
+   * Start timing an operation.
+   * @param type The type of the operation.
+   * @return An opaque event to pass to {@code commit}, or null if the event is not recorded.
+   */
+  public static Object begin(Type type) {
+    return available ? JfrEvents.begin(type) : null;
+  }
+
+  /**
+   * End an operation on a session and record it.
+   * @param event The event returned by {@link #begin(Type)}, may be null.
+   * @param sessionId The id of the session, only its hash is recorded. May be null.
+   * @param entityCount The number of Datastore entities read or written.
+   * @param byteCount The size of the serialized attributes.
+   */
+  public static void commit(Object event, String sessionId, int entityCount, long byteCount) {
+    if (event != null) {
+      JfrEvents.commit(event, sessionId, entityCount, byteCount);
+    }
+  }
+
+  /**
+   * End the invocation of a valve and record it.
+   * @param event The event returned by {@link #begin(Type)}, may be null.
+   * @param valveName The name of the valve.
+   * @param sessionId The id of the session requested, only its hash is recorded. May be null.
+   */
+  public static void commitValve(Object event, String valveName, String sessionId) {
+    if (event != null) {
+      JfrEvents.commitValve(event, valveName, sessionId);
+    }
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.jfr;
+
+import java.io.IOException;
+import java.time.Duration;
+import org.apache.catalina.Lifecycle;
+import org.apache.catalina.LifecycleEvent;
+import org.apache.catalina.LifecycleListener;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * This listener keeps a continuous, rolling Flight Recorder recording while the server is
+ * running, so the events emitted by the session persistence and the valves (see
+ * {@link FlightRecorderEvents}) can be correlated with GC and safepoint pauses after the fact.
+ *
+ * <p>The recording is kept on disk and bounded by {@code maxAge} and {@code maxSize}. It can be
+ * dumped at any time with {@code jcmd <pid> JFR.dump name=tomcat-gcp}, and is dumped to
+ * {@code dumpFile} when the server stops if that property is set.</p>
+ *
+ * <p>The listener is meant to be registered on the {@code Server}. A single recording is kept
+ * for the whole process: when it is also registered on other components, such as the contexts,
+ * only the first one to start records.</p>
+ */
+public class FlightRecorderListener implements LifecycleListener {
+
+  private static final Log log = LogFactory.getLog(FlightRecorderListener.class);
+
+  static final String RECORDING_NAME = "tomcat-gcp";
+
+  /**
+   * Name of the Flight Recorder settings ({@code default} or {@code profile}), or path of a
+   * {@code .jfc} file.
+   */
+  private String settings = "default";
+
+  /**
+   * Maximum age of the recorded events, in minutes.
+   */
+  private long maxAge = 60;
+
+  /**
+   * Maximum size of the recording on disk, in megabytes.
+   */
+  private long maxSize = 250;
+
+  /**
+   * File receiving the recording when the server stops, nothing is written if empty.
+   */
+  private String dumpFile;
+
+  /**
+   * Listener owning the recording of the process, if any.
+   */
+  private static FlightRecorderListener owner;
+
+  private ContinuousRecording recording;
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Start the recording when the server starts and stop it when the server stops.</p>
+   */
+  @Override
+  public void lifecycleEvent(LifecycleEvent event) {
+    if (Lifecycle.AFTER_START_EVENT.equals(event.getType())) {
+      startRecording();
+    } else if (Lifecycle.BEFORE_STOP_EVENT.equals(event.getType())) {
+      stopRecording();
+    }
+  }
+
+  private void startRecording() {
+    synchronized (FlightRecorderListener.class) {
+      if (owner != null) {
+        if (owner != this) {
+          log.warn("The Flight Recorder recording '" + RECORDING_NAME + "' is already started, "
+              + "the listener should only be registered on the Server");
+        }
+        return;
+      }
+      if (!FlightRecorderEvents.isAvailable()) {
+        log.warn("The Flight Recorder is not available in this JVM, no recording started");
+        return;
+      }
+
+      try {
+        recording = new ContinuousRecording(RECORDING_NAME, settings, Duration.ofMinutes(maxAge),
+            maxSize * 1024 * 1024, dumpFile);
+        recording.start();
+        owner = this;
+        log.info("Flight Recorder recording '" + RECORDING_NAME + "' started (max age: " + maxAge
+            + " min, max size: " + maxSize + " MB)");
+      } catch (IOException | RuntimeException e) {
+        recording = null;
+        log.error("Unable to start the Flight Recorder recording", e);
+      }
+    }
+  }
+
+  private void stopRecording() {
+    synchronized (FlightRecorderListener.class) {
+      if (owner != this) {
+        return;
+      }
+      try {
+        recording.close();
+      } catch (IOException | RuntimeException e) {
+        log.warn("An error occurred while stopping the Flight Recorder recording", e);
+      }
+      recording = null;
+      owner = null;
+    }
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setSettings(String settings) {
+    this.settings = settings;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setMaxAge(long maxAge) {
+    this.maxAge = maxAge;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setMaxSize(long maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setDumpFile(String dumpFile) {
+    this.dumpFile = dumpFile;
+  }
+
+  boolean isRecording() {
+    return recording != null;
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.jfr;
+
+import com.google.cloud.runtimes.tomcat.jfr.FlightRecorderEvents.Type;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The Flight Recorder events, only loaded when the Flight Recorder API is available.
+ */
+final class JfrEvents {
+
+  private static final String CATEGORY = "Tomcat GCP";
+
+  private JfrEvents() {}
+
+  static Object begin(Type type) {
+    Event event;
+    switch (type) {
+      case SESSION_LOAD:
+        event = new SessionLoadEvent();
+        break;
+      case SESSION_SAVE:
+        event = new SessionSaveEvent();
+        break;
+      case SESSION_EXPIRATION:
+        event = new SessionExpirationEvent();
+        break;
+      case SESSION_SERIALIZATION:
+        event = new SessionSerializationEvent();
+        break;
+      case SESSION_DESERIALIZATION:
+        event = new SessionDeserializationEvent();
+        break;
+      default:
+        event = new ValveInvokeEvent();
+        break;
+    }
+
+    if (!event.isEnabled()) {
+      return null;
+    }
+    event.begin();
+    return event;
+  }
+
+  static void commit(Object event, String sessionId, int entityCount, long byteCount) {
+    SessionEvent sessionEvent = (SessionEvent) event;
+    sessionEvent.end();
+    if (sessionEvent.shouldCommit()) {
+      sessionEvent.sessionIdHash = sessionId != null ? sessionId.hashCode() : 0;
+      sessionEvent.entityCount = entityCount;
+      sessionEvent.byteCount = byteCount;
+      sessionEvent.commit();
+    }
+  }
+
+  static void commitValve(Object event, String valveName, String sessionId) {
+    ValveInvokeEvent valveEvent = (ValveInvokeEvent) event;
+    valveEvent.end();
+    if (valveEvent.shouldCommit()) {
+      valveEvent.valve = valveName;
+      valveEvent.sessionIdHash = sessionId != null ? sessionId.hashCode() : 0;
+      valveEvent.commit();
+    }
+  }
+
+  @Category(CATEGORY)
+  abstract static class SessionEvent extends Event {
+    @Label("Session Id Hash")
+    @Description("Hash code of the session id")
+    int sessionIdHash;
+
+    @Label("Entity Count")
+    @Description("Number of Datastore entities read or written")
+    int entityCount;
+
+    @Label("Byte Count")
+    @Description("Size of the serialized session attributes")
+    @DataAmount
+    long byteCount;
+  }
+
+  @Name("com.google.cloud.runtimes.tomcat.SessionLoad")
+  @Label("Session Load")
+  @Description("Session loaded from the Datastore")
+  static final class SessionLoadEvent extends SessionEvent {}
+
+  @Name("com.google.cloud.runtimes.tomcat.SessionSave")
+  @Label("Session Save")
+  @Description("Session saved in the Datastore")
+  static final class SessionSaveEvent extends SessionEvent {}
+
+  @Name("com.google.cloud.runtimes.tomcat.SessionExpiration")
+  @Label("Session Expiration")
+  @Description("Expired sessions removed from the Datastore")
+  static final class SessionExpirationEvent extends SessionEvent {}
+
+  @Name("com.google.cloud.runtimes.tomcat.SessionSerialization")
+  @Label("Session Serialization")
+  @Description("Session serialized into Datastore entities")
+  static final class SessionSerializationEvent extends SessionEvent {}
+
+  @Name("com.google.cloud.runtimes.tomcat.SessionDeserialization")
+  @Label("Session Deserialization")
+  @Description("Session restored from Datastore entities")
+  static final class SessionDeserializationEvent extends SessionEvent {}
+
+  @Name("com.google.cloud.runtimes.tomcat.ValveInvoke")
+  @Label("Valve Invoke")
+  @Description("Request processed by a valve and the rest of the pipeline")
+  @Category(CATEGORY)
+  static final class ValveInvokeEvent extends Event {
+    @Label("Valve")
+    String valve;
+
+    @Label("Session Id Hash")
+    @Description("Hash code of the requested session id")
+    int sessionIdHash;
+  }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.logging;
+
+import com.google.cloud.runtimes.tomcat.util.AsyncBatchWriter;
+import com.google.cloud.runtimes.tomcat.util.BoundedRingBuffer.OverflowPolicy;
+import com.google.cloud.runtimes.tomcat.util.StandardOutput;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.logging.ErrorManager;
+import java.util.logging.Formatter;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+
+/**
+ * A logging handler writing the records to stdout, in the Stackdriver structured logging format,
+ * from a background thread.
+ *
+ * <p>Unlike the {@code ConsoleHandler}, the request threads do not format nor write the records
+ * under a lock: they only enqueue them in a lock-free bounded buffer. A single writer thread
+ * formats the records and writes them in batches. When the buffer is full, records are discarded
+ * according to the overflow policy, counted, and the number of discarded records is reported in
+ * the log.</p>
+ *
+ * <p>This handler is configured in {@code logging.properties} with the following properties,
+ * prefixed by the name of this class:</p>
+ * <ul>
+ *   <li>{@code level}: The minimum level of the records (default: {@code ALL}).</li>
+ *   <li>{@code formatter}: The formatter (default: {@link StackdriverJsonFormatter}).</li>
+ *   <li>{@code bufferSize}: The maximum number of records waiting to be written
+ *       (default: 8192).</li>
+ *   <li>{@code batchSize}: The maximum number of records written at once (default: 512).</li>
+ *   <li>{@code overflowPolicy}: {@code DROP_NEWEST} or {@code DROP_OLDEST}
+ *       (default: {@code DROP_NEWEST}).</li>
+ * </ul>
+ *
+ * <p>As it is loaded by the system class loader when Tomcat starts, this class and its
+ * dependencies must only depend on the JDK.</p>
+ */
+public class AsyncJsonHandler extends Handler {
+
+  private static final int DEFAULT_BUFFER_SIZE = 8192;
+  private static final int DEFAULT_BATCH_SIZE = 512;
+
+  private final RecordWriter recordWriter;
+
+  /**
+   * Create a handler configured from the {@link LogManager} properties and writing to stdout.
+   */
+  public AsyncJsonHandler() {
+    this(StandardOutput.writer(), null);
+  }
+
+  /**
+   * Create a handler writing to the provided writer.
+   * @param writer The destination of the records.
+   * @param overflowPolicy The overflow policy or null to use the configured one.
+   */
+  AsyncJsonHandler(Writer writer, OverflowPolicy overflowPolicy) {
+    String prefix = getClass().getName();
+    LogManager manager = LogManager.getLogManager();
+
+    setLevel(parseLevel(manager.getProperty(prefix + ".level")));
+    setFormatter(createFormatter(manager.getProperty(prefix + ".formatter")));
+    this.recordWriter = new RecordWriter(writer,
+        parseInt(manager.getProperty(prefix + ".bufferSize"), DEFAULT_BUFFER_SIZE),
+        parseInt(manager.getProperty(prefix + ".batchSize"), DEFAULT_BATCH_SIZE),
+        overflowPolicy != null ? overflowPolicy
+            : parseOverflowPolicy(manager.getProperty(prefix + ".overflowPolicy")));
+    recordWriter.start();
+  }
+
+  private static Level parseLevel(String value) {
+    try {
+      return value != null ? Level.parse(value.trim()) : Level.ALL;
+    } catch (IllegalArgumentException e) {
+      return Level.ALL;
+    }
+  }
+
+  private static int parseInt(String value, int defaultValue) {
+    try {
+      int parsed = value != null ? Integer.parseInt(value.trim()) : defaultValue;
+      return parsed > 0 ? parsed : defaultValue;
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+  private static OverflowPolicy parseOverflowPolicy(String value) {
+    try {
+      return value != null ? OverflowPolicy.valueOf(value.trim()) : OverflowPolicy.DROP_NEWEST;
+    } catch (IllegalArgumentException e) {
+      return OverflowPolicy.DROP_NEWEST;
+    }
+  }
+
+  private static Formatter createFormatter(String className) {
+    if (className != null) {
+      try {
+        return (Formatter) ClassLoader.getSystemClassLoader().loadClass(className.trim())
+            .newInstance();
+      } catch (ReflectiveOperationException | ClassCastException e) {
+        // Fall back to the default formatter
+      }
+    }
+    return new StackdriverJsonFormatter();
+  }
+
+  /**
+   * Format the records on the writer thread.
+   */
+  private class RecordWriter extends AsyncBatchWriter<LogRecord> {
+
+    RecordWriter(Writer writer, int bufferSize, int batchSize, OverflowPolicy overflowPolicy) {
+      super("async-json-log-writer", writer, bufferSize, batchSize, overflowPolicy);
+    }
+
+    @Override
+    protected void format(LogRecord record, StringBuilder batch) {
+      Formatter formatter = getFormatter();
+      if (formatter instanceof StackdriverJsonFormatter) {
+        ((StackdriverJsonFormatter) formatter).format(record, batch);
+      } else {
+        batch.append(formatter.format(record));
+      }
+    }
+
+    @Override
+    protected void formatDropReport(long droppedCount, StringBuilder batch) {
+      LogRecord report = new LogRecord(Level.WARNING,
+          droppedCount + " log records dropped, the log buffer was full");
+      report.setLoggerName(AsyncJsonHandler.class.getName());
+      format(report, batch);
+    }
+
+    @Override
+    protected void handleError(Exception error) {
+      reportError(null, error, error instanceof IOException
+          ? ErrorManager.WRITE_FAILURE : ErrorManager.FORMAT_FAILURE);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Enqueue the record without blocking, it is formatted and written by the writer thread.</p>
+   */
+  @Override
+  public void publish(LogRecord record) {
+    if (isLoggable(record)) {
+      recordWriter.offer(record);
+    }
+  }
+
+  /**
+   * Write the records currently buffered from the calling thread.
+   */
+  @Override
+  public void flush() {
+    recordWriter.flush();
+  }
+
+  /**
+   * Stop the writer thread and write the remaining records.
+   */
+  @Override
+  public void close() {
+    recordWriter.close();
+  }
+
+  /**
+   * Return the number of records discarded because the buffer was full.
+   */
+  public long getDroppedRecordCount() {
+    return recordWriter.getDroppedCount();
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.logging;
+
+import com.google.cloud.runtimes.tomcat.util.JsonStrings;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.logging.Formatter;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Format the log records as single-line JSON objects, following the
+ * <a href="https://cloud.google.com/logging/docs/structured-logging">structured logging</a>
+ * format understood by the Stackdriver Logging agent.
+ *
+ * <p>The stack trace of an exception is appended to the message, so it can be picked up by
+ * Stackdriver Error Reporting.</p>
+ */
+public class StackdriverJsonFormatter extends Formatter {
+
+  @Override
+  public String format(LogRecord record) {
+    StringBuilder builder = new StringBuilder(256);
+    format(record, builder);
+    return builder.toString();
+  }
+
+  /**
+   * Append the JSON representation of the record, followed by a line separator, to the buffer.
+   */
+  public void format(LogRecord record, StringBuilder builder) {
+    long millis = record.getMillis();
+    builder.append("{\"severity\":\"").append(severity(record.getLevel()))
+        .append("\",\"timestamp\":{\"seconds\":").append(Math.floorDiv(millis, 1000))
+        .append(",\"nanos\":").append(Math.floorMod(millis, 1000) * 1000000)
+        .append("},\"logger\":");
+    JsonStrings.appendQuoted(builder, record.getLoggerName());
+    builder.append(",\"thread\":").append(record.getThreadID())
+        .append(",\"message\":");
+    JsonStrings.appendQuoted(builder, formatMessageAndThrown(record));
+    builder.append("}\n");
+  }
+
+  private String formatMessageAndThrown(LogRecord record) {
+    String message = formatMessage(record);
+    if (record.getThrown() == null) {
+      return message;
+    }
+    StringWriter writer = new StringWriter();
+    writer.append(message).append('\n');
+    try (PrintWriter printWriter = new PrintWriter(writer)) {
+      record.getThrown().printStackTrace(printWriter);
+    }
+    return writer.toString();
+  }
+
+  /**
+   * Map a JUL level to a Stackdriver severity.
+   */
+  static String severity(Level level) {
+    int value = level.intValue();
+    if (value >= Level.SEVERE.intValue()) {
+      return "ERROR";
+    } else if (value >= Level.WARNING.intValue()) {
+      return "WARNING";
+    } else if (value >= Level.CONFIG.intValue()) {
+      return "INFO";
+    } else {
+      return "DEBUG";
+    }
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.session;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Binary delta between two versions of a serialized attribute.
+ *
+ * <p>The source is indexed by blocks of {@link #BLOCK_SIZE} bytes, and a rolling hash of the
+ * target finds the blocks it shares with the source, wherever they moved. A matching block is
+ * extended in both directions, so a delta is made of few instructions: a {@code COPY} of a range
+ * of the source, or an {@code INSERT} of bytes absent from the source. Appending an element to a
+ * serialized collection then produces a delta about the size of the element.</p>
+ *
+ * <p>The encoded delta is the length of the target followed by the instructions, the integers
+ * being encoded as unsigned varints.</p>
+ */
+final class AttributeDelta {
+
+  static final int BLOCK_SIZE = 32;
+
+  private static final int COPY = 0;
+  private static final int INSERT = 1;
+  private static final int PRIME = 31;
+  private static final int PRIME_POWER = power(PRIME, BLOCK_SIZE - 1);
+
+  private AttributeDelta() {
+  }
+
+  /**
+   * Compute the delta transforming {@code source} into {@code target}.
+   */
+  static byte[] diff(byte[] source, byte[] target) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writeVarint(out, target.length);
+
+    Map<Integer, Integer> blocks = new HashMap<>();
+    for (int offset = 0; offset + BLOCK_SIZE <= source.length; offset += BLOCK_SIZE) {
+      blocks.putIfAbsent(hash(source, offset), offset);
+    }
+
+    int literalStart = 0;
+    int position = 0;
+    int hash = target.length >= BLOCK_SIZE ? hash(target, 0) : 0;
+    while (position + BLOCK_SIZE <= target.length) {
+      Integer candidate = blocks.get(hash);
+      if (candidate != null && matches(source, candidate, target, position)) {
+        int sourceStart = candidate;
+        int targetStart = position;
+        while (sourceStart > 0 && targetStart > literalStart
+            && source[sourceStart - 1] == target[targetStart - 1]) {
+          sourceStart--;
+          targetStart--;
+        }
+        int sourceEnd = candidate + BLOCK_SIZE;
+        int targetEnd = position + BLOCK_SIZE;
+        while (sourceEnd < source.length && targetEnd < target.length
+            && source[sourceEnd] == target[targetEnd]) {
+          sourceEnd++;
+          targetEnd++;
+        }
+
+        writeInsert(out, target, literalStart, targetStart - literalStart);
+        out.write(COPY);
+        writeVarint(out, sourceStart);
+        writeVarint(out, targetEnd - targetStart);
+
+        position = targetEnd;
+        literalStart = position;
+        if (position + BLOCK_SIZE <= target.length) {
+          hash = hash(target, position);
+        }
+      } else {
+        if (position + BLOCK_SIZE < target.length) {
+          hash = (hash - (target[position] & 0xff) * PRIME_POWER) * PRIME
+              + (target[position + BLOCK_SIZE] & 0xff);
+        }
+        position++;
+      }
+    }
+    writeInsert(out, target, literalStart, target.length - literalStart);
+    return out.toByteArray();
+  }
+
+  /**
+   * Rebuild the target of a delta.
+   * @param source The source the delta was computed from.
+   * @param delta The delta.
+   * @return The target.
+   * @throws IOException If the delta is corrupted or does not apply to this source.
+   */
+  static byte[] apply(byte[] source, byte[] delta) throws IOException {
+    try {
+      ByteBuffer in = ByteBuffer.wrap(delta);
+      byte[] target = new byte[readVarint(in)];
+      int position = 0;
+      while (in.hasRemaining()) {
+        int instruction = in.get();
+        if (instruction == COPY) {
+          int offset = readVarint(in);
+          int length = readVarint(in);
+          System.arraycopy(source, offset, target, position, length);
+          position += length;
+        } else if (instruction == INSERT) {
+          int length = readVarint(in);
+          in.get(target, position, length);
+          position += length;
+        } else {
+          throw new IOException("Unknown delta instruction " + instruction);
+        }
+      }
+      if (position != target.length) {
+        throw new IOException("Truncated delta");
+      }
+      return target;
+    } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+      throw new IOException("Corrupted delta", e);
+    }
+  }
+
+  private static boolean matches(byte[] source, int sourceOffset, byte[] target, int offset) {
+    for (int i = 0; i < BLOCK_SIZE; i++) {
+      if (source[sourceOffset + i] != target[offset + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int hash(byte[] data, int offset) {
+    int hash = 0;
+    for (int i = offset; i < offset + BLOCK_SIZE; i++) {
+      hash = hash * PRIME + (data[i] & 0xff);
+    }
+    return hash;
+  }
+
+  private static int power(int base, int exponent) {
+    int result = 1;
+    for (int i = 0; i < exponent; i++) {
+      result *= base;
+    }
+    return result;
+  }
+
+  private static void writeInsert(ByteArrayOutputStream out, byte[] data, int offset, int length) {
+    if (length > 0) {
+      out.write(INSERT);
+      writeVarint(out, length);
+      out.write(data, offset, length);
+    }
+  }
+
+  private static void writeVarint(ByteArrayOutputStream out, int value) {
+    while ((value & ~0x7f) != 0) {
+      out.write((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  private static int readVarint(ByteBuffer in) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      byte b = in.get();
+      value |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        if (value < 0) {
+          throw new IOException("Invalid length in delta");
+        }
+        return value;
+      }
+    }
+    throw new IOException("Invalid varint in delta");
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.session;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Select the {@link AttributePolicy} of the session attributes whose value is an instance of the
+ * annotated class. The {@code attributePolicies} of the store take precedence.
+ *
+ * <pre>
+ *   {@code
+ *   @AttributePersistence(value = AttributePolicy.INTERVAL, interval = 60)
+ *   public class RecentlyViewed implements Serializable {
+ *     ...
+ *   }
+ *   }
+ * </pre>
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface AttributePersistence {
+
+  /**
+   * The policy of the attributes.
+   */
+  AttributePolicy value();
+
+  /**
+   * The interval in seconds of the {@link AttributePolicy#INTERVAL} policy.
+   */
+  int interval() default 0;
+}
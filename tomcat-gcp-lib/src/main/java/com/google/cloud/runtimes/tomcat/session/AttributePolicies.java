@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.session;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The persistence policies of the session attributes, by attribute name.
+ *
+ * <p>The configuration is a list of {@code name=policy} separated by {@code ;}, where the name
+ * is either an attribute name or a prefix followed by {@code *}, and the
+ * {@link AttributePolicy#INTERVAL} policy is followed by its interval in seconds, for example
+ * {@code user.recommendations=NEVER;cart=COMPRESSED;stats.*=INTERVAL:60}. An exact name takes
+ * precedence over the prefixes, and the longest prefix over the shorter ones. The attributes
+ * matching no name use the {@link AttributePersistence} annotation of their class, or
+ * {@link AttributePolicy#ALWAYS}.</p>
+ */
+class AttributePolicies {
+
+  /**
+   * The policy of an attribute.
+   */
+  static final class Rule {
+    static final Rule DEFAULT = new Rule(AttributePolicy.ALWAYS, 0);
+
+    final AttributePolicy policy;
+    final long intervalMillis;
+
+    Rule(AttributePolicy policy, long intervalMillis) {
+      this.policy = policy;
+      this.intervalMillis = intervalMillis;
+    }
+  }
+
+  private final Map<String, Rule> names = new HashMap<>();
+  private final List<Map.Entry<String, Rule>> prefixes = new ArrayList<>();
+
+  /**
+   * Parse the policies.
+   * @param configuration The policies, as described in the class documentation.
+   * @throws IllegalArgumentException If the configuration is invalid.
+   */
+  AttributePolicies(String configuration) {
+    for (String entry : Splitter.on(';').trimResults().omitEmptyStrings()
+        .split(Strings.nullToEmpty(configuration))) {
+      int separator = entry.lastIndexOf('=');
+      if (separator < 0) {
+        throw new IllegalArgumentException("Expected name=policy: " + entry);
+      }
+      String name = entry.substring(0, separator).trim();
+      Rule rule = parseRule(entry.substring(separator + 1));
+      if (name.endsWith("*")) {
+        prefixes.add(new HashMap.SimpleImmutableEntry<>(name.substring(0, name.length() - 1),
+            rule));
+      } else {
+        names.put(name, rule);
+      }
+    }
+    prefixes.sort((a, b) -> b.getKey().length() - a.getKey().length());
+  }
+
+  private static Rule parseRule(String value) {
+    int separator = value.indexOf(':');
+    AttributePolicy policy = AttributePolicy.parse(
+        separator < 0 ? value : value.substring(0, separator));
+    if (policy != AttributePolicy.INTERVAL) {
+      if (separator >= 0) {
+        throw new IllegalArgumentException("Only the INTERVAL policy has a parameter: " + value);
+      }
+      return new Rule(policy, 0);
+    }
+    if (separator < 0) {
+      throw new IllegalArgumentException("Expected INTERVAL:seconds: " + value);
+    }
+    int interval = Integer.parseInt(value.substring(separator + 1).trim());
+    return new Rule(policy, TimeUnit.SECONDS.toMillis(interval));
+  }
+
+  /**
+   * Return the policy of an attribute.
+   * @param name The name of the attribute.
+   * @param value The value of the attribute.
+   */
+  Rule resolve(String name, Object value) {
+    Rule rule = names.get(name);
+    if (rule != null) {
+      return rule;
+    }
+    for (Map.Entry<String, Rule> prefix : prefixes) {
+      if (name.startsWith(prefix.getKey())) {
+        return prefix.getValue();
+      }
+    }
+
+    AttributePersistence annotation = value != null
+        ? value.getClass().getAnnotation(AttributePersistence.class) : null;
+    if (annotation != null) {
+      return new Rule(annotation.value(), TimeUnit.SECONDS.toMillis(annotation.interval()));
+    }
+    return Rule.DEFAULT;
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.session;
+
+import java.util.Locale;
+
+/**
+ * How {@link DatastoreStore} persists a session attribute.
+ *
+ * <p>The policy of an attribute is selected by the {@code attributePolicies} property of the
+ * store, or by the {@link AttributePersistence} annotation of the class of its value.</p>
+ */
+public enum AttributePolicy {
+
+  /**
+   * The attribute is saved whenever the request used it. This is the default.
+   */
+  ALWAYS,
+
+  /**
+   * The attribute is never saved to the Datastore. It is kept in a cache local to the node, and
+   * is missing when the session is loaded by another node or after the cache evicted it. Suited
+   * to values derived from the other attributes.
+   */
+  NEVER,
+
+  /**
+   * The attribute is saved only when it was set during the request. A value modified in place,
+   * without calling {@code setAttribute}, is not saved.
+   */
+  ON_CHANGE,
+
+  /**
+   * The attribute is saved at most once per interval, a save within the interval is skipped and
+   * its changes may be lost.
+   */
+  INTERVAL,
+
+  /**
+   * The attribute is saved whenever the request used it, compressed.
+   */
+  COMPRESSED;
+
+  /**
+   * Parse a policy name, case insensitive, accepting {@code -} instead of {@code _}.
+   * @throws IllegalArgumentException If the name is not a policy.
+   */
+  public static AttributePolicy parse(String name) {
+    return valueOf(name.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+  }
+}
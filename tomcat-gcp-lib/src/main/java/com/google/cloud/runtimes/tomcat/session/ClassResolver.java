@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.session;
+
+import com.google.common.collect.ImmutableMap;
+import java.io.InvalidClassException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Resolve the classes of the deserialized attributes with the class loader of a web application,
+ * and remember the result.
+ *
+ * <p>Looking a class up through the web application class loader is costly, and the same few
+ * classes are resolved by every deserialization. The resolved classes, and the names rejected by
+ * the allowlist, are kept up to {@link #MAX_CACHED_CLASSES} entries. A resolver is bound to a
+ * class loader and must be replaced when the application is reloaded.</p>
+ *
+ * <p>When an allowlist is configured, only the classes whose name matches it can be resolved,
+ * the names of array classes being checked on their element type.</p>
+ */
+class ClassResolver {
+
+  static final int MAX_CACHED_CLASSES = 4096;
+
+  private static final Map<String, Class<?>> PRIMITIVE_TYPES =
+      ImmutableMap.<String, Class<?>>builder()
+          .put("boolean", boolean.class)
+          .put("byte", byte.class)
+          .put("char", char.class)
+          .put("short", short.class)
+          .put("int", int.class)
+          .put("long", long.class)
+          .put("float", float.class)
+          .put("double", double.class)
+          .put("void", void.class)
+          .build();
+
+  private final ClassLoader classLoader;
+  private final Pattern allowedClassNames;
+  private final Map<String, Class<?>> classes = new ConcurrentHashMap<>();
+  private final Set<String> rejectedNames = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Create a resolver.
+   * @param classLoader The class loader of the application.
+   * @param allowedClassNames The pattern the class names must match, or null to allow all the
+   *                          classes.
+   */
+  ClassResolver(ClassLoader classLoader, Pattern allowedClassNames) {
+    this.classLoader = classLoader;
+    this.allowedClassNames = allowedClassNames;
+  }
+
+  /**
+   * Resolve a class.
+   * @param name The binary name of the class, as written in a serialized stream.
+   * @return The class.
+   * @throws InvalidClassException If the class is not allowed.
+   * @throws ClassNotFoundException If the class cannot be found.
+   */
+  Class<?> resolve(String name) throws InvalidClassException, ClassNotFoundException {
+    Class<?> type = classes.get(name);
+    if (type != null) {
+      return type;
+    }
+    if (!isAllowed(name)) {
+      throw new InvalidClassException(name, "The class is not allowed in a session");
+    }
+
+    type = PRIMITIVE_TYPES.get(name);
+    if (type == null) {
+      type = Class.forName(name, false, classLoader);
+    }
+    if (classes.size() < MAX_CACHED_CLASSES) {
+      classes.put(name, type);
+    }
+    return type;
+  }
+
+  /**
+   * Whether the allowlist accepts a class name.
+   */
+  boolean isAllowed(String name) {
+    if (allowedClassNames == null) {
+      return true;
+    }
+    if (rejectedNames.contains(name)) {
+      return false;
+    }
+
+    String elementName = name;
+    while (elementName.startsWith("[")) {
+      elementName = elementName.substring(1);
+    }
+    if (elementName.startsWith("L") && elementName.endsWith(";")) {
+      elementName = elementName.substring(1, elementName.length() - 1);
+    } else if (elementName.length() < name.length()) {
+      // Array of primitives
+      return true;
+    }
+
+    boolean allowed = PRIMITIVE_TYPES.containsKey(elementName)
+        || allowedClassNames.matcher(elementName).matches();
+    if (!allowed && rejectedNames.size() < MAX_CACHED_CLASSES) {
+      rejectedNames.add(name);
+    }
+    return allowed;
+  }
+
+  ClassLoader getClassLoader() {
+    return classLoader;
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.session;
+
+import java.io.IOException;
+
+/**
+ * Object store holding the sessions demoted from the Datastore by {@link DatastoreStore}, each
+ * session being a single compressed blob named after its id.
+ *
+ * <p>An implementation must be safe for concurrent use. A blob is written once and read or
+ * deleted by the node promoting the session.</p>
+ */
+public interface ColdSessionStorage {
+
+  /**
+   * Store the blob of a session, replacing any previous blob.
+   * @param id The id of the session.
+   * @param data The content of the blob.
+   * @throws IOException If the blob cannot be written.
+   */
+  void write(String id, byte[] data) throws IOException;
+
+  /**
+   * Read the blob of a session.
+   * @param id The id of the session.
+   * @return The content of the blob, or null if there is no blob for this session.
+   * @throws IOException If the blob cannot be read.
+   */
+  byte[] read(String id) throws IOException;
+
+  /**
+   * Delete the blob of a session, if any.
+   * @param id The id of the session.
+   * @throws IOException If the blob cannot be deleted.
+   */
+  void delete(String id) throws IOException;
+}
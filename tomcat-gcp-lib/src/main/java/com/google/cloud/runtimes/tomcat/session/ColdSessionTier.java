@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.session;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreException;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.FullEntity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.LongValue;
+import com.google.cloud.datastore.Transaction;
+import com.google.cloud.runtimes.tomcat.session.DatastoreSession.SessionMetadata;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Move the idle sessions between the Datastore and a {@link ColdSessionStorage}.
+ *
+ * <p>A demoted session is written to the cold storage as a single compressed blob holding all
+ * its entities. Its attributes are deleted from the Datastore and its metadata entity is
+ * replaced by a stub, flagged as cold, whose last access time is no longer indexed so that the
+ * sweeper does not select it again. The expiration time stays indexed and the expiration of a
+ * cold session is unchanged.</p>
+ *
+ * <p>Both moves are transactions checking that the metadata entity did not change since it was
+ * read, so a session saved during its demotion stays in the Datastore, and a session promoted
+ * concurrently by two requests is only written back once. A request may still load a session
+ * just before its demotion and save it afterwards: the saves are then run by
+ * {@link #save(Key, List, Key[])}, which promotes the session before writing over its stub.</p>
+ */
+class ColdSessionTier {
+
+  /**
+   * Number of attempts of a save racing with the demotion of its session.
+   */
+  private static final int MAX_SAVE_ATTEMPTS = 3;
+
+  private final Datastore datastore;
+  private final ColdSessionStorage storage;
+
+  ColdSessionTier(Datastore datastore, ColdSessionStorage storage) {
+    this.datastore = datastore;
+    this.storage = storage;
+  }
+
+  /**
+   * Return the stub of a cold session.
+   * @param sessionKey The key of the session.
+   * @param entities The entities of the session.
+   * @return The metadata entity if the session is cold, null otherwise.
+   */
+  static Entity coldMetadata(Key sessionKey, List<Entity> entities) {
+    for (Entity entity : entities) {
+      if (entity.getKey().equals(sessionKey)) {
+        return isCold(entity) ? entity : null;
+      }
+    }
+    return null;
+  }
+
+  private static boolean isCold(Entity metadata) {
+    return metadata.contains(SessionMetadata.COLD) && metadata.getBoolean(SessionMetadata.COLD);
+  }
+
+  /**
+   * Move a session to the cold storage.
+   * @param sessionKey The key of the session.
+   * @param entities The entities of the session, as read from the Datastore.
+   * @return Whether the session was demoted, false if it is already cold, too large for a
+   *         single transaction, or was modified since it was read.
+   * @throws IOException If the session cannot be written to the cold storage or the Datastore.
+   */
+  boolean demote(Key sessionKey, List<Entity> entities) throws IOException {
+    Entity metadata = entities.stream()
+        .filter(entity -> entity.getKey().equals(sessionKey))
+        .findFirst()
+        .orElse(null);
+    if (metadata == null || coldMetadata(sessionKey, entities) != null
+        || entities.size() > DatastoreStore.MAX_MUTATIONS_PER_COMMIT) {
+      return false;
+    }
+
+    String id = sessionKey.getName();
+    storage.write(id, encode(entities));
+    Transaction transaction = datastore.newTransaction();
+    try {
+      if (!metadata.equals(transaction.get(sessionKey))) {
+        storage.delete(id);
+        return false;
+      }
+      transaction.put(Entity.newBuilder(metadata)
+          .set(SessionMetadata.LAST_ACCESSED_TIME,
+              LongValue.newBuilder(metadata.getLong(SessionMetadata.LAST_ACCESSED_TIME))
+                  .setExcludeFromIndexes(true)
+                  .build())
+          .set(SessionMetadata.COLD, true)
+          .build());
+      Key[] attributeKeys = entities.stream()
+          .map(Entity::getKey)
+          .filter(key -> !key.equals(sessionKey))
+          .toArray(Key[]::new);
+      if (attributeKeys.length > 0) {
+        transaction.delete(attributeKeys);
+      }
+      transaction.commit();
+      return true;
+    } catch (DatastoreException e) {
+      // The commit may have been applied, the blob is kept until the session expires
+      throw new IOException("Unable to demote the session " + id, e);
+    } finally {
+      if (transaction.isActive()) {
+        transaction.rollback();
+      }
+    }
+  }
+
+  /**
+   * Read a session from the cold storage, and move it back to the Datastore.
+   * @param sessionKey The key of the session.
+   * @param stub The metadata entity of the cold session.
+   * @param writeBack Whether to write the session back to the Datastore, false to only read it.
+   * @return The entities of the session, or null if it is no longer in the cold storage or was
+   *         promoted concurrently.
+   * @throws IOException If the session cannot be read or written back.
+   */
+  List<Entity> promote(Key sessionKey, Entity stub, boolean writeBack) throws IOException {
+    String id = sessionKey.getName();
+    byte[] data = storage.read(id);
+    if (data == null) {
+      return null;
+    }
+    List<Entity> entities = decode(data);
+    if (!writeBack) {
+      return entities;
+    }
+
+    Transaction transaction = datastore.newTransaction();
+    try {
+      if (!stub.equals(transaction.get(sessionKey))) {
+        return null;
+      }
+      transaction.put(entities.toArray(new FullEntity<?>[0]));
+      transaction.commit();
+    } catch (DatastoreException e) {
+      throw new IOException("Unable to promote the session " + id, e);
+    } finally {
+      if (transaction.isActive()) {
+        transaction.rollback();
+      }
+    }
+    storage.delete(id);
+    return entities;
+  }
+
+  /**
+   * Save a session in a transaction checking that it is not cold. A session demoted since the
+   * request loaded it is promoted first, so that the save does not replace its stub and lose the
+   * attributes not written by the request.
+   * @param sessionKey The key of the session.
+   * @param entities The entities to write.
+   * @param suppressedKeys The keys of the entities to delete.
+   * @throws IOException If the session cannot be promoted or saved.
+   */
+  void save(Key sessionKey, List<Entity> entities, Key[] suppressedKeys) throws IOException {
+    String id = sessionKey.getName();
+    for (int attempt = 1; ; attempt++) {
+      Transaction transaction = datastore.newTransaction();
+      try {
+        Entity stored = transaction.get(sessionKey);
+        if (stored != null && isCold(stored)) {
+          transaction.rollback();
+          if (attempt == MAX_SAVE_ATTEMPTS) {
+            throw new IOException("Unable to save the session " + id + ", it is cold");
+          }
+          promote(sessionKey, stored, true);
+          continue;
+        }
+        transaction.put(entities.toArray(new FullEntity<?>[0]));
+        if (suppressedKeys.length > 0) {
+          transaction.delete(suppressedKeys);
+        }
+        transaction.commit();
+        return;
+      } catch (DatastoreException e) {
+        // The session may have been demoted concurrently
+        if (attempt == MAX_SAVE_ATTEMPTS) {
+          throw new IOException("Unable to save the session " + id, e);
+        }
+      } finally {
+        if (transaction.isActive()) {
+          transaction.rollback();
+        }
+      }
+    }
+  }
+
+  /**
+   * Delete the blob of a session removed or expired.
+   */
+  void delete(String id) throws IOException {
+    storage.delete(id);
+  }
+
+  static byte[] encode(List<Entity> entities) throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(new DeflaterOutputStream(buffer))) {
+      out.writeObject(new ArrayList<>(entities));
+    }
+    return buffer.toByteArray();
+  }
+
+  @SuppressWarnings("unchecked")
+  static List<Entity> decode(byte[] data) throws IOException {
+    try (ObjectInputStream in = new ObjectInputStream(
+        new InflaterInputStream(new ByteArrayInputStream(data)))) {
+      return (List<Entity>) in.readObject();
+    } catch (ClassNotFoundException | ClassCastException e) {
+      throw new IOException("Invalid cold session", e);
+    }
+  }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.session;
+
+import com.google.common.hash.Hashing;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Compress, encrypt and authenticate the state of a session so that it can be handed to the
+ * client in a cookie.
+ *
+ * <p>The state is compressed with Deflate and encrypted with AES-GCM, using the header and the
+ * session id as additional authenticated data so that the value cannot be replayed with another
+ * session. The header carries the absolute expiration time of the value, after which it is
+ * rejected. The encoded value is {@code version | key id | iv | expiration | ciphertext}, in
+ * unpadded URL-safe base64.</p>
+ *
+ * <p>Several keys can be configured to rotate them: the first one encrypts the new values, all
+ * of them are accepted when decoding, the key being selected by its id (the first bytes of its
+ * SHA-256).</p>
+ */
+class CookieSessionCodec {
+
+  private static final byte VERSION = 2;
+  private static final int KEY_ID_LENGTH = 4;
+  private static final int IV_LENGTH = 12;
+  private static final int EXPIRATION_OFFSET = 1 + KEY_ID_LENGTH + IV_LENGTH;
+  private static final int TAG_LENGTH = 16;
+  private static final int HEADER_LENGTH = EXPIRATION_OFFSET + Long.BYTES;
+
+  /**
+   * Upper bound of a decompressed state, the values being authenticated this only guards
+   * against a bug on the encoding side.
+   */
+  private static final int MAX_STATE_LENGTH = 1 << 20;
+
+  private final List<SecretKey> keys = new ArrayList<>();
+  private final List<byte[]> keyIds = new ArrayList<>();
+  private final SecureRandom random = new SecureRandom();
+
+  /**
+   * Create a codec.
+   * @param encodedKeys AES keys of 16, 24 or 32 bytes encoded in base64, separated by {@code ;}.
+   *                    The first key is used to encrypt.
+   * @throws IllegalArgumentException If no key is provided or a key is invalid.
+   */
+  CookieSessionCodec(String encodedKeys) {
+    if (encodedKeys != null) {
+      for (String encodedKey : encodedKeys.split(";")) {
+        if (!encodedKey.trim().isEmpty()) {
+          addKey(Base64.getDecoder().decode(encodedKey.trim()));
+        }
+      }
+    }
+    if (keys.isEmpty()) {
+      throw new IllegalArgumentException("At least one key is required to encrypt the sessions");
+    }
+  }
+
+  private void addKey(byte[] key) {
+    if (key.length != 16 && key.length != 24 && key.length != 32) {
+      throw new IllegalArgumentException("The keys must be AES keys of 128, 192 or 256 bits");
+    }
+    keys.add(new SecretKeySpec(key, "AES"));
+    keyIds.add(Arrays.copyOf(Hashing.sha256().hashBytes(key).asBytes(), KEY_ID_LENGTH));
+  }
+
+  /**
+   * Encode the state of a session.
+   * @param sessionId The id of the session, authenticated with the state.
+   * @param state The serialized state of the session.
+   * @param expirationTime The time in milliseconds after which the value is rejected.
+   * @return A value usable in a cookie.
+   * @throws IOException If the state cannot be encrypted.
+   */
+  String encode(String sessionId, byte[] state, long expirationTime) throws IOException {
+    byte[] compressed = deflate(state);
+    byte[] iv = new byte[IV_LENGTH];
+    random.nextBytes(iv);
+
+    try {
+      Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+      cipher.init(Cipher.ENCRYPT_MODE, keys.get(0), new GCMParameterSpec(TAG_LENGTH * 8, iv));
+
+      ByteBuffer value = ByteBuffer.allocate(HEADER_LENGTH + compressed.length + TAG_LENGTH);
+      value.put(VERSION).put(keyIds.get(0)).put(iv).putLong(expirationTime);
+      cipher.updateAAD(value.array(), 0, HEADER_LENGTH);
+      cipher.updateAAD(sessionId.getBytes(StandardCharsets.UTF_8));
+      cipher.doFinal(ByteBuffer.wrap(compressed), value);
+      return Base64.getUrlEncoder().withoutPadding().encodeToString(value.array());
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Unable to encrypt the session " + sessionId, e);
+    }
+  }
+
+  /**
+   * Decode the state of a session.
+   * @param sessionId The id of the session the state must belong to.
+   * @param encoded The value of the cookie.
+   * @param now The current time in milliseconds.
+   * @return The serialized state, or null if the value is malformed, was encrypted with an unknown
+   *         key, was modified, belongs to another session or is expired.
+   */
+  byte[] decode(String sessionId, String encoded, long now) {
+    byte[] value;
+    try {
+      value = Base64.getUrlDecoder().decode(encoded);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+    if (value.length < HEADER_LENGTH + TAG_LENGTH || value[0] != VERSION
+        || ByteBuffer.wrap(value, EXPIRATION_OFFSET, Long.BYTES).getLong() <= now) {
+      return null;
+    }
+
+    SecretKey key = findKey(value);
+    if (key == null) {
+      return null;
+    }
+
+    try {
+      Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+      cipher.init(Cipher.DECRYPT_MODE, key,
+          new GCMParameterSpec(TAG_LENGTH * 8, value, 1 + KEY_ID_LENGTH, IV_LENGTH));
+      cipher.updateAAD(value, 0, HEADER_LENGTH);
+      cipher.updateAAD(sessionId.getBytes(StandardCharsets.UTF_8));
+      byte[] compressed = cipher.doFinal(value, HEADER_LENGTH, value.length - HEADER_LENGTH);
+      return inflate(compressed);
+    } catch (GeneralSecurityException | DataFormatException e) {
+      return null;
+    }
+  }
+
+  private SecretKey findKey(byte[] value) {
+    for (int i = 0; i < keys.size(); i++) {
+      byte[] keyId = keyIds.get(i);
+      boolean matches = true;
+      for (int j = 0; j < KEY_ID_LENGTH && matches; j++) {
+        matches = keyId[j] == value[1 + j];
+      }
+      if (matches) {
+        return keys.get(i);
+      }
+    }
+    return null;
+  }
+
+  private static byte[] deflate(byte[] data) {
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try {
+      deflater.setInput(data);
+      deflater.finish();
+      ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 16);
+      byte[] buffer = new byte[1024];
+      while (!deflater.finished()) {
+        out.write(buffer, 0, deflater.deflate(buffer));
+      }
+      return out.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private static byte[] inflate(byte[] data) throws DataFormatException {
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(data);
+      ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 3);
+      byte[] buffer = new byte[1024];
+      while (!inflater.finished()) {
+        int length = inflater.inflate(buffer);
+        if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new DataFormatException("Truncated session state");
+        }
+        out.write(buffer, 0, length);
+        if (out.size() > MAX_STATE_LENGTH) {
+          throw new DataFormatException("The session state is too large");
+        }
+      }
+      return out.toByteArray();
+    } finally {
+      inflater.end();
+    }
+  }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.session;
+
+import com.google.cloud.runtimes.tomcat.trace.RequestTimings;
+import com.google.cloud.runtimes.tomcat.trace.RequestTimings.Phase;
+import com.google.common.annotations.VisibleForTesting;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import javax.servlet.http.Cookie;
+import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Session;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * This store keeps small sessions in an encrypted cookie and the other ones in the Datastore.
+ *
+ * <p>The metadata and distributable attributes of the session are serialized, compressed and
+ * encrypted by a {@link CookieSessionCodec}. When the encoded session fits in
+ * {@code sizeThreshold} characters, it is sent to the client in the {@code cookieName} cookie
+ * and loading it does not require any request to the Datastore. Otherwise the session is stored
+ * in the Datastore as {@link DatastoreStore} does and the cookie is removed. A session moves back
+ * to the cookie when it shrinks below the threshold.</p>
+ *
+ * <p>The attribute policies of the store apply to the cookie: the attributes following
+ * {@link AttributePolicy#NEVER} are kept out of it, in the memory of the node. The cookie holds
+ * the whole session, compressed, so the other policies behave as {@link AttributePolicy#ALWAYS}
+ * while the session is stored in it.</p>
+ *
+ * <p>The store needs the current request to read and write the cookie, it must be used with
+ * {@link DatastoreValve}, which binds the request while it is processed:</p>
+ *
+ * <pre>
+ *   {@code
+ *   <Valve className="com.google.cloud.runtimes.tomcat.session.DatastoreValve" />
+ *   <Manager className="com.google.cloud.runtimes.tomcat.session.DatastoreManager" >
+ *     <Store className="com.google.cloud.runtimes.tomcat.session.CookieSessionStore"
+ *            keys="..." />
+ *   </Manager>
+ *   }
+ * </pre>
+ *
+ * <p>Like a session cookie, the cookie cannot be updated once the response is committed. The
+ * changes made to a session stored in a cookie are then discarded, applications using this store
+ * should not flush the response before they are done with the session.</p>
+ *
+ * <p>A session stored in a cookie has no server-side state: a client replaying a captured cookie
+ * gets back the state it contains. The encoded value is bound to the expiration time of the
+ * session when it was saved, so a cookie is rejected once the session would have expired, and
+ * the invalidated sessions are rejected by the node which invalidated them when the missing
+ * session cache is enabled. An invalidated session can otherwise be replayed on the other nodes
+ * until its cookie expires, applications needing a strict logout should keep a server-side
+ * marker, for example by storing the session in the Datastore.</p>
+ */
+public class CookieSessionStore extends DatastoreStore {
+
+  private static final Log log = LogFactory.getLog(CookieSessionStore.class);
+
+  /**
+   * Note set on the sessions loaded from the Datastore.
+   */
+  private static final String STORED_IN_DATASTORE =
+      "com.google.cloud.runtimes.tomcat.session.STORED_IN_DATASTORE";
+
+  /**
+   * Name of the cookie containing the session.
+   */
+  private String cookieName = "GCP_SESSION_STATE";
+
+  /**
+   * Maximum length of the encoded session stored in the cookie.
+   */
+  private int sizeThreshold = 3072;
+
+  /**
+   * The encryption keys in base64, separated by {@code ;}.
+   */
+  private String keys;
+
+  private CookieSessionCodec codec;
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Verify the encryption keys.</p>
+   */
+  @Override
+  protected synchronized void startInternal() throws LifecycleException {
+    try {
+      initCodec();
+    } catch (IllegalArgumentException e) {
+      throw new LifecycleException("Invalid cookie session keys: " + e.getMessage(), e);
+    }
+    super.startInternal();
+  }
+
+  @VisibleForTesting
+  void initCodec() {
+    codec = new CookieSessionCodec(keys);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Decode the session from the cookie of the current request, or load it from the Datastore
+   * if the request has no such cookie. A cookie which cannot be authenticated, for example
+   * because its key was removed, or which is expired is ignored. So is the cookie of a session
+   * recently removed or expired by this node.</p>
+   */
+  @Override
+  public Session load(String id) throws ClassNotFoundException, IOException {
+    Request request = getCurrentRequest();
+    String value = request != null ? findCookie(request) : null;
+    if (value == null || isSessionIgnored()) {
+      Session session = super.load(id);
+      if (session != null) {
+        session.setNote(STORED_IN_DATASTORE, Boolean.TRUE);
+      }
+      return session;
+    }
+    if (isKnownMissing(id)) {
+      log.debug("The cookie of removed session " + id + " is ignored");
+      return null;
+    }
+
+    final long start = System.nanoTime();
+    byte[] state = codec.decode(id, value, getClock().millis());
+    if (state == null) {
+      log.debug("The cookie of session " + id + " cannot be authenticated or is expired");
+      return null;
+    }
+
+    DatastoreSession session = (DatastoreSession) manager.createEmptySession();
+    try (ObjectInputStream in = new SessionObjectInputStream(new ByteArrayInputStream(state),
+        getClassResolver())) {
+      session.readState(in);
+    }
+    session.setId(id, false);
+    restoreLocalAttributes(session, id);
+    RequestTimings.record(Phase.SESSION_LOAD, start);
+    RequestTimings.recordSessionSize(Phase.SESSION_LOAD, state.length);
+    return session;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Store the session in a cookie if it is small enough, in the Datastore otherwise. Without
+   * a current request, the session is always stored in the Datastore.</p>
+   */
+  @Override
+  public void save(Session session) throws IOException {
+    Request request = getCurrentRequest();
+    if (request == null || isReadOnly(session)) {
+      super.save(session);
+      return;
+    }
+    if (!(session instanceof DatastoreSession)) {
+      throw new IOException(
+          "The session must be an instance of DatastoreSession to be serialized");
+    }
+
+    DatastoreSession datastoreSession = (DatastoreSession) session;
+    byte[] state = serialize(datastoreSession);
+    String value = codec.encode(session.getId(), state, expirationTime(session));
+    Response response = request.getResponse();
+    boolean committed = response.isCommitted();
+    boolean inCookie = findCookie(request) != null;
+
+    if (!committed && value.length() <= sizeThreshold) {
+      response.addCookie(newCookie(request, value, -1));
+      storeLocalAttributes(datastoreSession);
+      if (session.getNote(STORED_IN_DATASTORE) != null) {
+        // Only the entities, the session itself is still alive in the cookie
+        deleteEntities(session.getId());
+      }
+      RequestTimings.recordSessionSize(Phase.SESSION_SAVE, state.length);
+    } else if (!committed || !inCookie) {
+      log.debug("Session " + session.getId() + " stored in the Datastore (" + value.length()
+          + " characters)");
+      super.save(session);
+      if (inCookie) {
+        response.addCookie(newCookie(request, "", 0));
+      }
+    } else {
+      log.warn("The changes of session " + session.getId() + " are discarded, the cookie "
+          + "cannot be updated once the response is committed");
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Also remove the cookie from the client.</p>
+   */
+  @Override
+  public void remove(String id) {
+    super.remove(id);
+    Request request = getCurrentRequest();
+    if (request != null && !request.getResponse().isCommitted() && findCookie(request) != null) {
+      request.getResponse().addCookie(newCookie(request, "", 0));
+    }
+  }
+
+  /**
+   * Compute the time after which the cookie of a session is rejected, like the expiration time
+   * of the sessions stored in the Datastore.
+   */
+  private static long expirationTime(Session session) {
+    if (session.getMaxInactiveInterval() < 0) {
+      return Long.MAX_VALUE;
+    }
+    return session.getLastAccessedTimeInternal() + session.getMaxInactiveInterval() * 1000L;
+  }
+
+  private byte[] serialize(DatastoreSession session) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      session.writeState(out, getAttributePolicies());
+    }
+    return bytes.toByteArray();
+  }
+
+  private String findCookie(Request request) {
+    Cookie[] cookies = request.getCookies();
+    if (cookies != null) {
+      for (Cookie cookie : cookies) {
+        if (cookieName.equals(cookie.getName())) {
+          return cookie.getValue();
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Create a cookie with the same scope as the session cookie.
+   */
+  private Cookie newCookie(Request request, String value, int maxAge) {
+    Context context = request.getContext();
+    Cookie cookie = new Cookie(cookieName, value);
+    String path = context.getSessionCookiePath();
+    if (path == null || path.isEmpty()) {
+      path = context.getPath().isEmpty() ? "/" : context.getPath();
+    }
+    cookie.setPath(path);
+    if (context.getSessionCookieDomain() != null) {
+      cookie.setDomain(context.getSessionCookieDomain());
+    }
+    cookie.setHttpOnly(true);
+    cookie.setSecure(request.isSecure());
+    cookie.setMaxAge(maxAge);
+    return cookie;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setCookieName(String cookieName) {
+    this.cookieName = cookieName;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setSizeThreshold(int sizeThreshold) {
+    this.sizeThreshold = sizeThreshold;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setKeys(String keys) {
+    this.keys = keys;
+  }
+}
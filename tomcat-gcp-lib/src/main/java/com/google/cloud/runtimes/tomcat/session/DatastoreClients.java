@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.session;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.ApacheHttpTransport;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreOptions;
+import com.google.cloud.http.HttpTransportOptions;
+import com.google.common.annotations.VisibleForTesting;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Process-wide registry of the Datastore clients, shared by the stores of all the contexts.
+ *
+ * <p>Each client holds its own HTTP connections and credentials, so the stores using the same
+ * project, namespace and connection limit share a single client. The clients are reference
+ * counted: a client is created by the first {@link #acquire} of its options and its connections
+ * are closed by the last {@link #release}.</p>
+ *
+ * <p>With a connection limit, the client uses a pool of at most this number of persistent
+ * connections. Otherwise it uses the default transport of the environment, whose connections
+ * are pooled by the JVM according to the {@code http.maxConnections} system property.</p>
+ */
+class DatastoreClients {
+
+  private static final Log log = LogFactory.getLog(DatastoreClients.class);
+
+  private static final DatastoreClients INSTANCE = new DatastoreClients();
+
+  /**
+   * A client and the number of stores using it.
+   */
+  private static final class SharedClient {
+    private final List<Object> options;
+    private final Datastore datastore;
+    private final HttpTransport transport;
+    private int references;
+
+    SharedClient(List<Object> options, Datastore datastore, HttpTransport transport) {
+      this.options = options;
+      this.datastore = datastore;
+      this.transport = transport;
+    }
+  }
+
+  /**
+   * The clients by options, guarded by this.
+   */
+  private final Map<List<Object>, SharedClient> clients = new HashMap<>();
+
+  @VisibleForTesting
+  DatastoreClients() {
+  }
+
+  static DatastoreClients getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Return the client of a project and namespace, creating it if no store uses it yet.
+   * @param projectId The project, or null for the default project of the environment.
+   * @param namespace The namespace, or null for the default namespace.
+   * @param maxConnections Maximum number of connections of the client, 0 for the default
+   *                       transport.
+   * @return The client, to release once the store stops.
+   */
+  synchronized Datastore acquire(String projectId, String namespace, int maxConnections) {
+    List<Object> options = Arrays.asList(projectId, namespace, maxConnections);
+    SharedClient client = clients.get(options);
+    if (client == null) {
+      HttpTransport transport = maxConnections > 0 ? newTransport(maxConnections) : null;
+      client = new SharedClient(options, newDatastore(projectId, namespace, transport),
+          transport);
+      clients.put(options, client);
+      log.debug("Created the Datastore client for " + options);
+    }
+    client.references++;
+    return client.datastore;
+  }
+
+  /**
+   * Release a client returned by {@link #acquire}, and close its connections if no other store
+   * uses it.
+   * @param datastore The client.
+   */
+  synchronized void release(Datastore datastore) {
+    for (Iterator<SharedClient> iterator = clients.values().iterator(); iterator.hasNext(); ) {
+      SharedClient client = iterator.next();
+      if (client.datastore != datastore) {
+        continue;
+      }
+      if (--client.references == 0) {
+        iterator.remove();
+        log.debug("Closing the Datastore client for " + client.options);
+        if (client.transport != null) {
+          try {
+            client.transport.shutdown();
+          } catch (IOException e) {
+            log.warn("Unable to close the connections of the Datastore client", e);
+          }
+        }
+      }
+      return;
+    }
+  }
+
+  /**
+   * Return the number of clients in use.
+   */
+  @VisibleForTesting
+  synchronized int size() {
+    return clients.size();
+  }
+
+  @VisibleForTesting
+  Datastore newDatastore(String projectId, String namespace, HttpTransport transport) {
+    DatastoreOptions.Builder options = DatastoreOptions.newBuilder().setNamespace(namespace);
+    if (projectId != null) {
+      options.setProjectId(projectId);
+    }
+    if (transport != null) {
+      options.setTransportOptions(HttpTransportOptions.newBuilder()
+          .setHttpTransportFactory(() -> transport)
+          .build());
+    }
+    return options.build().getService();
+  }
+
+  private static HttpTransport newTransport(int maxConnections) {
+    ApacheHttpTransport.Builder builder = new ApacheHttpTransport.Builder();
+    ConnManagerParams.setMaxTotalConnections(builder.getHttpParams(), maxConnections);
+    ConnManagerParams.setMaxConnectionsPerRoute(builder.getHttpParams(),
+        new ConnPerRouteBean(maxConnections));
+    return builder.build();
+  }
+}
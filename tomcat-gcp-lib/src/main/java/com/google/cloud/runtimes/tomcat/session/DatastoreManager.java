@@ -133,7 +133,7 @@ public class DatastoreManager extends ManagerBase implements StoreManager {
    */
   @Override
   public void removeSuper(Session session) {
-    super.remove(session);
+    super.remove(session, false);
   }
 
   /**
@@ -143,7 +143,26 @@ public class DatastoreManager extends ManagerBase implements StoreManager {
    */
   @Override
   public void remove(Session session) {
-    this.removeSuper(session);
+    remove(session, false);
+  }
+
+  /**
+   * Remove this Session from the active Sessions and the Datastore.
+   *
+   * <p>This is the method called by Tomcat when a session is invalidated or expires.</p>
+   *
+   * @param session The session to remove.
+   * @param update Whether to update the statistics of the expired sessions.
+   */
+  @Override
+  public void remove(Session session, boolean update) {
+    super.remove(session, update);
+    if (DatastoreStore.isReadOnly(session)) {
+      // Its expiration may have been computed from a stale access time, or its id may be the one
+      // of a session it does not hold
+      log.debug("Session " + session.getId() + " is read-only, not removed");
+      return;
+    }
 
     try {
       store.remove(session.getId());
@@ -210,11 +229,78 @@ public class DatastoreManager extends ManagerBase implements StoreManager {
     }
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Tomcat reuses the id presented by the client when the session cookie path is {@code /}.
+   * When the store remembers missing sessions, a new id is always generated instead, so that no
+   * node can hold a stale entry for the id of a live session.</p>
+   *
+   * <p>When the request ignores its session, or reads it with eventual consistency, which may
+   * miss a live session, the session is created with the requested id, so that its cookie does
+   * not replace the one of the client, and is never saved or removed.</p>
+   */
+  @Override
+  public Session createSession(String sessionId) {
+    DatastoreStore datastoreStore = store instanceof DatastoreStore ? (DatastoreStore) store : null;
+    if (datastoreStore != null && isRequestedSessionDetached(datastoreStore)) {
+      Session session = super.createSession(
+          datastoreStore.getCurrentRequest().getRequestedSessionId());
+      DatastoreStore.detach(session);
+      return session;
+    }
+    if (sessionId != null && datastoreStore != null && datastoreStore.cachesMissingSessions()) {
+      sessionId = null;
+    }
+    return super.createSession(sessionId);
+  }
+
+  private static boolean isRequestedSessionDetached(DatastoreStore datastoreStore) {
+    if (datastoreStore.isSessionIgnored()) {
+      return true;
+    }
+    return datastoreStore.isEventualConsistencyRequested()
+        && datastoreStore.getCurrentRequest().getRequestedSessionId() != null;
+  }
+
   @Override
   protected StandardSession getNewSession() {
     return new DatastoreSession(this);
   }
 
+  /**
+   * Return the largest sessions saved by the store, exposed through JMX.
+   */
+  public String[] getLargestSessions() {
+    return store instanceof DatastoreStore
+        ? ((DatastoreStore) store).getLargestSessions() : new String[0];
+  }
+
+  /**
+   * Return the attributes writing the most bytes to the store, exposed through JMX.
+   */
+  public String[] getLargestAttributes() {
+    return store instanceof DatastoreStore
+        ? ((DatastoreStore) store).getLargestAttributes() : new String[0];
+  }
+
+  /**
+   * Return the number of sessions saved by the store by size range, exposed through JMX.
+   */
+  public String[] getSessionSizeHistogram() {
+    return store instanceof DatastoreStore
+        ? ((DatastoreStore) store).getSessionSizeHistogram() : new String[0];
+  }
+
+  /**
+   * Clear the size statistics of the store, exposed through JMX.
+   */
+  public void resetSizeStatistics() {
+    if (store instanceof DatastoreStore) {
+      ((DatastoreStore) store).resetSizeStatistics();
+    }
+  }
+
   public Store getStore() {
     return this.store;
   }
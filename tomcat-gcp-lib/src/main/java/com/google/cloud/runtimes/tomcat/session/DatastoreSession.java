@@ -21,20 +21,30 @@ import com.google.cloud.datastore.BlobValue;
 import com.google.cloud.datastore.Entity;
 import com.google.cloud.datastore.Key;
 import com.google.cloud.datastore.KeyFactory;
+import com.google.cloud.datastore.PathElement;
+import com.google.cloud.runtimes.tomcat.jfr.FlightRecorderEvents;
+import com.google.cloud.runtimes.tomcat.jfr.FlightRecorderEvents.Type;
 import com.google.common.annotations.VisibleForTesting;
-import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.io.UncheckedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.stream.IntStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 import org.apache.catalina.Manager;
 import org.apache.catalina.session.StandardSession;
 
@@ -47,6 +57,120 @@ public class DatastoreSession extends StandardSession {
   protected Set<String> accessedAttributes;
   protected Set<String> initialAttributes;
 
+  /**
+   * Size of the serialized attributes when the session was last restored or saved, used to
+   * estimate the cost of its next serialization.
+   */
+  private transient long serializedAttributesSize;
+
+  /**
+   * The serialized size of the stored attributes, by attribute name.
+   */
+  private final transient Map<String, Integer> attributeSizes = new HashMap<>();
+
+  /**
+   * The hash of the shared value referenced by the stored attributes, by attribute name, until
+   * the session is saved.
+   */
+  private final transient Map<String, String> storedHashes = new HashMap<>();
+
+  /**
+   * The delta chains of the attributes stored with deltas, by attribute name.
+   */
+  private final transient Map<String, DeltaChain> deltaChains = new HashMap<>();
+
+  /**
+   * The keys of the deltas, and of the attributes no longer persisted, made obsolete by the last
+   * serialization.
+   */
+  private final transient List<Key> obsoleteKeys = new ArrayList<>();
+
+  /**
+   * The attributes set during the request, used by the {@link AttributePolicy#ON_CHANGE} policy.
+   */
+  private final transient Set<String> modifiedAttributes = new HashSet<>();
+
+  /**
+   * The time of the last save of the attributes following the {@link AttributePolicy#INTERVAL}
+   * policy, by attribute name.
+   */
+  private final transient Map<String, Long> attributeSaveTimes = new HashMap<>();
+
+  /**
+   * The attributes written by the last serialization, and the save time of those following the
+   * {@link AttributePolicy#INTERVAL} policy, recorded by {@link #committed()} once the save
+   * succeeds.
+   */
+  private final transient Set<String> serializedAttributes = new HashSet<>();
+  private final transient Map<String, Long> serializedSaveTimes = new HashMap<>();
+
+  /**
+   * The attributes kept out of the Datastore by the {@link AttributePolicy#NEVER} policy during
+   * the last serialization.
+   */
+  private final transient Map<String, Object> localAttributes = new HashMap<>();
+
+  /**
+   * The state of an attribute stored as a base value followed by deltas.
+   *
+   * <p>The deltas are children of the attribute entity, identified by their position in the
+   * chain starting at 1, and reference the version of their base. Deltas of another version,
+   * left by a compaction whose deletions failed, are ignored.</p>
+   */
+  private static final class DeltaChain {
+    private final long version;
+    private final int baseSize;
+    private final int length;
+    private final long size;
+    private final byte[] value;
+
+    DeltaChain(long version, int baseSize, int length, long size, byte[] value) {
+      this.version = version;
+      this.baseSize = baseSize;
+      this.length = length;
+      this.size = size;
+      this.value = value;
+    }
+
+    DeltaChain append(int deltaSize, byte[] newValue) {
+      return new DeltaChain(version, baseSize, length + 1, size + deltaSize, newValue);
+    }
+
+    List<Key> deltaKeys(Key attributeKey) {
+      List<Key> keys = new ArrayList<>(length);
+      for (int i = 1; i <= length; i++) {
+        keys.add(deltaKey(attributeKey, i));
+      }
+      return keys;
+    }
+  }
+
+  /**
+   * An attribute read from the Datastore, before its deserialization.
+   */
+  private static final class SerializedAttribute {
+    private final String name;
+    private final Blob blob;
+    private final byte[] bytes;
+    private final boolean compressed;
+
+    SerializedAttribute(String name, Blob blob, byte[] bytes, boolean compressed) {
+      this.name = name;
+      this.blob = blob;
+      this.bytes = bytes;
+      this.compressed = compressed;
+    }
+
+    int size() {
+      return bytes != null ? bytes.length : blob.getLength();
+    }
+
+    InputStream open() {
+      InputStream in = bytes != null ? new ByteArrayInputStream(bytes) : blob.asInputStream();
+      return compressed ? new InflaterInputStream(in) : in;
+    }
+  }
+
   @VisibleForTesting
   class SessionMetadata {
     public static final String CREATION_TIME = "creationTime";
@@ -57,6 +181,13 @@ public class DatastoreSession extends StandardSession {
     public static final String THIS_ACCESSED_TIME = "thisAccessedTime";
     public static final String EXPIRATION_TIME = "expirationTime";
     public static final String ATTRIBUTE_VALUE_NAME = "value";
+    public static final String ATTRIBUTE_VERSION = "version";
+    public static final String DELTA_VALUE_NAME = "delta";
+    public static final String DELTA_BASE_VERSION = "baseVersion";
+    public static final String ATTRIBUTE_COMPRESSED = "compressed";
+    public static final String ATTRIBUTE_SAVE_TIME = "savedAt";
+    public static final String COLD = "cold";
+    public static final String ATTRIBUTE_HASH = "hash";
   }
 
   /**
@@ -79,11 +210,31 @@ public class DatastoreSession extends StandardSession {
    */
   public void restoreFromEntities(Key sessionKey, Iterable<Entity> entities) throws
       ClassNotFoundException, IOException {
+    restoreFromEntities(sessionKey, entities, null, null);
+  }
+
+  /**
+   * Restore the attributes and metadata of the session from Datastore Entities, deserializing
+   * the attributes of large sessions concurrently.
+   *
+   * @param serializer The serializer processing the large sessions, or null to always deserialize
+   *                   the attributes on the current thread.
+   * @param resolver The resolver of the classes of the attributes, or null to use the default
+   *                 resolution of the ObjectInputStream.
+   * @see #restoreFromEntities(Key, Iterable)
+   */
+  void restoreFromEntities(Key sessionKey, Iterable<Entity> entities,
+      ParallelSerializer serializer, ClassResolver resolver)
+      throws ClassNotFoundException, IOException {
+    final Object event = FlightRecorderEvents.begin(Type.SESSION_DESERIALIZATION);
     Entity metadataEntity = null;
-    List<Entity> attributeEntities = new LinkedList<>();
+    List<Entity> attributeEntities = new ArrayList<>();
+    List<Entity> deltaEntities = new ArrayList<>();
     for (Entity entity : entities) {
       if (entity.getKey().equals(sessionKey)) {
         metadataEntity = entity;
+      } else if (entity.contains(SessionMetadata.DELTA_VALUE_NAME)) {
+        deltaEntities.add(entity);
       } else {
         attributeEntities.add(entity);
       }
@@ -94,9 +245,15 @@ public class DatastoreSession extends StandardSession {
     }
 
     restoreMetadataFromEntity(metadataEntity);
-    restoreAttributesFromEntity(attributeEntities);
+    serializedAttributesSize = serializedSize(attributeEntities) + serializedSize(deltaEntities);
+    List<SerializedAttribute> attributes = applyDeltas(attributeEntities, deltaEntities);
+    for (SerializedAttribute attribute : attributes) {
+      attributeSizes.put(attribute.name, attribute.size());
+    }
+    restoreAttributesFromEntity(attributes, serializer, resolver);
     setId(sessionKey.getName());
     initialAttributes.addAll(Collections.list(getAttributeNames()));
+    FlightRecorderEvents.commit(event, id, attributeEntities.size(), serializedAttributesSize);
   }
 
   /**
@@ -112,22 +269,115 @@ public class DatastoreSession extends StandardSession {
     thisAccessedTime = metadata.getLong(SessionMetadata.THIS_ACCESSED_TIME);
   }
 
+  /**
+   * Rebuild the value of the attributes stored with deltas, and remember their chain.
+   * @param attributeEntities The entities of the attributes.
+   * @param deltaEntities The entities of the deltas.
+   * @return The serialized attributes, in the order of their entities.
+   * @throws IOException If a delta cannot be applied.
+   */
+  private List<SerializedAttribute> applyDeltas(List<Entity> attributeEntities,
+      List<Entity> deltaEntities) throws IOException {
+    Map<Key, Entity> deltas = new HashMap<>();
+    for (Entity delta : deltaEntities) {
+      deltas.put(delta.getKey(), delta);
+    }
+
+    List<SerializedAttribute> attributes = new ArrayList<>(attributeEntities.size());
+    for (Entity entity : attributeEntities) {
+      String name = entity.getKey().getName();
+      Blob base = entity.getBlob(SessionMetadata.ATTRIBUTE_VALUE_NAME);
+      if (entity.contains(SessionMetadata.ATTRIBUTE_HASH)) {
+        storedHashes.put(name, entity.getString(SessionMetadata.ATTRIBUTE_HASH));
+      }
+      if (entity.contains(SessionMetadata.ATTRIBUTE_SAVE_TIME)) {
+        attributeSaveTimes.put(name, entity.getLong(SessionMetadata.ATTRIBUTE_SAVE_TIME));
+      }
+      if (!entity.contains(SessionMetadata.ATTRIBUTE_VERSION)) {
+        boolean compressed = entity.contains(SessionMetadata.ATTRIBUTE_COMPRESSED)
+            && entity.getBoolean(SessionMetadata.ATTRIBUTE_COMPRESSED);
+        attributes.add(new SerializedAttribute(name, base, null, compressed));
+        continue;
+      }
+
+      long version = entity.getLong(SessionMetadata.ATTRIBUTE_VERSION);
+      byte[] value = base.toByteArray();
+      int length = 0;
+      long size = 0;
+      Entity delta;
+      while ((delta = deltas.get(deltaKey(entity.getKey(), length + 1))) != null
+          && delta.getLong(SessionMetadata.DELTA_BASE_VERSION) == version) {
+        Blob deltaValue = delta.getBlob(SessionMetadata.DELTA_VALUE_NAME);
+        value = AttributeDelta.apply(value, deltaValue.toByteArray());
+        length++;
+        size += deltaValue.getLength();
+      }
+      deltaChains.put(name, new DeltaChain(version, base.getLength(), length, size, value));
+      attributes.add(new SerializedAttribute(name, null, value, false));
+    }
+    return attributes;
+  }
+
+  private static Key deltaKey(Key attributeKey, long position) {
+    return Key.newBuilder(attributeKey, attributeKey.getKind(), position).build();
+  }
+
+  /**
+   * Return the name of the attribute stored in an entity of the session.
+   * @param key The key of an attribute or of one of its deltas.
+   * @return The name of the attribute, or null for the metadata entity.
+   */
+  static String attributeName(Key key) {
+    List<PathElement> ancestors = key.getAncestors();
+    if (ancestors.size() == 1) {
+      return key.getName();
+    }
+    return ancestors.size() == 2 ? ancestors.get(1).getName() : null;
+  }
+
   /**
    * Deserialize the content of each entity and add them as attribute of the session.
-   * @param entities The entities containing the serialized attributes.
+   *
+   * <p>When the attributes are deserialized concurrently, they are still added to the session on
+   * the current thread, in the order of the entities.</p>
+   * @param entities The serialized attributes.
+   * @param serializer The serializer used for large sessions, or null.
+   * @param resolver The resolver of the classes of the attributes, or null.
    * @throws IOException If an error occur during the deserialization
    * @throws ClassNotFoundException If the class being deserialized is not present in this program.
    */
-  private void restoreAttributesFromEntity(Iterable<Entity> entities) throws IOException,
-      ClassNotFoundException {
-    for (Entity entity : entities) {
-      String name = entity.getKey().getName();
-      Blob value = entity.getBlob(SessionMetadata.ATTRIBUTE_VALUE_NAME);
-      try (InputStream fis = value.asInputStream();
-          ObjectInputStream ois = new ObjectInputStream(fis)) {
-        Object attribute = ois.readObject();
-        setAttribute(name, attribute, false);
+  private void restoreAttributesFromEntity(List<SerializedAttribute> entities,
+      ParallelSerializer serializer, ClassResolver resolver)
+      throws IOException, ClassNotFoundException {
+    if (serializer == null
+        || !serializer.isWorthwhile(entities.size(), serializedAttributesSize)) {
+      for (SerializedAttribute entity : entities) {
+        setAttribute(entity.name, deserializeAttribute(entity, resolver), false);
       }
+      return;
+    }
+
+    // The pool threads do not have the classes of the application on their stack
+    ClassResolver poolResolver = resolver;
+    if (poolResolver == null) {
+      ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+      poolResolver = new ClassResolver(
+          classLoader != null ? classLoader : getClass().getClassLoader(), null);
+    }
+    final ClassResolver entityResolver = poolResolver;
+    List<Object> values = serializer.map(entities,
+        entity -> deserializeAttribute(entity, entityResolver));
+    for (int i = 0; i < entities.size(); i++) {
+      setAttribute(entities.get(i).name, values.get(i), false);
+    }
+  }
+
+  private static Object deserializeAttribute(SerializedAttribute attribute,
+      ClassResolver resolver) throws IOException, ClassNotFoundException {
+    try (InputStream fis = attribute.open();
+        ObjectInputStream ois = resolver != null
+            ? new SessionObjectInputStream(fis, resolver) : new ObjectInputStream(fis)) {
+      return ois.readObject();
     }
   }
 
@@ -141,11 +391,49 @@ public class DatastoreSession extends StandardSession {
    */
   public List<Entity> saveToEntities(Key sessionKey, KeyFactory attributeKeyFactory) throws
       IOException {
-    List<Entity> entities = saveAttributesToEntity(attributeKeyFactory);
+    return saveToEntities(sessionKey, attributeKeyFactory, null, null, null);
+  }
+
+  /**
+   * Serialize the session metadata and attributes into entities, serializing the attributes of
+   * large sessions concurrently.
+   *
+   * @param serializer The serializer processing the large sessions, or null to always serialize
+   *                   the attributes on the current thread.
+   * @param deltaPolicy The policy selecting the attributes saved as deltas, or null to always
+   *                    save the whole attributes.
+   * @param policies The persistence policies of the attributes, or null to persist all the
+   *                 accessed attributes.
+   * @see #saveToEntities(Key, KeyFactory)
+   */
+  List<Entity> saveToEntities(Key sessionKey, KeyFactory attributeKeyFactory,
+      ParallelSerializer serializer, DeltaPolicy deltaPolicy, AttributePolicies policies)
+      throws IOException {
+    final Object event = FlightRecorderEvents.begin(Type.SESSION_SERIALIZATION);
+    List<Entity> entities = saveAttributesToEntity(attributeKeyFactory, serializer, deltaPolicy,
+        policies);
     entities.add(saveMetadataToEntity(sessionKey));
+    FlightRecorderEvents.commit(event, id, entities.size(), serializedSize(entities));
     return entities;
   }
 
+  /**
+   * Compute the size of the serialized attributes contained in the entities.
+   * @param entities Entities of a session, the metadata entity is ignored.
+   * @return The total number of bytes of the attribute values.
+   */
+  static long serializedSize(Iterable<? extends Entity> entities) {
+    long size = 0;
+    for (Entity entity : entities) {
+      if (entity.contains(SessionMetadata.ATTRIBUTE_VALUE_NAME)) {
+        size += entity.getBlob(SessionMetadata.ATTRIBUTE_VALUE_NAME).getLength();
+      } else if (entity.contains(SessionMetadata.DELTA_VALUE_NAME)) {
+        size += entity.getBlob(SessionMetadata.DELTA_VALUE_NAME).getLength();
+      }
+    }
+    return size;
+  }
+
   /**
    * Store the metadata of the session in an entity.
    * @param sessionKey Identifier of the session on the Datastore
@@ -180,39 +468,315 @@ public class DatastoreSession extends StandardSession {
   @VisibleForTesting
   List<Entity> saveAttributesToEntity(KeyFactory attributeKeyFactory) throws
       IOException {
-    Stream<Entity> entities = Collections.list(getAttributeNames()).stream()
-        .filter(name -> accessedAttributes.contains(name))
-        .filter(name -> isAttributeDistributable(name, getAttribute(name)))
-        .map(name -> serializeAttribute(attributeKeyFactory, name));
+    return saveAttributesToEntity(attributeKeyFactory, null, null, null);
+  }
+
+  /**
+   * Serialize the session attributes into entities, concurrently if the session is large.
+   *
+   * <p>The attributes are read on the current thread, only their serialization is handed to the
+   * serializer.</p>
+   *
+   * <p>With a delta policy, the large attributes which were loaded from a delta chain are saved
+   * as a new delta if their value changed, and are not saved at all otherwise. The keys of the
+   * deltas discarded by a compaction are available from {@link #getObsoleteKeys(KeyFactory)}.</p>
+   *
+   * <p>With persistence policies, the attributes following {@link AttributePolicy#NEVER} are
+   * kept out of the entities and available from {@link #getLocalAttributes()}, the stored
+   * attributes following {@link AttributePolicy#ON_CHANGE} are saved only if set during the
+   * request, and those following {@link AttributePolicy#INTERVAL} only once their interval has
+   * elapsed since their last save. The attributes following {@link AttributePolicy#INTERVAL} or
+   * {@link AttributePolicy#COMPRESSED} are always saved whole.</p>
+   * @param attributeKeyFactory The key builder for the entities.
+   * @param serializer The serializer used for large sessions, or null.
+   * @param deltaPolicy The policy selecting the attributes saved as deltas, or null.
+   * @param policies The persistence policies of the attributes, or null.
+   */
+  @VisibleForTesting
+  List<Entity> saveAttributesToEntity(KeyFactory attributeKeyFactory,
+      ParallelSerializer serializer, DeltaPolicy deltaPolicy, AttributePolicies policies)
+      throws IOException {
+    obsoleteKeys.clear();
+    localAttributes.clear();
+    serializedAttributes.clear();
+    serializedSaveTimes.clear();
+    final long now = System.currentTimeMillis();
+    List<String> names = new ArrayList<>();
+    List<Object> values = new ArrayList<>();
+    List<AttributePolicy> valuePolicies = new ArrayList<>();
+    for (String name : Collections.list(getAttributeNames())) {
+      boolean accessed = accessedAttributes.contains(name);
+      Object value = accessed ? getAttribute(name) : attributes.get(name);
+      AttributePolicies.Rule rule = policies != null
+          ? policies.resolve(name, value) : AttributePolicies.Rule.DEFAULT;
+      boolean stored = initialAttributes.contains(name);
+
+      if (rule.policy == AttributePolicy.NEVER) {
+        localAttributes.put(name, value);
+        attributeSizes.remove(name);
+        if (stored) {
+          Key attributeKey = attributeKeyFactory.newKey(name);
+          obsoleteKeys.add(attributeKey);
+          DeltaChain chain = deltaChains.remove(name);
+          if (chain != null) {
+            obsoleteKeys.addAll(chain.deltaKeys(attributeKey));
+          }
+        }
+        continue;
+      }
+      if (!accessed || !isAttributeDistributable(name, value)) {
+        continue;
+      }
+      if (rule.policy == AttributePolicy.ON_CHANGE && stored
+          && !modifiedAttributes.contains(name)) {
+        continue;
+      }
+      if (rule.policy == AttributePolicy.INTERVAL) {
+        Long savedAt = attributeSaveTimes.get(name);
+        if (stored && savedAt != null && now - savedAt < rule.intervalMillis) {
+          continue;
+        }
+        serializedSaveTimes.put(name, now);
+      }
+      serializedAttributes.add(name);
+      names.add(name);
+      values.add(value);
+      valuePolicies.add(rule.policy);
+    }
+
+    List<Blob> serializedValues;
+    if (serializer != null && serializer.isWorthwhile(names.size(), serializedAttributesSize)) {
+      List<Integer> indexes = IntStream.range(0, names.size()).boxed()
+          .collect(Collectors.toList());
+      try {
+        serializedValues = serializer.map(indexes, i -> serializeAttribute(values.get(i),
+            valuePolicies.get(i) == AttributePolicy.COMPRESSED));
+      } catch (ClassNotFoundException e) {
+        throw new IOException(e);
+      }
+    } else {
+      serializedValues = new ArrayList<>(values.size());
+      for (int i = 0; i < values.size(); i++) {
+        serializedValues.add(serializeAttribute(values.get(i),
+            valuePolicies.get(i) == AttributePolicy.COMPRESSED));
+      }
+    }
+
+    List<Entity> entities = new ArrayList<>(names.size() + 1);
+    long size = 0;
+    for (int i = 0; i < names.size(); i++) {
+      String name = names.get(i);
+      Blob serializedValue = serializedValues.get(i);
+      AttributePolicy policy = valuePolicies.get(i);
+      size += serializedValue.getLength();
+      attributeSizes.put(name, serializedValue.getLength());
+      Key attributeKey = attributeKeyFactory.newKey(name);
+      DeltaChain chain = deltaChains.remove(name);
+
+      if (deltaPolicy == null || !deltaPolicy.appliesTo(serializedValue.getLength())
+          || policy == AttributePolicy.COMPRESSED || policy == AttributePolicy.INTERVAL) {
+        if (chain != null) {
+          obsoleteKeys.addAll(chain.deltaKeys(attributeKey));
+        }
+        Entity.Builder entity = attributeEntity(attributeKey, serializedValue);
+        if (policy == AttributePolicy.COMPRESSED) {
+          entity.set(SessionMetadata.ATTRIBUTE_COMPRESSED, true);
+        } else if (policy == AttributePolicy.INTERVAL) {
+          entity.set(SessionMetadata.ATTRIBUTE_SAVE_TIME, now);
+        }
+        entities.add(entity.build());
+        continue;
+      }
+
+      byte[] value = serializedValue.toByteArray();
+      if (chain != null) {
+        if (Arrays.equals(chain.value, value)) {
+          deltaChains.put(name, chain);
+          continue;
+        }
+        byte[] delta = AttributeDelta.diff(chain.value, value);
+        if (!deltaPolicy.shouldCompact(chain.length, chain.size, chain.baseSize, delta.length)) {
+          DeltaChain newChain = chain.append(delta.length, value);
+          entities.add(Entity.newBuilder(deltaKey(attributeKey, newChain.length))
+              .set(SessionMetadata.DELTA_BASE_VERSION, chain.version)
+              .set(SessionMetadata.DELTA_VALUE_NAME, BlobValue.newBuilder(Blob.copyFrom(delta))
+                  .setExcludeFromIndexes(true)
+                  .build())
+              .build());
+          deltaChains.put(name, newChain);
+          continue;
+        }
+        obsoleteKeys.addAll(chain.deltaKeys(attributeKey));
+      }
 
+      long version = ThreadLocalRandom.current().nextLong();
+      entities.add(attributeEntity(attributeKey, serializedValue)
+          .set(SessionMetadata.ATTRIBUTE_VERSION, version)
+          .build());
+      deltaChains.put(name, new DeltaChain(version, value.length, 0, 0, value));
+    }
+    serializedAttributesSize = size;
+    return entities;
+  }
+
+  private static Entity.Builder attributeEntity(Key attributeKey, Blob serializedValue) {
+    return Entity.newBuilder(attributeKey)
+        .set(SessionMetadata.ATTRIBUTE_VALUE_NAME,
+            BlobValue.newBuilder(serializedValue)
+                .setExcludeFromIndexes(true)
+                .build());
+  }
+
+  /**
+   * List the keys of the entities to delete after the last serialization: the deltas discarded
+   * by a compaction, the stored attributes which are no longer persisted, and the deltas of the
+   * suppressed attributes.
+   * @param attributeKeyFactory The key builder for the attributes.
+   * @return The keys to delete, the suppressed attributes themselves are not included.
+   */
+  List<Key> getObsoleteKeys(KeyFactory attributeKeyFactory) {
+    List<Key> keys = new ArrayList<>(obsoleteKeys);
+    for (String name : getSuppressedAttributes()) {
+      DeltaChain chain = deltaChains.get(name);
+      if (chain != null) {
+        keys.addAll(chain.deltaKeys(attributeKeyFactory.newKey(name)));
+      }
+    }
+    return keys;
+  }
+
+  /**
+   * Return the serialized size of the attributes stored in the Datastore, by name. The size of an
+   * attribute is known once it was loaded or saved, and the size of an attribute saved as a delta
+   * is the size of its whole value.
+   */
+  Map<String, Integer> getAttributeSizes() {
+    Map<String, Integer> sizes = new HashMap<>(attributeSizes);
+    sizes.keySet().retainAll(attributes.keySet());
+    return sizes;
+  }
+
+  /**
+   * Return the hash of the shared value referenced by a stored attribute, or null if the value
+   * of the attribute is not shared or if the session was saved since it was loaded.
+   */
+  String getStoredHash(String name) {
+    return storedHashes.get(name);
+  }
+
+  /**
+   * Return the hashes of the shared values referenced by the stored attributes.
+   */
+  Collection<String> getStoredHashes() {
+    return storedHashes.values();
+  }
+
+  /**
+   * Record that the attributes written by the last serialization are stored, once its save is
+   * committed: they are no longer modified, and the interval of the
+   * {@link AttributePolicy#INTERVAL} attributes starts again. Nothing is recorded if the save
+   * failed, so that the next save writes them again.
+   */
+  void committed() {
+    modifiedAttributes.removeAll(serializedAttributes);
+    attributeSaveTimes.putAll(serializedSaveTimes);
+    serializedAttributes.clear();
+    serializedSaveTimes.clear();
+  }
+
+  /**
+   * Forget the hashes of the stored attributes, once the session is saved.
+   */
+  void clearStoredHashes() {
+    storedHashes.clear();
+  }
+
+  /**
+   * Return the attributes kept out of the Datastore by the last serialization.
+   */
+  Map<String, Object> getLocalAttributes() {
+    return Collections.unmodifiableMap(localAttributes);
+  }
+
+  /**
+   * Serialize the value of an attribute in the buffer of the current thread.
+   * @param value The value to serialize.
+   * @param compressed Whether to deflate the serialized value.
+   * @return The serialized value.
+   * @throws IOException If the value cannot be serialized.
+   */
+  private static Blob serializeAttribute(Object value, boolean compressed) throws IOException {
+    SerializationBuffer buffer = SerializationBuffer.acquire();
     try {
-      return entities.collect(Collectors.toList());
-    } catch (UncheckedIOException e) {
-      throw e.getCause();
+      OutputStream out = compressed ? new DeflaterOutputStream(buffer) : buffer;
+      try (ObjectOutputStream oos = new ObjectOutputStream(out)) {
+        oos.writeObject(value);
+      }
+      return buffer.toBlob();
+    } finally {
+      buffer.release();
     }
   }
 
   /**
-   * Serialize an attribute an embed it into an entity whose key is generated by the provided
-   * KeyFactory.
-   * @param attributeKeyFactory The KeyFactory to use to create the key for the entity.
-   * @param name The name of the attribute to serialize.
-   * @return An Entity containing the serialized attribute.
+   * Write the metadata and the distributable attributes of the session in a single stream, used
+   * when the whole session is stored in one value such as a cookie.
+   *
+   * <p>The attributes following {@link AttributePolicy#NEVER} are left out of the stream and
+   * available from {@link #getLocalAttributes()}. The stream holds the whole session, so the
+   * other policies write their attributes every time.</p>
+   * @param out The stream receiving the session.
+   * @param policies The persistence policies of the attributes, or null.
+   * @throws IOException If an attribute cannot be serialized.
    */
-  private Entity serializeAttribute(KeyFactory attributeKeyFactory, String name) {
-    ByteArrayOutputStream bos = new ByteArrayOutputStream();
-    try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
-      oos.writeObject(getAttribute(name));
-    } catch (IOException e) {
-      throw new UncheckedIOException(e);
+  void writeState(ObjectOutputStream out, AttributePolicies policies) throws IOException {
+    out.writeLong(creationTime);
+    out.writeLong(lastAccessedTime);
+    out.writeInt(maxInactiveInterval);
+    out.writeBoolean(isNew);
+    out.writeLong(thisAccessedTime);
+
+    localAttributes.clear();
+    List<String> names = new ArrayList<>();
+    for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+      if (policies != null && policies.resolve(entry.getKey(), entry.getValue()).policy
+          == AttributePolicy.NEVER) {
+        localAttributes.put(entry.getKey(), entry.getValue());
+      } else if (isAttributeDistributable(entry.getKey(), entry.getValue())) {
+        names.add(entry.getKey());
+      }
     }
+    out.writeInt(names.size());
+    for (String name : names) {
+      out.writeUTF(name);
+      out.writeObject(attributes.get(name));
+    }
+  }
 
-    return Entity.newBuilder(attributeKeyFactory.newKey(name))
-        .set(SessionMetadata.ATTRIBUTE_VALUE_NAME,
-            BlobValue.newBuilder(Blob.copyFrom(bos.toByteArray()))
-                .setExcludeFromIndexes(true)
-                .build())
-        .build();
+  /**
+   * Restore a session written by {@link #writeState(ObjectOutputStream, AttributePolicies)}.
+   *
+   * <p>All the attributes are considered accessed, so that they are all stored if the session is
+   * later saved to the Datastore. The session is marked valid, the caller must have checked that
+   * the state is authentic, not expired and does not belong to a removed session.</p>
+   * @param in The stream containing the session.
+   * @throws ClassNotFoundException If the class of an attribute is not available.
+   * @throws IOException If an attribute cannot be deserialized.
+   */
+  void readState(ObjectInputStream in) throws ClassNotFoundException, IOException {
+    creationTime = in.readLong();
+    lastAccessedTime = in.readLong();
+    maxInactiveInterval = in.readInt();
+    isNew = in.readBoolean();
+    thisAccessedTime = in.readLong();
+    isValid = true;
+
+    int count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      String name = in.readUTF();
+      setAttribute(name, in.readObject(), false);
+      accessedAttributes.add(name);
+    }
   }
 
   /**
@@ -238,6 +802,7 @@ public class DatastoreSession extends StandardSession {
     super.setAttribute(name, value, notify);
     if (notify) {
       accessedAttributes.add(name);
+      modifiedAttributes.add(name);
     }
   }
 }
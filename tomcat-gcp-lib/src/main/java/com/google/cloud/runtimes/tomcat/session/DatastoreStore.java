@@ -16,8 +16,10 @@
 
 package com.google.cloud.runtimes.tomcat.session;
 
+import com.google.cloud.datastore.Batch;
 import com.google.cloud.datastore.Datastore;
-import com.google.cloud.datastore.DatastoreOptions;
+import com.google.cloud.datastore.DatastoreException;
+import com.google.cloud.datastore.DatastoreWriter;
 import com.google.cloud.datastore.Entity;
 import com.google.cloud.datastore.FullEntity;
 import com.google.cloud.datastore.Key;
@@ -25,24 +27,54 @@ import com.google.cloud.datastore.KeyFactory;
 import com.google.cloud.datastore.PathElement;
 import com.google.cloud.datastore.Query;
 import com.google.cloud.datastore.QueryResults;
+import com.google.cloud.datastore.ReadOption;
 import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
+import com.google.cloud.datastore.Transaction;
+import com.google.cloud.runtimes.tomcat.jfr.FlightRecorderEvents;
+import com.google.cloud.runtimes.tomcat.jfr.FlightRecorderEvents.Type;
 import com.google.cloud.runtimes.tomcat.session.DatastoreSession.SessionMetadata;
+import com.google.cloud.runtimes.tomcat.trace.RequestTimings;
+import com.google.cloud.runtimes.tomcat.trace.RequestTimings.Phase;
+import com.google.cloud.runtimes.tomcat.trace.ThreadResourceUsage;
 import com.google.cloud.trace.Trace;
 import com.google.cloud.trace.Tracer;
+import com.google.cloud.trace.core.Labels;
 import com.google.cloud.trace.core.TraceContext;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Streams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.Clock;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 
-import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Loader;
 import org.apache.catalina.Session;
+import org.apache.catalina.connector.Request;
 import org.apache.catalina.session.StoreBase;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
@@ -64,6 +96,27 @@ public class DatastoreStore extends StoreBase {
 
   private Datastore datastore = null;
 
+  /**
+   * Whether the Datastore client was acquired from {@link DatastoreClients}.
+   */
+  private boolean sharedDatastore;
+
+  /**
+   * The project of the Datastore, the default project of the environment if empty.
+   */
+  private String projectId;
+
+  /**
+   * Maximum number of connections to the Datastore, 0 for the default transport. The client is
+   * shared with the stores of the other contexts using the same project and namespace.
+   */
+  private int datastoreMaxConnections = 0;
+
+  /**
+   * Factory of the session keys, created on first use.
+   */
+  private volatile KeyFactory sessionKeyFactory;
+
   /**
    * Name of the kind used in The Datastore for the session.
    */
@@ -79,6 +132,257 @@ public class DatastoreStore extends StoreBase {
    */
   private boolean traceRequest = false;
 
+  /**
+   * Whether to annotate the spans with the CPU time and the bytes allocated by the thread.
+   */
+  private boolean traceResourceUsage = false;
+
+  /**
+   * Maximum number of ids of missing sessions remembered, 0 to disable the cache.
+   */
+  private int missingSessionCacheSize = 0;
+
+  /**
+   * Time in seconds during which an id is known to be missing.
+   */
+  private int missingSessionCacheTtl = 60;
+
+  private MissingSessionCache missingSessions;
+
+  /**
+   * Time in seconds during which an id not found in the Datastore is known to be missing, 0 to
+   * always query the Datastore. Requires the missing session cache.
+   */
+  private int notFoundSessionCacheTtl = 5;
+
+  private MissingSessionCache notFoundSessions;
+
+  /**
+   * Maximum number of mutations accepted by the Datastore in a single commit.
+   */
+  static final int MAX_MUTATIONS_PER_COMMIT = 500;
+
+  /**
+   * Whether to commit the saves of concurrent requests together.
+   */
+  private boolean groupCommit = false;
+
+  /**
+   * Time in milliseconds during which a group of saves waits for more saves.
+   */
+  private int groupCommitLinger = 0;
+
+  /**
+   * Maximum number of concurrent group commits.
+   */
+  private int groupCommitThreads = 4;
+
+  private GroupCommitter groupCommitter;
+
+  /**
+   * Whether to apply the mutations of a save in a transaction.
+   */
+  private boolean transactionalSave = false;
+
+  /**
+   * Executor committing the batches of the sessions too large for a single commit.
+   */
+  private ExecutorService commitExecutor;
+
+  /**
+   * Whether to serialize the attributes of large sessions concurrently.
+   */
+  private boolean parallelSerialization = false;
+
+  /**
+   * Number of threads serializing the large sessions, 0 to use the number of processors.
+   */
+  private int parallelSerializationThreads = 0;
+
+  /**
+   * Minimal number of attributes of a session serialized concurrently.
+   */
+  private int parallelSerializationAttributes = 32;
+
+  /**
+   * Minimal size in bytes of a session serialized concurrently.
+   */
+  private long parallelSerializationSize = 1024 * 1024;
+
+  private ParallelSerializer parallelSerializer;
+
+  /**
+   * Pattern the classes of the deserialized attributes must match, null to allow all the classes.
+   */
+  private Pattern allowedClassNames;
+
+  private volatile ClassResolver classResolver;
+
+  /**
+   * Minimal size in bytes of the attributes saved as deltas, 0 to always save whole attributes.
+   */
+  private int deltaThreshold = 0;
+
+  /**
+   * Maximum number of deltas of an attribute before its whole value is saved again.
+   */
+  private int deltaMaxChainLength = 16;
+
+  /**
+   * Maximum size of the deltas of an attribute, in percent of its base value, before its whole
+   * value is saved again.
+   */
+  private int deltaMaxChainPercent = 50;
+
+  private DeltaPolicy deltaPolicy;
+
+  /**
+   * Persistence policies of the attributes, as described in {@link AttributePolicies}.
+   */
+  private String attributePolicies;
+
+  private AttributePolicies policies;
+
+  /**
+   * Maximum number of sessions whose local-only attributes are kept in memory.
+   */
+  private int localAttributeCacheSize = 10000;
+
+  /**
+   * Attributes following the {@link AttributePolicy#NEVER} policy, by session id.
+   */
+  private Cache<String, Map<String, Object>> localAttributes;
+
+  /**
+   * Size in bytes above which a session is logged, 0 to disable.
+   */
+  private long sessionSizeWarning = 0;
+
+  /**
+   * Size in bytes above which a session is truncated or rejected, 0 to disable.
+   */
+  private long sessionSizeLimit = 0;
+
+  /**
+   * Size in bytes above which an attribute is logged, 0 to disable.
+   */
+  private long attributeSizeWarning = 0;
+
+  /**
+   * Size in bytes above which an attribute is dropped or its session rejected, 0 to disable.
+   */
+  private long attributeSizeLimit = 0;
+
+  /**
+   * Action applied to the sessions above a hard limit, TRUNCATE or REJECT.
+   */
+  private String sizeLimitAction = SizeBudget.Action.REJECT.name();
+
+  /**
+   * Pattern of the names of the attributes which can be dropped by the TRUNCATE action.
+   */
+  private Pattern nonCriticalAttributes;
+
+  private SizeBudget sizeBudget;
+
+  /**
+   * Number of sessions and attributes reported by the size statistics.
+   */
+  private int sizeStatisticsTopSize = 10;
+
+  private SessionSizeStatistics sizeStatistics;
+
+  /**
+   * Time in minutes after which an idle session is moved to the cold storage, 0 to disable.
+   */
+  private int coldSessionIdleTime = 0;
+
+  /**
+   * Directory of the cold sessions, {@code work/cold-sessions} in the Tomcat base by default.
+   */
+  private String coldStorageDirectory;
+
+  /**
+   * Maximum number of sessions moved to the cold storage by each expiration sweep.
+   */
+  private int coldSessionSweepSize = 100;
+
+  private ColdSessionTier coldTier;
+
+  /**
+   * Minimal serialized size in bytes of the attribute values stored once for all the sessions
+   * holding them, 0 to disable.
+   */
+  private int dedupThreshold = 0;
+
+  /**
+   * Maximum number of bytes of the shared attribute values cached on this node.
+   */
+  private long dedupCacheSize = 16L << 20;
+
+  private SharedBlobStore sharedBlobs;
+
+  /**
+   * Number of shards of the expiration index, 0 to index the metadata of the sessions directly.
+   */
+  private int expirationIndexShards = 0;
+
+  /**
+   * Duration in seconds of the expiration buckets of the sharded expiration index.
+   */
+  private int expirationBucketSize = 60;
+
+  private ShardedExpirationIndex expirationIndex;
+
+  /**
+   * Request attribute selecting eventually consistent reads for the session of the request. The
+   * sessions read this way are never saved, so that their possibly stale state cannot overwrite
+   * a newer one. Neither are the sessions created for a requested id by such a request, since
+   * the read may have missed a live session.
+   */
+  public static final String EVENTUAL_CONSISTENCY_ATTRIBUTE =
+      "com.google.cloud.runtimes.tomcat.session.EVENTUAL_CONSISTENCY";
+
+  /**
+   * Request attribute making the store ignore the session requested by the client: it is not
+   * loaded, and a session created by the application reuses its id, so that the cookie of the
+   * client is not replaced, but is never saved or removed.
+   */
+  public static final String IGNORE_SESSION_ATTRIBUTE =
+      "com.google.cloud.runtimes.tomcat.session.IGNORE_SESSION";
+
+  /**
+   * Note set on the sessions read with eventual consistency.
+   */
+  private static final String EVENTUALLY_CONSISTENT =
+      "com.google.cloud.runtimes.tomcat.session.EVENTUALLY_CONSISTENT";
+
+  /**
+   * Note set on the sessions created for a request whose requested session is ignored or read
+   * with eventual consistency.
+   */
+  private static final String DETACHED = "com.google.cloud.runtimes.tomcat.session.DETACHED";
+
+  private final ThreadLocal<Request> currentRequest = new ThreadLocal<>();
+
+  /**
+   * Maximum time a load waits for the background save of the same session.
+   */
+  private static final long BACKGROUND_SAVE_TIMEOUT_SECONDS = 10;
+
+  private static final int SAVE_STRIPES = 64;
+
+  /**
+   * The last background save scheduled for each session which is not completed yet.
+   */
+  private final Map<String, CompletableFuture<Void>> backgroundSaves = new ConcurrentHashMap<>();
+
+  /**
+   * Number of saves completed for each stripe of session ids: a miss is only cached if no save of
+   * its stripe completed while the Datastore was queried.
+   */
+  private final AtomicLongArray completedSaves = new AtomicLongArray(SAVE_STRIPES);
+
   private Clock clock;
 
   /**
@@ -92,13 +396,222 @@ public class DatastoreStore extends StoreBase {
     log.debug("Initialization of the Datastore Store");
 
     this.clock = Clock.systemUTC();
-    this.datastore = DatastoreOptions.newBuilder().setNamespace(namespace).build().getService();
+    this.datastore = DatastoreClients.getInstance().acquire(Strings.emptyToNull(projectId),
+        namespace, datastoreMaxConnections);
+    this.sharedDatastore = true;
+    this.sessionKeyFactory = null;
+    initMissingSessionCache();
+    initGroupCommitter();
+    initParallelSerializer();
+    initDeltaPolicy();
+    initAttributePolicies();
+    initSizeBudget();
+    initColdTier();
+    initSharedBlobStore();
+    initExpirationIndex();
+    this.commitExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+        .setNameFormat("session-commit-%d")
+        .setDaemon(true)
+        .build());
 
     super.startInternal();
   }
 
+  @VisibleForTesting
+  void initGroupCommitter() {
+    if (groupCommit) {
+      groupCommitter = new GroupCommitter(datastore, groupCommitLinger, MAX_MUTATIONS_PER_COMMIT,
+          groupCommitThreads);
+    }
+  }
+
+  @VisibleForTesting
+  void initDeltaPolicy() {
+    deltaPolicy = deltaThreshold > 0
+        ? new DeltaPolicy(deltaThreshold, deltaMaxChainLength, deltaMaxChainPercent) : null;
+  }
+
+  @VisibleForTesting
+  void initAttributePolicies() throws LifecycleException {
+    try {
+      policies = Strings.isNullOrEmpty(attributePolicies)
+          ? null : new AttributePolicies(attributePolicies);
+    } catch (IllegalArgumentException e) {
+      throw new LifecycleException("Invalid attribute policies: " + attributePolicies, e);
+    }
+    localAttributes = policies != null
+        ? CacheBuilder.newBuilder().maximumSize(localAttributeCacheSize).build() : null;
+  }
+
+  @VisibleForTesting
+  void initSizeBudget() throws LifecycleException {
+    SizeBudget.Action action;
+    try {
+      action = SizeBudget.Action.parse(sizeLimitAction);
+    } catch (IllegalArgumentException e) {
+      throw new LifecycleException("Invalid size limit action: " + sizeLimitAction, e);
+    }
+    sizeBudget = sessionSizeWarning > 0 || sessionSizeLimit > 0 || attributeSizeWarning > 0
+        || attributeSizeLimit > 0
+        ? new SizeBudget(sessionSizeWarning, sessionSizeLimit, attributeSizeWarning,
+            attributeSizeLimit, action, nonCriticalAttributes)
+        : null;
+    sizeStatistics = new SessionSizeStatistics(sizeStatisticsTopSize);
+  }
+
+  /**
+   * The saves of the sessions are then transactions promoting the session first if it is cold,
+   * which excludes the group commit and implies {@code transactionalSave}.
+   */
+  @VisibleForTesting
+  void initColdTier() throws LifecycleException {
+    if (coldSessionIdleTime > 0) {
+      if (groupCommit) {
+        throw new LifecycleException("The cold storage saves each session in its own "
+            + "transaction, it cannot be used with the group commit");
+      }
+      try {
+        coldTier = new ColdSessionTier(datastore, createColdStorage());
+      } catch (IOException e) {
+        throw new LifecycleException("Unable to create the cold session storage", e);
+      }
+    }
+  }
+
+  @VisibleForTesting
+  void initExpirationIndex() throws LifecycleException {
+    if (expirationIndexShards <= 0) {
+      expirationIndex = null;
+      return;
+    }
+    if (coldSessionIdleTime > 0) {
+      throw new LifecycleException("The cold storage requires the indexed last access time, "
+          + "it cannot be used with the sharded expiration index");
+    }
+    expirationIndex = new ShardedExpirationIndex(expirationIndexShards,
+        expirationBucketSize * 1000L);
+  }
+
+  /**
+   * The shared values are still resolved when the deduplication is disabled, so that it can be
+   * turned off without losing the attributes already saved.
+   */
+  @VisibleForTesting
+  void initSharedBlobStore() {
+    sharedBlobs = new SharedBlobStore(datastore, sessionKind, dedupThreshold,
+        dedupCacheSize);
+  }
+
+  /**
+   * Create the storage of the sessions idle for more than {@code coldSessionIdleTime}. Override
+   * to keep them in another object store than the local filesystem.
+   * @throws IOException If the storage cannot be created.
+   */
+  protected ColdSessionStorage createColdStorage() throws IOException {
+    Path directory = Strings.isNullOrEmpty(coldStorageDirectory)
+        ? Paths.get(System.getProperty("catalina.base", "."), "work", "cold-sessions")
+        : Paths.get(coldStorageDirectory);
+    return new FileColdSessionStorage(directory);
+  }
+
+  @VisibleForTesting
+  void initParallelSerializer() {
+    if (parallelSerialization) {
+      int threads = parallelSerializationThreads > 0 ? parallelSerializationThreads
+          : Runtime.getRuntime().availableProcessors();
+      parallelSerializer = new ParallelSerializer(threads, parallelSerializationAttributes,
+          parallelSerializationSize);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Commit the pending saves.</p>
+   */
+  @Override
+  protected synchronized void stopInternal() throws LifecycleException {
+    super.stopInternal();
+    if (commitExecutor != null) {
+      commitExecutor.shutdown();
+      commitExecutor = null;
+    }
+    if (groupCommitter != null) {
+      groupCommitter.close();
+      groupCommitter = null;
+    }
+    if (parallelSerializer != null) {
+      parallelSerializer.close();
+      parallelSerializer = null;
+    }
+    classResolver = null;
+    if (sharedDatastore) {
+      DatastoreClients.getInstance().release(datastore);
+      sharedDatastore = false;
+    }
+  }
+
+  @VisibleForTesting
+  void initMissingSessionCache() {
+    if (missingSessionCacheSize > 0) {
+      missingSessions = new MissingSessionCache(missingSessionCacheSize,
+          missingSessionCacheTtl * 1000L, clock);
+    }
+    if (missingSessionCacheSize > 0 && notFoundSessionCacheTtl > 0) {
+      notFoundSessions = new MissingSessionCache(missingSessionCacheSize,
+          notFoundSessionCacheTtl * 1000L, clock);
+    }
+  }
+
+  /**
+   * Return the resolver of the classes of the application. It is replaced when the class loader
+   * of the application changes, for example when it is reloaded.
+   */
+  ClassResolver getClassResolver() {
+    ClassLoader classLoader = getClassLoader();
+    ClassResolver resolver = classResolver;
+    if (resolver == null || resolver.getClassLoader() != classLoader) {
+      resolver = new ClassResolver(classLoader, allowedClassNames);
+      classResolver = resolver;
+    }
+    return resolver;
+  }
+
+  /**
+   * Return the class loader of the application.
+   */
+  ClassLoader getClassLoader() {
+    Loader loader = manager.getContext().getLoader();
+    return loader != null ? loader.getClassLoader()
+        : Thread.currentThread().getContextClassLoader();
+  }
+
+  /**
+   * Make the request available to the store while it is processed by the current thread.
+   */
+  void bind(Request request) {
+    currentRequest.set(request);
+  }
+
+  void unbind() {
+    currentRequest.remove();
+  }
+
+  /**
+   * Return the request processed by the current thread, if it was bound by the valve.
+   */
+  protected Request getCurrentRequest() {
+    return currentRequest.get();
+  }
+
   private Key newKey(String name) {
-    return datastore.newKeyFactory().setKind(sessionKind).newKey(name);
+    KeyFactory keyFactory = sessionKeyFactory;
+    if (keyFactory == null) {
+      // Racing threads create equivalent factories, which are never modified once assigned
+      keyFactory = datastore.newKeyFactory().setKind(sessionKind);
+      sessionKeyFactory = keyFactory;
+    }
+    return keyFactory.newKey(name);
   }
 
   /**
@@ -156,6 +669,23 @@ public class DatastoreStore extends StoreBase {
    * <p>If the session is successfully deserialized, it is added to the current manager and is
    * returned by this method. Otherwise null is returned.</p>
    *
+   * <p>The ids of the sessions recently removed or expired by this node are remembered, so that
+   * requests presenting them do not query the Datastore again. A session which is not found is
+   * not remembered, as it may be a new session whose save by another node or by a concurrent
+   * request has not committed yet.</p>
+   *
+   * <p>If the current request has the {@link #EVENTUAL_CONSISTENCY_ATTRIBUTE} attribute, the
+   * session is read with eventual consistency and will not be saved. If it has the
+   * {@link #IGNORE_SESSION_ATTRIBUTE} attribute, the session is not loaded.</p>
+   *
+   * <p>When a save of the session is running in the background, the load waits for it so that it
+   * does not return the state preceding the last request.</p>
+   *
+   * <p>An id not found by a strongly consistent query is remembered for
+   * {@code notFoundSessionCacheTtl} seconds, so that clients replaying unknown ids do not query
+   * the Datastore every time. It is not remembered if a save of the session was scheduled or
+   * completed in the meantime.</p>
+   *
    * @param id Session identifier of the session to load
    * @return The loaded session instance
    * @throws ClassNotFoundException If a deserialization error occurs
@@ -163,54 +693,200 @@ public class DatastoreStore extends StoreBase {
   @Override
   public Session load(String id) throws ClassNotFoundException, IOException {
     log.debug("Session " + id + " requested");
-    TraceContext context = startSpan("Loading session");
+    if (isSessionIgnored()) {
+      log.debug("Session " + id + " ignored by the request");
+      return null;
+    }
+    awaitBackgroundSave(id);
+    if (isKnownMissing(id) || notFoundSessions != null && notFoundSessions.mightContain(id)) {
+      log.debug("Session " + id + " is known to be missing");
+      return null;
+    }
+    final long start = System.nanoTime();
+    StoreSpan span = startSpan("Loading session");
     Key sessionKey = newKey(id);
+    boolean eventual = isEventualConsistencyRequested();
+    long savesBefore = completedSaves.get(saveStripe(id));
 
-    DatastoreSession session = deserializeSession(sessionKey);
+    final DatastoreSession session = deserializeSession(sessionKey, eventual);
+    if (session != null && eventual) {
+      session.setNote(EVENTUALLY_CONSISTENT, Boolean.TRUE);
+    } else if (session == null && !eventual) {
+      rememberNotFound(id, savesBefore);
+    }
 
-    endSpan(context);
+    endSpan(span);
     log.debug("Session " + id + " loaded");
+    RequestTimings.record(Phase.SESSION_LOAD, start);
     return session;
   }
 
+  /**
+   * Remember that the session was not found, unless a save may have stored it since the query.
+   * A save completing after the id is added removes it.
+   */
+  private void rememberNotFound(String id, long savesBefore) {
+    if (notFoundSessions == null || backgroundSaves.containsKey(id)) {
+      return;
+    }
+    notFoundSessions.add(id);
+    if (completedSaves.get(saveStripe(id)) != savesBefore || backgroundSaves.containsKey(id)) {
+      notFoundSessions.remove(id);
+    }
+  }
+
+  private static int saveStripe(String id) {
+    return id.hashCode() & (SAVE_STRIPES - 1);
+  }
+
   /**
    * Create a new session usable by Tomcat, from a serialized session in a Datastore Entity.
    * @param sessionKey The key associated with the session metadata and attributes.
+   * @param eventual Whether to read with eventual consistency.
    * @return A new session containing the metadata and attributes stored in the entity.
    * @throws ClassNotFoundException Thrown if a class serialized in the entity is not available in
    *                                this context.
    * @throws IOException Thrown when an error occur during the deserialization.
    */
-  private DatastoreSession deserializeSession(Key sessionKey)
+  private DatastoreSession deserializeSession(Key sessionKey, boolean eventual)
       throws ClassNotFoundException, IOException {
-    TraceContext loadingSessionContext = startSpan("Fetching the session from Datastore");
-    Iterator<Entity> entities = datastore.run(Query.newEntityQueryBuilder()
+    final Object event = FlightRecorderEvents.begin(Type.SESSION_LOAD);
+    StoreSpan loadingSessionSpan = startSpan("Fetching the session from Datastore");
+    Query<Entity> query = Query.newEntityQueryBuilder()
         .setKind(sessionKind)
         .setFilter(PropertyFilter.hasAncestor(sessionKey))
-        .build());
-    endSpan(loadingSessionContext);
+        .build();
+    List<Entity> entities = Lists.newArrayList(eventual
+        ? datastore.run(query, ReadOption.eventualConsistency()) : datastore.run(query));
+    endSpan(loadingSessionSpan);
+
+    Entity stub = coldTier != null ? ColdSessionTier.coldMetadata(sessionKey, entities) : null;
+    if (stub != null) {
+      entities = promote(sessionKey, stub, query, eventual);
+    }
+    if (sharedBlobs != null) {
+      entities = sharedBlobs.resolve(entities);
+    }
 
     DatastoreSession session = null;
-    if (entities.hasNext()) {
+    if (!entities.isEmpty()) {
       session = (DatastoreSession) manager.createEmptySession();
-      TraceContext deserializationContext = startSpan("Deserialization of the session");
-      session.restoreFromEntities(sessionKey, Lists.newArrayList(entities));
-      endSpan(deserializationContext);
+      StoreSpan deserializationSpan = startSpan("Deserialization of the session");
+      session.restoreFromEntities(sessionKey, entities, parallelSerializer, getClassResolver());
+      restoreLocalAttributes(session, sessionKey.getName());
+      endSpan(deserializationSpan);
     }
+    long size = DatastoreSession.serializedSize(entities);
+    RequestTimings.recordSessionSize(Phase.SESSION_LOAD, size);
+    FlightRecorderEvents.commit(event, sessionKey.getName(), entities.size(), size);
     return session;
   }
 
   /**
-   * Remove the Session with the specified session identifier from this Store.
-   * If no such Session is present, this method takes no action.
-   *
-   * @param id Session identifier of the session to remove
+   * Read a session from the cold storage, and move it back to the Datastore unless it is read
+   * with eventual consistency.
+   * @param sessionKey The key of the session.
+   * @param stub The metadata entity of the cold session.
+   * @param query The query of the entities of the session.
+   * @param eventual Whether the session is read with eventual consistency.
+   * @return The entities of the session, empty if the session is missing from the cold storage.
    */
-  @Override
-  public void remove(String id) {
-    log.debug("Removing session: " + id);
-    datastore.delete(newKey(id));
-  }
+  private List<Entity> promote(Key sessionKey, Entity stub, Query<Entity> query,
+      boolean eventual) throws IOException {
+    StoreSpan span = startSpan("Promoting the session from the cold storage");
+    List<Entity> entities = coldTier.promote(sessionKey, stub, !eventual);
+    if (entities == null) {
+      // Promoted by a concurrent request
+      entities = Lists.newArrayList(datastore.run(query));
+      if (ColdSessionTier.coldMetadata(sessionKey, entities) != null) {
+        log.warn("The cold session " + sessionKey.getName() + " is missing from the storage");
+        entities = Collections.emptyList();
+      }
+    }
+    endSpan(span);
+    return entities;
+  }
+
+  /**
+   * Keep in memory the local-only attributes left out by the last serialization of a session.
+   */
+  void storeLocalAttributes(DatastoreSession session) {
+    storeLocalAttributes(session.getId(), session.getLocalAttributes());
+  }
+
+  private void storeLocalAttributes(String id, Map<String, Object> sessionAttributes) {
+    if (localAttributes != null) {
+      if (sessionAttributes.isEmpty()) {
+        localAttributes.invalidate(id);
+      } else {
+        localAttributes.put(id, new HashMap<>(sessionAttributes));
+      }
+    }
+  }
+
+  /**
+   * Add the local-only attributes kept in memory to a loaded session.
+   */
+  void restoreLocalAttributes(DatastoreSession session, String id) {
+    Map<String, Object> attributes = localAttributes != null
+        ? localAttributes.getIfPresent(id) : null;
+    if (attributes != null) {
+      attributes.forEach((name, value) -> session.setAttribute(name, value, false));
+    }
+  }
+
+  /**
+   * Remove the Session with the specified session identifier from this Store.
+   * If no such Session is present, this method takes no action.
+   *
+   * <p>All the entities of the session are deleted, so that no attribute entity is left behind
+   * to keep its shared blob referenced.</p>
+   *
+   * @param id Session identifier of the session to remove
+   */
+  @Override
+  public void remove(String id) {
+    log.debug("Removing session: " + id);
+    deleteEntities(id);
+    if (missingSessions != null) {
+      missingSessions.add(id);
+    }
+    if (localAttributes != null) {
+      localAttributes.invalidate(id);
+    }
+    if (sizeStatistics != null) {
+      sizeStatistics.remove(id);
+    }
+    if (coldTier != null) {
+      deleteColdSession(id);
+    }
+  }
+
+  /**
+   * Delete the metadata entity of a session and all its descendants, without forgetting the
+   * state kept by the node for the session.
+   * @param id The id of the session.
+   */
+  void deleteEntities(String id) {
+    Key sessionKey = newKey(id);
+    List<Key> keys = Lists.newArrayList(datastore.run(descendantsQuery(sessionKey)));
+    if (!keys.contains(sessionKey)) {
+      keys.add(sessionKey);
+    }
+    for (List<Key> chunk : Lists.partition(keys, MAX_MUTATIONS_PER_COMMIT)) {
+      datastore.delete(chunk.toArray(new Key[0]));
+    }
+  }
+
+  /**
+   * Return the query of the keys of a session and of its attributes.
+   */
+  private Query<Key> descendantsQuery(Key sessionKey) {
+    return Query.newKeyQueryBuilder()
+        .setKind(sessionKind)
+        .setFilter(PropertyFilter.hasAncestor(sessionKey))
+        .build();
+  }
 
   /**
    * Remove all Sessions from this Store.
@@ -235,7 +911,36 @@ public class DatastoreStore extends StoreBase {
    */
   @Override
   public void save(Session session) throws IOException {
+    prepareSave(session).commit();
+  }
+
+  /**
+   * A save of a session already serialized, which no longer reads the session.
+   */
+  interface PreparedSave {
+
+    /**
+     * Store the serialized session in the Datastore.
+     * @throws IOException If the session cannot be stored.
+     */
+    void commit() throws IOException;
+  }
+
+  /**
+   * Serialize the session on the calling thread. The returned save can be committed by another
+   * thread while the request is still using the session.
+   *
+   * @param session Session to be saved
+   * @return The save to commit.
+   * @throws IOException If an error occurs during the serialization of the session.
+   */
+  PreparedSave prepareSave(Session session) throws IOException {
+    if (isReadOnly(session)) {
+      log.debug("Session " + session.getId() + " not saved, it is read-only");
+      return () -> { };
+    }
     log.debug("Persisting session: " + session.getId());
+    final Object event = FlightRecorderEvents.begin(Type.SESSION_SAVE);
 
     if (!(session instanceof DatastoreSession)) {
       throw new IOException(
@@ -247,14 +952,137 @@ public class DatastoreStore extends StoreBase {
         .setKind(sessionKind)
         .addAncestor(PathElement.of(sessionKind, sessionKey.getName()));
 
-    List<Entity> entities = serializeSession(datastoreSession, sessionKey, attributeKeyFactory);
+    List<Entity> entities = applySizeBudget(datastoreSession,
+        serializeSession(datastoreSession, sessionKey, attributeKeyFactory));
+    if (sharedBlobs != null) {
+      entities = sharedBlobs.share(datastoreSession, entities, clock.millis());
+    }
+
+    Key[] suppressedKeys = Stream.concat(
+        datastoreSession.getSuppressedAttributes().stream().map(attributeKeyFactory::newKey),
+        datastoreSession.getObsoleteKeys(attributeKeyFactory).stream())
+        .toArray(Key[]::new);
+    String id = session.getId();
+    Map<String, Object> sessionLocalAttributes = new HashMap<>(
+        datastoreSession.getLocalAttributes());
+    List<Entity> sessionEntities = entities;
 
-    TraceContext datastoreSaveContext = startSpan("Storing the session in the Datastore");
-    datastore.put(entities.toArray(new FullEntity[0]));
-    datastore.delete(datastoreSession.getSuppressedAttributes().stream()
-        .map(attributeKeyFactory::newKey)
-        .toArray(Key[]::new));
-    endSpan(datastoreSaveContext);
+    return () -> {
+      StoreSpan datastoreSaveSpan = startSpan("Storing the session in the Datastore");
+      commit(sessionKey, sessionEntities, suppressedKeys);
+      endSpan(datastoreSaveSpan);
+      datastoreSession.committed();
+      if (sharedBlobs != null) {
+        sharedBlobs.committed(sessionEntities);
+        datastoreSession.clearStoredHashes();
+      }
+      storeLocalAttributes(id, sessionLocalAttributes);
+      completedSaves.incrementAndGet(saveStripe(id));
+      if (missingSessions != null) {
+        missingSessions.remove(id);
+      }
+      if (notFoundSessions != null) {
+        notFoundSessions.remove(id);
+      }
+      long size = DatastoreSession.serializedSize(sessionEntities);
+      RequestTimings.recordSessionSize(Phase.SESSION_SAVE, size);
+      FlightRecorderEvents.commit(event, id, sessionEntities.size() + suppressedKeys.length,
+          size);
+    };
+  }
+
+  /**
+   * Apply the upserts and deletions of a save in a single commit.
+   *
+   * <p>The Datastore limits the number of mutations of a commit, larger saves are split into
+   * several commits sent concurrently. Their mutations are then not applied atomically.</p>
+   *
+   * <p>With the cold storage, the saves are transactions promoting the session first if it was
+   * demoted since it was loaded. The saves split into several commits are not checked.</p>
+   */
+  private void commit(Key sessionKey, List<Entity> entities, Key[] suppressedKeys)
+      throws IOException {
+    if (entities.size() + suppressedKeys.length > MAX_MUTATIONS_PER_COMMIT) {
+      commitInChunks(sessionKey, entities, suppressedKeys);
+    } else if (coldTier != null) {
+      coldTier.save(sessionKey, entities, suppressedKeys);
+    } else if (groupCommitter != null) {
+      await(sessionKey, groupCommitter.submit(sessionKey, new ArrayList<>(entities),
+          Arrays.asList(suppressedKeys)));
+    } else if (transactionalSave) {
+      Transaction transaction = datastore.newTransaction();
+      try {
+        addMutations(transaction, entities, suppressedKeys);
+        transaction.commit();
+      } finally {
+        if (transaction.isActive()) {
+          transaction.rollback();
+        }
+      }
+    } else {
+      Batch batch = datastore.newBatch();
+      addMutations(batch, entities, suppressedKeys);
+      batch.submit();
+    }
+  }
+
+  private static void addMutations(DatastoreWriter writer, List<Entity> entities,
+      Key[] suppressedKeys) {
+    writer.put(entities.toArray(new FullEntity<?>[0]));
+    if (suppressedKeys.length > 0) {
+      writer.delete(suppressedKeys);
+    }
+  }
+
+  /**
+   * Split the mutations of a save in batches of at most {@link #MAX_MUTATIONS_PER_COMMIT}
+   * mutations. The first batch is committed by the current thread while the others are committed
+   * concurrently.
+   */
+  private void commitInChunks(Key sessionKey, List<Entity> entities, Key[] suppressedKeys)
+      throws IOException {
+    log.debug("Session " + sessionKey.getName() + " is saved in several commits ("
+        + (entities.size() + suppressedKeys.length) + " mutations)");
+    List<Batch> batches = new ArrayList<>();
+    int mutations = 0;
+    for (Entity entity : entities) {
+      if (mutations++ % MAX_MUTATIONS_PER_COMMIT == 0) {
+        batches.add(datastore.newBatch());
+      }
+      batches.get(batches.size() - 1).put(entity);
+    }
+    for (Key key : suppressedKeys) {
+      if (mutations++ % MAX_MUTATIONS_PER_COMMIT == 0) {
+        batches.add(datastore.newBatch());
+      }
+      batches.get(batches.size() - 1).delete(key);
+    }
+
+    List<CompletableFuture<?>> commits = new ArrayList<>();
+    for (Batch batch : batches.subList(1, batches.size())) {
+      commits.add(commitExecutor != null
+          ? CompletableFuture.runAsync(batch::submit, commitExecutor)
+          : CompletableFuture.completedFuture(batch.submit()));
+    }
+    batches.get(0).submit();
+    await(sessionKey, CompletableFuture.allOf(commits.toArray(new CompletableFuture<?>[0])));
+  }
+
+  /**
+   * Wait for the commit of a session and rethrow its failure.
+   */
+  private static void await(Key sessionKey, CompletableFuture<?> commit) throws IOException {
+    try {
+      commit.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IOException("Unable to save session " + sessionKey.getName(), e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while saving session " + sessionKey.getName());
+    }
   }
 
   /**
@@ -266,9 +1094,43 @@ public class DatastoreStore extends StoreBase {
   @VisibleForTesting
   List<Entity> serializeSession(DatastoreSession session, Key sessionKey,
       KeyFactory attributeKeyFactory) throws IOException {
-    TraceContext serializationContext = startSpan("Serialization of the session");
-    List<Entity> entities = session.saveToEntities(sessionKey, attributeKeyFactory);
-    endSpan(serializationContext);
+    StoreSpan serializationSpan = startSpan("Serialization of the session");
+    List<Entity> entities = session.saveToEntities(sessionKey, attributeKeyFactory,
+        parallelSerializer, deltaPolicy, policies);
+    if (expirationIndex != null) {
+      entities = entities.stream()
+          .map(entity -> entity.getKey().equals(sessionKey)
+              ? expirationIndex.index(entity) : entity)
+          .collect(Collectors.toList());
+    }
+    endSpan(serializationSpan);
+    return entities;
+  }
+
+  /**
+   * Apply the size budget to a serialized session, and record its size in the statistics.
+   * @param session The serialized session, whose dropped attributes are removed.
+   * @param entities The entities of the session.
+   * @return The entities to save, without those of the dropped attributes.
+   * @throws IOException If the session is above the budget.
+   */
+  private List<Entity> applySizeBudget(DatastoreSession session, List<Entity> entities)
+      throws IOException {
+    Map<String, Integer> attributeSizes = session.getAttributeSizes();
+    List<String> dropped = sizeBudget != null
+        ? sizeBudget.apply(session.getId(), attributeSizes) : Collections.emptyList();
+    if (!dropped.isEmpty()) {
+      // The dropped attributes are now suppressed, their stored values are deleted
+      dropped.forEach(name -> session.removeAttribute(name, false));
+      entities = entities.stream()
+          .filter(entity -> !dropped.contains(DatastoreSession.attributeName(entity.getKey())))
+          .collect(Collectors.toList());
+      attributeSizes = session.getAttributeSizes();
+    }
+    if (sizeStatistics != null) {
+      long size = attributeSizes.values().stream().mapToLong(Integer::longValue).sum();
+      sizeStatistics.record(session.getId(), size, attributeSizes);
+    }
     return entities;
   }
 
@@ -278,37 +1140,217 @@ public class DatastoreStore extends StoreBase {
   @Override
   public void processExpires() {
     log.debug("Processing expired sessions");
+    final Object event = FlightRecorderEvents.begin(Type.SESSION_EXPIRATION);
 
+    long now = clock.millis();
+    List<Query<Key>> queries = new ArrayList<>();
+    // Also run with the sharded index, for the sessions saved before it was enabled
+    queries.add(Query.newKeyQueryBuilder().setKind(sessionKind)
+        .setFilter(PropertyFilter.le(SessionMetadata.EXPIRATION_TIME, now))
+        .build());
+    if (expirationIndex != null) {
+      queries.addAll(expirationIndex.expiredQueries(sessionKind, now));
+    }
+
+    List<Key> expiredSessions = queries.stream()
+        .parallel()
+        .flatMap(query -> Streams.stream(datastore.run(query)))
+        .distinct()
+        .collect(Collectors.toList());
+
+    Stream<Key> toDelete = expiredSessions.stream()
+        .parallel()
+        .flatMap(key -> Streams.stream(datastore.run(descendantsQuery(newKey(key.getName())))));
+    Key[] expiredKeys = toDelete.toArray(Key[]::new);
+    datastore.delete(expiredKeys);
+    if (missingSessions != null) {
+      expiredSessions.forEach(key -> missingSessions.add(key.getName()));
+    }
+    if (localAttributes != null) {
+      expiredSessions.forEach(key -> localAttributes.invalidate(key.getName()));
+    }
+    if (sizeStatistics != null) {
+      expiredSessions.forEach(key -> sizeStatistics.remove(key.getName()));
+    }
+    if (coldTier != null) {
+      expiredSessions.forEach(key -> deleteColdSession(key.getName()));
+      demoteIdleSessions();
+    }
+    if (sharedBlobs != null) {
+      int timeout = manager.getContext().getSessionTimeout();
+      sharedBlobs.collectGarbage(clock.millis(),
+          timeout > 0 ? 2 * 60_000L * timeout : Long.MAX_VALUE);
+    }
+    FlightRecorderEvents.commit(event, null, expiredKeys.length, 0);
+  }
+
+  /**
+   * Move up to {@code coldSessionSweepSize} sessions idle for more than
+   * {@code coldSessionIdleTime} minutes to the cold storage.
+   */
+  @VisibleForTesting
+  void demoteIdleSessions() {
     Query<Key> query = Query.newKeyQueryBuilder().setKind(sessionKind)
-        .setFilter(PropertyFilter.le(SessionMetadata.EXPIRATION_TIME,
-            clock.millis()))
+        .setFilter(PropertyFilter.le(SessionMetadata.LAST_ACCESSED_TIME,
+            clock.millis() - coldSessionIdleTime * 60_000L))
+        .setLimit(coldSessionSweepSize)
         .build();
 
-    QueryResults<Key> keys = datastore.run(query);
+    int demoted = 0;
+    for (Key key : Lists.newArrayList(datastore.run(query))) {
+      Key sessionKey = newKey(key.getName());
+      try {
+        List<Entity> entities = Lists.newArrayList(datastore.run(Query.newEntityQueryBuilder()
+            .setKind(sessionKind)
+            .setFilter(PropertyFilter.hasAncestor(sessionKey))
+            .build()));
+        if (coldTier.demote(sessionKey, entities)) {
+          demoted++;
+        }
+      } catch (IOException | DatastoreException e) {
+        log.warn("Unable to move the session " + key.getName() + " to the cold storage", e);
+      }
+    }
+    log.debug(demoted + " sessions moved to the cold storage");
+  }
 
-    Stream<Key> toDelete = Streams.stream(keys)
-        .parallel()
-        .flatMap(key -> Streams.stream(datastore.run(Query.newKeyQueryBuilder()
-                .setKind(sessionKind)
-                .setFilter(PropertyFilter.hasAncestor(newKey(key.getName())))
-                .build())));
-    datastore.delete(toDelete.toArray(Key[]::new));
+  private void deleteColdSession(String id) {
+    try {
+      coldTier.delete(id);
+    } catch (IOException e) {
+      log.warn("Unable to delete the cold session " + id, e);
+    }
+  }
+
+  /**
+   * Register a save of the session about to be scheduled in the background.
+   * @param id The id of the session.
+   * @return The future to pass to {@link #endBackgroundSave} once the save is completed.
+   */
+  CompletableFuture<Void> beginBackgroundSave(String id) {
+    CompletableFuture<Void> save = new CompletableFuture<>();
+    backgroundSaves.put(id, save);
+    return save;
+  }
+
+  /**
+   * Release the loads waiting for a background save.
+   */
+  void endBackgroundSave(String id, CompletableFuture<Void> save) {
+    save.complete(null);
+    backgroundSaves.remove(id, save);
+  }
+
+  private void awaitBackgroundSave(String id) {
+    CompletableFuture<Void> save = backgroundSaves.get(id);
+    if (save == null) {
+      return;
+    }
+    log.debug("Waiting for the background save of session " + id);
+    try {
+      save.get(BACKGROUND_SAVE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException | TimeoutException e) {
+      log.warn("The background save of session " + id + " is not completed, loading it anyway");
+    }
+  }
+
+  /**
+   * Return whether the current request reads its session with eventual consistency.
+   */
+  boolean isEventualConsistencyRequested() {
+    return isRequestAttributeSet(EVENTUAL_CONSISTENCY_ATTRIBUTE);
+  }
+
+  /**
+   * Return whether the current request ignores the session requested by the client.
+   */
+  boolean isSessionIgnored() {
+    return isRequestAttributeSet(IGNORE_SESSION_ATTRIBUTE);
+  }
+
+  private boolean isRequestAttributeSet(String name) {
+    Request request = currentRequest.get();
+    if (request == null) {
+      return false;
+    }
+    Object attribute = request.getAttribute(name);
+    return Boolean.TRUE.equals(attribute) || "true".equals(attribute);
+  }
+
+  /**
+   * Mark a session created for a request whose requested session is ignored or read with
+   * eventual consistency.
+   */
+  static void detach(Session session) {
+    session.setNote(DETACHED, Boolean.TRUE);
+  }
+
+  /**
+   * Return whether the session was read with eventual consistency or is detached, it must then
+   * not be saved or removed.
+   */
+  static boolean isReadOnly(Session session) {
+    return session.getNote(EVENTUALLY_CONSISTENT) != null || session.getNote(DETACHED) != null;
+  }
+
+  /**
+   * Return whether the session was recently removed or expired by this node.
+   */
+  boolean isKnownMissing(String id) {
+    return missingSessions != null && missingSessions.mightContain(id);
+  }
+
+  /**
+   * Return whether the ids of missing sessions are cached.
+   */
+  boolean cachesMissingSessions() {
+    return missingSessions != null;
+  }
+
+  /**
+   * Return the number of session lookups answered without querying the Datastore.
+   */
+  public long getMissingSessionCacheHitCount() {
+    return (missingSessions != null ? missingSessions.getHitCount() : 0)
+        + (notFoundSessions != null ? notFoundSessions.getHitCount() : 0);
+  }
+
+  /**
+   * A span of the store, with the resources used by the thread when it started if requested.
+   */
+  static final class StoreSpan {
+    private final TraceContext context;
+    private final ThreadResourceUsage resourceUsage;
+
+    StoreSpan(TraceContext context, ThreadResourceUsage resourceUsage) {
+      this.context = context;
+      this.resourceUsage = resourceUsage;
+    }
   }
 
   @VisibleForTesting
-  TraceContext startSpan(String spanName) {
-    TraceContext context = null;
+  StoreSpan startSpan(String spanName) {
+    StoreSpan span = null;
     if (traceRequest) {
-      context = Trace.getTracer().startSpan(spanName);
+      ThreadResourceUsage resourceUsage =
+          traceResourceUsage ? ThreadResourceUsage.snapshot() : null;
+      span = new StoreSpan(Trace.getTracer().startSpan(spanName), resourceUsage);
     }
-    return context;
+    return span;
   }
 
   @VisibleForTesting
-  private void endSpan(TraceContext context) {
-    if (context != null) {
+  private void endSpan(StoreSpan span) {
+    if (span != null) {
       Tracer tracer = Trace.getTracer();
-      tracer.endSpan(context);
+      if (span.resourceUsage != null) {
+        Labels.Builder labels = Labels.builder();
+        span.resourceUsage.annotate(labels);
+        tracer.annotateSpan(span.context, labels.build());
+      }
+      tracer.endSpan(span.context);
     }
   }
 
@@ -321,11 +1363,26 @@ public class DatastoreStore extends StoreBase {
     this.namespace = namespace;
   }
 
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setProjectId(String projectId) {
+    this.projectId = projectId;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setDatastoreMaxConnections(int datastoreMaxConnections) {
+    this.datastoreMaxConnections = datastoreMaxConnections;
+  }
+
   /**
    * This property will be injected by Tomcat on startup.
    */
   public void setSessionKind(String sessionKind) {
     this.sessionKind = sessionKind;
+    this.sessionKeyFactory = null;
   }
 
   /**
@@ -335,9 +1392,301 @@ public class DatastoreStore extends StoreBase {
     this.traceRequest = traceRequest;
   }
 
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setTraceResourceUsage(boolean traceResourceUsage) {
+    this.traceResourceUsage = traceResourceUsage;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setMissingSessionCacheSize(int missingSessionCacheSize) {
+    this.missingSessionCacheSize = missingSessionCacheSize;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setMissingSessionCacheTtl(int missingSessionCacheTtl) {
+    this.missingSessionCacheTtl = missingSessionCacheTtl;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setNotFoundSessionCacheTtl(int notFoundSessionCacheTtl) {
+    this.notFoundSessionCacheTtl = notFoundSessionCacheTtl;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setGroupCommit(boolean groupCommit) {
+    this.groupCommit = groupCommit;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setGroupCommitLinger(int groupCommitLinger) {
+    this.groupCommitLinger = groupCommitLinger;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setGroupCommitThreads(int groupCommitThreads) {
+    this.groupCommitThreads = groupCommitThreads;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setParallelSerialization(boolean parallelSerialization) {
+    this.parallelSerialization = parallelSerialization;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setParallelSerializationThreads(int parallelSerializationThreads) {
+    this.parallelSerializationThreads = parallelSerializationThreads;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setParallelSerializationAttributes(int parallelSerializationAttributes) {
+    this.parallelSerializationAttributes = parallelSerializationAttributes;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setParallelSerializationSize(long parallelSerializationSize) {
+    this.parallelSerializationSize = parallelSerializationSize;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   *
+   * <p>Only the classes whose name matches this regular expression can be deserialized from the
+   * Datastore or a cookie.</p>
+   */
+  public void setAllowedClassNames(String allowedClassNames) {
+    this.allowedClassNames = Strings.isNullOrEmpty(allowedClassNames)
+        ? null : Pattern.compile(allowedClassNames);
+    this.classResolver = null;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setDeltaThreshold(int deltaThreshold) {
+    this.deltaThreshold = deltaThreshold;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setDeltaMaxChainLength(int deltaMaxChainLength) {
+    this.deltaMaxChainLength = deltaMaxChainLength;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setDeltaMaxChainPercent(int deltaMaxChainPercent) {
+    this.deltaMaxChainPercent = deltaMaxChainPercent;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   *
+   * <p>The policies are a list of {@code name=policy} separated by {@code ;}, see
+   * {@link AttributePolicy} for the available policies.</p>
+   */
+  public void setAttributePolicies(String attributePolicies) {
+    this.attributePolicies = attributePolicies;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setLocalAttributeCacheSize(int localAttributeCacheSize) {
+    this.localAttributeCacheSize = localAttributeCacheSize;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setSessionSizeWarning(long sessionSizeWarning) {
+    this.sessionSizeWarning = sessionSizeWarning;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setSessionSizeLimit(long sessionSizeLimit) {
+    this.sessionSizeLimit = sessionSizeLimit;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setAttributeSizeWarning(long attributeSizeWarning) {
+    this.attributeSizeWarning = attributeSizeWarning;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setAttributeSizeLimit(long attributeSizeLimit) {
+    this.attributeSizeLimit = attributeSizeLimit;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   *
+   * <p>Either {@code TRUNCATE}, dropping the attributes matching {@code nonCriticalAttributes}
+   * until the session fits, or {@code REJECT}, failing the save.</p>
+   */
+  public void setSizeLimitAction(String sizeLimitAction) {
+    this.sizeLimitAction = sizeLimitAction;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setNonCriticalAttributes(String nonCriticalAttributes) {
+    this.nonCriticalAttributes = Strings.isNullOrEmpty(nonCriticalAttributes)
+        ? null : Pattern.compile(nonCriticalAttributes);
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setSizeStatisticsTopSize(int sizeStatisticsTopSize) {
+    this.sizeStatisticsTopSize = sizeStatisticsTopSize;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setColdSessionIdleTime(int coldSessionIdleTime) {
+    this.coldSessionIdleTime = coldSessionIdleTime;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setColdStorageDirectory(String coldStorageDirectory) {
+    this.coldStorageDirectory = coldStorageDirectory;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setColdSessionSweepSize(int coldSessionSweepSize) {
+    this.coldSessionSweepSize = coldSessionSweepSize;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setDedupThreshold(int dedupThreshold) {
+    this.dedupThreshold = dedupThreshold;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setDedupCacheSize(long dedupCacheSize) {
+    this.dedupCacheSize = dedupCacheSize;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setExpirationIndexShards(int expirationIndexShards) {
+    this.expirationIndexShards = expirationIndexShards;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setExpirationBucketSize(int expirationBucketSize) {
+    this.expirationBucketSize = expirationBucketSize;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setTransactionalSave(boolean transactionalSave) {
+    this.transactionalSave = transactionalSave;
+  }
+
+  /**
+   * Return the number of commits sent by the group committer, 0 if disabled.
+   */
+  public long getGroupCommitCount() {
+    return groupCommitter != null ? groupCommitter.getCommitCount() : 0;
+  }
+
+  /**
+   * Return the number of saves committed by the group committer, 0 if disabled.
+   */
+  public long getGroupCommitSaveCount() {
+    return groupCommitter != null ? groupCommitter.getSaveCount() : 0;
+  }
+
+  /**
+   * Return the largest sessions saved, as {@code id...: bytes}, the ids being truncated.
+   */
+  public String[] getLargestSessions() {
+    return sizeStatistics != null ? sizeStatistics.getLargestSessions() : new String[0];
+  }
+
+  /**
+   * Return the attributes writing the most bytes, with their number of saves and their sizes.
+   */
+  public String[] getLargestAttributes() {
+    return sizeStatistics != null ? sizeStatistics.getLargestAttributes() : new String[0];
+  }
+
+  /**
+   * Return the number of saved sessions by size range.
+   */
+  public String[] getSessionSizeHistogram() {
+    return sizeStatistics != null ? sizeStatistics.getHistogram() : new String[0];
+  }
+
+  /**
+   * Clear the size statistics.
+   */
+  public void resetSizeStatistics() {
+    if (sizeStatistics != null) {
+      sizeStatistics.reset();
+    }
+  }
+
   @VisibleForTesting
   void setDatastore(Datastore datastore) {
     this.datastore = datastore;
+    this.sessionKeyFactory = null;
+  }
+
+  Clock getClock() {
+    return clock;
+  }
+
+  /**
+   * Return the persistence policies of the attributes, or null if there is none.
+   */
+  AttributePolicies getAttributePolicies() {
+    return policies;
   }
 
   @VisibleForTesting
@@ -16,16 +16,31 @@
 
 package com.google.cloud.runtimes.tomcat.session;
 
+import com.google.cloud.runtimes.tomcat.jfr.FlightRecorderEvents;
+import com.google.cloud.runtimes.tomcat.jfr.FlightRecorderEvents.Type;
+import com.google.cloud.runtimes.tomcat.trace.RequestTimings;
+import com.google.cloud.runtimes.tomcat.trace.RequestTimings.Phase;
+import com.google.cloud.runtimes.tomcat.util.UriPatternTrie;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
 import java.io.IOException;
+import java.util.Enumeration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Pattern;
 import javax.servlet.ServletException;
 
 import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleException;
 import org.apache.catalina.Manager;
 import org.apache.catalina.Session;
+import org.apache.catalina.Store;
 import org.apache.catalina.StoreManager;
 import org.apache.catalina.connector.Request;
 import org.apache.catalina.connector.Response;
+import org.apache.catalina.session.StandardSession;
 import org.apache.catalina.valves.ValveBase;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
@@ -33,12 +48,89 @@ import org.apache.juli.logging.LogFactory;
 
 /**
  * This valve uses the Store Manager to persist the session after each request.
+ *
+ * <p>The way the session is handled depends on the {@link SessionPolicy} of the request URI,
+ * configured with {@code sessionPolicies} as a list of {@code pattern=policy} separated by
+ * {@code ;}, such as {@code /static/**=NO_SESSION;/api/catalog/**=READ_ONLY}. The patterns are
+ * compiled once in a {@link UriPatternTrie}, so the cost of the lookup does not depend on the
+ * number of patterns.</p>
  */
 public class DatastoreValve extends ValveBase {
 
   private static final Log log = LogFactory.getLog(DatastoreValve.class);
 
-  private String uriExcludePattern;
+  private Pattern uriExcludePattern;
+
+  /**
+   * Whether to persist the new sessions holding no distributable attribute.
+   */
+  private boolean persistEmptySessions = true;
+
+  private String sessionPolicies;
+
+  private SessionPolicy defaultSessionPolicy = SessionPolicy.WRITE_THROUGH;
+
+  private UriPatternTrie<SessionPolicy> sessionPolicyTrie = new UriPatternTrie<>();
+
+  private int writeBehindThreads = 2;
+
+  private int writeBehindQueueSize = 1024;
+
+  private WriteBehindExecutor writeBehindExecutor;
+
+  private final LongAdder skippedSaves = new LongAdder();
+
+  @Override
+  protected void initInternal() throws LifecycleException {
+    super.initInternal();
+    initSessionPolicies();
+  }
+
+  @VisibleForTesting
+  void initSessionPolicies() throws LifecycleException {
+    UriPatternTrie<SessionPolicy> trie = new UriPatternTrie<>();
+    try {
+      for (String entry : Splitter.on(';').trimResults().omitEmptyStrings()
+          .split(Strings.nullToEmpty(sessionPolicies))) {
+        int separator = entry.lastIndexOf('=');
+        if (separator < 0) {
+          throw new IllegalArgumentException("Expected pattern=policy: " + entry);
+        }
+        trie.put(entry.substring(0, separator).trim(),
+            SessionPolicy.parse(entry.substring(separator + 1)));
+      }
+    } catch (IllegalArgumentException e) {
+      throw new LifecycleException("Invalid session policy", e);
+    }
+    sessionPolicyTrie = trie;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Start the threads saving the sessions of the write-behind URIs.</p>
+   */
+  @Override
+  protected synchronized void startInternal() throws LifecycleException {
+    if (writeBehindThreads > 0) {
+      writeBehindExecutor = new WriteBehindExecutor(writeBehindThreads, writeBehindQueueSize);
+    }
+    super.startInternal();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Wait for the pending write-behind saves.</p>
+   */
+  @Override
+  protected synchronized void stopInternal() throws LifecycleException {
+    super.stopInternal();
+    if (writeBehindExecutor != null) {
+      writeBehindExecutor.close();
+      writeBehindExecutor = null;
+    }
+  }
 
   /**
    * {@inheritDoc}
@@ -49,44 +141,208 @@ public class DatastoreValve extends ValveBase {
   public void invoke(Request request, Response response) throws IOException, ServletException {
 
     log.debug("Processing request with session:" + request.getRequestedSessionId());
+    final Object event = FlightRecorderEvents.begin(Type.VALVE_INVOKE);
 
-    getNext().invoke(request, response);
+    SessionPolicy policy = getSessionPolicy(request.getRequestURI());
+    if (policy == SessionPolicy.NO_SESSION) {
+      request.setAttribute(DatastoreStore.IGNORE_SESSION_ATTRIBUTE, Boolean.TRUE);
+    } else if (policy == SessionPolicy.READ_ONLY_EVENTUAL) {
+      request.setAttribute(DatastoreStore.EVENTUAL_CONSISTENCY_ATTRIBUTE, Boolean.TRUE);
+    }
 
     Context context = request.getContext();
     Manager manager = context.getManager();
+    DatastoreStore datastoreStore = getDatastoreStore(manager);
+    if (datastoreStore != null) {
+      datastoreStore.bind(request);
+    }
+
+    try {
+      long applicationStart = System.nanoTime();
+      getNext().invoke(request, response);
+      RequestTimings.record(Phase.APPLICATION, applicationStart);
 
-    Session session = request.getSessionInternal(false);
-    if (session != null && !isUriExcluded(request.getRequestURI())) {
+      Session session = request.getSessionInternal(false);
+      if (session == null) {
+        log.debug("Session not persisted (Non existent)");
+      } else if (manager instanceof StoreManager) {
+        // The cookie store needs the request, its saves cannot be deferred
+        boolean cookieStore = datastoreStore instanceof CookieSessionStore;
+        persistSession(session, cookieStore && policy == SessionPolicy.WRITE_BEHIND
+            ? SessionPolicy.WRITE_THROUGH : policy, (StoreManager) manager);
+      } else {
+        log.error("In order to persist the session the manager must implement StoreManager");
+      }
+    } finally {
+      if (datastoreStore != null) {
+        datastoreStore.unbind();
+      }
+      FlightRecorderEvents.commitValve(event, "DatastoreValve", request.getRequestedSessionId());
+    }
+  }
+
+  /**
+   * Save the session according to the policy and remove it from the local manager.
+   */
+  private void persistSession(Session session, SessionPolicy policy, StoreManager storeManager)
+      throws IOException {
+    if (policy == SessionPolicy.NO_SESSION || policy == SessionPolicy.READ_ONLY
+        || policy == SessionPolicy.READ_ONLY_EVENTUAL) {
+      log.debug("Session " + session.getId() + " not persisted (" + policy + ")");
+    } else if (!persistEmptySessions && isEmptyNewSession(session)) {
+      log.debug("Session " + session.getId() + " not persisted, it holds no attribute");
+      skippedSaves.increment();
+    } else {
       log.debug("Persisting session with id: " + session.getId());
       session.access();
       session.endAccess();
 
-      if (manager instanceof StoreManager) {
-        StoreManager storeManager = (StoreManager) manager;
-        storeManager.getStore().save(session);
-        storeManager.removeSuper(session);
+      Store store = storeManager.getStore();
+      WriteBehindExecutor executor = writeBehindExecutor;
+      if (policy == SessionPolicy.WRITE_BEHIND && executor != null
+          && store instanceof DatastoreStore) {
+        // Serialized now, the request may still use the session while the save is committed
+        DatastoreStore datastoreStore = (DatastoreStore) store;
+        String id = session.getId();
+        DatastoreStore.PreparedSave save = datastoreStore.prepareSave(session);
+        // The loads of the session wait for the save until it is completed
+        CompletableFuture<Void> pending = datastoreStore.beginBackgroundSave(id);
+        try {
+          executor.execute(id, () -> {
+            try {
+              commitInBackground(id, save);
+            } finally {
+              datastoreStore.endBackgroundSave(id, pending);
+            }
+          });
+        } catch (RejectedExecutionException e) {
+          try {
+            save.commit();
+          } finally {
+            datastoreStore.endBackgroundSave(id, pending);
+          }
+        }
       } else {
-        log.error("In order to persist the session the manager must implement StoreManager");
+        long saveStart = System.nanoTime();
+        store.save(session);
+        RequestTimings.record(Phase.SESSION_SAVE, saveStart);
       }
-    } else {
-      log.debug("Session not persisted (Non existent or the URI is ignored)");
     }
+    storeManager.removeSuper(session);
+  }
 
+  private static void commitInBackground(String id, DatastoreStore.PreparedSave save) {
+    try {
+      save.commit();
+    } catch (IOException | RuntimeException e) {
+      log.error("An error occurred while saving session with id: " + id, e);
+    }
   }
 
   /**
-   * Verify if the specified URI should be ignored for session persistence.
-   * @param uri The URI of the request
-   * @return Whether the URI should be ignored or not
+   * Return the policy of the most specific pattern matching the URI, {@code READ_ONLY} if the
+   * URI matches {@code uriExcludePattern}, or the default policy.
    */
-  private boolean isUriExcluded(String uri) {
-    return uriExcludePattern != null && Pattern.matches(uriExcludePattern, uri);
+  @VisibleForTesting
+  SessionPolicy getSessionPolicy(String uri) {
+    SessionPolicy policy = sessionPolicyTrie.match(uri);
+    if (policy != null) {
+      return policy;
+    }
+    if (uriExcludePattern != null && uri != null && uriExcludePattern.matcher(uri).matches()) {
+      return SessionPolicy.READ_ONLY;
+    }
+    return defaultSessionPolicy;
+  }
+
+  /**
+   * Return the store of the manager if it is a {@link DatastoreStore}, which reads the request.
+   */
+  private static DatastoreStore getDatastoreStore(Manager manager) {
+    if (manager instanceof StoreManager
+        && ((StoreManager) manager).getStore() instanceof DatastoreStore) {
+      return (DatastoreStore) ((StoreManager) manager).getStore();
+    }
+    return null;
+  }
+
+  /**
+   * Verify if the session was created by this request and holds no attribute that would be
+   * persisted. Its cookie is still sent, the session is created again when it is next used.
+   */
+  private static boolean isEmptyNewSession(Session session) {
+    if (!(session instanceof StandardSession) || !((StandardSession) session).isNew()) {
+      return false;
+    }
+    StandardSession standardSession = (StandardSession) session;
+    Enumeration<String> names = standardSession.getAttributeNames();
+    while (names.hasMoreElements()) {
+      String name = names.nextElement();
+      if (standardSession.isAttributeDistributable(name, standardSession.getAttribute(name))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Return the number of sessions not persisted because they were new and empty.
+   */
+  public long getSkippedSaveCount() {
+    return skippedSaves.sum();
   }
 
   /**
    * This property will be injected by Tomcat on startup.
+   *
+   * <p>The URIs matching this regular expression are {@link SessionPolicy#READ_ONLY}, unless a
+   * session policy matches them.</p>
    */
   public void setUriExcludePattern(String uriExcludePattern) {
-    this.uriExcludePattern = uriExcludePattern;
+    this.uriExcludePattern = Strings.isNullOrEmpty(uriExcludePattern)
+        ? null : Pattern.compile(uriExcludePattern);
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   *
+   * <p>Disabling it is only safe for applications which do not rely on the empty sessions, they
+   * are created again when they are next used.</p>
+   */
+  public void setPersistEmptySessions(boolean persistEmptySessions) {
+    this.persistEmptySessions = persistEmptySessions;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setSessionPolicies(String sessionPolicies) {
+    this.sessionPolicies = sessionPolicies;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setDefaultSessionPolicy(String defaultSessionPolicy) {
+    this.defaultSessionPolicy = SessionPolicy.parse(defaultSessionPolicy);
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setWriteBehindThreads(int writeBehindThreads) {
+    this.writeBehindThreads = writeBehindThreads;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setWriteBehindQueueSize(int writeBehindQueueSize) {
+    this.writeBehindQueueSize = writeBehindQueueSize;
+  }
+
+  @VisibleForTesting
+  void setWriteBehindExecutor(WriteBehindExecutor writeBehindExecutor) {
+    this.writeBehindExecutor = writeBehindExecutor;
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.session;
+
+/**
+ * Decide which attributes are saved as a chain of deltas, and when a chain is compacted.
+ *
+ * <p>An attribute of at least {@code threshold} serialized bytes is stored as a base value and a
+ * chain of {@link AttributeDelta deltas}. The base is rewritten, and the chain discarded, once
+ * the chain holds {@code maxChainLength} deltas or once the deltas total more than
+ * {@code maxChainPercent} percent of the base, so that loading the attribute stays cheap.</p>
+ */
+class DeltaPolicy {
+
+  private final int threshold;
+  private final int maxChainLength;
+  private final int maxChainPercent;
+
+  DeltaPolicy(int threshold, int maxChainLength, int maxChainPercent) {
+    this.threshold = threshold;
+    this.maxChainLength = maxChainLength;
+    this.maxChainPercent = maxChainPercent;
+  }
+
+  /**
+   * Whether an attribute of this size is stored with deltas.
+   */
+  boolean appliesTo(int size) {
+    return size >= threshold;
+  }
+
+  /**
+   * Whether a new base must be written rather than appending a delta to the chain.
+   * @param chainLength The number of deltas already in the chain.
+   * @param chainSize The total size of these deltas.
+   * @param baseSize The size of the base of the chain.
+   * @param deltaSize The size of the delta to append.
+   */
+  boolean shouldCompact(int chainLength, long chainSize, int baseSize, int deltaSize) {
+    return chainLength >= maxChainLength
+        || (chainSize + deltaSize) * 100 > (long) baseSize * maxChainPercent;
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.session;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.regex.Pattern;
+
+/**
+ * A {@link ColdSessionStorage} keeping the blobs in a directory of the local filesystem.
+ *
+ * <p>The directory is only visible to the local node, unless it is a shared filesystem. It is
+ * intended for single node deployments and as a stand-in for an object store.</p>
+ */
+public class FileColdSessionStorage implements ColdSessionStorage {
+
+  private static final Pattern VALID_ID = Pattern.compile("[A-Za-z0-9._-]+");
+  private static final String SUFFIX = ".session";
+
+  private final Path directory;
+
+  /**
+   * Create a storage in a directory, created if needed.
+   * @param directory The directory of the blobs.
+   * @throws IOException If the directory cannot be created.
+   */
+  public FileColdSessionStorage(Path directory) throws IOException {
+    this.directory = Files.createDirectories(directory);
+  }
+
+  @Override
+  public void write(String id, byte[] data) throws IOException {
+    Path file = file(id);
+    Path temporary = Files.createTempFile(directory, id, ".tmp");
+    try {
+      Files.write(temporary, data);
+      Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+  }
+
+  @Override
+  public byte[] read(String id) throws IOException {
+    try {
+      return Files.readAllBytes(file(id));
+    } catch (NoSuchFileException e) {
+      return null;
+    }
+  }
+
+  @Override
+  public void delete(String id) throws IOException {
+    Files.deleteIfExists(file(id));
+  }
+
+  private Path file(String id) throws IOException {
+    // The id comes from the client, it must not escape the directory
+    if (!VALID_ID.matcher(id).matches() || id.startsWith(".")) {
+      throw new IOException("Invalid session id for the cold storage: " + id);
+    }
+    return directory.resolve(id + SUFFIX);
+  }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.session;
+
+import com.google.cloud.datastore.Batch;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.FullEntity;
+import com.google.cloud.datastore.IncompleteKey;
+import com.google.cloud.datastore.Key;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Commit the saves of concurrent requests together, in a single non-transactional batch.
+ *
+ * <p>A collector thread takes the pending saves and hands them in groups to a pool of
+ * {@code commitThreads} threads. A group is committed as soon as a thread is available, so the
+ * saves accumulate only while all the threads are busy, or during {@code linger} if configured.
+ * A group never exceeds {@code maxMutations} mutations and never contains two mutations of the
+ * same entity, which the Datastore would reject: two saves of the same session, or two saves
+ * writing the same shared blob, are committed in different groups.</p>
+ *
+ * <p>If the commit of a group fails, each save is committed again on its own so that the failure
+ * only affects the session which caused it.</p>
+ *
+ * <p>The pending saves are not bounded: each of them holds a request thread waiting for its
+ * result, so they are limited by the number of request threads.</p>
+ */
+class GroupCommitter implements Closeable {
+
+  private static final Log log = LogFactory.getLog(GroupCommitter.class);
+
+  private final Datastore datastore;
+  private final long lingerNanos;
+  private final int maxMutations;
+  private final Semaphore commitSlots;
+  private final ExecutorService committers;
+  private final BlockingQueue<PendingSave> queue = new LinkedBlockingQueue<>();
+  private final Thread collector;
+  private volatile boolean running = true;
+
+  private final LongAdder commits = new LongAdder();
+  private final LongAdder saves = new LongAdder();
+
+  /**
+   * A save waiting to be committed.
+   */
+  private static final class PendingSave {
+    private final Key sessionKey;
+    private final List<FullEntity<?>> puts;
+    private final List<Key> deletes;
+    private final CompletableFuture<Void> result = new CompletableFuture<>();
+
+    PendingSave(Key sessionKey, List<FullEntity<?>> puts, List<Key> deletes) {
+      this.sessionKey = sessionKey;
+      this.puts = puts;
+      this.deletes = deletes;
+    }
+
+    int mutations() {
+      return puts.size() + deletes.size();
+    }
+
+    /**
+     * Return the keys of the entities mutated by the save.
+     */
+    Set<IncompleteKey> keys() {
+      Set<IncompleteKey> keys = new HashSet<>(mutations() + 1);
+      keys.add(sessionKey);
+      puts.forEach(entity -> keys.add(entity.getKey()));
+      keys.addAll(deletes);
+      return keys;
+    }
+  }
+
+  /**
+   * Saves committed in the same batch.
+   */
+  private final class Group {
+    private final List<PendingSave> saves = new ArrayList<>();
+    private final Set<IncompleteKey> keys = new HashSet<>();
+    private int mutations;
+
+    boolean accepts(PendingSave save) {
+      return mutations + save.mutations() <= maxMutations
+          && Collections.disjoint(keys, save.keys());
+    }
+
+    void add(PendingSave save) {
+      saves.add(save);
+      keys.addAll(save.keys());
+      mutations += save.mutations();
+    }
+  }
+
+  /**
+   * Create the committer and start its threads.
+   * @param datastore The Datastore receiving the batches.
+   * @param linger The time in milliseconds during which a group waits for more saves, 0 to
+   *               commit it as soon as a thread is available.
+   * @param maxMutations The maximum number of mutations of a batch.
+   * @param commitThreads The maximum number of concurrent commits.
+   */
+  GroupCommitter(Datastore datastore, long linger, int maxMutations, int commitThreads) {
+    this.datastore = datastore;
+    this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(linger);
+    this.maxMutations = maxMutations;
+    this.commitSlots = new Semaphore(commitThreads);
+    this.committers = Executors.newFixedThreadPool(commitThreads, new ThreadFactoryBuilder()
+        .setNameFormat("session-committer-%d")
+        .setDaemon(true)
+        .build());
+    this.collector = new Thread(this::collect, "session-commit-collector");
+    this.collector.setDaemon(true);
+    this.collector.start();
+  }
+
+  /**
+   * Schedule a save, to be committed with the other pending saves.
+   * @param sessionKey The key of the session saved.
+   * @param puts The entities to upsert.
+   * @param deletes The keys of the entities to delete.
+   * @return A future completed when the save is committed.
+   */
+  CompletableFuture<Void> submit(Key sessionKey, List<FullEntity<?>> puts, List<Key> deletes) {
+    PendingSave save = new PendingSave(sessionKey, puts, deletes);
+    queue.add(save);
+    if (!running && queue.remove(save)) {
+      // The collector may already be stopped
+      commitAlone(save);
+    }
+    return save.result;
+  }
+
+  private void collect() {
+    PendingSave carry = null;
+    try {
+      while (running || carry != null || !queue.isEmpty()) {
+        PendingSave first = carry != null ? carry : queue.poll(100, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+
+        Group group = new Group();
+        group.add(first);
+
+        carry = fill(group, System.nanoTime() + lingerNanos);
+        commitSlots.acquire();
+        if (carry == null) {
+          // More saves may have arrived while all the threads were busy
+          carry = fill(group, System.nanoTime());
+        }
+        committers.execute(() -> {
+          try {
+            commit(group.saves);
+          } finally {
+            commitSlots.release();
+          }
+        });
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Add the pending saves to the group until it is full or the deadline is reached.
+   * @return A save which could not be added to the group, or null.
+   */
+  private PendingSave fill(Group group, long deadline) throws InterruptedException {
+    while (group.mutations < maxMutations) {
+      long remaining = deadline - System.nanoTime();
+      PendingSave next = remaining > 0
+          ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+      if (next == null) {
+        return null;
+      }
+      if (!group.accepts(next)) {
+        return next;
+      }
+      group.add(next);
+    }
+    return null;
+  }
+
+  private void commit(List<PendingSave> group) {
+    if (group.size() == 1) {
+      commitAlone(group.get(0));
+      return;
+    }
+
+    try {
+      Batch batch = datastore.newBatch();
+      for (PendingSave save : group) {
+        add(batch, save);
+      }
+      batch.submit();
+      commits.increment();
+      saves.add(group.size());
+      group.forEach(save -> save.result.complete(null));
+    } catch (RuntimeException e) {
+      log.debug("Commit of " + group.size() + " sessions failed, committing them one by one", e);
+      group.forEach(this::commitAlone);
+    }
+  }
+
+  private void commitAlone(PendingSave save) {
+    try {
+      Batch batch = datastore.newBatch();
+      add(batch, save);
+      batch.submit();
+      commits.increment();
+      saves.increment();
+      save.result.complete(null);
+    } catch (RuntimeException e) {
+      save.result.completeExceptionally(e);
+    }
+  }
+
+  private static void add(Batch batch, PendingSave save) {
+    batch.put(save.puts.toArray(new FullEntity<?>[0]));
+    if (!save.deletes.isEmpty()) {
+      batch.delete(save.deletes.toArray(new Key[0]));
+    }
+  }
+
+  /**
+   * Return the number of commits sent to the Datastore.
+   */
+  long getCommitCount() {
+    return commits.sum();
+  }
+
+  /**
+   * Return the number of saves committed.
+   */
+  long getSaveCount() {
+    return saves.sum();
+  }
+
+  /**
+   * Commit the pending saves and stop the threads.
+   */
+  @Override
+  public void close() {
+    running = false;
+    try {
+      collector.join(TimeUnit.SECONDS.toMillis(10));
+      committers.shutdown();
+      committers.awaitTermination(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    // Saves submitted while the collector was stopping
+    PendingSave save;
+    while ((save = queue.poll()) != null) {
+      commitAlone(save);
+    }
+  }
+}
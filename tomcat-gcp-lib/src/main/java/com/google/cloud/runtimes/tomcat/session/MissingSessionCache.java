@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.session;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import java.time.Clock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded, time-limited set of the session ids known to be absent from the Datastore, used to
+ * answer repeated lookups of removed or expired sessions without querying the Datastore.
+ *
+ * <p>The cache is local to the node: only the ids which this node removed or expired are added,
+ * and only the saves of this node remove them.</p>
+ *
+ * <p>Each id is stored as a 64 bits fingerprint in a lock-free open addressing table. Unlike a
+ * Bloom filter, the probability that a live session is reported as missing is negligible
+ * (about one in 2^64 per lookup), and an id can be removed when a session is saved with it.</p>
+ *
+ * <p>The fingerprints are held in two generations of {@code ttl / 2} each: when the current
+ * generation is too old or full, it becomes the previous one and the previous one is discarded.
+ * An id is therefore forgotten at most {@code ttl} after it was added.</p>
+ */
+class MissingSessionCache {
+
+  private static final long EMPTY = 0;
+  private static final long REMOVED = 1;
+
+  /**
+   * Number of slots inspected before considering the generation full.
+   */
+  private static final int MAX_PROBES = 16;
+
+  private static final HashFunction HASH = Hashing.murmur3_128();
+
+  private final int maxEntries;
+  private final int mask;
+  private final long generationMillis;
+  private final Clock clock;
+
+  private volatile Generation current;
+  private volatile Generation previous;
+
+  private final LongAdder hits = new LongAdder();
+
+  private static final class Generation {
+    private final AtomicLongArray slots;
+    private final AtomicInteger size = new AtomicInteger();
+    private final long createdAt;
+
+    Generation(int capacity, long createdAt) {
+      this.slots = new AtomicLongArray(capacity);
+      this.createdAt = createdAt;
+    }
+  }
+
+  /**
+   * Create an empty cache.
+   * @param maxEntries The maximum number of ids held by each generation.
+   * @param ttl The maximum time in milliseconds during which an id is remembered.
+   * @param clock The clock used to expire the ids.
+   */
+  MissingSessionCache(int maxEntries, long ttl, Clock clock) {
+    if (maxEntries <= 0 || maxEntries > (1 << 28)) {
+      throw new IllegalArgumentException("The size must be between 1 and 2^28");
+    }
+    int slots = maxEntries + maxEntries / 3;
+    int capacity = slots <= 1 ? 1 : Integer.highestOneBit(slots - 1) << 1;
+    this.maxEntries = maxEntries;
+    this.mask = capacity - 1;
+    this.generationMillis = Math.max(1, ttl / 2);
+    this.clock = clock;
+    long now = clock.millis();
+    this.current = new Generation(capacity, now);
+    this.previous = new Generation(capacity, now - generationMillis);
+  }
+
+  /**
+   * Remember that no session exists with this id.
+   */
+  void add(String id) {
+    long fingerprint = fingerprint(id);
+    Generation generation = currentGeneration();
+    if (!insert(generation, fingerprint)) {
+      insert(rotate(generation), fingerprint);
+    }
+  }
+
+  /**
+   * Return whether the id was recently added and not removed since.
+   */
+  boolean mightContain(String id) {
+    long fingerprint = fingerprint(id);
+    long now = clock.millis();
+    boolean found = contains(current, fingerprint, now) || contains(previous, fingerprint, now);
+    if (found) {
+      hits.increment();
+    }
+    return found;
+  }
+
+  /**
+   * Forget the id, because a session has been stored with it.
+   */
+  void remove(String id) {
+    long fingerprint = fingerprint(id);
+    delete(current, fingerprint);
+    delete(previous, fingerprint);
+  }
+
+  /**
+   * Return the number of lookups answered by the cache.
+   */
+  long getHitCount() {
+    return hits.sum();
+  }
+
+  private Generation currentGeneration() {
+    Generation generation = current;
+    if (clock.millis() - generation.createdAt >= generationMillis) {
+      generation = rotate(generation);
+    }
+    return generation;
+  }
+
+  /**
+   * Start a new generation, unless another thread already replaced the expected one.
+   */
+  private synchronized Generation rotate(Generation expected) {
+    if (current == expected) {
+      long now = clock.millis();
+      previous = now - expected.createdAt < 2 * generationMillis
+          ? expected : new Generation(mask + 1, now - generationMillis);
+      current = new Generation(mask + 1, now);
+    }
+    return current;
+  }
+
+  private boolean insert(Generation generation, long fingerprint) {
+    if (generation.size.get() >= maxEntries) {
+      return false;
+    }
+    AtomicLongArray slots = generation.slots;
+    int index = (int) fingerprint & mask;
+    for (int probe = 0; probe < MAX_PROBES; probe++, index = (index + 1) & mask) {
+      long value = slots.get(index);
+      while (value == EMPTY || value == REMOVED) {
+        if (slots.compareAndSet(index, value, fingerprint)) {
+          generation.size.incrementAndGet();
+          return true;
+        }
+        value = slots.get(index);
+      }
+      if (value == fingerprint) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean contains(Generation generation, long fingerprint, long now) {
+    if (now - generation.createdAt >= 2 * generationMillis) {
+      return false;
+    }
+    AtomicLongArray slots = generation.slots;
+    int index = (int) fingerprint & mask;
+    for (int probe = 0; probe < MAX_PROBES; probe++, index = (index + 1) & mask) {
+      long value = slots.get(index);
+      if (value == fingerprint) {
+        return true;
+      } else if (value == EMPTY) {
+        return false;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Remove every copy of the fingerprint, concurrent inserts may have stored it twice.
+   */
+  private void delete(Generation generation, long fingerprint) {
+    AtomicLongArray slots = generation.slots;
+    int index = (int) fingerprint & mask;
+    for (int probe = 0; probe < MAX_PROBES; probe++, index = (index + 1) & mask) {
+      long value = slots.get(index);
+      if (value == EMPTY) {
+        return;
+      } else if (value == fingerprint) {
+        slots.compareAndSet(index, fingerprint, REMOVED);
+      }
+    }
+  }
+
+  private static long fingerprint(String id) {
+    long fingerprint = HASH.hashUnencodedChars(id).asLong();
+    return fingerprint == EMPTY || fingerprint == REMOVED ? fingerprint + 2 : fingerprint;
+  }
+}
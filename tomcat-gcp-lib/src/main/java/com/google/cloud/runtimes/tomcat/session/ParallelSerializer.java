@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.session;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.stream.IntStream;
+
+/**
+ * Serialize or deserialize the attributes of large sessions concurrently, on a dedicated
+ * fork-join pool.
+ *
+ * <p>Handing the attributes to the pool has a cost which exceeds the gain for small sessions, so
+ * a session is only processed in parallel when it has at least {@code attributeThreshold}
+ * attributes or when its serialized attributes total at least {@code sizeThreshold} bytes. The
+ * results are always returned in the order of the inputs, so that the caller can apply them in a
+ * deterministic order.</p>
+ *
+ * <p>Handing a session to the pool costs a few tens of microseconds, while serializing an
+ * attribute takes from a few microseconds for a small object to about 5 microseconds per
+ * kilobyte. The default thresholds, 32 attributes or 1 MiB, correspond to at least 100
+ * microseconds and several milliseconds of serialization, so that the handoff stays a small
+ * fraction of the work even when the pool brings no gain. They are conservative and should be
+ * tuned with {@code ParallelSerializerBenchmark}, from the test sources, on the target
+ * machine.</p>
+ */
+class ParallelSerializer implements Closeable {
+
+  /**
+   * A serialization step applied to each attribute.
+   */
+  @FunctionalInterface
+  interface Step<T, R> {
+    R apply(T input) throws IOException, ClassNotFoundException;
+  }
+
+  private final ForkJoinPool pool;
+  private final int attributeThreshold;
+  private final long sizeThreshold;
+
+  /**
+   * Create the pool.
+   * @param threads The number of threads of the pool.
+   * @param attributeThreshold The minimal number of attributes of a session processed in parallel.
+   * @param sizeThreshold The minimal size in bytes of a session processed in parallel.
+   */
+  ParallelSerializer(int threads, int attributeThreshold, long sizeThreshold) {
+    this.attributeThreshold = attributeThreshold;
+    this.sizeThreshold = sizeThreshold;
+    this.pool = new ForkJoinPool(threads, pool -> {
+      ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+      thread.setName("session-serializer-" + thread.getPoolIndex());
+      return thread;
+    }, null, false);
+  }
+
+  /**
+   * Whether a session is large enough to be processed in parallel.
+   * @param attributes The number of attributes to process.
+   * @param size The size of the serialized attributes, 0 if unknown.
+   */
+  boolean isWorthwhile(int attributes, long size) {
+    return attributes >= attributeThreshold || size >= sizeThreshold;
+  }
+
+  /**
+   * Apply a step to each input on the pool.
+   * @return The results, in the order of the inputs.
+   * @throws IOException The first failure of an input, in the order of the inputs.
+   * @throws ClassNotFoundException The first failure of an input, in the order of the inputs.
+   */
+  @SuppressWarnings("unchecked")
+  <T, R> List<R> map(List<T> inputs, Step<T, R> step)
+      throws IOException, ClassNotFoundException {
+    Object[] results = new Object[inputs.size()];
+    Exception[] failures = new Exception[inputs.size()];
+    try {
+      pool.submit(() -> IntStream.range(0, inputs.size()).parallel().forEach(i -> {
+        try {
+          results[i] = step.apply(inputs.get(i));
+        } catch (Exception e) {
+          failures[i] = e;
+        }
+      })).get();
+    } catch (ExecutionException e) {
+      throw new IOException("Unable to process the attributes", e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while processing the attributes");
+    }
+
+    for (Exception failure : failures) {
+      if (failure instanceof IOException) {
+        throw (IOException) failure;
+      } else if (failure instanceof ClassNotFoundException) {
+        throw (ClassNotFoundException) failure;
+      } else if (failure != null) {
+        throw (RuntimeException) failure;
+      }
+    }
+    return (List<R>) Arrays.asList(results);
+  }
+
+  @Override
+  public void close() {
+    pool.shutdown();
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.session;
+
+import com.google.cloud.datastore.Blob;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A growable buffer reused by the serializations of a thread.
+ *
+ * <p>The serialized bytes are copied once, from the buffer to the immutable {@link Blob}, instead
+ * of being copied to a new array first. A buffer which grew above {@link #MAX_RETAINED_SIZE} is
+ * not kept, so that a single large attribute does not hold memory in every thread.</p>
+ *
+ * <pre>
+ *   {@code
+ *   SerializationBuffer buffer = SerializationBuffer.acquire();
+ *   try {
+ *     ...
+ *     return buffer.toBlob();
+ *   } finally {
+ *     buffer.release();
+ *   }
+ *   }
+ * </pre>
+ */
+class SerializationBuffer extends ByteArrayOutputStream {
+
+  static final int MAX_RETAINED_SIZE = 1024 * 1024;
+
+  private static final ThreadLocal<SerializationBuffer> buffers = new ThreadLocal<>();
+
+  private SerializationBuffer() {
+    super(4096);
+  }
+
+  /**
+   * Return the buffer of the current thread, or a new buffer if it is already in use, for example
+   * when an attribute serializes another object in its {@code writeObject} method.
+   */
+  static SerializationBuffer acquire() {
+    SerializationBuffer buffer = buffers.get();
+    if (buffer == null) {
+      return new SerializationBuffer();
+    }
+    buffers.remove();
+    return buffer;
+  }
+
+  /**
+   * Copy the content of the buffer to a Blob.
+   */
+  Blob toBlob() {
+    return Blob.copyFrom(ByteBuffer.wrap(buf, 0, count));
+  }
+
+  /**
+   * Release the buffer so that it can be reused by the next serialization of this thread. Unlike
+   * {@link #close()}, which is called by the streams wrapping the buffer, this must be called
+   * once the content was copied.
+   */
+  void release() {
+    if (buf.length <= MAX_RETAINED_SIZE) {
+      reset();
+      buffers.set(this);
+    }
+  }
+}
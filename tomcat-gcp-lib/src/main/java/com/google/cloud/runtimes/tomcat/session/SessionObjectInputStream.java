@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.session;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.lang.reflect.Proxy;
+
+/**
+ * An ObjectInputStream resolving the classes of the session attributes through a
+ * {@link ClassResolver}, which caches them and enforces the allowlist of the store.
+ */
+class SessionObjectInputStream extends ObjectInputStream {
+
+  private final ClassResolver resolver;
+
+  SessionObjectInputStream(InputStream in, ClassResolver resolver) throws IOException {
+    super(in);
+    this.resolver = resolver;
+  }
+
+  @Override
+  protected Class<?> resolveClass(ObjectStreamClass desc)
+      throws IOException, ClassNotFoundException {
+    return resolver.resolve(desc.getName());
+  }
+
+  @Override
+  protected Class<?> resolveProxyClass(String[] interfaces)
+      throws IOException, ClassNotFoundException {
+    Class<?>[] types = new Class<?>[interfaces.length];
+    for (int i = 0; i < interfaces.length; i++) {
+      types[i] = resolver.resolve(interfaces[i]);
+    }
+    try {
+      return Proxy.getProxyClass(resolver.getClassLoader(), types);
+    } catch (IllegalArgumentException e) {
+      throw new ClassNotFoundException("Unable to create the proxy class", e);
+    }
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.session;
+
+import java.util.Locale;
+
+/**
+ * How {@link DatastoreValve} handles the session of a request.
+ */
+public enum SessionPolicy {
+
+  /**
+   * The session requested by the client is not loaded and the sessions created by the application
+   * are not persisted. Suited to static assets and health checks. A session created by the
+   * application reuses the requested id, so that its cookie does not replace the one of the
+   * client.
+   */
+  NO_SESSION,
+
+  /**
+   * The session is loaded when the application uses it but never saved.
+   */
+  READ_ONLY,
+
+  /**
+   * The session is read with eventual consistency, which is faster but may return a stale state,
+   * and is never saved.
+   */
+  READ_ONLY_EVENTUAL,
+
+  /**
+   * The session is saved before the response is completed.
+   */
+  WRITE_THROUGH,
+
+  /**
+   * The session is serialized by the request thread, then saved by a background thread after the
+   * response is completed. A following
+   * request loading the session on the same node waits for the save, a request handled by
+   * another node may observe the previous state of the session if it arrives before the save.
+   */
+  WRITE_BEHIND;
+
+  /**
+   * Parse a policy name, case insensitive, accepting {@code -} instead of {@code _}.
+   * @throws IllegalArgumentException If the name is not a policy.
+   */
+  public static SessionPolicy parse(String name) {
+    return valueOf(name.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+  }
+}
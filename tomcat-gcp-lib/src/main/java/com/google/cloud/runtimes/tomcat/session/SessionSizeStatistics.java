@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.session;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Serialized size of the saved sessions and of their attributes.
+ *
+ * <p>The statistics keep the largest sessions, the histogram of the session sizes and, for each
+ * attribute name, the number of saves, the total and the maximum size. Up to
+ * {@link #MAX_ATTRIBUTE_NAMES} names are tracked, the following ones are counted together under
+ * {@link #OTHER_ATTRIBUTES}. The statistics cover the saves since the start of the store or
+ * their last reset.</p>
+ *
+ * <p>Session ids are secrets, only their first characters are reported.</p>
+ */
+class SessionSizeStatistics {
+
+  static final int MAX_ATTRIBUTE_NAMES = 1024;
+  static final String OTHER_ATTRIBUTES = "(other)";
+
+  private static final long[] HISTOGRAM_BOUNDS = {1 << 10, 4 << 10, 16 << 10, 64 << 10,
+      256 << 10, 1 << 20};
+  private static final int REPORTED_ID_LENGTH = 8;
+
+  private static final class AttributeStatistics {
+    private final LongAdder saves = new LongAdder();
+    private final LongAdder totalSize = new LongAdder();
+    private final AtomicLong maxSize = new AtomicLong();
+
+    void record(int size) {
+      saves.increment();
+      totalSize.add(size);
+      maxSize.accumulateAndGet(size, Math::max);
+    }
+  }
+
+  private final int topSize;
+  private final LongAdder[] histogram = new LongAdder[HISTOGRAM_BOUNDS.length + 1];
+  private final Map<String, AttributeStatistics> attributes = new ConcurrentHashMap<>();
+
+  /**
+   * The largest sessions, by id, guarded by this.
+   */
+  private final Map<String, Long> largestSessions = new HashMap<>();
+
+  /**
+   * Create empty statistics.
+   * @param topSize Number of sessions and attributes reported.
+   */
+  SessionSizeStatistics(int topSize) {
+    this.topSize = topSize;
+    for (int i = 0; i < histogram.length; i++) {
+      histogram[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * Record the save of a session.
+   * @param id The id of the session.
+   * @param size The serialized size of the session.
+   * @param attributeSizes The serialized size of its attributes, by name.
+   */
+  void record(String id, long size, Map<String, Integer> attributeSizes) {
+    int bucket = 0;
+    while (bucket < HISTOGRAM_BOUNDS.length && size >= HISTOGRAM_BOUNDS[bucket]) {
+      bucket++;
+    }
+    histogram[bucket].increment();
+
+    for (Map.Entry<String, Integer> attribute : attributeSizes.entrySet()) {
+      AttributeStatistics statistics = attributes.get(attribute.getKey());
+      if (statistics == null) {
+        String name = attributes.size() < MAX_ATTRIBUTE_NAMES
+            ? attribute.getKey() : OTHER_ATTRIBUTES;
+        statistics = attributes.computeIfAbsent(name, key -> new AttributeStatistics());
+      }
+      statistics.record(attribute.getValue());
+    }
+
+    synchronized (this) {
+      if (largestSessions.containsKey(id) || largestSessions.size() < topSize) {
+        largestSessions.put(id, size);
+        return;
+      }
+      Map.Entry<String, Long> smallest = largestSessions.entrySet().stream()
+          .min(Map.Entry.comparingByValue())
+          .orElse(null);
+      if (smallest != null && smallest.getValue() < size) {
+        largestSessions.remove(smallest.getKey());
+        largestSessions.put(id, size);
+      }
+    }
+  }
+
+  /**
+   * Forget a session which was removed or expired.
+   */
+  synchronized void remove(String id) {
+    largestSessions.remove(id);
+  }
+
+  /**
+   * Clear the statistics.
+   */
+  synchronized void reset() {
+    largestSessions.clear();
+    attributes.clear();
+    for (LongAdder bucket : histogram) {
+      bucket.reset();
+    }
+  }
+
+  /**
+   * Return the largest sessions, largest first, as {@code id...: size}.
+   */
+  synchronized String[] getLargestSessions() {
+    return largestSessions.entrySet().stream()
+        .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+        .map(entry -> reportedId(entry.getKey()) + ": " + entry.getValue())
+        .toArray(String[]::new);
+  }
+
+  /**
+   * Return the attributes writing the most bytes, as
+   * {@code name: saves=n, average=bytes, max=bytes, total=bytes}.
+   */
+  String[] getLargestAttributes() {
+    return attributes.entrySet().stream()
+        .sorted(Comparator.comparingLong(
+            (Map.Entry<String, AttributeStatistics> entry) -> entry.getValue().totalSize.sum())
+            .reversed())
+        .limit(topSize)
+        .map(entry -> {
+          long saves = entry.getValue().saves.sum();
+          long total = entry.getValue().totalSize.sum();
+          return entry.getKey() + ": saves=" + saves + ", average=" + (total / Math.max(saves, 1))
+              + ", max=" + entry.getValue().maxSize.get() + ", total=" + total;
+        })
+        .toArray(String[]::new);
+  }
+
+  /**
+   * Return the number of saved sessions by size range, as {@code < bytes: count}.
+   */
+  String[] getHistogram() {
+    String[] buckets = new String[histogram.length];
+    for (int i = 0; i < HISTOGRAM_BOUNDS.length; i++) {
+      buckets[i] = "< " + HISTOGRAM_BOUNDS[i] + ": " + histogram[i].sum();
+    }
+    buckets[HISTOGRAM_BOUNDS.length] = ">= " + HISTOGRAM_BOUNDS[HISTOGRAM_BOUNDS.length - 1]
+        + ": " + histogram[HISTOGRAM_BOUNDS.length].sum();
+    return buckets;
+  }
+
+  private static String reportedId(String id) {
+    return id.length() > REPORTED_ID_LENGTH ? id.substring(0, REPORTED_ID_LENGTH) + "..." : id;
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.session;
+
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.StringValue;
+import com.google.cloud.datastore.StructuredQuery.CompositeFilter;
+import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
+import com.google.cloud.datastore.Value;
+import com.google.cloud.runtimes.tomcat.session.DatastoreSession.SessionMetadata;
+import com.google.common.base.Strings;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Index of the session expiration spread over several key ranges.
+ *
+ * <p>Indexing the expiration time directly makes all the sessions saved at the same time write
+ * next to each other in the index. Instead, the metadata of a session is saved without any
+ * indexed property but a bucket, made of a shard chosen from the session id followed by the
+ * expiration time rounded down to {@code bucketMillis}. The writes are then spread over
+ * {@code shards} ranges of the index, and the expired sessions are found by querying each shard
+ * for the buckets which ended before the current time. A session is thus deleted up to
+ * {@code bucketMillis} after its expiration.</p>
+ */
+class ShardedExpirationIndex {
+
+  static final String EXPIRATION_BUCKET = "expirationBucket";
+
+  private static final int BUCKET_LENGTH = 19;
+
+  private final int shards;
+  private final long bucketMillis;
+
+  /**
+   * Create an index.
+   * @param shards The number of shards.
+   * @param bucketMillis The duration of a bucket in milliseconds.
+   */
+  ShardedExpirationIndex(int shards, long bucketMillis) {
+    this.shards = shards;
+    this.bucketMillis = bucketMillis;
+  }
+
+  /**
+   * Return the metadata entity of a session with only its expiration bucket indexed.
+   * @param metadata The metadata entity, as saved with the default schema.
+   */
+  Entity index(Entity metadata) {
+    Entity.Builder indexed = Entity.newBuilder(metadata.getKey());
+    for (String name : metadata.getNames()) {
+      Value<?> value = metadata.getValue(name);
+      indexed.set(name, value.toBuilder().setExcludeFromIndexes(true).build());
+    }
+    if (metadata.contains(SessionMetadata.EXPIRATION_TIME)) {
+      String id = metadata.getKey().getName();
+      indexed.set(EXPIRATION_BUCKET, StringValue.of(bucket(Math.floorMod(id.hashCode(), shards),
+          metadata.getLong(SessionMetadata.EXPIRATION_TIME) / bucketMillis)));
+    }
+    return indexed.build();
+  }
+
+  /**
+   * Return the queries of the sessions whose bucket ended before the current time, one per
+   * shard.
+   * @param kind The kind of the session entities.
+   * @param now The current time.
+   */
+  List<Query<Key>> expiredQueries(String kind, long now) {
+    List<Query<Key>> queries = new ArrayList<>(shards);
+    for (int shard = 0; shard < shards; shard++) {
+      queries.add(Query.newKeyQueryBuilder()
+          .setKind(kind)
+          .setFilter(CompositeFilter.and(
+              PropertyFilter.ge(EXPIRATION_BUCKET, shard + ":"),
+              PropertyFilter.lt(EXPIRATION_BUCKET, bucket(shard, now / bucketMillis))))
+          .build());
+    }
+    return queries;
+  }
+
+  /**
+   * The bucket numbers are padded so that their lexicographic order is the numeric order.
+   */
+  private static String bucket(int shard, long bucket) {
+    return shard + ":" + Strings.padStart(Long.toString(bucket), BUCKET_LENGTH, '0');
+  }
+}
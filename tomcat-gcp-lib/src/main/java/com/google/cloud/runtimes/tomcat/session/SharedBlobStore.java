@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.session;
+
+import com.google.cloud.datastore.Blob;
+import com.google.cloud.datastore.BlobValue;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreException;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
+import com.google.cloud.datastore.Transaction;
+import com.google.cloud.runtimes.tomcat.session.DatastoreSession.SessionMetadata;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Store the large attribute values once, under the hash of their content, rather than in each
+ * session holding them.
+ *
+ * <p>An attribute of at least {@code threshold} serialized bytes is saved as an attribute entity
+ * holding only the SHA-256 of its value, and the value is saved in an entity of the blob kind
+ * named after the hash. The attribute entity is not written again while the hash does not
+ * change.</p>
+ *
+ * <p>The blobs are garbage collected by expiration: a blob expires after twice the inactive
+ * interval of the last session which saved it, and is saved again by the sessions referencing it
+ * once it would expire before them. An expired blob still referenced by an attribute, for
+ * example from a session whose attributes were not accessed since the blob left the cache, is
+ * kept for another {@code retention}. The expired blobs are deleted in transactions, so a blob
+ * saved again during its deletion is kept.</p>
+ *
+ * <p>The blobs recently read or written are kept in a node-local cache, up to
+ * {@code cacheSize} bytes, and are not read again from the Datastore. Only the serialized values
+ * are cached, each session deserializes its own copy since the attributes are mutable.</p>
+ */
+class SharedBlobStore {
+
+  private static final Log log = LogFactory.getLog(SharedBlobStore.class);
+
+  /**
+   * A blob and the time until which it is known to be stored.
+   */
+  private static final class SharedBlob {
+    private final Blob value;
+    private final long expirationTime;
+
+    SharedBlob(Blob value, long expirationTime) {
+      this.value = value;
+      this.expirationTime = expirationTime;
+    }
+  }
+
+  private final Datastore datastore;
+  private final String sessionKind;
+  private final String kind;
+  private final KeyFactory keyFactory;
+  private final int threshold;
+  private final Cache<String, SharedBlob> cache;
+
+  /**
+   * Create a store of shared blobs.
+   * @param datastore The Datastore.
+   * @param sessionKind The kind of the session entities, the blobs use this kind followed by
+   *                    {@code Blob}.
+   * @param threshold Minimal size in bytes of the shared attributes, 0 to only read the blobs.
+   * @param cacheSize Maximum number of bytes of the blobs cached.
+   */
+  SharedBlobStore(Datastore datastore, String sessionKind, int threshold, long cacheSize) {
+    this.datastore = datastore;
+    this.sessionKind = sessionKind;
+    this.kind = sessionKind + "Blob";
+    this.keyFactory = datastore.newKeyFactory().setKind(kind);
+    this.threshold = threshold;
+    this.cache = CacheBuilder.newBuilder()
+        .maximumWeight(cacheSize)
+        .<String, SharedBlob>weigher((hash, blob) -> blob.value.getLength())
+        .build();
+  }
+
+  /**
+   * Replace the large attributes of a serialized session by a reference to a shared blob.
+   * @param session The session.
+   * @param entities The entities of the session.
+   * @param now The current time.
+   * @return The entities to save, with the blobs missing from the Datastore or about to expire.
+   */
+  List<Entity> share(DatastoreSession session, List<Entity> entities, long now) {
+    if (threshold <= 0) {
+      return entities;
+    }
+    long interval = session.getMaxInactiveInterval() * 1000L;
+    long requiredTime = interval >= 0 ? now + interval : Long.MAX_VALUE;
+    long expirationTime = interval >= 0 ? now + 2 * interval : Long.MAX_VALUE;
+
+    List<Entity> shared = new ArrayList<>(entities.size());
+    Set<String> checkedBlobs = new HashSet<>();
+    for (Entity entity : entities) {
+      if (entity.getKey().getAncestors().size() != 1
+          || !entity.contains(SessionMetadata.ATTRIBUTE_VALUE_NAME)
+          || entity.contains(SessionMetadata.ATTRIBUTE_VERSION)
+          || entity.getBlob(SessionMetadata.ATTRIBUTE_VALUE_NAME).getLength() < threshold) {
+        shared.add(entity);
+        continue;
+      }
+
+      Blob value = entity.getBlob(SessionMetadata.ATTRIBUTE_VALUE_NAME);
+      String hash = Hashing.sha256().hashBytes(value.asReadOnlyByteBuffer()).toString();
+      // The stored attribute entity already references this value
+      if (!hash.equals(session.getStoredHash(entity.getKey().getName()))
+          || entity.contains(SessionMetadata.ATTRIBUTE_SAVE_TIME)) {
+        shared.add(Entity.newBuilder(entity)
+            .remove(SessionMetadata.ATTRIBUTE_VALUE_NAME)
+            .set(SessionMetadata.ATTRIBUTE_HASH, hash)
+            .build());
+      }
+      if (checkedBlobs.add(hash)) {
+        addBlob(shared, hash, value, requiredTime, expirationTime);
+      }
+    }
+
+    // The attributes not saved must keep their blob as well
+    for (String hash : session.getStoredHashes()) {
+      SharedBlob cached = cache.getIfPresent(hash);
+      if (cached != null && checkedBlobs.add(hash)) {
+        addBlob(shared, hash, cached.value, requiredTime, expirationTime);
+      }
+    }
+    return shared;
+  }
+
+  private void addBlob(List<Entity> entities, String hash, Blob value, long requiredTime,
+      long expirationTime) {
+    SharedBlob cached = cache.getIfPresent(hash);
+    if (cached != null && cached.expirationTime >= requiredTime) {
+      return;
+    }
+    Entity.Builder blob = Entity.newBuilder(keyFactory.newKey(hash))
+        .set(SessionMetadata.ATTRIBUTE_VALUE_NAME, BlobValue.newBuilder(value)
+            .setExcludeFromIndexes(true)
+            .build());
+    if (expirationTime != Long.MAX_VALUE) {
+      blob.set(SessionMetadata.EXPIRATION_TIME, expirationTime);
+    }
+    entities.add(blob.build());
+  }
+
+  /**
+   * Remember the blobs of a committed save.
+   * @param entities The entities saved.
+   */
+  void committed(List<Entity> entities) {
+    for (Entity entity : entities) {
+      if (entity.getKey().getKind().equals(kind)) {
+        cache.put(entity.getKey().getName(), sharedBlob(entity));
+      }
+    }
+  }
+
+  /**
+   * Replace the references to shared blobs of a loaded session by their value.
+   * @param entities The entities of the session.
+   * @return The entities with the values of the shared blobs, without the attributes whose blob
+   *         is missing.
+   */
+  List<Entity> resolve(List<Entity> entities) {
+    Map<String, Blob> values = new HashMap<>();
+    List<Key> missingKeys = new ArrayList<>();
+    for (Entity entity : entities) {
+      if (entity.contains(SessionMetadata.ATTRIBUTE_HASH)
+          && !entity.contains(SessionMetadata.ATTRIBUTE_VALUE_NAME)) {
+        String hash = entity.getString(SessionMetadata.ATTRIBUTE_HASH);
+        SharedBlob cached = cache.getIfPresent(hash);
+        if (cached != null) {
+          values.put(hash, cached.value);
+        } else if (!values.containsKey(hash)) {
+          values.put(hash, null);
+          missingKeys.add(keyFactory.newKey(hash));
+        }
+      }
+    }
+    if (values.isEmpty()) {
+      return entities;
+    }
+
+    if (!missingKeys.isEmpty()) {
+      Iterator<Entity> blobs = datastore.get(missingKeys);
+      while (blobs.hasNext()) {
+        Entity blob = blobs.next();
+        SharedBlob sharedBlob = sharedBlob(blob);
+        cache.put(blob.getKey().getName(), sharedBlob);
+        values.put(blob.getKey().getName(), sharedBlob.value);
+      }
+    }
+
+    List<Entity> resolved = new ArrayList<>(entities.size());
+    for (Entity entity : entities) {
+      if (!entity.contains(SessionMetadata.ATTRIBUTE_HASH)
+          || entity.contains(SessionMetadata.ATTRIBUTE_VALUE_NAME)) {
+        resolved.add(entity);
+        continue;
+      }
+      Blob value = values.get(entity.getString(SessionMetadata.ATTRIBUTE_HASH));
+      if (value == null) {
+        log.warn("The shared value of the attribute " + entity.getKey().getName()
+            + " is missing, the attribute is ignored");
+        continue;
+      }
+      resolved.add(Entity.newBuilder(entity)
+          .set(SessionMetadata.ATTRIBUTE_VALUE_NAME, BlobValue.newBuilder(value)
+              .setExcludeFromIndexes(true)
+              .build())
+          .build());
+    }
+    return resolved;
+  }
+
+  /**
+   * Delete the expired blobs which are no longer referenced.
+   * @param now The current time.
+   * @param retention Time in milliseconds for which an expired blob still referenced is kept,
+   *                  {@link Long#MAX_VALUE} to keep it forever.
+   * @return The number of blobs deleted.
+   */
+  int collectGarbage(long now, long retention) {
+    Query<Key> query = Query.newKeyQueryBuilder()
+        .setKind(kind)
+        .setFilter(PropertyFilter.le(SessionMetadata.EXPIRATION_TIME, now))
+        .build();
+    int deleted = 0;
+    for (Key key : Lists.newArrayList(datastore.run(query))) {
+      Transaction transaction = datastore.newTransaction();
+      try {
+        Entity blob = transaction.get(key);
+        if (blob == null || !blob.contains(SessionMetadata.EXPIRATION_TIME)
+            || blob.getLong(SessionMetadata.EXPIRATION_TIME) > now) {
+          continue;
+        }
+        if (isReferenced(key.getName())) {
+          Entity.Builder extended = Entity.newBuilder(blob);
+          if (retention == Long.MAX_VALUE) {
+            extended.remove(SessionMetadata.EXPIRATION_TIME);
+          } else {
+            extended.set(SessionMetadata.EXPIRATION_TIME, now + retention);
+          }
+          transaction.put(extended.build());
+          transaction.commit();
+        } else {
+          transaction.delete(key);
+          transaction.commit();
+          cache.invalidate(key.getName());
+          deleted++;
+        }
+      } catch (DatastoreException e) {
+        log.debug("The shared blob " + key.getName() + " was not deleted", e);
+      } finally {
+        if (transaction.isActive()) {
+          transaction.rollback();
+        }
+      }
+    }
+    return deleted;
+  }
+
+  private boolean isReferenced(String hash) {
+    Query<Key> query = Query.newKeyQueryBuilder()
+        .setKind(sessionKind)
+        .setFilter(PropertyFilter.eq(SessionMetadata.ATTRIBUTE_HASH, hash))
+        .setLimit(1)
+        .build();
+    return datastore.run(query).hasNext();
+  }
+
+  private static SharedBlob sharedBlob(Entity blob) {
+    return new SharedBlob(blob.getBlob(SessionMetadata.ATTRIBUTE_VALUE_NAME),
+        blob.contains(SessionMetadata.EXPIRATION_TIME)
+            ? blob.getLong(SessionMetadata.EXPIRATION_TIME) : Long.MAX_VALUE);
+  }
+}
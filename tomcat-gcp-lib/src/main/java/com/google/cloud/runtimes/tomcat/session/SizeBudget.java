@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.session;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Byte budgets of the serialized sessions and attributes.
+ *
+ * <p>A session or an attribute above its soft limit is logged. Above its hard limit, the
+ * {@link Action#TRUNCATE} action drops the non-critical attributes, largest first, until the
+ * session fits, and rejects the save if they are not enough. The {@link Action#REJECT} action
+ * always rejects the save. A limit of 0 is disabled.</p>
+ */
+class SizeBudget {
+
+  private static final Log log = LogFactory.getLog(SizeBudget.class);
+
+  /**
+   * What to do with a session above a hard limit.
+   */
+  enum Action {
+    TRUNCATE,
+    REJECT;
+
+    static Action parse(String name) {
+      return valueOf(name.trim().toUpperCase(Locale.ROOT));
+    }
+  }
+
+  private final long sessionWarning;
+  private final long sessionLimit;
+  private final long attributeWarning;
+  private final long attributeLimit;
+  private final Action action;
+  private final Pattern nonCriticalAttributes;
+
+  /**
+   * Create a budget.
+   * @param sessionWarning Soft limit of a session in bytes.
+   * @param sessionLimit Hard limit of a session in bytes.
+   * @param attributeWarning Soft limit of an attribute in bytes.
+   * @param attributeLimit Hard limit of an attribute in bytes.
+   * @param action The action applied above a hard limit.
+   * @param nonCriticalAttributes The names of the attributes which can be dropped, or null.
+   */
+  SizeBudget(long sessionWarning, long sessionLimit, long attributeWarning, long attributeLimit,
+      Action action, Pattern nonCriticalAttributes) {
+    this.sessionWarning = sessionWarning;
+    this.sessionLimit = sessionLimit;
+    this.attributeWarning = attributeWarning;
+    this.attributeLimit = attributeLimit;
+    this.action = action;
+    this.nonCriticalAttributes = nonCriticalAttributes;
+  }
+
+  /**
+   * Check a session against the budget.
+   * @param id The id of the session.
+   * @param attributeSizes The serialized size of the attributes of the session, by name.
+   * @return The attributes to drop from the session.
+   * @throws IOException If the session cannot be saved within the budget.
+   */
+  List<String> apply(String id, Map<String, Integer> attributeSizes) throws IOException {
+    List<String> dropped = new ArrayList<>();
+    long size = 0;
+    for (Map.Entry<String, Integer> attribute : attributeSizes.entrySet()) {
+      String name = attribute.getKey();
+      int attributeSize = attribute.getValue();
+      if (attributeLimit > 0 && attributeSize > attributeLimit) {
+        if (!isDroppable(name)) {
+          throw new IOException("The attribute " + name + " of session " + id + " is "
+              + attributeSize + " bytes, above the limit of " + attributeLimit + " bytes");
+        }
+        log.warn("Dropping the attribute " + name + " of session " + id + ", it is "
+            + attributeSize + " bytes");
+        dropped.add(name);
+        continue;
+      }
+      if (attributeWarning > 0 && attributeSize > attributeWarning) {
+        log.warn("The attribute " + name + " of session " + id + " is " + attributeSize
+            + " bytes");
+      }
+      size += attributeSize;
+    }
+
+    if (sessionLimit > 0 && size > sessionLimit) {
+      List<Map.Entry<String, Integer>> candidates = new ArrayList<>();
+      for (Map.Entry<String, Integer> attribute : attributeSizes.entrySet()) {
+        if (!dropped.contains(attribute.getKey()) && isDroppable(attribute.getKey())) {
+          candidates.add(attribute);
+        }
+      }
+      candidates.sort(Map.Entry.<String, Integer>comparingByValue().reversed());
+      for (int i = 0; i < candidates.size() && size > sessionLimit; i++) {
+        dropped.add(candidates.get(i).getKey());
+        size -= candidates.get(i).getValue();
+      }
+      if (size > sessionLimit) {
+        throw new IOException("The session " + id + " is " + size + " bytes, above the limit of "
+            + sessionLimit + " bytes");
+      }
+      log.warn("Dropped the attributes " + dropped + " of session " + id + " to fit in "
+          + sessionLimit + " bytes");
+    } else if (sessionWarning > 0 && size > sessionWarning) {
+      log.warn("The session " + id + " is " + size + " bytes");
+    }
+    return dropped;
+  }
+
+  private boolean isDroppable(String name) {
+    return action == Action.TRUNCATE && nonCriticalAttributes != null
+        && nonCriticalAttributes.matcher(name).matches();
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.session;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Run the saves of sessions on background threads.
+ *
+ * <p>The saves of a session are always run by the same thread, in order, so that an older state
+ * never overwrites a newer one. When the queue of a thread is full, the request thread waits for
+ * a slot rather than running the save itself, which would break this ordering.</p>
+ */
+class WriteBehindExecutor implements Closeable {
+
+  private final ThreadPoolExecutor[] writers;
+
+  /**
+   * Create the executor and its threads.
+   * @param threads The number of threads.
+   * @param queueSize The number of saves waiting for each thread.
+   */
+  WriteBehindExecutor(int threads, int queueSize) {
+    ThreadFactory threadFactory = new ThreadFactoryBuilder()
+        .setNameFormat("session-writer-%d")
+        .setDaemon(true)
+        .build();
+    writers = new ThreadPoolExecutor[threads];
+    for (int i = 0; i < threads; i++) {
+      writers[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+          new ArrayBlockingQueue<>(queueSize), threadFactory, WriteBehindExecutor::waitForSlot);
+    }
+  }
+
+  private static void waitForSlot(Runnable task, ThreadPoolExecutor executor) {
+    if (executor.isShutdown()) {
+      throw new RejectedExecutionException("The session writers are stopped");
+    }
+    try {
+      executor.getQueue().put(task);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RejectedExecutionException("Interrupted while waiting for a session writer", e);
+    }
+  }
+
+  /**
+   * Schedule the save of a session.
+   * @param sessionId The id of the session, selecting the thread.
+   * @param save The task saving the session.
+   * @throws RejectedExecutionException If the executor is closed.
+   */
+  void execute(String sessionId, Runnable save) {
+    writers[(sessionId.hashCode() & Integer.MAX_VALUE) % writers.length].execute(save);
+  }
+
+  /**
+   * Run the pending saves and stop the threads.
+   */
+  @Override
+  public void close() {
+    for (ThreadPoolExecutor writer : writers) {
+      writer.shutdown();
+    }
+    try {
+      for (ThreadPoolExecutor writer : writers) {
+        writer.awaitTermination(10, TimeUnit.SECONDS);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
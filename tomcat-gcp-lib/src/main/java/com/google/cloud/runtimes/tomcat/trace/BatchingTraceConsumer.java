@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.trace;
+
+import com.google.cloud.runtimes.tomcat.util.BoundedRingBuffer;
+import com.google.cloud.runtimes.tomcat.util.BoundedRingBuffer.OverflowPolicy;
+import com.google.cloud.trace.v1.consumer.FlushableTraceConsumer;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.cloudtrace.v1.Trace;
+import com.google.devtools.cloudtrace.v1.Traces;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Buffer the spans produced on the request threads and hand them to a {@link TraceExporter}
+ * in batches, from a single background thread.
+ *
+ * <p>The spans are held in a lock-free bounded ring buffer. A batch is exported when
+ * {@code batchSize} spans are waiting or when {@code scheduledDelay} has elapsed since the last
+ * export. When the exporter cannot keep up and the buffer is full, spans are discarded according
+ * to the {@link OverflowPolicy} and counted as dropped.</p>
+ */
+public class BatchingTraceConsumer implements FlushableTraceConsumer, Closeable {
+
+  private static final Log log = LogFactory.getLog(BatchingTraceConsumer.class);
+
+  private final TraceExporter exporter;
+  private final BoundedRingBuffer<Trace> buffer;
+  private final OverflowPolicy overflowPolicy;
+  private final int batchSize;
+  private final ScheduledExecutorService scheduler;
+  private final AtomicBoolean flushScheduled = new AtomicBoolean();
+  private volatile boolean closed;
+
+  private final LongAdder exportedSpans = new LongAdder();
+  private final LongAdder droppedSpans = new LongAdder();
+
+  /**
+   * Create a consumer and start its background thread.
+   * @param exporter The destination of the batches.
+   * @param bufferSize The maximum number of traces waiting to be exported.
+   * @param batchSize The number of traces triggering an export.
+   * @param scheduledDelay The maximum delay in milliseconds before a trace is exported.
+   * @param overflowPolicy Which traces to discard when the buffer is full.
+   */
+  public BatchingTraceConsumer(TraceExporter exporter, int bufferSize, int batchSize,
+      long scheduledDelay, OverflowPolicy overflowPolicy) {
+    this(exporter, bufferSize, batchSize, scheduledDelay, overflowPolicy,
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("trace-exporter-%d")
+            .setDaemon(true)
+            .build()));
+  }
+
+  BatchingTraceConsumer(TraceExporter exporter, int bufferSize, int batchSize,
+      long scheduledDelay, OverflowPolicy overflowPolicy, ScheduledExecutorService scheduler) {
+    this.exporter = exporter;
+    this.buffer = new BoundedRingBuffer<>(bufferSize);
+    this.batchSize = batchSize;
+    this.overflowPolicy = overflowPolicy;
+    this.scheduler = scheduler;
+    scheduler.scheduleWithFixedDelay(this::flush, scheduledDelay, scheduledDelay,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Enqueue the traces without blocking, an export is triggered if a full batch is
+   * available. The traces received once the consumer is closed are dropped.</p>
+   */
+  @Override
+  public void receive(Traces traces) {
+    if (closed) {
+      traces.getTracesList().forEach(trace -> droppedSpans.add(trace.getSpansCount()));
+      return;
+    }
+    for (Trace trace : traces.getTracesList()) {
+      boolean inserted = buffer.offer(trace, overflowPolicy,
+          evicted -> droppedSpans.add(evicted.getSpansCount()));
+      if (!inserted && overflowPolicy == OverflowPolicy.DROP_NEWEST) {
+        droppedSpans.add(trace.getSpansCount());
+      }
+    }
+
+    if (buffer.size() >= batchSize && flushScheduled.compareAndSet(false, true)) {
+      try {
+        scheduler.execute(() -> {
+          flushScheduled.set(false);
+          flush();
+        });
+      } catch (RejectedExecutionException e) {
+        // Closed concurrently, the buffered traces are exported by the close
+        flushScheduled.set(false);
+      }
+    }
+  }
+
+  /**
+   * Export all the traces currently buffered. This is always executed by the background thread,
+   * except when the consumer is closed.
+   */
+  @Override
+  public synchronized void flush() {
+    List<Trace> batch = new ArrayList<>(Math.min(batchSize, buffer.capacity()));
+    while (buffer.drainTo(batch, batchSize) > 0) {
+      int spanCount = batch.stream().mapToInt(Trace::getSpansCount).sum();
+      try {
+        exporter.export(Traces.newBuilder().addAllTraces(batch).build());
+        exportedSpans.add(spanCount);
+      } catch (IOException | RuntimeException e) {
+        droppedSpans.add(spanCount);
+        log.warn("Unable to export " + spanCount + " spans", e);
+      }
+      batch.clear();
+    }
+  }
+
+  /**
+   * Stop the background thread, export the remaining traces and close the exporter.
+   */
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    scheduler.shutdown();
+    try {
+      scheduler.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    flush();
+    exporter.close();
+  }
+
+  public long getExportedSpanCount() {
+    return exportedSpans.sum();
+  }
+
+  public long getDroppedSpanCount() {
+    return droppedSpans.sum();
+  }
+
+  public int getBufferedTraceCount() {
+    return buffer.size();
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.trace;
+
+import com.google.cloud.trace.GrpcSpanContextHandler;
+import com.google.cloud.trace.SpanContextHandler;
+import com.google.cloud.trace.SpanContextHandlerTracer;
+import com.google.cloud.trace.Tracer;
+import com.google.cloud.trace.core.JavaTimestampFactory;
+import com.google.cloud.trace.core.RateLimitingTraceOptionsFactory;
+import com.google.cloud.trace.core.SpanContextFactory;
+import com.google.cloud.trace.service.TraceService;
+import com.google.cloud.trace.v1.TraceSinkV1;
+import com.google.cloud.trace.v1.producer.TraceProducer;
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A trace service sending the spans to a {@link TraceExporter} through a
+ * {@link BatchingTraceConsumer}.
+ *
+ * <p>This is equivalent to {@code TraceGrpcApiService} except that the buffering and the
+ * destination of the spans are configurable.</p>
+ */
+public class ExportingTraceService implements TraceService, Closeable {
+
+  private final BatchingTraceConsumer consumer;
+  private final SpanContextFactory spanContextFactory;
+  private final SpanContextHandler spanContextHandler;
+  private final Tracer tracer;
+
+  /**
+   * Create a new service, sampling one trace per second as the default Stackdriver service does.
+   * @param projectId The project id associated with the spans.
+   * @param consumer The consumer buffering the spans.
+   */
+  public ExportingTraceService(String projectId, BatchingTraceConsumer consumer) {
+    this.consumer = consumer;
+    this.spanContextFactory = new SpanContextFactory(
+        new RateLimitingTraceOptionsFactory(1.0, false));
+    this.spanContextHandler = new GrpcSpanContextHandler(spanContextFactory.initialContext());
+    this.tracer = new SpanContextHandlerTracer(
+        new TraceSinkV1(projectId, new TraceProducer(), consumer),
+        spanContextHandler, spanContextFactory, new JavaTimestampFactory());
+  }
+
+  @Override
+  public Tracer getTracer() {
+    return tracer;
+  }
+
+  @Override
+  public SpanContextHandler getSpanContextHandler() {
+    return spanContextHandler;
+  }
+
+  @Override
+  public SpanContextFactory getSpanContextFactory() {
+    return spanContextFactory;
+  }
+
+  public BatchingTraceConsumer getConsumer() {
+    return consumer;
+  }
+
+  /**
+   * Export the buffered spans and release the exporter.
+   */
+  @Override
+  public void close() throws IOException {
+    consumer.close();
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.trace;
+
+import com.google.auth.oauth2.GoogleCredentials;
+import com.google.cloud.trace.grpc.v1.GrpcTraceConsumer;
+import com.google.cloud.trace.v1.consumer.TraceConsumer;
+import com.google.devtools.cloudtrace.v1.Traces;
+import java.io.IOException;
+
+/**
+ * Export the spans to the Stackdriver Trace API using gRPC.
+ */
+public class GrpcTraceExporter implements TraceExporter {
+
+  private final TraceConsumer consumer;
+
+  /**
+   * Create an exporter using the application default credentials.
+   * @param projectId The project receiving the traces.
+   * @throws IOException If the credentials cannot be loaded.
+   */
+  public GrpcTraceExporter(String projectId) throws IOException {
+    this(GrpcTraceConsumer.create(projectId, GoogleCredentials.getApplicationDefault()));
+  }
+
+  GrpcTraceExporter(TraceConsumer consumer) {
+    this.consumer = consumer;
+  }
+
+  @Override
+  public void export(Traces traces) throws IOException {
+    try {
+      consumer.receive(traces);
+    } catch (RuntimeException e) {
+      throw new IOException("Unable to send the traces to Stackdriver", e);
+    }
+  }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.trace;
+
+import com.google.devtools.cloudtrace.v1.Trace;
+import com.google.devtools.cloudtrace.v1.Traces;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Keep the exported traces in memory, this is intended for testing the tracing offline.
+ */
+public class InMemoryTraceExporter implements TraceExporter {
+
+  private final ConcurrentLinkedQueue<Trace> traces = new ConcurrentLinkedQueue<>();
+
+  @Override
+  public void export(Traces traces) {
+    this.traces.addAll(traces.getTracesList());
+  }
+
+  /**
+   * Return a snapshot of the traces exported so far.
+   */
+  public List<Trace> getTraces() {
+    return new ArrayList<>(traces);
+  }
+
+  public void clear() {
+    traces.clear();
+  }
+}
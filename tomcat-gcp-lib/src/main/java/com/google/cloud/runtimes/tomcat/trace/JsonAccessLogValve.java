@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.trace;
+
+import com.google.cloud.ServiceOptions;
+import com.google.cloud.runtimes.tomcat.trace.RequestTimings.Phase;
+import com.google.cloud.runtimes.tomcat.util.AsyncBatchWriter;
+import com.google.cloud.runtimes.tomcat.util.BoundedRingBuffer.OverflowPolicy;
+import com.google.cloud.runtimes.tomcat.util.JsonStrings;
+import com.google.cloud.runtimes.tomcat.util.StandardOutput;
+import com.google.cloud.trace.core.SpanContextFactory;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.net.HttpHeaders;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.ServletException;
+import org.apache.catalina.AccessLog;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.ValveBase;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * This valve writes one JSON line per request to stdout, in the Stackdriver structured logging
+ * format: the {@code httpRequest} fields (method, URL, status, size, latency...), the trace of
+ * the request taken from the {@code X-Cloud-Trace-Context} header, and the time spent loading
+ * and saving the session.
+ *
+ * <p>The entries are formatted on the request thread in a reused per-thread buffer, then written
+ * in batches by a background thread (see {@link AsyncBatchWriter}). When the writer cannot keep
+ * up, entries are dropped according to the overflow policy and counted.</p>
+ *
+ * <p>Like the {@code AccessLogValve}, the entries are written by Tomcat once the response is
+ * complete, so the number of bytes sent is known.</p>
+ */
+public class JsonAccessLogValve extends ValveBase implements AccessLog {
+
+  private static final Log log = LogFactory.getLog(JsonAccessLogValve.class);
+
+  private static final String X_CLOUD_TRACE_HEADER = SpanContextFactory.headerKey();
+
+  /**
+   * Note marking the requests processed by this valve, whose timings are collected.
+   */
+  private static final String TIMINGS_NOTE = JsonAccessLogValve.class.getName() + ".timings";
+
+  /**
+   * Buffers larger than this size are not kept for the next request.
+   */
+  private static final int MAX_RETAINED_BUFFER_SIZE = 16 * 1024;
+
+  private static final ThreadLocal<StringBuilder> buffers =
+      ThreadLocal.withInitial(() -> new StringBuilder(1024));
+
+  /**
+   * Maximum number of entries waiting to be written.
+   */
+  private int bufferSize = 8192;
+
+  /**
+   * Maximum number of entries written at once.
+   */
+  private int batchSize = 512;
+
+  /**
+   * Which entries to discard when the buffer is full, see {@link OverflowPolicy}.
+   */
+  private String overflowPolicy = OverflowPolicy.DROP_NEWEST.name();
+
+  /**
+   * Whether to use the remote address set in the request attributes by the
+   * {@code RemoteIpValve}.
+   */
+  private boolean requestAttributesEnabled = true;
+
+  /**
+   * Prefix of the trace resource names, {@code projects/<project id>/traces/}.
+   */
+  private String tracePrefix = "";
+
+  private EntryWriter writer;
+
+  public JsonAccessLogValve() {
+    super(true);
+  }
+
+  @Override
+  protected synchronized void startInternal() throws LifecycleException {
+    OverflowPolicy policy;
+    try {
+      policy = OverflowPolicy.valueOf(overflowPolicy);
+    } catch (IllegalArgumentException e) {
+      throw new LifecycleException("Unknown access log overflow policy: " + overflowPolicy, e);
+    }
+    if (bufferSize <= 0 || batchSize <= 0) {
+      throw new LifecycleException("The access log buffer and batch sizes must be greater than 0");
+    }
+
+    String projectId = ServiceOptions.getDefaultProjectId();
+    tracePrefix = projectId != null ? "projects/" + projectId + "/traces/" : "";
+    writer = new EntryWriter(StandardOutput.writer(), policy);
+    writer.start();
+    super.startInternal();
+  }
+
+  @Override
+  protected synchronized void stopInternal() throws LifecycleException {
+    super.stopInternal();
+    if (writer != null) {
+      writer.close();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Collect the timings of the request if no other valve does.</p>
+   */
+  @Override
+  public void invoke(Request request, Response response) throws IOException, ServletException {
+    RequestTimings timings = null;
+    if (RequestTimings.current() == null) {
+      timings = RequestTimings.begin();
+    }
+    request.setNote(TIMINGS_NOTE, Boolean.TRUE);
+
+    try {
+      getNext().invoke(request, response);
+    } finally {
+      if (timings != null) {
+        timings.end();
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Format the entry and hand it to the writer thread.</p>
+   */
+  @Override
+  public void log(Request request, Response response, long time) {
+    if (writer == null || !getState().isAvailable()) {
+      return;
+    }
+
+    StringBuilder buffer = buffers.get();
+    buffer.setLength(0);
+    format(request, response, time, buffer);
+    writer.offer(buffer.toString());
+
+    if (buffer.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+      buffers.remove();
+    }
+  }
+
+  /**
+   * Append the JSON entry describing the request, followed by a line separator, to the buffer.
+   * @param time The time spent processing the request, in milliseconds.
+   */
+  @VisibleForTesting
+  void format(Request request, Response response, long time, StringBuilder buffer) {
+    int status = response.getStatus();
+    long start = request.getCoyoteRequest().getStartTime();
+    if (start <= 0) {
+      start = System.currentTimeMillis() - time;
+    }
+
+    buffer.append("{\"severity\":\"").append(severity(status))
+        .append("\",\"timestamp\":{\"seconds\":").append(start / 1000)
+        .append(",\"nanos\":").append(start % 1000 * 1000000)
+        .append("},\"httpRequest\":{\"requestMethod\":");
+    JsonStrings.appendQuoted(buffer, request.getMethod());
+    buffer.append(",\"requestUrl\":");
+    appendRequestUrl(request, buffer);
+    buffer.append(",\"status\":").append(status)
+        .append(",\"responseSize\":\"").append(response.getBytesWritten(false))
+        .append("\",\"userAgent\":");
+    JsonStrings.appendQuoted(buffer, request.getHeader(HttpHeaders.USER_AGENT));
+    buffer.append(",\"remoteIp\":");
+    JsonStrings.appendQuoted(buffer, getRemoteAddr(request));
+    buffer.append(",\"referer\":");
+    JsonStrings.appendQuoted(buffer, request.getHeader(HttpHeaders.REFERER));
+    buffer.append(",\"protocol\":");
+    JsonStrings.appendQuoted(buffer, request.getProtocol());
+    buffer.append(",\"latency\":\"").append(time / 1000).append('.');
+    appendPadded(buffer, time % 1000);
+    buffer.append("s\"}");
+
+    String traceHeader = request.getHeader(X_CLOUD_TRACE_HEADER);
+    if (traceHeader != null) {
+      buffer.append(",\"logging.googleapis.com/trace\":");
+      JsonStrings.appendQuoted(buffer, tracePrefix + extractTraceId(traceHeader));
+    }
+
+    if (request.getNote(TIMINGS_NOTE) != null) {
+      RequestTimings timings = RequestTimings.ofCurrentThread();
+      buffer.append(",\"sessionLoadTime\":");
+      appendMillis(buffer, timings.getDuration(Phase.SESSION_LOAD));
+      buffer.append(",\"sessionSaveTime\":");
+      appendMillis(buffer, timings.getDuration(Phase.SESSION_SAVE));
+      buffer.append(",\"sessionLoadBytes\":").append(timings.getSessionLoadBytes())
+          .append(",\"sessionSaveBytes\":").append(timings.getSessionSaveBytes());
+    }
+    buffer.append("}\n");
+  }
+
+  private static String severity(int status) {
+    if (status >= 500) {
+      return "ERROR";
+    } else if (status >= 400) {
+      return "WARNING";
+    }
+    return "INFO";
+  }
+
+  private static void appendRequestUrl(Request request, StringBuilder buffer) {
+    String query = request.getQueryString();
+    buffer.append('"');
+    JsonStrings.appendEscaped(buffer, request.getRequestURI());
+    if (query != null) {
+      buffer.append('?');
+      JsonStrings.appendEscaped(buffer, query);
+    }
+    buffer.append('"');
+  }
+
+  private String getRemoteAddr(Request request) {
+    if (requestAttributesEnabled) {
+      Object remoteAddr = request.getAttribute(AccessLog.REMOTE_ADDR_ATTRIBUTE);
+      if (remoteAddr != null) {
+        return remoteAddr.toString();
+      }
+    }
+    return request.getRemoteAddr();
+  }
+
+  /**
+   * Extract the trace id from a header of the form {@code TRACE_ID/SPAN_ID;o=TRACE_TRUE}.
+   */
+  @VisibleForTesting
+  static String extractTraceId(String traceHeader) {
+    int end = traceHeader.indexOf('/');
+    if (end < 0) {
+      end = traceHeader.indexOf(';');
+    }
+    return end < 0 ? traceHeader : traceHeader.substring(0, end);
+  }
+
+  /**
+   * Append a duration in milliseconds with a precision of a tenth of millisecond.
+   */
+  private static void appendMillis(StringBuilder buffer, long nanos) {
+    long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+    buffer.append(micros / 1000).append('.').append(micros % 1000 / 100);
+  }
+
+  private static void appendPadded(StringBuilder buffer, long millis) {
+    if (millis < 100) {
+      buffer.append('0');
+    }
+    if (millis < 10) {
+      buffer.append('0');
+    }
+    buffer.append(millis);
+  }
+
+  /**
+   * Write the formatted entries from the background thread.
+   */
+  private class EntryWriter extends AsyncBatchWriter<String> {
+
+    EntryWriter(Writer writer, OverflowPolicy policy) {
+      super("json-access-log-writer", writer, bufferSize, batchSize, policy);
+    }
+
+    @Override
+    protected void format(String entry, StringBuilder batch) {
+      batch.append(entry);
+    }
+
+    @Override
+    protected void formatDropReport(long droppedCount, StringBuilder batch) {
+      batch.append("{\"severity\":\"WARNING\",\"message\":\"").append(droppedCount)
+          .append(" access log entries dropped, the access log buffer was full\"}\n");
+    }
+
+    @Override
+    protected void handleError(Exception error) {
+      log.warn("Unable to write the access log", error);
+    }
+  }
+
+  /**
+   * Return the number of entries discarded because the buffer was full, exposed through JMX.
+   */
+  public long getDroppedEntryCount() {
+    return writer != null ? writer.getDroppedCount() : 0;
+  }
+
+  @Override
+  public void setRequestAttributesEnabled(boolean requestAttributesEnabled) {
+    this.requestAttributesEnabled = requestAttributesEnabled;
+  }
+
+  @Override
+  public boolean getRequestAttributesEnabled() {
+    return requestAttributesEnabled;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setBufferSize(int bufferSize) {
+    this.bufferSize = bufferSize;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setOverflowPolicy(String overflowPolicy) {
+    this.overflowPolicy = overflowPolicy;
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.trace;
+
+import com.google.cloud.runtimes.tomcat.trace.RequestTimings.Phase;
+import com.google.cloud.trace.core.Label;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An immutable summary of a request kept by the {@link RequestSampleRecorder}.
+ */
+public final class RequestSample {
+
+  private final long timestamp;
+  private final String spanName;
+  private final String traceId;
+  private final long duration;
+  private final boolean failed;
+  private final long sessionLoadDuration;
+  private final long applicationDuration;
+  private final long sessionSaveDuration;
+  private final long sessionLoadBytes;
+  private final long sessionSaveBytes;
+  private final List<Label> labels;
+
+  /**
+   * Create a sample.
+   * @param timestamp The time at which the request ended, in milliseconds since the epoch.
+   * @param spanName The name of the span of the request.
+   * @param traceId The id of the trace of the request, may be null.
+   * @param duration The duration of the request in nanoseconds.
+   * @param failed Whether the request failed with an exception or a 5xx status.
+   * @param timings The timings of the phases of the request, may be null.
+   * @param labels The labels of the span.
+   */
+  public RequestSample(long timestamp, String spanName, String traceId, long duration,
+      boolean failed, RequestTimings timings, List<Label> labels) {
+    this.timestamp = timestamp;
+    this.spanName = spanName;
+    this.traceId = traceId;
+    this.duration = duration;
+    this.failed = failed;
+    this.sessionLoadDuration = timings != null ? timings.getDuration(Phase.SESSION_LOAD) : 0;
+    this.applicationDuration = timings != null ? timings.getDuration(Phase.APPLICATION) : 0;
+    this.sessionSaveDuration = timings != null ? timings.getDuration(Phase.SESSION_SAVE) : 0;
+    this.sessionLoadBytes = timings != null ? timings.getSessionLoadBytes() : 0;
+    this.sessionSaveBytes = timings != null ? timings.getSessionSaveBytes() : 0;
+    this.labels = labels;
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  public String getSpanName() {
+    return spanName;
+  }
+
+  public String getTraceId() {
+    return traceId;
+  }
+
+  /**
+   * Return the duration of the request in nanoseconds.
+   */
+  public long getDuration() {
+    return duration;
+  }
+
+  public boolean isFailed() {
+    return failed;
+  }
+
+  public long getSessionLoadDuration() {
+    return sessionLoadDuration;
+  }
+
+  public long getApplicationDuration() {
+    return applicationDuration;
+  }
+
+  public long getSessionSaveDuration() {
+    return sessionSaveDuration;
+  }
+
+  public long getSessionLoadBytes() {
+    return sessionLoadBytes;
+  }
+
+  public long getSessionSaveBytes() {
+    return sessionSaveBytes;
+  }
+
+  public List<Label> getLabels() {
+    return labels;
+  }
+
+  /**
+   * Format the sample on a single line, followed by its labels.
+   */
+  void appendTo(StringBuilder builder) {
+    builder.append(Instant.ofEpochMilli(timestamp))
+        .append(' ').append(spanName)
+        .append(" total=").append(millis(duration))
+        .append(" session-load=").append(millis(sessionLoadDuration))
+        .append(" app=").append(millis(applicationDuration))
+        .append(" session-save=").append(millis(sessionSaveDuration))
+        .append(" loaded=").append(sessionLoadBytes).append('B')
+        .append(" saved=").append(sessionSaveBytes).append('B');
+    if (failed) {
+      builder.append(" FAILED");
+    }
+    if (traceId != null) {
+      builder.append(" trace=").append(traceId);
+    }
+    builder.append('\n');
+    for (Label label : labels) {
+      builder.append("    ").append(label.getKey()).append('=').append(label.getValue())
+          .append('\n');
+    }
+  }
+
+  private static String millis(long nanos) {
+    long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+    return micros / 1000 + "." + micros % 1000 / 100 + "ms";
+  }
+}
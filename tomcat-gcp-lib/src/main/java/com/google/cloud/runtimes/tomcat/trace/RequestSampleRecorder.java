@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.trace;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.LongSupplier;
+
+/**
+ * Keep the slowest and the most recent failing requests in memory, to diagnose an incident
+ * without waiting for the exported traces.
+ *
+ * <p>The slowest requests are kept per time window, for the current and the previous window, so
+ * that the outliers of the warm-up do not hide the slow requests of a later incident.</p>
+ *
+ * <p>The footprint is bounded by the capacity and recording does not lock: a request is first
+ * compared to the fastest of the slow requests kept, so most requests are rejected with a single
+ * volatile read and no allocation. Slow requests replace the fastest sample with a
+ * compare-and-set, and failed requests overwrite the oldest slot of a ring buffer.</p>
+ */
+public class RequestSampleRecorder {
+
+  /**
+   * The slowest requests of a time window.
+   */
+  private static final class Window {
+    private final long index;
+    private final AtomicReferenceArray<RequestSample> slowest;
+
+    /**
+     * Duration of the fastest sample of {@code slowest}, or -1 while a slot is empty.
+     */
+    private final AtomicLong slowestThreshold = new AtomicLong(-1);
+
+    /**
+     * The previous window, cleared once this one is itself the previous window.
+     */
+    private volatile Window previous;
+
+    Window(long index, int capacity, Window previous) {
+      this.index = index;
+      this.slowest = new AtomicReferenceArray<>(capacity);
+      this.previous = previous;
+    }
+  }
+
+  private final int capacity;
+  private final long windowMillis;
+  private final LongSupplier clock;
+  private final AtomicReference<Window> window;
+
+  private final AtomicReferenceArray<RequestSample> failures;
+  private final AtomicLong nextFailure = new AtomicLong();
+
+  /**
+   * Create a new recorder keeping the slowest requests of the last minute.
+   * @param capacity The number of slow requests and the number of failed requests to keep.
+   */
+  public RequestSampleRecorder(int capacity) {
+    this(capacity, TimeUnit.MINUTES.toMillis(1));
+  }
+
+  /**
+   * Create a new recorder.
+   * @param capacity The number of slow requests and the number of failed requests to keep.
+   * @param windowMillis The duration of the windows of the slowest requests, in milliseconds.
+   */
+  public RequestSampleRecorder(int capacity, long windowMillis) {
+    this(capacity, windowMillis, System::currentTimeMillis);
+  }
+
+  RequestSampleRecorder(int capacity, long windowMillis, LongSupplier clock) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("The capacity must be greater than 0");
+    }
+    if (windowMillis <= 0) {
+      throw new IllegalArgumentException("The window must be greater than 0");
+    }
+    this.capacity = capacity;
+    this.windowMillis = windowMillis;
+    this.clock = clock;
+    this.window = new AtomicReference<>(new Window(clock.getAsLong() / windowMillis, capacity,
+        null));
+    this.failures = new AtomicReferenceArray<>(capacity);
+  }
+
+  /**
+   * Return the window of the current time, starting a new one if the current window ended.
+   */
+  private Window currentWindow() {
+    long index = clock.getAsLong() / windowMillis;
+    Window current = window.get();
+    while (current.index < index) {
+      Window next = new Window(index, capacity, current.index == index - 1 ? current : null);
+      if (window.compareAndSet(current, next)) {
+        current.previous = null;
+        return next;
+      }
+      current = window.get();
+    }
+    return current;
+  }
+
+  /**
+   * Verify whether a request would be kept, so its sample is only created when needed.
+   * @param duration The duration of the request in nanoseconds.
+   * @param failed Whether the request failed.
+   */
+  public boolean isSampled(long duration, boolean failed) {
+    return failed || duration > currentWindow().slowestThreshold.get();
+  }
+
+  /**
+   * Keep the sample if it is one of the slowest requests of the current window or if the
+   * request failed.
+   */
+  public void record(RequestSample sample) {
+    if (sample.isFailed()) {
+      int index = (int) (nextFailure.getAndIncrement() % failures.length());
+      failures.set(index, sample);
+    }
+    recordSlow(currentWindow(), sample);
+  }
+
+  private static void recordSlow(Window window, RequestSample sample) {
+    AtomicReferenceArray<RequestSample> slowest = window.slowest;
+    while (sample.getDuration() > window.slowestThreshold.get()) {
+      int fastestIndex = 0;
+      RequestSample fastest = null;
+      for (int i = 0; i < slowest.length(); i++) {
+        RequestSample current = slowest.get(i);
+        if (current == null) {
+          fastestIndex = i;
+          fastest = null;
+          break;
+        }
+        if (fastest == null || current.getDuration() < fastest.getDuration()) {
+          fastestIndex = i;
+          fastest = current;
+        }
+      }
+
+      if (fastest != null && fastest.getDuration() >= sample.getDuration()) {
+        updateThreshold(window);
+        return;
+      }
+      if (slowest.compareAndSet(fastestIndex, fastest, sample)) {
+        updateThreshold(window);
+        return;
+      }
+      // Another request replaced the sample concurrently, look for the fastest again.
+    }
+  }
+
+  /**
+   * Publish the duration of the fastest sample kept. The samples are only replaced by slower
+   * ones, so a stale threshold is lower than the actual one and at worst causes an extra scan.
+   */
+  private static void updateThreshold(Window window) {
+    long threshold = Long.MAX_VALUE;
+    for (int i = 0; i < window.slowest.length(); i++) {
+      RequestSample current = window.slowest.get(i);
+      if (current == null) {
+        threshold = -1;
+        break;
+      }
+      threshold = Math.min(threshold, current.getDuration());
+    }
+    window.slowestThreshold.set(threshold);
+  }
+
+  /**
+   * Return the slowest requests of the current and the previous window, the slowest first.
+   */
+  public List<RequestSample> getSlowest() {
+    Window current = currentWindow();
+    List<RequestSample> samples = snapshot(current.slowest);
+    Window previous = current.previous;
+    if (previous != null) {
+      samples.addAll(snapshot(previous.slowest));
+    }
+    samples.sort(Comparator.comparingLong(RequestSample::getDuration).reversed());
+    return samples.size() > capacity ? new ArrayList<>(samples.subList(0, capacity)) : samples;
+  }
+
+  /**
+   * Forget all the samples.
+   */
+  public void reset() {
+    window.set(new Window(clock.getAsLong() / windowMillis, capacity, null));
+    for (int i = 0; i < failures.length(); i++) {
+      failures.set(i, null);
+    }
+  }
+
+  /**
+   * Return the most recent failed requests, the most recent first.
+   */
+  public List<RequestSample> getRecentFailures() {
+    List<RequestSample> samples = snapshot(failures);
+    samples.sort(Comparator.comparingLong(RequestSample::getTimestamp).reversed());
+    return samples;
+  }
+
+  private static List<RequestSample> snapshot(AtomicReferenceArray<RequestSample> array) {
+    List<RequestSample> samples = new ArrayList<>(array.length());
+    for (int i = 0; i < array.length(); i++) {
+      RequestSample sample = array.get(i);
+      if (sample != null) {
+        samples.add(sample);
+      }
+    }
+    return samples;
+  }
+
+  /**
+   * Render the samples as a plain text page.
+   */
+  public String render() {
+    StringBuilder page = new StringBuilder(4096);
+    page.append("Slowest requests of the last ").append(windowMillis / 1000)
+        .append(" to ").append(2 * windowMillis / 1000).append(" seconds\n\n");
+    for (RequestSample sample : getSlowest()) {
+      sample.appendTo(page);
+    }
+    page.append("\nRecent failed requests\n\n");
+    for (RequestSample sample : getRecentFailures()) {
+      sample.appendTo(page);
+    }
+    return page.toString();
+  }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.trace;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Duration of the phases of the request being processed by the current thread.
+ *
+ * <p>The phases, and the size of the session loaded and saved, are recorded by the valves and
+ * the session store only while a {@link ServerTimingValve} or a {@link TraceValve} keeping
+ * request samples is processing the request, otherwise recording is a no-op. Each request thread
+ * reuses the same instance, so recording does not allocate.</p>
+ */
+public final class RequestTimings {
+
+  /**
+   * The phases reported in the {@code Server-Timing} header.
+   */
+  public enum Phase {
+    SESSION_LOAD("session-load"),
+    APPLICATION("app"),
+    SESSION_SAVE("session-save"),
+    TOTAL("total");
+
+    private final String metricName;
+
+    Phase(String metricName) {
+      this.metricName = metricName;
+    }
+
+    public String getMetricName() {
+      return metricName;
+    }
+  }
+
+  private static final ThreadLocal<RequestTimings> current =
+      ThreadLocal.withInitial(RequestTimings::new);
+
+  private final long[] durations = new long[Phase.values().length];
+  private final boolean[] recorded = new boolean[Phase.values().length];
+  private long sessionLoadBytes;
+  private long sessionSaveBytes;
+  private boolean active;
+
+  private RequestTimings() {}
+
+  /**
+   * Start collecting the timings of the request processed by the current thread.
+   */
+  static RequestTimings begin() {
+    RequestTimings timings = current.get();
+    for (int i = 0; i < timings.durations.length; i++) {
+      timings.durations[i] = 0;
+      timings.recorded[i] = false;
+    }
+    timings.sessionLoadBytes = 0;
+    timings.sessionSaveBytes = 0;
+    timings.active = true;
+    return timings;
+  }
+
+  /**
+   * Stop collecting the timings of the current thread.
+   */
+  void end() {
+    active = false;
+  }
+
+  /**
+   * Return the timings of the request processed by the current thread, or null if they are not
+   * being collected.
+   */
+  public static RequestTimings current() {
+    RequestTimings timings = current.get();
+    return timings.active ? timings : null;
+  }
+
+  /**
+   * Return the timings of the current thread even if they are no longer being collected, they
+   * remain available until the next request processed by the thread begins.
+   */
+  static RequestTimings ofCurrentThread() {
+    return current.get();
+  }
+
+  /**
+   * Add the time elapsed since {@code startNanos} to a phase of the current request.
+   * @param phase The phase which just ended.
+   * @param startNanos The value of {@link System#nanoTime()} when the phase started.
+   */
+  public static void record(Phase phase, long startNanos) {
+    RequestTimings timings = current();
+    if (timings != null) {
+      timings.add(phase, System.nanoTime() - startNanos);
+    }
+  }
+
+  /**
+   * Add the size of the serialized attributes loaded or saved to the current request.
+   * @param phase {@link Phase#SESSION_LOAD} or {@link Phase#SESSION_SAVE}.
+   * @param bytes The size of the serialized attributes.
+   */
+  public static void recordSessionSize(Phase phase, long bytes) {
+    RequestTimings timings = current();
+    if (timings == null) {
+      return;
+    }
+    if (phase == Phase.SESSION_LOAD) {
+      timings.sessionLoadBytes += bytes;
+    } else if (phase == Phase.SESSION_SAVE) {
+      timings.sessionSaveBytes += bytes;
+    }
+  }
+
+  public long getSessionLoadBytes() {
+    return sessionLoadBytes;
+  }
+
+  public long getSessionSaveBytes() {
+    return sessionSaveBytes;
+  }
+
+  void add(Phase phase, long nanos) {
+    durations[phase.ordinal()] += nanos;
+    recorded[phase.ordinal()] = true;
+  }
+
+  public boolean isRecorded(Phase phase) {
+    return recorded[phase.ordinal()];
+  }
+
+  /**
+   * Return the duration of a phase in nanoseconds.
+   *
+   * <p>The session is loaded lazily while the application runs, so the loading time is excluded
+   * from the application phase.</p>
+   */
+  public long getDuration(Phase phase) {
+    long duration = durations[phase.ordinal()];
+    if (phase == Phase.APPLICATION) {
+      duration = Math.max(0, duration - durations[Phase.SESSION_LOAD.ordinal()]);
+    }
+    return duration;
+  }
+
+  /**
+   * Format the recorded phases as the value of a {@code Server-Timing} header, e.g.
+   * {@code session-load;dur=1.2, app;dur=10.5, total;dur=12.0}.
+   */
+  public String toServerTimingHeader() {
+    StringBuilder header = new StringBuilder(96);
+    for (Phase phase : Phase.values()) {
+      if (!recorded[phase.ordinal()]) {
+        continue;
+      }
+      if (header.length() > 0) {
+        header.append(", ");
+      }
+      long micros = TimeUnit.NANOSECONDS.toMicros(getDuration(phase));
+      header.append(phase.getMetricName())
+          .append(";dur=")
+          .append(micros / 1000)
+          .append('.')
+          .append(micros % 1000 / 100);
+    }
+    return header.toString();
+  }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.trace;
+
+/**
+ * Labels describing the resources consumed by the thread during a span.
+ */
+public enum ResourceLabels {
+  CPU_TIME("/jvm/thread/cpu_time_us"),
+  ALLOCATED_BYTES("/jvm/thread/allocated_bytes");
+
+  private final String value;
+
+  ResourceLabels(String value) {
+    this.value = value;
+  }
+
+  public String getValue() {
+    return this.value;
+  }
+}
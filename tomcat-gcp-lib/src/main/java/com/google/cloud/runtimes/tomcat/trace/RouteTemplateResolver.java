@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.trace;
+
+import com.google.cloud.runtimes.tomcat.util.UriPatternTrie;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.mapper.MappingData;
+import org.apache.catalina.servlet4preview.http.MappingMatch;
+import org.apache.tomcat.util.buf.MessageBytes;
+
+/**
+ * Resolve the route template of a request (e.g. {@code /user/{id}} for {@code /user/123}),
+ * used as span name to keep the number of distinct span names low.
+ *
+ * <p>The template is taken from the first configured pattern matching the request URI, then
+ * optionally from the servlet mapping selected by Tomcat. The templates are computed once and
+ * reused, so resolving the template of a request does not allocate.</p>
+ */
+public class RouteTemplateResolver {
+
+  private final UriPatternTrie<String> templates = new UriPatternTrie<>();
+
+  private final boolean useServletMapping;
+
+  /**
+   * The template derived from the servlet mapping, cached for each servlet.
+   */
+  private final ConcurrentMap<Wrapper, ServletRoute> servletRoutes = new ConcurrentHashMap<>();
+
+  /**
+   * Create a new resolver.
+   * @param patterns The route templates, such as {@code /user/{id}}, matched against the URI.
+   * @param useServletMapping Whether to fall back to the servlet mapping when no template
+   *                          matches.
+   */
+  public RouteTemplateResolver(Iterable<String> patterns, boolean useServletMapping) {
+    for (String pattern : patterns) {
+      templates.put(pattern, pattern);
+    }
+    this.useServletMapping = useServletMapping;
+  }
+
+  /**
+   * Return the route template of the request, or its URI if no template can be resolved.
+   */
+  public String resolve(Request request) {
+    String uri = request.getRequestURI();
+    String template = templates.match(uri);
+
+    if (template == null && useServletMapping) {
+      template = fromServletMapping(request);
+    }
+
+    return template != null ? template : uri;
+  }
+
+  /**
+   * Derive the template from the mapping of the request to a servlet, e.g. {@code /api/*} or
+   * {@code *.jsp}.
+   */
+  private String fromServletMapping(Request request) {
+    MappingData mappingData = request.getMappingData();
+    if (mappingData == null || mappingData.wrapper == null || mappingData.matchType == null) {
+      return null;
+    }
+
+    MappingMatch match = mappingData.matchType;
+    if (match == MappingMatch.EXACT || match == MappingMatch.UNKNOWN) {
+      // Exact mappings are already bounded by the number of mappings declared by the application.
+      return null;
+    }
+
+    ServletRoute route = servletRoutes.get(mappingData.wrapper);
+    if (route == null || !route.matches(mappingData)) {
+      route = new ServletRoute(mappingData);
+      servletRoutes.put(mappingData.wrapper, route);
+    }
+    return route.template;
+  }
+
+  /**
+   * The template associated with the last mapping seen for a servlet.
+   */
+  private static final class ServletRoute {
+    private final MappingMatch match;
+    private final String wrapperPath;
+    private final String extension;
+    private final String template;
+
+    ServletRoute(MappingData mappingData) {
+      this.match = mappingData.matchType;
+      this.wrapperPath = mappingData.wrapperPath.toString();
+      String contextPath = mappingData.contextPath.toString();
+
+      int extensionIndex = wrapperPath.lastIndexOf('.');
+      this.extension = extensionIndex >= 0 ? wrapperPath.substring(extensionIndex) : "";
+
+      switch (match) {
+        case PATH:
+          template = contextPath + wrapperPath + "/*";
+          break;
+        case EXTENSION:
+          template = contextPath + "/*" + extension;
+          break;
+        default:
+          template = contextPath + "/";
+          break;
+      }
+    }
+
+    /**
+     * Verify that the mapping still leads to the same template, a servlet can have several
+     * path or extension mappings.
+     */
+    boolean matches(MappingData mappingData) {
+      if (match != mappingData.matchType) {
+        return false;
+      }
+      switch (match) {
+        case PATH:
+          return mappingData.wrapperPath.equals(wrapperPath);
+        case EXTENSION:
+          return endsWith(mappingData.wrapperPath, extension);
+        default:
+          return true;
+      }
+    }
+
+    private static boolean endsWith(MessageBytes path, String suffix) {
+      if (path.getType() == MessageBytes.T_CHARS) {
+        return path.getCharChunk().endsWith(suffix);
+      }
+      return path.toString().endsWith(suffix);
+    }
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.trace;
+
+import com.google.cloud.runtimes.tomcat.trace.RequestTimings.Phase;
+import java.io.IOException;
+import javax.servlet.ServletException;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.ValveBase;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * This valve adds a {@code Server-Timing} header to the responses, with the time spent loading
+ * the session, running the application, saving the session and processing the whole request.
+ *
+ * <p>The phases are recorded by the {@code DatastoreValve} and {@code DatastoreStore} when the
+ * distributed sessions are enabled. This valve must be the first of the pipeline so that the
+ * total includes the other valves.</p>
+ *
+ * <p>The header can only be added if the response is not committed yet, which is the case
+ * unless the application flushed the response or exceeded the size of the response buffer.</p>
+ */
+public class ServerTimingValve extends ValveBase {
+
+  public static final String SERVER_TIMING_HEADER = "Server-Timing";
+
+  private static final Log log = LogFactory.getLog(ServerTimingValve.class);
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Collect the timings of the request and add them to the response.</p>
+   */
+  @Override
+  public void invoke(Request request, Response response) throws IOException, ServletException {
+    RequestTimings timings = RequestTimings.begin();
+    long start = System.nanoTime();
+
+    try {
+      getNext().invoke(request, response);
+    } finally {
+      if (!timings.isRecorded(Phase.APPLICATION)) {
+        timings.add(Phase.APPLICATION, System.nanoTime() - start);
+      }
+      timings.add(Phase.TOTAL, System.nanoTime() - start);
+      timings.end();
+
+      if (!response.isCommitted()) {
+        response.addHeader(SERVER_TIMING_HEADER, timings.toServerTimingHeader());
+      } else {
+        log.debug("Server-Timing header not added, the response is already committed");
+      }
+    }
+  }
+}
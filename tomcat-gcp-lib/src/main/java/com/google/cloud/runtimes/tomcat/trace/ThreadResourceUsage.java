@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.trace;
+
+import com.google.cloud.trace.core.Labels;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * A snapshot of the CPU time and of the bytes allocated by the current thread, used to annotate a
+ * span with the resources consumed since the snapshot.
+ *
+ * <p>The counters are read from the {@link ThreadMXBean}, the allocated bytes are only available
+ * on JVMs exposing {@code com.sun.management.ThreadMXBean}. A counter which is not supported or
+ * disabled is not reported.</p>
+ */
+public final class ThreadResourceUsage {
+
+  private static final ThreadMXBean threadMxBean = ManagementFactory.getThreadMXBean();
+
+  private final long cpuTime;
+  private final long allocatedBytes;
+
+  private ThreadResourceUsage(long cpuTime, long allocatedBytes) {
+    this.cpuTime = cpuTime;
+    this.allocatedBytes = allocatedBytes;
+  }
+
+  /**
+   * Capture the counters of the current thread.
+   */
+  public static ThreadResourceUsage snapshot() {
+    return new ThreadResourceUsage(currentCpuTime(), currentAllocatedBytes());
+  }
+
+  /**
+   * Return the CPU time of the current thread in nanoseconds, or -1 if not available.
+   */
+  static long currentCpuTime() {
+    if (!threadMxBean.isCurrentThreadCpuTimeSupported() || !threadMxBean.isThreadCpuTimeEnabled()) {
+      return -1;
+    }
+    return threadMxBean.getCurrentThreadCpuTime();
+  }
+
+  /**
+   * Return the number of bytes allocated by the current thread, or -1 if not available.
+   */
+  static long currentAllocatedBytes() {
+    if (!(threadMxBean instanceof com.sun.management.ThreadMXBean)) {
+      return -1;
+    }
+    com.sun.management.ThreadMXBean sunThreadMxBean =
+        (com.sun.management.ThreadMXBean) threadMxBean;
+    if (!sunThreadMxBean.isThreadAllocatedMemorySupported()
+        || !sunThreadMxBean.isThreadAllocatedMemoryEnabled()) {
+      return -1;
+    }
+    return sunThreadMxBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  /**
+   * Add the CPU time (in microseconds) and the bytes allocated by the current thread since the
+   * snapshot to the labels.
+   */
+  public void annotate(Labels.Builder labels) {
+    if (cpuTime >= 0) {
+      long now = currentCpuTime();
+      if (now >= 0) {
+        labels.add(ResourceLabels.CPU_TIME.getValue(), Long.toString((now - cpuTime) / 1000));
+      }
+    }
+    if (allocatedBytes >= 0) {
+      long now = currentAllocatedBytes();
+      if (now >= 0) {
+        labels.add(ResourceLabels.ALLOCATED_BYTES.getValue(),
+            Long.toString(now - allocatedBytes));
+      }
+    }
+  }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.trace;
+
+import com.google.devtools.cloudtrace.v1.Traces;
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Destination of the spans recorded by the {@code TraceValve}.
+ *
+ * <p>Exporters receive batches assembled by {@link BatchingTraceConsumer}, they are always called
+ * from a single background thread and never from the request threads.</p>
+ */
+public interface TraceExporter extends Closeable {
+
+  /**
+   * Send a batch of spans to the destination.
+   * @param traces The batch of traces, each one contains the spans of a single trace.
+   * @throws IOException If the batch could not be exported, the spans are then counted as dropped.
+   */
+  void export(Traces traces) throws IOException;
+
+  /**
+   * Release the resources used by the exporter, no batch is exported after this call.
+   */
+  @Override
+  default void close() throws IOException {}
+}
@@ -17,6 +17,10 @@
 package com.google.cloud.runtimes.tomcat.trace;
 
 import com.google.cloud.ServiceOptions;
+import com.google.cloud.runtimes.tomcat.jfr.FlightRecorderEvents;
+import com.google.cloud.runtimes.tomcat.jfr.FlightRecorderEvents.Type;
+import com.google.cloud.runtimes.tomcat.trace.RequestTimings.Phase;
+import com.google.cloud.runtimes.tomcat.util.BoundedRingBuffer.OverflowPolicy;
 import com.google.cloud.trace.Trace;
 import com.google.cloud.trace.Tracer;
 import com.google.cloud.trace.core.Labels;
@@ -24,12 +28,20 @@ import com.google.cloud.trace.core.SpanContext;
 import com.google.cloud.trace.core.SpanContextFactory;
 import com.google.cloud.trace.core.SpanContextHandle;
 import com.google.cloud.trace.core.TraceContext;
-import com.google.cloud.trace.service.TraceGrpcApiService;
 import com.google.cloud.trace.service.TraceService;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
 import com.google.common.net.HttpHeaders;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 import javax.servlet.ServletException;
 
 import org.apache.catalina.LifecycleException;
@@ -42,6 +54,15 @@ import org.apache.juli.logging.LogFactory;
 
 /**
  * This valve sends information about the requests to the Stackdriver Trace service.
+ *
+ * <p>The spans are buffered by a {@link BatchingTraceConsumer} and sent in batches by a
+ * {@link TraceExporter}, which can also write them to memory or to a local file to test the
+ * tracing offline.</p>
+ *
+ * <p>The slowest and the most recent failed requests are also kept in memory by a
+ * {@link RequestSampleRecorder}, and can be served on {@code debugPath} to the clients presenting
+ * {@code debugToken} or connecting from {@code debugAllowedAddresses} while the exported traces
+ * are not yet available.</p>
  */
 public class TraceValve extends ValveBase {
 
@@ -50,8 +71,15 @@ public class TraceValve extends ValveBase {
    */
   private static final String X_CLOUD_TRACE_HEADER = SpanContextFactory.headerKey();
 
+  /**
+   * Header carrying the shared secret required to read the debug page.
+   */
+  static final String DEBUG_TOKEN_HEADER = "X-Debug-Token";
+
   private static final Log log = LogFactory.getLog(TraceValve.class);
 
+  private static final int DEFAULT_SCHEDULED_DELAY = 15;
+
   private TraceService traceService;
 
   /**
@@ -59,6 +87,79 @@ public class TraceValve extends ValveBase {
    */
   private Integer traceScheduledDelay;
 
+  /**
+   * Maximum number of traces waiting to be exported.
+   */
+  private int traceBufferSize = 8192;
+
+  /**
+   * Number of traces triggering an export before the end of the scheduled delay.
+   */
+  private int traceBatchSize = 512;
+
+  /**
+   * Which traces to discard when the buffer is full, see {@link OverflowPolicy}.
+   */
+  private String traceOverflowPolicy = OverflowPolicy.DROP_NEWEST.name();
+
+  /**
+   * Destination of the traces: {@code stackdriver}, {@code memory} or {@code file}.
+   */
+  private String traceExporter = "stackdriver";
+
+  /**
+   * File receiving the traces when the {@code file} exporter is selected.
+   */
+  private String traceExportFile;
+
+  /**
+   * Semicolon-separated list of route templates, such as {@code /user/{id}}, used as span names.
+   */
+  private String routeTemplates;
+
+  /**
+   * Whether to name the spans after the servlet mapping when no route template matches.
+   */
+  private boolean spanNameFromServletMapping = false;
+
+  private RouteTemplateResolver routeTemplateResolver;
+
+  /**
+   * Whether to annotate the spans with the CPU time and the bytes allocated by the thread.
+   */
+  private boolean traceResourceUsage = false;
+
+  /**
+   * Number of slow requests and of failed requests kept in memory, 0 to disable.
+   */
+  private int requestSampleSize = 32;
+
+  /**
+   * Duration in seconds of the windows of the slowest requests, the current and the previous
+   * window are kept.
+   */
+  private int requestSampleWindow = 60;
+
+  /**
+   * Path serving the requests kept in memory, only to the clients presenting {@code debugToken}
+   * or connecting from {@code debugAllowedAddresses}. Disabled if empty.
+   */
+  private String debugPath;
+
+  /**
+   * Shared secret expected in the header {@link #DEBUG_TOKEN_HEADER} of the debug requests.
+   */
+  private String debugToken;
+
+  /**
+   * Regular expression matched against the remote address of the debug requests.
+   */
+  private String debugAllowedAddresses;
+
+  private Pattern debugAllowedAddressPattern;
+
+  private RequestSampleRecorder requestSampleRecorder;
+
   /**
    * {@inheritDoc}
    *
@@ -68,11 +169,83 @@ public class TraceValve extends ValveBase {
   protected void initInternal() throws LifecycleException {
     super.initInternal();
     initTraceService();
+    initRouteTemplateResolver();
+    initRequestSampleRecorder();
+    initDebugPage();
+  }
+
+  /**
+   * The debug page is not served at all unless a credential is configured: behind a proxy or a
+   * sidecar every request arrives through the loopback interface.
+   */
+  @VisibleForTesting
+  void initDebugPage() throws LifecycleException {
+    try {
+      debugAllowedAddressPattern = Strings.isNullOrEmpty(debugAllowedAddresses)
+          ? null : Pattern.compile(debugAllowedAddresses);
+    } catch (PatternSyntaxException e) {
+      throw new LifecycleException("Invalid debug allowed addresses: " + debugAllowedAddresses,
+          e);
+    }
+    if (!Strings.isNullOrEmpty(debugPath) && Strings.isNullOrEmpty(debugToken)
+        && debugAllowedAddressPattern == null) {
+      log.warn("The debug page " + debugPath + " is disabled, it requires debugToken or "
+          + "debugAllowedAddresses");
+    }
+  }
+
+  @VisibleForTesting
+  void initRequestSampleRecorder() {
+    requestSampleRecorder = requestSampleSize > 0
+        ? new RequestSampleRecorder(requestSampleSize, requestSampleWindow * 1000L) : null;
+  }
+
+  @VisibleForTesting
+  void initRouteTemplateResolver() throws LifecycleException {
+    try {
+      Iterable<String> templates = Splitter.on(';').trimResults().omitEmptyStrings()
+          .split(Strings.nullToEmpty(routeTemplates));
+      routeTemplateResolver = new RouteTemplateResolver(templates, spanNameFromServletMapping);
+    } catch (IllegalArgumentException e) {
+      throw new LifecycleException("Invalid route template", e);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Export the buffered traces and release the exporter.</p>
+   */
+  @Override
+  protected void destroyInternal() throws LifecycleException {
+    if (traceService instanceof Closeable) {
+      try {
+        ((Closeable) traceService).close();
+      } catch (IOException e) {
+        log.warn("An error occurred while closing the trace exporter", e);
+      }
+    }
+    super.destroyInternal();
   }
 
   @VisibleForTesting
-  TraceGrpcApiService.Builder getTraceService() {
-    return TraceGrpcApiService.builder();
+  TraceExporter createExporter(String projectId) throws IOException {
+    switch (traceExporter) {
+      case "stackdriver":
+        if (projectId == null) {
+          throw new IOException("The project id is required to export traces to Stackdriver");
+        }
+        return new GrpcTraceExporter(projectId);
+      case "memory":
+        return new InMemoryTraceExporter();
+      case "file":
+        if (Strings.isNullOrEmpty(traceExportFile)) {
+          throw new IOException("The file exporter requires the property traceExportFile");
+        }
+        return new FileTraceExporter(Paths.get(traceExportFile));
+      default:
+        throw new IOException("Unknown trace exporter: " + traceExporter);
+    }
   }
 
   @VisibleForTesting
@@ -81,19 +254,28 @@ public class TraceValve extends ValveBase {
     if (traceScheduledDelay != null && traceScheduledDelay <= 0) {
       throw new LifecycleException("The delay for trace must be greater than 0");
     }
+    if (traceBufferSize <= 0 || traceBatchSize <= 0) {
+      throw new LifecycleException("The trace buffer and batch sizes must be greater than 0");
+    }
 
+    OverflowPolicy overflowPolicy;
     try {
-      String projectId = ServiceOptions.getDefaultProjectId();
-      TraceGrpcApiService.Builder traceServiceBuilder = getTraceService()
-          .setProjectId(projectId);
+      overflowPolicy = OverflowPolicy.valueOf(traceOverflowPolicy);
+    } catch (IllegalArgumentException e) {
+      throw new LifecycleException("Unknown trace overflow policy: " + traceOverflowPolicy, e);
+    }
 
-      if (traceScheduledDelay != null) {
-        traceServiceBuilder.setScheduledDelay(traceScheduledDelay);
-      }
+    try {
+      String projectId = ServiceOptions.getDefaultProjectId();
+      long delay = TimeUnit.SECONDS.toMillis(
+          traceScheduledDelay != null ? traceScheduledDelay : DEFAULT_SCHEDULED_DELAY);
+      BatchingTraceConsumer consumer = new BatchingTraceConsumer(createExporter(projectId),
+          traceBufferSize, traceBatchSize, delay, overflowPolicy);
 
-      traceService = traceServiceBuilder.build();
+      traceService = new ExportingTraceService(projectId != null ? projectId : "", consumer);
       Trace.init(traceService);
-      log.info("Trace service initialized for project: " + projectId);
+      log.info("Trace service initialized for project: " + projectId + " using the exporter: "
+          + traceExporter);
     } catch (IOException e) {
       throw new LifecycleException(e);
     }
@@ -107,6 +289,12 @@ public class TraceValve extends ValveBase {
    */
   @Override
   public void invoke(Request request, Response response) throws IOException, ServletException {
+    if (isDebugRequest(request)) {
+      serveDebugPage(response);
+      return;
+    }
+
+    final Object event = FlightRecorderEvents.begin(Type.VALVE_INVOKE);
     Tracer tracer = traceService.getTracer();
     SpanContextHandle contextHandle = null;
 
@@ -119,23 +307,108 @@ public class TraceValve extends ValveBase {
       log.debug("Tracing request with header: " + request.getHeader(X_CLOUD_TRACE_HEADER));
     }
 
-    TraceContext context = tracer.startSpan(request.getRequestURI());
+    RequestTimings timings = null;
+    if (requestSampleRecorder != null && RequestTimings.current() == null) {
+      timings = RequestTimings.begin();
+    }
+    ThreadResourceUsage resourceUsage = traceResourceUsage ? ThreadResourceUsage.snapshot() : null;
+    String spanName = getSpanName(request);
+    TraceContext context = tracer.startSpan(spanName);
+    long start = System.nanoTime();
+    boolean failed = true;
+
+    try {
+      getNext().invoke(request, response);
+      failed = response.getStatus() >= 500;
+    } finally {
+      Labels labels = createLabels(request, response, resourceUsage);
+      tracer.annotateSpan(context, labels);
+      tracer.endSpan(context);
+      if (contextHandle != null) {
+        contextHandle.detach();
+      }
 
-    getNext().invoke(request, response);
+      if (timings != null && !timings.isRecorded(Phase.APPLICATION)) {
+        timings.add(Phase.APPLICATION, System.nanoTime() - start);
+      }
+      if (requestSampleRecorder != null) {
+        recordSample(spanName, context, System.nanoTime() - start, failed, labels);
+      }
+      if (timings != null) {
+        timings.end();
+      }
+      FlightRecorderEvents.commitValve(event, "TraceValve", request.getRequestedSessionId());
+    }
+  }
+
+  /**
+   * Keep the request in memory if it is one of the slowest or if it failed.
+   */
+  private void recordSample(String spanName, TraceContext context, long duration,
+      boolean failed, Labels labels) {
+    if (!requestSampleRecorder.isSampled(duration, failed)) {
+      return;
+    }
+    requestSampleRecorder.record(new RequestSample(System.currentTimeMillis(), spanName,
+        getTraceId(context), duration, failed, RequestTimings.current(), labels.getLabels()));
+  }
 
-    tracer.annotateSpan(context, createLabels(request, response));
+  private static String getTraceId(TraceContext context) {
+    if (context == null || context.getHandle() == null
+        || context.getHandle().getCurrentSpanContext() == null) {
+      return null;
+    }
+    return context.getHandle().getCurrentSpanContext().getTraceId().getApiString();
+  }
 
-    tracer.endSpan(context);
-    if (contextHandle != null) {
-      contextHandle.detach();
+  /**
+   * Verify whether the request targets the debug page and is allowed to read it, the other
+   * requests on the debug path are passed to the application.
+   *
+   * <p>The request must either carry {@code debugToken}, compared in constant time, or come from
+   * an address matching {@code debugAllowedAddresses}. The remote address may have been rewritten
+   * by the {@code RemoteIpValve} from headers set by the proxies.</p>
+   */
+  private boolean isDebugRequest(Request request) {
+    if (requestSampleRecorder == null || Strings.isNullOrEmpty(debugPath)
+        || !debugPath.equals(request.getRequestURI())) {
+      return false;
+    }
+    String token = request.getHeader(DEBUG_TOKEN_HEADER);
+    if (!Strings.isNullOrEmpty(debugToken) && token != null
+        && MessageDigest.isEqual(debugToken.getBytes(StandardCharsets.UTF_8),
+            token.getBytes(StandardCharsets.UTF_8))) {
+      return true;
     }
+    String remoteAddress = request.getRemoteAddr();
+    return debugAllowedAddressPattern != null && remoteAddress != null
+        && debugAllowedAddressPattern.matcher(remoteAddress).matches();
+  }
+
+  private void serveDebugPage(Response response) throws IOException {
+    response.setStatus(200);
+    response.setContentType("text/plain");
+    response.setCharacterEncoding("UTF-8");
+    response.getWriter().write(requestSampleRecorder.render());
+  }
 
+  /**
+   * Name the span after the route template of the request if it can be resolved, the raw URI is
+   * always available in the label {@link HttpLabels#HTTP_URL}.
+   */
+  private String getSpanName(Request request) {
+    if (routeTemplateResolver == null) {
+      return request.getRequestURI();
+    }
+    return routeTemplateResolver.resolve(request);
   }
 
   /**
-   * Create labels for Stackdriver trace with basic response and request info.
+   * Create labels for Stackdriver trace with basic response and request info, and the resources
+   * consumed by the thread if requested.
    */
-  private Labels createLabels(Request request, Response response) {
+  private Labels createLabels(Request request, Response response,
+      ThreadResourceUsage resourceUsage) {
     Labels.Builder labels = Labels.builder();
     this.annotateIfNotEmpty(labels, HttpLabels.HTTP_METHOD.getValue(), request.getMethod());
     this.annotateIfNotEmpty(labels, HttpLabels.HTTP_URL.getValue(), request.getRequestURI());
@@ -148,6 +421,9 @@ public class TraceValve extends ValveBase {
     this.annotateIfNotEmpty(labels, HttpLabels.HTTP_RESPONSE_SIZE.getValue(),
             response.getHeader(HttpHeaders.CONTENT_LENGTH));
     labels.add(HttpLabels.HTTP_STATUS_CODE.getValue(), Integer.toString(response.getStatus()));
+    if (resourceUsage != null) {
+      resourceUsage.annotate(labels);
+    }
     return labels.build();
   }
 
@@ -167,6 +443,122 @@ public class TraceValve extends ValveBase {
     this.traceScheduledDelay = traceScheduledDelay;
   }
 
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setTraceBufferSize(int traceBufferSize) {
+    this.traceBufferSize = traceBufferSize;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setTraceBatchSize(int traceBatchSize) {
+    this.traceBatchSize = traceBatchSize;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setTraceOverflowPolicy(String traceOverflowPolicy) {
+    this.traceOverflowPolicy = traceOverflowPolicy;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setTraceExporter(String traceExporter) {
+    this.traceExporter = traceExporter;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setTraceExportFile(String traceExportFile) {
+    this.traceExportFile = traceExportFile;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setRouteTemplates(String routeTemplates) {
+    this.routeTemplates = routeTemplates;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setSpanNameFromServletMapping(boolean spanNameFromServletMapping) {
+    this.spanNameFromServletMapping = spanNameFromServletMapping;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setTraceResourceUsage(boolean traceResourceUsage) {
+    this.traceResourceUsage = traceResourceUsage;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setRequestSampleSize(int requestSampleSize) {
+    this.requestSampleSize = requestSampleSize;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setRequestSampleWindow(int requestSampleWindow) {
+    this.requestSampleWindow = requestSampleWindow;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setDebugPath(String debugPath) {
+    this.debugPath = debugPath;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setDebugToken(String debugToken) {
+    this.debugToken = debugToken;
+  }
+
+  /**
+   * This property will be injected by Tomcat on startup.
+   */
+  public void setDebugAllowedAddresses(String debugAllowedAddresses) {
+    this.debugAllowedAddresses = debugAllowedAddresses;
+  }
+
+  public RequestSampleRecorder getRequestSampleRecorder() {
+    return requestSampleRecorder;
+  }
+
+  /**
+   * Return the number of spans sent by the exporter, exposed through JMX.
+   */
+  public long getExportedSpanCount() {
+    return traceService instanceof ExportingTraceService
+        ? ((ExportingTraceService) traceService).getConsumer().getExportedSpanCount() : 0;
+  }
+
+  /**
+   * Return the number of spans discarded because the buffer was full or the export failed,
+   * exposed through JMX.
+   */
+  public long getDroppedSpanCount() {
+    return traceService instanceof ExportingTraceService
+        ? ((ExportingTraceService) traceService).getConsumer().getDroppedSpanCount() : 0;
+  }
+
+  public TraceService getTraceService() {
+    return traceService;
+  }
+
   public void setTraceService(TraceService traceService) {
     this.traceService = traceService;
   }
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.util;
+
+import com.google.cloud.runtimes.tomcat.util.BoundedRingBuffer.OverflowPolicy;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Write elements as text from a single background thread, in batches.
+ *
+ * <p>The producers only enqueue the elements in a lock-free {@link BoundedRingBuffer}, they never
+ * format nor write. The writer thread formats up to {@code batchSize} elements in a reused buffer
+ * and writes them at once. When the buffer is full, elements are discarded according to the
+ * {@link OverflowPolicy} and counted, and the number of discarded elements is reported in the
+ * output once the writer catches up.</p>
+ *
+ * <p>This class only depends on the JDK, it is used by the logging handler loaded by the system
+ * class loader.</p>
+ *
+ * @param <E> The type of the elements written.
+ */
+public abstract class AsyncBatchWriter<E> implements Closeable {
+
+  /**
+   * Maximum time the writer thread waits for elements before checking for dropped elements.
+   */
+  private static final long IDLE_WAIT = TimeUnit.SECONDS.toNanos(1);
+
+  private final BoundedRingBuffer<E> buffer;
+  private final OverflowPolicy overflowPolicy;
+  private final int batchSize;
+  private final Writer writer;
+  private final Thread writerThread;
+  private final AtomicBoolean writerWaiting = new AtomicBoolean();
+
+  private final LongAdder droppedElements = new LongAdder();
+  private long reportedDroppedElements;
+
+  private volatile boolean closed;
+
+  /**
+   * Create a writer, its thread is started by {@link #start()}.
+   * @param threadName The name of the writer thread.
+   * @param writer The destination of the elements.
+   * @param bufferSize The maximum number of elements waiting to be written.
+   * @param batchSize The maximum number of elements written at once.
+   * @param overflowPolicy Which elements to discard when the buffer is full.
+   */
+  protected AsyncBatchWriter(String threadName, Writer writer, int bufferSize, int batchSize,
+      OverflowPolicy overflowPolicy) {
+    this.buffer = new BoundedRingBuffer<>(bufferSize);
+    this.batchSize = batchSize;
+    this.overflowPolicy = overflowPolicy;
+    this.writer = writer;
+    this.writerThread = new Thread(this::writeElements, threadName);
+    writerThread.setDaemon(true);
+  }
+
+  /**
+   * Start the writer thread.
+   */
+  public void start() {
+    writerThread.start();
+  }
+
+  /**
+   * Append the text representation of an element, including its line separator, to the batch.
+   */
+  protected abstract void format(E element, StringBuilder batch);
+
+  /**
+   * Append a line reporting that elements were discarded to the batch.
+   * @param droppedCount The number of elements discarded since the last report.
+   */
+  protected abstract void formatDropReport(long droppedCount, StringBuilder batch);
+
+  /**
+   * Report an error which occurred while formatting or writing the elements.
+   */
+  protected abstract void handleError(Exception error);
+
+  /**
+   * Enqueue an element without blocking.
+   * @return false if the element, or an older one, was discarded because the buffer was full.
+   */
+  public boolean offer(E element) {
+    if (closed) {
+      return false;
+    }
+
+    boolean accepted = buffer.offer(element, overflowPolicy,
+        evicted -> droppedElements.increment());
+    if (!accepted && overflowPolicy == OverflowPolicy.DROP_NEWEST) {
+      droppedElements.increment();
+    }
+    if (writerWaiting.get() && writerWaiting.compareAndSet(true, false)) {
+      LockSupport.unpark(writerThread);
+    }
+    return accepted;
+  }
+
+  /**
+   * Loop of the writer thread: write the elements in batches and wait for new elements when the
+   * buffer is empty.
+   */
+  private void writeElements() {
+    StringBuilder batch = new StringBuilder(16384);
+    while (!closed) {
+      if (!writeBatch(batch)) {
+        writerWaiting.set(true);
+        // Verify the buffer again, an element may have been added before the flag was visible
+        if (buffer.isEmpty() && !closed) {
+          LockSupport.parkNanos(this, IDLE_WAIT);
+        }
+        writerWaiting.set(false);
+        reportDroppedElements(batch);
+      }
+    }
+  }
+
+  /**
+   * Format and write up to {@code batchSize} elements.
+   * @return false if the buffer was empty.
+   */
+  private synchronized boolean writeBatch(StringBuilder batch) {
+    batch.setLength(0);
+    int count = 0;
+    E element;
+    while (count < batchSize && (element = buffer.poll()) != null) {
+      int length = batch.length();
+      try {
+        format(element, batch);
+      } catch (RuntimeException e) {
+        batch.setLength(length);
+        handleError(e);
+      }
+      count++;
+    }
+
+    if (count == 0) {
+      return false;
+    }
+    write(batch);
+    return true;
+  }
+
+  private void write(CharSequence content) {
+    if (content.length() == 0) {
+      return;
+    }
+    try {
+      writer.append(content);
+      writer.flush();
+    } catch (IOException e) {
+      handleError(e);
+    }
+  }
+
+  /**
+   * Write the number of elements dropped since the last report.
+   */
+  private synchronized void reportDroppedElements(StringBuilder batch) {
+    long dropped = droppedElements.sum();
+    if (dropped == reportedDroppedElements) {
+      return;
+    }
+    batch.setLength(0);
+    formatDropReport(dropped - reportedDroppedElements, batch);
+    reportedDroppedElements = dropped;
+    write(batch);
+  }
+
+  /**
+   * Write the elements currently buffered from the calling thread.
+   */
+  public void flush() {
+    StringBuilder batch = new StringBuilder();
+    while (writeBatch(batch)) {
+      // Continue until the buffer is empty
+    }
+  }
+
+  /**
+   * Stop the writer thread and write the remaining elements. The underlying writer is not closed.
+   */
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    LockSupport.unpark(writerThread);
+    try {
+      writerThread.join(TimeUnit.SECONDS.toMillis(5));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    flush();
+    reportDroppedElements(new StringBuilder());
+  }
+
+  /**
+   * Return the number of elements discarded because the buffer was full.
+   */
+  public long getDroppedCount() {
+    return droppedElements.sum();
+  }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.util;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * A bounded, lock-free, multi-producer multi-consumer queue backed by a ring buffer.
+ *
+ * <p>Each slot carries a sequence number indicating whether it is ready to be written or read,
+ * so producers and consumers only contend on a compare-and-set of their respective cursor.
+ * The capacity is rounded up to the next power of two.</p>
+ *
+ * @param <E> The type of the elements held in the buffer.
+ */
+public class BoundedRingBuffer<E> {
+
+  /**
+   * Behavior of {@link #offer(Object, OverflowPolicy)} when the buffer is full.
+   */
+  public enum OverflowPolicy {
+    /**
+     * Discard the element being offered.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Discard the oldest element of the buffer to make room for the element being offered.
+     */
+    DROP_OLDEST
+  }
+
+  private final int capacity;
+  private final int mask;
+  private final AtomicReferenceArray<E> elements;
+  private final AtomicLongArray sequences;
+
+  /**
+   * Position of the next slot to be written.
+   */
+  private final AtomicLong tail = new AtomicLong();
+
+  /**
+   * Position of the next slot to be read.
+   */
+  private final AtomicLong head = new AtomicLong();
+
+  /**
+   * Create a new buffer.
+   * @param requestedCapacity The minimal number of elements the buffer can hold.
+   */
+  public BoundedRingBuffer(int requestedCapacity) {
+    if (requestedCapacity <= 0 || requestedCapacity > (1 << 30)) {
+      throw new IllegalArgumentException("The capacity must be between 1 and 2^30");
+    }
+    this.capacity = requestedCapacity == 1 ? 1 : Integer.highestOneBit(requestedCapacity - 1) << 1;
+    this.mask = capacity - 1;
+    this.elements = new AtomicReferenceArray<>(capacity);
+    this.sequences = new AtomicLongArray(capacity);
+    for (int i = 0; i < capacity; i++) {
+      sequences.set(i, i);
+    }
+  }
+
+  /**
+   * Insert an element at the tail of the buffer if there is space available.
+   * @param element The element to insert, must not be null.
+   * @return false if the buffer is full.
+   */
+  public boolean offer(E element) {
+    if (element == null) {
+      throw new NullPointerException("Null elements are not supported");
+    }
+
+    long position = tail.get();
+    while (true) {
+      int index = (int) position & mask;
+      long difference = sequences.get(index) - position;
+      if (difference == 0) {
+        if (tail.compareAndSet(position, position + 1)) {
+          elements.lazySet(index, element);
+          sequences.lazySet(index, position + 1);
+          return true;
+        }
+        position = tail.get();
+      } else if (difference < 0) {
+        return false;
+      } else {
+        position = tail.get();
+      }
+    }
+  }
+
+  /**
+   * Insert an element at the tail of the buffer, applying the overflow policy if it is full.
+   * @param element The element to insert, must not be null.
+   * @param policy What to discard when the buffer is full.
+   * @return true if the element was inserted without discarding anything.
+   */
+  public boolean offer(E element, OverflowPolicy policy) {
+    return offer(element, policy, evicted -> { });
+  }
+
+  /**
+   * Insert an element at the tail of the buffer, applying the overflow policy if it is full.
+   * @param element The element to insert, must not be null.
+   * @param policy What to discard when the buffer is full.
+   * @param evicted Receives the older elements discarded to make room for the new one.
+   * @return true if the element was inserted without discarding anything.
+   */
+  public boolean offer(E element, OverflowPolicy policy, Consumer<? super E> evicted) {
+    if (offer(element)) {
+      return true;
+    }
+    if (policy == OverflowPolicy.DROP_NEWEST) {
+      return false;
+    }
+
+    // Evict the oldest elements until the new one fits, other producers may race for the slot.
+    while (!offer(element)) {
+      E oldest = poll();
+      if (oldest != null) {
+        evicted.accept(oldest);
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Retrieve and remove the element at the head of the buffer.
+   * @return The oldest element or null if the buffer is empty.
+   */
+  public E poll() {
+    long position = head.get();
+    while (true) {
+      int index = (int) position & mask;
+      long difference = sequences.get(index) - (position + 1);
+      if (difference == 0) {
+        if (head.compareAndSet(position, position + 1)) {
+          E element = elements.get(index);
+          elements.lazySet(index, null);
+          sequences.lazySet(index, position + capacity);
+          return element;
+        }
+        position = head.get();
+      } else if (difference < 0) {
+        return null;
+      } else {
+        position = head.get();
+      }
+    }
+  }
+
+  /**
+   * Remove up to {@code maxElements} elements and add them to the collection.
+   * @param collection The collection receiving the elements.
+   * @param maxElements The maximum number of elements to transfer.
+   * @return The number of elements transferred.
+   */
+  public int drainTo(Collection<? super E> collection, int maxElements) {
+    int count = 0;
+    E element;
+    while (count < maxElements && (element = poll()) != null) {
+      collection.add(element);
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Return an estimation of the number of elements in the buffer.
+   */
+  public int size() {
+    long size = tail.get() - head.get();
+    return (int) Math.max(0, Math.min(size, capacity));
+  }
+
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  public int capacity() {
+    return capacity;
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.util;
+
+/**
+ * Append JSON string literals to a buffer without intermediate allocations.
+ */
+public final class JsonStrings {
+
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  private JsonStrings() {}
+
+  /**
+   * Append a value as a quoted and escaped JSON string, or {@code null}.
+   * @param builder The buffer receiving the JSON string.
+   * @param value The value to append, may be null.
+   */
+  public static void appendQuoted(StringBuilder builder, CharSequence value) {
+    if (value == null) {
+      builder.append("null");
+      return;
+    }
+
+    builder.append('"');
+    appendEscaped(builder, value);
+    builder.append('"');
+  }
+
+  /**
+   * Append the escaped characters of a value, without quotes, to build a string literal from
+   * several values.
+   * @param builder The buffer receiving the escaped characters.
+   * @param value The value to escape.
+   */
+  public static void appendEscaped(StringBuilder builder, CharSequence value) {
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '"':
+          builder.append("\\\"");
+          break;
+        case '\\':
+          builder.append("\\\\");
+          break;
+        case '\n':
+          builder.append("\\n");
+          break;
+        case '\r':
+          builder.append("\\r");
+          break;
+        case '\t':
+          builder.append("\\t");
+          break;
+        default:
+          if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+            // Control characters and line separators would break the one entry per line format
+            builder.append("\\u")
+                .append(HEX_DIGITS[(c >> 12) & 0xF])
+                .append(HEX_DIGITS[(c >> 8) & 0xF])
+                .append(HEX_DIGITS[(c >> 4) & 0xF])
+                .append(HEX_DIGITS[c & 0xF]);
+          } else {
+            builder.append(c);
+          }
+          break;
+      }
+    }
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.util;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The process-wide writer of the JSON lines sent to stdout.
+ *
+ * <p>The logging handler and the access log valves of all the contexts write through the same
+ * writer, which writes each call under a single lock. The text is split at line boundaries in
+ * writes of at most {@link #PIPE_BUF} bytes, which a pipe writes atomically, so the lines are
+ * not interleaved with the output of other writers of stdout either, such as
+ * {@code System.out}. A line longer than {@link #PIPE_BUF} bytes is written alone.</p>
+ *
+ * <p>This class only depends on the JDK, it is used by the logging handler loaded by the system
+ * class loader.</p>
+ */
+public final class StandardOutput {
+
+  /**
+   * The largest write that POSIX guarantees to be atomic on a pipe.
+   */
+  public static final int PIPE_BUF = 4096;
+
+  private static final Writer INSTANCE = new LineWriter(new FileOutputStream(FileDescriptor.out));
+
+  private StandardOutput() {
+  }
+
+  /**
+   * Return the shared writer of stdout. Closing it has no effect.
+   */
+  public static Writer writer() {
+    return INSTANCE;
+  }
+
+  /**
+   * Encode the text in UTF-8 and write it in chunks of complete lines.
+   */
+  static final class LineWriter extends Writer {
+
+    private final OutputStream out;
+
+    LineWriter(OutputStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public void write(char[] buffer, int offset, int length) throws IOException {
+      byte[] bytes = new String(buffer, offset, length).getBytes(StandardCharsets.UTF_8);
+      synchronized (lock) {
+        int start = 0;
+        while (start < bytes.length) {
+          int end = Math.min(start + PIPE_BUF, bytes.length);
+          if (end < bytes.length) {
+            int lineEnd = lastIndexOf(bytes, start, end);
+            end = lineEnd >= 0 ? lineEnd + 1 : nextLineEnd(bytes, end);
+          }
+          out.write(bytes, start, end - start);
+          start = end;
+        }
+      }
+    }
+
+    private static int lastIndexOf(byte[] bytes, int start, int end) {
+      for (int i = end - 1; i >= start; i--) {
+        if (bytes[i] == '\n') {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    private static int nextLineEnd(byte[] bytes, int from) {
+      for (int i = from; i < bytes.length; i++) {
+        if (bytes[i] == '\n') {
+          return i + 1;
+        }
+      }
+      return bytes.length;
+    }
+
+    @Override
+    public void flush() throws IOException {
+      out.flush();
+    }
+
+    /**
+     * The writer is shared, it stays open.
+     */
+    @Override
+    public void close() throws IOException {
+      flush();
+    }
+  }
+}
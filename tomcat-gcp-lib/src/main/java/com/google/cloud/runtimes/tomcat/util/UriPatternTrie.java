@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.util;
+
+import java.util.Arrays;
+
+/**
+ * A trie of URI patterns, split on {@code /}, associating each pattern with a value.
+ *
+ * <p>A pattern segment is either a literal, a variable ({@code {name}} or {@code *}) matching
+ * exactly one non-empty segment, or {@code **} as the last segment, matching the remaining
+ * segments (possibly none). Literal segments take precedence over variables, which take
+ * precedence over {@code **}.</p>
+ *
+ * <p>The trie is built once, at configuration time. Matching walks the URI in place and does
+ * not allocate.</p>
+ *
+ * @param <V> The type of the values associated with the patterns.
+ */
+public class UriPatternTrie<V> {
+
+  private static final String WILDCARD = "**";
+
+  private final Node<V> root = new Node<>();
+  private int size;
+
+  private static final class Node<V> {
+    private String[] literals = new String[0];
+    private Node<V>[] literalChildren = newArray(0);
+    private Node<V> variableChild;
+    private V value;
+    private V wildcardValue;
+
+    @SuppressWarnings("unchecked")
+    private static <V> Node<V>[] newArray(int length) {
+      return (Node<V>[]) new Node<?>[length];
+    }
+
+    private Node<V> literalChild(String literal) {
+      for (int i = 0; i < literals.length; i++) {
+        if (literals[i].equals(literal)) {
+          return literalChildren[i];
+        }
+      }
+      literals = Arrays.copyOf(literals, literals.length + 1);
+      literalChildren = Arrays.copyOf(literalChildren, literalChildren.length + 1);
+      literals[literals.length - 1] = literal;
+      literalChildren[literalChildren.length - 1] = new Node<>();
+      return literalChildren[literalChildren.length - 1];
+    }
+  }
+
+  /**
+   * Associate a value with a pattern, replacing the value previously associated with it.
+   * @param pattern A pattern starting with {@code /}, such as {@code /user/{id}/**}.
+   * @param value The value returned when a URI matches the pattern.
+   */
+  public void put(String pattern, V value) {
+    if (pattern == null || !pattern.startsWith("/")) {
+      throw new IllegalArgumentException("A URI pattern must start with '/': " + pattern);
+    }
+
+    Node<V> node = root;
+    String[] segments = pattern.substring(1).split("/", -1);
+    for (int i = 0; i < segments.length; i++) {
+      String segment = segments[i];
+      if (WILDCARD.equals(segment)) {
+        if (i != segments.length - 1) {
+          throw new IllegalArgumentException("'**' must be the last segment of: " + pattern);
+        }
+        node.wildcardValue = value;
+        size++;
+        return;
+      } else if ("*".equals(segment) || (segment.startsWith("{") && segment.endsWith("}"))) {
+        if (node.variableChild == null) {
+          node.variableChild = new Node<>();
+        }
+        node = node.variableChild;
+      } else {
+        node = node.literalChild(segment);
+      }
+    }
+    node.value = value;
+    size++;
+  }
+
+  /**
+   * Find the value associated with the most specific pattern matching the URI.
+   * @param uri The path of a request, starting with {@code /}.
+   * @return The value or null if no pattern matches.
+   */
+  public V match(String uri) {
+    if (uri == null || uri.isEmpty() || uri.charAt(0) != '/') {
+      return null;
+    }
+    return match(root, uri, 1);
+  }
+
+  /**
+   * Match the remaining segments of the URI.
+   * @param start The index of the first character of the current segment, or -1 if the whole URI
+   *              has been consumed.
+   */
+  private static <V> V match(Node<V> node, String uri, int start) {
+    if (start < 0) {
+      return node.value != null ? node.value : node.wildcardValue;
+    }
+
+    int separator = uri.indexOf('/', start);
+    int end = separator < 0 ? uri.length() : separator;
+    int next = separator < 0 ? -1 : separator + 1;
+    int length = end - start;
+
+    for (int i = 0; i < node.literals.length; i++) {
+      String literal = node.literals[i];
+      if (literal.length() == length && uri.regionMatches(start, literal, 0, length)) {
+        V value = match(node.literalChildren[i], uri, next);
+        if (value != null) {
+          return value;
+        }
+      }
+    }
+
+    if (node.variableChild != null && length > 0) {
+      V value = match(node.variableChild, uri, next);
+      if (value != null) {
+        return value;
+      }
+    }
+
+    return node.wildcardValue;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+}
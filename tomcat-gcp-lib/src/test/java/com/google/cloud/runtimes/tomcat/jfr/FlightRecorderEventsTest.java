@@ -0,0 +1,116 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.jfr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.cloud.runtimes.tomcat.jfr.FlightRecorderEvents.Type;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.apache.catalina.Lifecycle;
+import org.apache.catalina.LifecycleEvent;
+import org.apache.catalina.core.StandardContext;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FlightRecorderEventsTest {
+
+  @Before
+  public void setUp() {
+    assertTrue(FlightRecorderEvents.isAvailable());
+  }
+
+  @Test
+  public void testNoEventWithoutRecording() {
+    assertNull(FlightRecorderEvents.begin(Type.SESSION_LOAD));
+    FlightRecorderEvents.commit(null, "session", 1, 1);
+    FlightRecorderEvents.commitValve(null, "valve", "session");
+  }
+
+  @Test
+  public void testSessionEventRecorded() throws Exception {
+    List<RecordedEvent> events = record(() -> {
+      Object event = FlightRecorderEvents.begin(Type.SESSION_SAVE);
+      assertNotNull(event);
+      FlightRecorderEvents.commit(event, "session-id", 3, 1024);
+    });
+
+    RecordedEvent event = findEvent(events, "com.google.cloud.runtimes.tomcat.SessionSave");
+    assertEquals("session-id".hashCode(), event.getInt("sessionIdHash"));
+    assertEquals(3, event.getInt("entityCount"));
+    assertEquals(1024, event.getLong("byteCount"));
+  }
+
+  @Test
+  public void testValveEventRecorded() throws Exception {
+    List<RecordedEvent> events = record(() -> {
+      Object event = FlightRecorderEvents.begin(Type.VALVE_INVOKE);
+      FlightRecorderEvents.commitValve(event, "TraceValve", null);
+    });
+
+    RecordedEvent event = findEvent(events, "com.google.cloud.runtimes.tomcat.ValveInvoke");
+    assertEquals("TraceValve", event.getString("valve"));
+    assertEquals(0, event.getInt("sessionIdHash"));
+  }
+
+  @Test
+  public void testListenerStartsAndStopsRecording() {
+    FlightRecorderListener listener = new FlightRecorderListener();
+    listener.setMaxAge(1);
+    listener.setMaxSize(1);
+    listener.lifecycleEvent(
+        new LifecycleEvent(new StandardContext(), Lifecycle.AFTER_START_EVENT, null));
+    assertTrue(listener.isRecording());
+    assertNotNull(FlightRecorderEvents.begin(Type.SESSION_LOAD));
+
+    listener.lifecycleEvent(
+        new LifecycleEvent(new StandardContext(), Lifecycle.BEFORE_STOP_EVENT, null));
+    assertFalse(listener.isRecording());
+  }
+
+  private static List<RecordedEvent> record(Runnable runnable) throws Exception {
+    Path file = Files.createTempFile("events", ".jfr");
+    try (Recording recording = new Recording()) {
+      recording.enable("com.google.cloud.runtimes.tomcat.SessionSave");
+      recording.enable("com.google.cloud.runtimes.tomcat.ValveInvoke");
+      recording.start();
+      runnable.run();
+      recording.stop();
+      recording.dump(file);
+      return RecordingFile.readAllEvents(file);
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  private static RecordedEvent findEvent(List<RecordedEvent> events, String name) {
+    List<RecordedEvent> matching = events.stream()
+        .filter(event -> event.getEventType().getName().equals(name))
+        .collect(Collectors.toList());
+    assertEquals(1, matching.size());
+    return matching.get(0);
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.cloud.runtimes.tomcat.util.BoundedRingBuffer.OverflowPolicy;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import org.junit.Test;
+
+public class AsyncJsonHandlerTest {
+
+  private static LogRecord record(Level level, String message) {
+    LogRecord record = new LogRecord(level, message);
+    record.setLoggerName("test.logger");
+    record.setMillis(1500000000123L);
+    return record;
+  }
+
+  @Test
+  public void testRecordsWrittenAsJsonLines() {
+    StringWriter output = new StringWriter();
+    AsyncJsonHandler handler = new AsyncJsonHandler(output, OverflowPolicy.DROP_NEWEST);
+
+    handler.publish(record(Level.INFO, "first"));
+    handler.publish(record(Level.SEVERE, "second \"quoted\""));
+    handler.close();
+
+    String[] lines = output.toString().split("\n");
+    assertEquals(2, lines.length);
+    assertEquals("{\"severity\":\"INFO\",\"timestamp\":{\"seconds\":1500000000,\"nanos\":123000000},"
+        + "\"logger\":\"test.logger\",\"thread\":" + record(Level.INFO, "").getThreadID()
+        + ",\"message\":\"first\"}", lines[0]);
+    assertTrue(lines[1].startsWith("{\"severity\":\"ERROR\""));
+    assertTrue(lines[1].endsWith("\"message\":\"second \\\"quoted\\\"\"}"));
+  }
+
+  @Test
+  public void testRecordsDroppedWhenBufferFull() throws Exception {
+    CountDownLatch writeStarted = new CountDownLatch(1);
+    CountDownLatch unblock = new CountDownLatch(1);
+    StringWriter output = new StringWriter() {
+      @Override
+      public StringWriter append(CharSequence content) {
+        writeStarted.countDown();
+        try {
+          unblock.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return super.append(content);
+      }
+    };
+    AsyncJsonHandler handler = new AsyncJsonHandler(output, OverflowPolicy.DROP_NEWEST);
+
+    handler.publish(record(Level.INFO, "blocking"));
+    writeStarted.await();
+    for (int i = 0; i < 10000; i++) {
+      handler.publish(record(Level.INFO, "record " + i));
+    }
+    assertEquals(10000 - 8192, handler.getDroppedRecordCount());
+
+    unblock.countDown();
+    handler.close();
+    assertTrue(output.toString().contains((10000 - 8192) + " log records dropped"));
+  }
+
+  @Test
+  public void testRecordsBelowLevelIgnored() throws IOException {
+    StringWriter output = new StringWriter();
+    AsyncJsonHandler handler = new AsyncJsonHandler(output, OverflowPolicy.DROP_NEWEST);
+    handler.setLevel(Level.INFO);
+
+    handler.publish(record(Level.FINE, "ignored"));
+    handler.close();
+
+    assertEquals("", output.toString());
+  }
+}
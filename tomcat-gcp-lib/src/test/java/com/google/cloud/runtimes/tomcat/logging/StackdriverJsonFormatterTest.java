@@ -0,0 +1,60 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import org.junit.Test;
+
+public class StackdriverJsonFormatterTest {
+
+  private final StackdriverJsonFormatter formatter = new StackdriverJsonFormatter();
+
+  @Test
+  public void testSeverity() {
+    assertEquals("ERROR", StackdriverJsonFormatter.severity(Level.SEVERE));
+    assertEquals("WARNING", StackdriverJsonFormatter.severity(Level.WARNING));
+    assertEquals("INFO", StackdriverJsonFormatter.severity(Level.INFO));
+    assertEquals("INFO", StackdriverJsonFormatter.severity(Level.CONFIG));
+    assertEquals("DEBUG", StackdriverJsonFormatter.severity(Level.FINEST));
+  }
+
+  @Test
+  public void testParametersAndEscaping() {
+    LogRecord record = new LogRecord(Level.INFO, "Hello {0}\n\tline\u2028end");
+    record.setParameters(new Object[] {"world"});
+
+    String json = formatter.format(record);
+
+    assertTrue(json.endsWith("\"message\":\"Hello world\\n\\tline\\u2028end\"}\n"));
+    assertEquals(1, json.split("\n").length);
+  }
+
+  @Test
+  public void testStackTraceAppendedToMessage() {
+    LogRecord record = new LogRecord(Level.SEVERE, "Failure");
+    record.setThrown(new IllegalStateException("boom"));
+
+    String json = formatter.format(record);
+
+    assertTrue(json.contains("\"message\":\"Failure\\njava.lang.IllegalStateException: boom"));
+    assertTrue(json.contains("\\tat com.google.cloud.runtimes.tomcat.logging"));
+  }
+}
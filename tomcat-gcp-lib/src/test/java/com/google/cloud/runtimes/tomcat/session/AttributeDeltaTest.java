@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.session;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+public class AttributeDeltaTest {
+
+  private static byte[] serialize(Object value) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(value);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static void assertRoundTrip(byte[] source, byte[] target) throws IOException {
+    assertArrayEquals(target, AttributeDelta.apply(source, AttributeDelta.diff(source, target)));
+  }
+
+  @Test
+  public void testAppendToList() throws Exception {
+    List<String> cart = new ArrayList<>();
+    for (int i = 0; i < 5000; i++) {
+      cart.add("item-" + i);
+    }
+    byte[] source = serialize(cart);
+    cart.add("item-new");
+    byte[] target = serialize(cart);
+
+    byte[] delta = AttributeDelta.diff(source, target);
+    assertTrue("Delta of " + delta.length + " bytes", delta.length < 100);
+    assertArrayEquals(target, AttributeDelta.apply(source, delta));
+  }
+
+  @Test
+  public void testRandomEdits() throws Exception {
+    Random random = new Random(42);
+    for (int run = 0; run < 50; run++) {
+      byte[] source = new byte[random.nextInt(4096)];
+      random.nextBytes(source);
+      byte[] target = source.clone();
+      for (int edit = 0; edit < 5 && target.length > 0; edit++) {
+        int position = random.nextInt(target.length);
+        byte[] inserted = new byte[random.nextInt(64)];
+        random.nextBytes(inserted);
+        byte[] edited = new byte[target.length + inserted.length];
+        System.arraycopy(target, 0, edited, 0, position);
+        System.arraycopy(inserted, 0, edited, position, inserted.length);
+        System.arraycopy(target, position, edited, position + inserted.length,
+            target.length - position);
+        target = edited;
+      }
+      assertRoundTrip(source, target);
+    }
+  }
+
+  @Test
+  public void testEdgeCases() throws Exception {
+    assertRoundTrip(new byte[0], new byte[0]);
+    assertRoundTrip(new byte[0], new byte[] {1, 2, 3});
+    assertRoundTrip(new byte[100], new byte[0]);
+    byte[] repeated = new byte[1000];
+    Arrays.fill(repeated, (byte) 7);
+    assertRoundTrip(repeated, Arrays.copyOf(repeated, 1500));
+  }
+
+  @Test(expected = IOException.class)
+  public void testCorruptedDelta() throws Exception {
+    byte[] source = new byte[256];
+    byte[] delta = AttributeDelta.diff(source, Arrays.copyOf(source, 300));
+    AttributeDelta.apply(new byte[10], delta);
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.session;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.Serializable;
+import org.junit.Test;
+
+public class AttributePoliciesTest {
+
+  @AttributePersistence(value = AttributePolicy.INTERVAL, interval = 30)
+  private static class Statistics implements Serializable {
+  }
+
+  @Test
+  public void testExactNameAndPrefixes() {
+    AttributePolicies policies = new AttributePolicies(
+        " cache.* = NEVER ; cache.user.*=on-change;cache.user.id=COMPRESSED;stats=INTERVAL:60;");
+    assertEquals(AttributePolicy.NEVER, policies.resolve("cache.items", "").policy);
+    assertEquals(AttributePolicy.ON_CHANGE, policies.resolve("cache.user.name", "").policy);
+    assertEquals(AttributePolicy.COMPRESSED, policies.resolve("cache.user.id", "").policy);
+    assertEquals(AttributePolicy.INTERVAL, policies.resolve("stats", "").policy);
+    assertEquals(60000, policies.resolve("stats", "").intervalMillis);
+    assertEquals(AttributePolicy.ALWAYS, policies.resolve("other", "").policy);
+  }
+
+  @Test
+  public void testAnnotation() {
+    AttributePolicies policies = new AttributePolicies("configured=ALWAYS");
+    AttributePolicies.Rule rule = policies.resolve("statistics", new Statistics());
+    assertEquals(AttributePolicy.INTERVAL, rule.policy);
+    assertEquals(30000, rule.intervalMillis);
+    // The configuration takes precedence over the annotation
+    assertEquals(AttributePolicy.ALWAYS, policies.resolve("configured", new Statistics()).policy);
+    assertEquals(AttributePolicy.ALWAYS, policies.resolve("null", null).policy);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownPolicy() {
+    new AttributePolicies("name=SOMETIMES");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testIntervalWithoutSeconds() {
+    new AttributePolicies("name=INTERVAL");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMissingPolicy() {
+    new AttributePolicies("name");
+  }
+}
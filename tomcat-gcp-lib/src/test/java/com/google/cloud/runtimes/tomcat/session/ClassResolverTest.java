@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+import org.junit.Test;
+
+public class ClassResolverTest {
+
+  /**
+   * A class loader counting the classes loaded through it.
+   */
+  private static class CountingClassLoader extends ClassLoader {
+    private final List<String> loaded = new ArrayList<>();
+
+    CountingClassLoader() {
+      super(ClassResolverTest.class.getClassLoader());
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+      loaded.add(name);
+      return super.loadClass(name, resolve);
+    }
+  }
+
+  private static byte[] serialize(Object value) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(value);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static Object deserialize(byte[] bytes, ClassResolver resolver) throws Exception {
+    try (ObjectInputStream in = new SessionObjectInputStream(new ByteArrayInputStream(bytes),
+        resolver)) {
+      return in.readObject();
+    }
+  }
+
+  @Test
+  public void testResolvedClassesAreCached() throws Exception {
+    CountingClassLoader classLoader = new CountingClassLoader();
+    ClassResolver resolver = new ClassResolver(classLoader, null);
+
+    assertSame(ArrayList.class, resolver.resolve("java.util.ArrayList"));
+    assertSame(ArrayList.class, resolver.resolve("java.util.ArrayList"));
+    assertEquals(Collections.singletonList("java.util.ArrayList"), classLoader.loaded);
+    assertSame(int.class, resolver.resolve("int"));
+  }
+
+  @Test
+  public void testAllowlist() {
+    ClassResolver resolver = new ClassResolver(getClass().getClassLoader(),
+        Pattern.compile("java\\.(lang|util)\\..*"));
+
+    assertTrue(resolver.isAllowed("java.lang.Integer"));
+    assertTrue(resolver.isAllowed("[Ljava.lang.String;"));
+    assertTrue(resolver.isAllowed("[[I"));
+    assertTrue(resolver.isAllowed("long"));
+    assertFalse(resolver.isAllowed("com.example.Gadget"));
+    assertFalse(resolver.isAllowed("[Lcom.example.Gadget;"));
+    assertFalse(resolver.isAllowed("com.example.Gadget"));
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    ClassResolver resolver = new ClassResolver(getClass().getClassLoader(),
+        Pattern.compile("java\\.(lang|util)\\..*"));
+    ArrayList<Object> value = new ArrayList<>();
+    value.add(5);
+    value.add(new String[] {"a", "b"});
+
+    List<?> restored = (List<?>) deserialize(serialize(value), resolver);
+    assertEquals(5, restored.get(0));
+    assertEquals("b", ((String[]) restored.get(1))[1]);
+  }
+
+  @Test(expected = InvalidClassException.class)
+  public void testRejectedClass() throws Exception {
+    ClassResolver resolver = new ClassResolver(getClass().getClassLoader(),
+        Pattern.compile("java\\.lang\\..*"));
+    deserialize(serialize(new ArrayList<>()), resolver);
+  }
+}
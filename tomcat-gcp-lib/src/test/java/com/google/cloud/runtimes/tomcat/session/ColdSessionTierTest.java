@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.FullEntity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.cloud.datastore.PathElement;
+import com.google.cloud.datastore.Transaction;
+import com.google.cloud.runtimes.tomcat.session.DatastoreSession.SessionMetadata;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.apache.catalina.Manager;
+import org.apache.catalina.core.StandardContext;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+public class ColdSessionTierTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Mock
+  private Datastore datastore;
+
+  @Mock
+  private Transaction transaction;
+
+  @Mock
+  private Manager manager;
+
+  private FileColdSessionStorage storage;
+  private ColdSessionTier tier;
+  private Key sessionKey;
+  private List<Entity> entities;
+
+  @Before
+  public void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    when(datastore.newTransaction()).thenReturn(transaction);
+    when(manager.getContext()).thenReturn(new StandardContext());
+    when(manager.willAttributeDistribute(anyString(), any())).thenReturn(true);
+    storage = new FileColdSessionStorage(folder.getRoot().toPath());
+    tier = new ColdSessionTier(datastore, storage);
+
+    sessionKey = new KeyFactory("project").setKind("kind").newKey("123");
+    DatastoreSession session = new DatastoreSession(manager);
+    session.setValid(true);
+    session.setAttribute("count", 5);
+    entities = session.saveToEntities(sessionKey, new KeyFactory("project").setKind("kind")
+        .addAncestor(PathElement.of("kind", "123")));
+  }
+
+  @Test
+  public void testEncoding() throws Exception {
+    assertEquals(entities, ColdSessionTier.decode(ColdSessionTier.encode(entities)));
+  }
+
+  @Test
+  public void testDemoteAndPromote() throws Exception {
+    Entity metadata = entities.get(1);
+    when(transaction.get(sessionKey)).thenReturn(metadata);
+    assertTrue(tier.demote(sessionKey, entities));
+
+    ArgumentCaptor<FullEntity> stubCaptor = ArgumentCaptor.forClass(FullEntity.class);
+    verify(transaction).put(stubCaptor.capture());
+    verify(transaction).delete(entities.get(0).getKey());
+    verify(transaction).commit();
+    Entity stub = (Entity) stubCaptor.getValue();
+    assertTrue(stub.getBoolean(SessionMetadata.COLD));
+    assertTrue(stub.getValue(SessionMetadata.LAST_ACCESSED_TIME).excludeFromIndexes());
+    assertNotNull(storage.read("123"));
+
+    List<Entity> stored = Arrays.asList(stub);
+    assertEquals(stub, ColdSessionTier.coldMetadata(sessionKey, stored));
+    assertFalse(tier.demote(sessionKey, stored));
+
+    when(transaction.get(sessionKey)).thenReturn(stub);
+    assertEquals(entities, tier.promote(sessionKey, stub, true));
+    verify(transaction).put(new FullEntity<?>[] {entities.get(0), entities.get(1)});
+    assertNull(storage.read("123"));
+    assertNull(tier.promote(sessionKey, stub, true));
+  }
+
+  @Test
+  public void testModifiedSessionNotDemoted() throws Exception {
+    when(transaction.get(sessionKey)).thenReturn(null);
+    assertFalse(tier.demote(sessionKey, entities));
+    verify(transaction, never()).commit();
+    verify(transaction, never()).put(any(FullEntity.class));
+    assertNull(storage.read("123"));
+  }
+
+  @Test
+  public void testSaveAfterDemotion() throws Exception {
+    Entity metadata = entities.get(1);
+    when(transaction.get(sessionKey)).thenReturn(metadata);
+    assertTrue(tier.demote(sessionKey, entities));
+    ArgumentCaptor<FullEntity> stubCaptor = ArgumentCaptor.forClass(FullEntity.class);
+    verify(transaction).put(stubCaptor.capture());
+    Entity stub = (Entity) stubCaptor.getValue();
+
+    Transaction saveTransaction = mock(Transaction.class);
+    when(datastore.newTransaction()).thenReturn(saveTransaction);
+    when(saveTransaction.get(sessionKey)).thenReturn(stub, stub, metadata);
+    tier.save(sessionKey, Collections.singletonList(metadata), new Key[0]);
+
+    InOrder order = inOrder(saveTransaction);
+    order.verify(saveTransaction).put(new FullEntity<?>[] {entities.get(0), entities.get(1)});
+    order.verify(saveTransaction).put(new FullEntity<?>[] {metadata});
+    verify(saveTransaction, times(2)).commit();
+    assertNull(storage.read("123"));
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.session;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import org.junit.Test;
+
+public class CookieSessionCodecTest {
+
+  private static final String OLD_KEY = "AAAAAAAAAAAAAAAAAAAAAA==";
+  private static final String NEW_KEY = "MDEyMzQ1Njc4OWFiY2RlZjAxMjM0NTY3ODlhYmNkZWY=";
+
+  private static final long NOW = 1_000_000L;
+  private static final long EXPIRATION = NOW + 60_000L;
+
+  private static final byte[] STATE = "attributes of the session, attributes of the session"
+      .getBytes(StandardCharsets.UTF_8);
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    CookieSessionCodec codec = new CookieSessionCodec(NEW_KEY);
+    String value = codec.encode("123", STATE, EXPIRATION);
+
+    assertTrue(value.matches("[A-Za-z0-9_-]+"));
+    assertArrayEquals(STATE, codec.decode("123", value, NOW));
+  }
+
+  @Test
+  public void testRejectOtherSession() throws Exception {
+    CookieSessionCodec codec = new CookieSessionCodec(NEW_KEY);
+    String value = codec.encode("123", STATE, EXPIRATION);
+
+    assertNull(codec.decode("456", value, NOW));
+  }
+
+  @Test
+  public void testRejectModifiedValue() throws Exception {
+    CookieSessionCodec codec = new CookieSessionCodec(NEW_KEY);
+    String value = codec.encode("123", STATE, EXPIRATION);
+    int middle = value.length() / 2;
+    String modified = value.substring(0, middle) + (value.charAt(middle) == 'A' ? 'B' : 'A')
+        + value.substring(middle + 1);
+
+    assertNull(codec.decode("123", modified, NOW));
+    assertNull(codec.decode("123", "not a cookie", NOW));
+    assertNull(codec.decode("123", "", NOW));
+  }
+
+  @Test
+  public void testRejectExpiredValue() throws Exception {
+    CookieSessionCodec codec = new CookieSessionCodec(NEW_KEY);
+    String value = codec.encode("123", STATE, EXPIRATION);
+
+    assertArrayEquals(STATE, codec.decode("123", value, EXPIRATION - 1));
+    assertNull(codec.decode("123", value, EXPIRATION));
+  }
+
+  @Test
+  public void testRejectModifiedExpiration() throws Exception {
+    CookieSessionCodec codec = new CookieSessionCodec(NEW_KEY);
+    byte[] value = Base64.getUrlDecoder().decode(codec.encode("123", STATE, EXPIRATION));
+    value[24]++;
+
+    assertNull(codec.decode("123", Base64.getUrlEncoder().withoutPadding().encodeToString(value),
+        NOW));
+  }
+
+  @Test
+  public void testKeyRotation() throws Exception {
+    String oldValue = new CookieSessionCodec(OLD_KEY).encode("123", STATE, EXPIRATION);
+    CookieSessionCodec rotated = new CookieSessionCodec(NEW_KEY + ";" + OLD_KEY);
+
+    assertArrayEquals(STATE, rotated.decode("123", oldValue, NOW));
+    assertArrayEquals(STATE, new CookieSessionCodec(NEW_KEY)
+        .decode("123", rotated.encode("123", STATE, EXPIRATION), NOW));
+    assertNull(new CookieSessionCodec(NEW_KEY).decode("123", oldValue, NOW));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testKeyRequired() {
+    new CookieSessionCodec(" ; ");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidKeyLength() {
+    new CookieSessionCodec("AAAA");
+  }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import com.google.cloud.datastore.Batch;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.FullEntity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.cloud.datastore.PathElement;
+import com.google.cloud.datastore.QueryResults;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Iterator;
+import javax.servlet.http.Cookie;
+import org.apache.catalina.Context;
+import org.apache.catalina.Manager;
+import org.apache.catalina.Session;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.core.StandardContext;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+/**
+ * Ensures that {@code CookieSessionStore} keeps small sessions in a cookie.
+ */
+public class CookieSessionStoreTest {
+
+  private static final String KEY = "MDEyMzQ1Njc4OWFiY2RlZjAxMjM0NTY3ODlhYmNkZWY=";
+
+  @Mock
+  private Datastore datastore;
+
+  @Mock
+  private Manager manager;
+
+  @Mock
+  private Request request;
+
+  @Mock
+  private Response response;
+
+  @Mock
+  private Context context;
+
+  @Mock
+  private Batch batch;
+
+  private CookieSessionStore store;
+
+  @Before
+  public void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    when(manager.getContext()).thenReturn(new StandardContext());
+    when(manager.willAttributeDistribute(anyString(), any())).thenReturn(true);
+    when(manager.createEmptySession()).thenAnswer(invocation -> new DatastoreSession(manager));
+    when(datastore.newKeyFactory()).thenAnswer(invocation -> new KeyFactory("project"));
+    when(datastore.newBatch()).thenReturn(batch);
+    when(request.getResponse()).thenReturn(response);
+    when(request.getContext()).thenReturn(context);
+    when(context.getPath()).thenReturn("/app");
+
+    store = new CookieSessionStore();
+    store.setDatastore(datastore);
+    store.setClock(Clock.systemUTC());
+    store.setSessionKind("kind");
+    store.setManager(manager);
+    store.setKeys(KEY);
+    store.initCodec();
+    store.bind(request);
+  }
+
+  private DatastoreSession newSession(Object value) {
+    DatastoreSession session = new DatastoreSession(manager);
+    session.setValid(true);
+    session.setCreationTime(System.currentTimeMillis());
+    session.setId("123");
+    session.setAttribute("value", value);
+    return session;
+  }
+
+  private Cookie saveToCookie(DatastoreSession session) throws Exception {
+    store.save(session);
+    ArgumentCaptor<Cookie> cookie = ArgumentCaptor.forClass(Cookie.class);
+    verify(response).addCookie(cookie.capture());
+    return cookie.getValue();
+  }
+
+  @Test
+  public void testSmallSessionStoredInCookie() throws Exception {
+    Cookie cookie = saveToCookie(newSession("small"));
+
+    assertEquals("GCP_SESSION_STATE", cookie.getName());
+    assertEquals("/app", cookie.getPath());
+    assertEquals(-1, cookie.getMaxAge());
+
+    when(request.getCookies()).thenReturn(new Cookie[] {cookie});
+    Session loaded = store.load("123");
+    assertEquals("small", loaded.getSession().getAttribute("value"));
+    verifyZeroInteractions(datastore);
+  }
+
+  @Test
+  public void testLargeSessionStoredInDatastore() throws Exception {
+    Cookie previous = saveToCookie(newSession("small"));
+    when(request.getCookies()).thenReturn(new Cookie[] {previous});
+    store.setSizeThreshold(previous.getValue().length() - 1);
+
+    store.save(newSession("small"));
+
+    verify(batch).put(any(FullEntity.class), any(FullEntity.class));
+    ArgumentCaptor<Cookie> cookies = ArgumentCaptor.forClass(Cookie.class);
+    verify(response, times(2)).addCookie(cookies.capture());
+    assertEquals(0, cookies.getValue().getMaxAge());
+  }
+
+  @Test
+  public void testChangesDiscardedWhenCommitted() throws Exception {
+    Cookie previous = saveToCookie(newSession("small"));
+    when(request.getCookies()).thenReturn(new Cookie[] {previous});
+    when(response.isCommitted()).thenReturn(true);
+
+    store.save(newSession("changed"));
+
+    verifyZeroInteractions(datastore);
+    Session loaded = store.load("123");
+    assertEquals("small", loaded.getSession().getAttribute("value"));
+  }
+
+  @Test
+  public void testCookieOfAnotherSessionIgnored() throws Exception {
+    Cookie cookie = saveToCookie(newSession("small"));
+    when(request.getCookies()).thenReturn(new Cookie[] {cookie});
+
+    assertNull(store.load("456"));
+    assertNotNull(store.load("123"));
+  }
+
+  @Test
+  public void testExpiredCookieIgnored() throws Exception {
+    DatastoreSession session = newSession("small");
+    session.setMaxInactiveInterval(1800);
+    Cookie cookie = saveToCookie(session);
+    when(request.getCookies()).thenReturn(new Cookie[] {cookie});
+
+    store.setClock(Clock.offset(Clock.systemUTC(), Duration.ofMinutes(31)));
+    assertNull(store.load("123"));
+  }
+
+  @Test
+  public void testCookieOfRemovedSessionIgnored() throws Exception {
+    store.setMissingSessionCacheSize(16);
+    store.initMissingSessionCache();
+    Cookie cookie = saveToCookie(newSession("small"));
+    when(request.getCookies()).thenReturn(new Cookie[] {cookie});
+    QueryResults<Key> noKeys = keyResults();
+    when(datastore.<Key>run(any())).thenReturn(noKeys);
+
+    store.remove("123");
+    assertNull(store.load("123"));
+  }
+
+  @Test
+  public void testNeverAttributeKeptOutOfCookie() throws Exception {
+    store.setAttributePolicies("derived=NEVER");
+    store.initAttributePolicies();
+    DatastoreSession session = newSession("small");
+    session.setAttribute("derived", "local");
+    Cookie cookie = saveToCookie(session);
+    when(request.getCookies()).thenReturn(new Cookie[] {cookie});
+
+    assertEquals("local", store.load("123").getSession().getAttribute("derived"));
+
+    CookieSessionStore otherNode = new CookieSessionStore();
+    otherNode.setClock(Clock.systemUTC());
+    otherNode.setManager(manager);
+    otherNode.setKeys(KEY);
+    otherNode.initCodec();
+    otherNode.bind(request);
+    Session loaded = otherNode.load("123");
+    assertEquals("small", loaded.getSession().getAttribute("value"));
+    assertNull(loaded.getSession().getAttribute("derived"));
+  }
+
+  @SuppressWarnings("unchecked")
+  private static QueryResults<Key> keyResults(Key... keys) {
+    Iterator<Key> iterator = Arrays.asList(keys).iterator();
+    QueryResults<Key> results = mock(QueryResults.class);
+    when(results.hasNext()).thenAnswer(invocation -> iterator.hasNext());
+    when(results.next()).thenAnswer(invocation -> iterator.next());
+    return results;
+  }
+
+  @Test
+  public void testDatastoreSessionMovedToCookieAndBack() throws Exception {
+    store.setMissingSessionCacheSize(16);
+    store.initMissingSessionCache();
+    Key sessionKey = new KeyFactory("project").setKind("kind").newKey("123");
+    KeyFactory attributeKeys = new KeyFactory("project").setKind("kind")
+        .addAncestor(PathElement.of("kind", "123"));
+    QueryResults<Key> storedKeys = keyResults(sessionKey, attributeKeys.newKey("value"),
+        attributeKeys.newKey("principal"));
+    when(datastore.<Key>run(any())).thenReturn(storedKeys);
+
+    DatastoreSession session = newSession("small");
+    session.setNote("com.google.cloud.runtimes.tomcat.session.STORED_IN_DATASTORE",
+        Boolean.TRUE);
+    Cookie cookie = saveToCookie(session);
+
+    // The attribute removed while the session was in the cookie cannot come back
+    verify(datastore).delete(sessionKey, attributeKeys.newKey("value"),
+        attributeKeys.newKey("principal"));
+    assertFalse(store.isKnownMissing("123"));
+
+    when(request.getCookies()).thenReturn(new Cookie[] {cookie});
+    Session loaded = store.load("123");
+    assertEquals("small", loaded.getSession().getAttribute("value"));
+    assertNull(loaded.getSession().getAttribute("principal"));
+
+    store.setSizeThreshold(1);
+    store.save(loaded);
+    verify(batch).put(any(FullEntity.class), any(FullEntity.class));
+  }
+}
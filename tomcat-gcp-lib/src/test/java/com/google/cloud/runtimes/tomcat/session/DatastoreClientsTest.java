@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.ApacheHttpTransport;
+import com.google.cloud.datastore.Datastore;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DatastoreClientsTest {
+
+  private List<HttpTransport> transports;
+  private DatastoreClients clients;
+
+  @Before
+  public void setUp() {
+    transports = new ArrayList<>();
+    clients = new DatastoreClients() {
+      @Override
+      Datastore newDatastore(String projectId, String namespace, HttpTransport transport) {
+        transports.add(transport);
+        return mock(Datastore.class);
+      }
+    };
+  }
+
+  @Test
+  public void testClientsAreShared() {
+    Datastore first = clients.acquire("project", "namespace", 0);
+    Datastore second = clients.acquire("project", "namespace", 0);
+    assertSame(first, second);
+    assertNotSame(first, clients.acquire("project", "other", 0));
+    assertNotSame(first, clients.acquire(null, "namespace", 0));
+    assertEquals(3, clients.size());
+    assertNull(transports.get(0));
+  }
+
+  @Test
+  public void testClientClosedByLastRelease() {
+    Datastore first = clients.acquire("project", "namespace", 0);
+    clients.acquire("project", "namespace", 0);
+
+    clients.release(first);
+    assertEquals(1, clients.size());
+    clients.release(first);
+    assertEquals(0, clients.size());
+    assertNotSame(first, clients.acquire("project", "namespace", 0));
+  }
+
+  @Test
+  public void testConnectionPool() {
+    Datastore datastore = clients.acquire("project", "namespace", 32);
+    assertTrue(transports.get(0) instanceof ApacheHttpTransport);
+    ApacheHttpTransport transport = (ApacheHttpTransport) transports.get(0);
+    assertEquals(32, ConnManagerParams.getMaxTotalConnections(
+        transport.getHttpClient().getParams()));
+    clients.release(datastore);
+  }
+}
@@ -18,18 +18,23 @@ package com.google.cloud.runtimes.tomcat.session;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.IOException;
+import java.time.Clock;
 import java.util.Arrays;
 import org.apache.catalina.Context;
 import org.apache.catalina.Session;
 import org.apache.catalina.Store;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.util.StandardSessionIdGenerator;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
@@ -99,6 +104,72 @@ public class DatastoreManagerTest {
     verify(store).remove("123");
   }
 
+  @Test
+  public void testInvalidatedSessionRemoval() throws IOException {
+    manager.remove(session, true);
+    verify(store).remove("123");
+  }
+
+  @Test
+  public void testClientSessionIdNotReusedWhenMissingSessionsAreCached() {
+    DatastoreStore datastoreStore = new DatastoreStore();
+    datastoreStore.setMissingSessionCacheSize(16);
+    datastoreStore.setClock(Clock.systemUTC());
+    datastoreStore.initMissingSessionCache();
+    manager.setStore(datastoreStore);
+    manager.setSessionIdGenerator(new StandardSessionIdGenerator());
+
+    Session created = manager.createSession("123");
+    assertNotEquals("123", created.getId());
+  }
+
+  @Test
+  public void testIgnoredSessionKeepsRequestedId() {
+    DatastoreStore datastoreStore = new DatastoreStore();
+    manager.setStore(datastoreStore);
+    manager.setSessionIdGenerator(new StandardSessionIdGenerator());
+    Request request = mock(Request.class);
+    when(request.getAttribute(DatastoreStore.IGNORE_SESSION_ATTRIBUTE)).thenReturn(Boolean.TRUE);
+    when(request.getRequestedSessionId()).thenReturn("123");
+
+    datastoreStore.bind(request);
+    Session created = manager.createSession(null);
+    datastoreStore.unbind();
+
+    assertEquals("123", created.getId());
+    assertTrue(DatastoreStore.isReadOnly(created));
+    manager.remove(created);
+  }
+
+  @Test
+  public void testSessionCreatedAfterEventualReadIsDetached() {
+    DatastoreStore datastoreStore = new DatastoreStore();
+    manager.setStore(datastoreStore);
+    manager.setSessionIdGenerator(new StandardSessionIdGenerator());
+    Request request = mock(Request.class);
+    when(request.getAttribute(DatastoreStore.EVENTUAL_CONSISTENCY_ATTRIBUTE))
+        .thenReturn(Boolean.TRUE);
+    when(request.getRequestedSessionId()).thenReturn("123");
+
+    datastoreStore.bind(request);
+    Session created = manager.createSession("123");
+    when(request.getRequestedSessionId()).thenReturn(null);
+    Session unrelated = manager.createSession(null);
+    datastoreStore.unbind();
+
+    assertEquals("123", created.getId());
+    assertTrue(DatastoreStore.isReadOnly(created));
+    assertFalse(DatastoreStore.isReadOnly(unrelated));
+  }
+
+  @Test
+  public void testEventuallyConsistentSessionNotRemoved() throws IOException {
+    when(session.getNote("com.google.cloud.runtimes.tomcat.session.EVENTUALLY_CONSISTENT"))
+        .thenReturn(Boolean.TRUE);
+    manager.remove(session);
+    verify(store, never()).remove(anyString());
+  }
+
   @Test
   public void testCountOfActiveSession() throws IOException {
     manager.getActiveSessionsFull();
@@ -11,11 +11,13 @@ import com.google.cloud.datastore.Blob;
 import com.google.cloud.datastore.Entity;
 import com.google.cloud.datastore.Key;
 import com.google.cloud.datastore.KeyFactory;
+import com.google.cloud.datastore.PathElement;
 import com.google.cloud.runtimes.tomcat.session.DatastoreSession.SessionMetadata;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.NotSerializableException;
 import java.io.ObjectOutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
@@ -127,6 +129,191 @@ public class DatastoreSessionTest {
     assertEquals("value", ((Map)restoredSession.getAttribute("map")).get("key"));
   }
 
+  @Test
+  public void testParallelSerializationCycle() throws Exception {
+    DatastoreSession initialSession = new DatastoreSession(sessionManager);
+    initialSession.setValid(true);
+    for (int i = 0; i < 50; i++) {
+      initialSession.setAttribute("attribute" + i, i);
+    }
+
+    try (ParallelSerializer serializer = new ParallelSerializer(2, 10, Long.MAX_VALUE)) {
+      KeyFactory keyFactory = new KeyFactory("project").setKind("kind");
+      List<Entity> attributes = initialSession.saveToEntities(sessionKey, keyFactory, serializer,
+          null, null);
+      assertEquals(51, attributes.size());
+
+      DatastoreSession restoredSession = new DatastoreSession(sessionManager);
+      restoredSession.restoreFromEntities(sessionKey, attributes, serializer, null);
+      for (int i = 0; i < 50; i++) {
+        assertEquals(i, restoredSession.getAttribute("attribute" + i));
+      }
+    }
+  }
+
+  @Test
+  public void testDeltaChain() throws Exception {
+    Key key = new KeyFactory("project").setKind("kind").newKey("123");
+    KeyFactory attributeFactory = new KeyFactory("project").setKind("kind")
+        .addAncestor(PathElement.of("kind", "123"));
+    DeltaPolicy policy = new DeltaPolicy(1024, 2, 50);
+    ArrayList<String> cart = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      cart.add("item-" + i);
+    }
+
+    DatastoreSession session = new DatastoreSession(sessionManager);
+    session.setValid(true);
+    session.setAttribute("cart", cart);
+    List<Entity> stored = new ArrayList<>(
+        session.saveToEntities(key, attributeFactory, null, policy, null));
+    assertTrue(stored.get(0).contains(SessionMetadata.ATTRIBUTE_VERSION));
+
+    for (int save = 1; save <= 3; save++) {
+      DatastoreSession loaded = new DatastoreSession(sessionManager);
+      loaded.restoreFromEntities(key, stored, null, null);
+      ArrayList<String> loadedCart = (ArrayList<String>) loaded.getAttribute("cart");
+      assertEquals(1000 + save - 1, loadedCart.size());
+      loadedCart.add("new-" + save);
+
+      List<Entity> entities = loaded.saveToEntities(key, attributeFactory, null, policy, null);
+      assertEquals(2, entities.size());
+      Entity attribute = entities.get(0);
+      if (save <= 2) {
+        // The cart is saved as a small delta
+        assertTrue(attribute.contains(SessionMetadata.DELTA_VALUE_NAME));
+        assertTrue(attribute.getBlob(SessionMetadata.DELTA_VALUE_NAME).getLength() < 100);
+        assertTrue(loaded.getObsoleteKeys(attributeFactory).isEmpty());
+      } else {
+        // The chain is full, the whole cart is saved again
+        assertTrue(attribute.contains(SessionMetadata.ATTRIBUTE_VERSION));
+        assertEquals(2, loaded.getObsoleteKeys(attributeFactory).size());
+        stored.removeIf(entity -> entity.contains(SessionMetadata.DELTA_VALUE_NAME));
+      }
+      stored.removeIf(entity -> entity.getKey().equals(key)
+          || entity.getKey().equals(attribute.getKey()));
+      stored.addAll(entities);
+    }
+
+    DatastoreSession loaded = new DatastoreSession(sessionManager);
+    loaded.restoreFromEntities(key, stored, null, null);
+    List<String> loadedCart = (List<String>) loaded.getAttribute("cart");
+    assertEquals(1003, loadedCart.size());
+    assertEquals("new-3", loadedCart.get(1002));
+    // Unchanged attributes are not saved again
+    assertEquals(1, loaded.saveToEntities(key, attributeFactory, null, policy, null).size());
+  }
+
+  @Test
+  public void testAttributePolicies() throws Exception {
+    Key key = new KeyFactory("project").setKind("kind").newKey("123");
+    KeyFactory attributeFactory = new KeyFactory("project").setKind("kind")
+        .addAncestor(PathElement.of("kind", "123"));
+    AttributePolicies policies = new AttributePolicies(
+        "derived=NEVER;profile=ON_CHANGE;stats=INTERVAL:3600;cart=COMPRESSED");
+    List<String> cart = Collections.nCopies(1000, "item");
+
+    DatastoreSession session = new DatastoreSession(sessionManager);
+    session.setValid(true);
+    session.setAttribute("derived", "cached");
+    session.setAttribute("profile", "user");
+    session.setAttribute("stats", 1);
+    session.setAttribute("cart", new ArrayList<>(cart));
+    List<Entity> stored = session.saveToEntities(key, attributeFactory, null, null, policies);
+    Map<String, Entity> attributes = stored.stream()
+        .filter(entity -> !entity.getKey().equals(key))
+        .collect(Collectors.toMap(entity -> entity.getKey().getName(), entity -> entity));
+    assertEquals(3, attributes.size());
+    assertFalse(attributes.containsKey("derived"));
+    assertEquals("cached", session.getLocalAttributes().get("derived"));
+    assertTrue(attributes.get("cart").getBoolean(SessionMetadata.ATTRIBUTE_COMPRESSED));
+    assertTrue(attributes.get("stats").contains(SessionMetadata.ATTRIBUTE_SAVE_TIME));
+
+    DatastoreSession loaded = new DatastoreSession(sessionManager);
+    loaded.restoreFromEntities(key, stored, null, null);
+    assertNull(loaded.getAttribute("derived"));
+    assertEquals(cart, loaded.getAttribute("cart"));
+    assertEquals("user", loaded.getAttribute("profile"));
+    assertEquals(1, loaded.getAttribute("stats"));
+
+    // The profile is unchanged and the interval of the stats has not elapsed
+    loaded.setAttribute("stats", 2);
+    List<String> saved = loaded.saveToEntities(key, attributeFactory, null, null, policies)
+        .stream()
+        .filter(entity -> !entity.getKey().equals(key))
+        .map(entity -> entity.getKey().getName())
+        .collect(Collectors.toList());
+    assertEquals(Collections.singletonList("cart"), saved);
+
+    loaded.setAttribute("profile", "other");
+    saved = loaded.saveToEntities(key, attributeFactory, null, null, policies).stream()
+        .filter(entity -> !entity.getKey().equals(key))
+        .map(entity -> entity.getKey().getName())
+        .collect(Collectors.toList());
+    assertTrue(saved.contains("profile"));
+  }
+
+  @Test
+  public void testAttributePoliciesRecordedOnceCommitted() throws Exception {
+    Key key = new KeyFactory("project").setKind("kind").newKey("123");
+    KeyFactory attributeFactory = new KeyFactory("project").setKind("kind")
+        .addAncestor(PathElement.of("kind", "123"));
+    AttributePolicies policies = new AttributePolicies("profile=ON_CHANGE;stats=INTERVAL:3600");
+    DatastoreSession session = new DatastoreSession(sessionManager);
+    session.setValid(true);
+    session.setAttribute("profile", "user");
+    session.setAttribute("stats", 1);
+    // The interval of the stats has elapsed since they were stored
+    List<Entity> stored = session.saveToEntities(key, attributeFactory, null, null, policies)
+        .stream()
+        .map(entity -> "stats".equals(entity.getKey().getName())
+            ? Entity.newBuilder(entity).set(SessionMetadata.ATTRIBUTE_SAVE_TIME, 0).build()
+            : entity)
+        .collect(Collectors.toList());
+    DatastoreSession loaded = new DatastoreSession(sessionManager);
+    loaded.restoreFromEntities(key, stored, null, null);
+    loaded.setAttribute("profile", "other");
+    loaded.setAttribute("stats", 2);
+
+    // The save failed, the attributes are written again
+    assertEquals(Arrays.asList("profile", "stats"),
+        savedAttributes(loaded, key, attributeFactory, policies));
+    assertEquals(Arrays.asList("profile", "stats"),
+        savedAttributes(loaded, key, attributeFactory, policies));
+
+    loaded.committed();
+    assertTrue(savedAttributes(loaded, key, attributeFactory, policies).isEmpty());
+  }
+
+  private static List<String> savedAttributes(DatastoreSession session, Key key,
+      KeyFactory attributeFactory, AttributePolicies policies) throws Exception {
+    return session.saveToEntities(key, attributeFactory, null, null, policies).stream()
+        .filter(entity -> !entity.getKey().equals(key))
+        .map(entity -> entity.getKey().getName())
+        .sorted()
+        .collect(Collectors.toList());
+  }
+
+  @Test
+  public void testNeverPolicyRemovesStoredAttribute() throws Exception {
+    Key key = new KeyFactory("project").setKind("kind").newKey("123");
+    KeyFactory attributeFactory = new KeyFactory("project").setKind("kind")
+        .addAncestor(PathElement.of("kind", "123"));
+    DatastoreSession session = new DatastoreSession(sessionManager);
+    session.setValid(true);
+    session.setAttribute("derived", "cached");
+    List<Entity> stored = session.saveToEntities(key, attributeFactory);
+
+    DatastoreSession loaded = new DatastoreSession(sessionManager);
+    loaded.restoreFromEntities(key, stored, null, null);
+    List<Entity> entities = loaded.saveToEntities(key, attributeFactory, null, null,
+        new AttributePolicies("derived=NEVER"));
+    assertEquals(1, entities.size());
+    assertEquals(Collections.singletonList(attributeFactory.newKey("derived")),
+        loaded.getObsoleteKeys(attributeFactory));
+    assertTrue(loaded.getSuppressedAttributes().isEmpty());
+  }
+
   @Test(expected = NotSerializableException.class)
   public void testSerializationError() throws Exception {
     DatastoreSession session = spy(new DatastoreSession(sessionManager));
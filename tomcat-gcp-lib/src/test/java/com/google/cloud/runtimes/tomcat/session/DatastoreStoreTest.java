@@ -19,11 +19,15 @@ package com.google.cloud.runtimes.tomcat.session;
 import static org.junit.Assert.*;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.google.cloud.datastore.Batch;
 import com.google.cloud.datastore.Cursor;
 import com.google.cloud.datastore.Datastore;
 import com.google.cloud.datastore.Entity;
@@ -33,20 +37,36 @@ import com.google.cloud.datastore.KeyFactory;
 import com.google.cloud.datastore.KeyQuery;
 import com.google.cloud.datastore.PathElement;
 import com.google.cloud.datastore.QueryResults;
+import com.google.cloud.datastore.ReadOption;
+import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
+import com.google.cloud.datastore.Transaction;
+import com.google.cloud.runtimes.tomcat.session.DatastoreSession.SessionMetadata;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.io.IOException;
 import java.time.Clock;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import org.apache.catalina.LifecycleException;
 import org.apache.catalina.Manager;
 import org.apache.catalina.Session;
+import org.apache.catalina.connector.Request;
 import org.apache.catalina.core.StandardContext;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatchers;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
@@ -64,10 +84,16 @@ public class DatastoreStoreTest {
   @Mock
   private Clock clock;
 
+  @Mock
+  private Batch batch;
+
   private Key key;
 
   private Key attributeKey;
 
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
   private DatastoreStore store;
 
   private static final String keyId = "123";
@@ -83,6 +109,7 @@ public class DatastoreStoreTest {
 
     when(datastore.newKeyFactory()).thenAnswer((invocation) -> new KeyFactory("project"));
     when(datastore.run(any(KeyQuery.class))).thenReturn(keyQueryResults);
+    when(datastore.newBatch()).thenReturn(batch);
 
     when(manager.getContext()).thenReturn(new StandardContext());
     when(manager.willAttributeDistribute(anyString(), any())).thenReturn(true);
@@ -142,12 +169,202 @@ public class DatastoreStoreTest {
     assertNull(session);
   }
 
+  @Test
+  public void testRemovedSessionIsCached() throws Exception {
+    store.setMissingSessionCacheSize(16);
+    store.initMissingSessionCache();
+    when(datastore.run(any())).thenReturn(new IteratorQueryResults<>(Collections.emptyIterator()));
+
+    store.remove("456");
+    assertNull(store.load("456"));
+    // Only the query of the entities to delete
+    verify(datastore).run(any());
+    assertEquals(1, store.getMissingSessionCacheHitCount());
+  }
+
+  @Test
+  public void testNotFoundSessionIsNotCachedWithoutTtl() throws Exception {
+    store.setMissingSessionCacheSize(16);
+    store.setNotFoundSessionCacheTtl(0);
+    store.initMissingSessionCache();
+    when(datastore.run(any())).thenReturn(new IteratorQueryResults<>(Collections.emptyIterator()),
+        new IteratorQueryResults<>(Collections.emptyIterator()));
+
+    assertNull(store.load("456"));
+    assertNull(store.load("456"));
+    verify(datastore, times(2)).run(any());
+    assertFalse(store.isKnownMissing("456"));
+  }
+
+  @Test
+  public void testNotFoundSessionIsCachedUntilSaved() throws Exception {
+    store.setMissingSessionCacheSize(16);
+    store.initMissingSessionCache();
+    when(datastore.run(any())).thenReturn(new IteratorQueryResults<>(Collections.emptyIterator()),
+        new IteratorQueryResults<>(Collections.emptyIterator()));
+
+    assertNull(store.load("456"));
+    assertNull(store.load("456"));
+    verify(datastore, times(1)).run(any());
+    assertEquals(1, store.getMissingSessionCacheHitCount());
+    // The not found ids are not known to be removed, a cookie may still hold the session
+    assertFalse(store.isKnownMissing("456"));
+
+    DatastoreSession session = new DatastoreSession(manager);
+    session.setValid(true);
+    session.setId("456");
+    store.save(session);
+    assertNull(store.load("456"));
+    verify(datastore, times(2)).run(any());
+  }
+
+  @Test
+  public void testNotFoundSessionNotCachedWhileSaving() throws Exception {
+    store.setMissingSessionCacheSize(16);
+    store.initMissingSessionCache();
+    DatastoreSession session = new DatastoreSession(manager);
+    session.setValid(true);
+    session.setId("456");
+    List<CompletableFuture<Void>> backgroundSaves = new ArrayList<>();
+    when(datastore.run(any())).thenAnswer(invocation -> {
+      // The request creating the session schedules its save while the session is looked up
+      backgroundSaves.add(store.beginBackgroundSave("456"));
+      return new IteratorQueryResults<>(Collections.emptyIterator());
+    }).thenAnswer(invocation -> {
+      // The save completes while the session is looked up
+      store.save(session);
+      return new IteratorQueryResults<>(Collections.emptyIterator());
+    }).thenReturn(new IteratorQueryResults<>(Collections.emptyIterator()));
+
+    assertNull(store.load("456"));
+    store.endBackgroundSave("456", backgroundSaves.get(0));
+    assertNull(store.load("456"));
+    assertNull(store.load("456"));
+    verify(datastore, times(3)).run(any());
+  }
+
+  @Test
+  public void testRemovedAndExpiredSessionsAreCached() throws Exception {
+    store.setMissingSessionCacheSize(16);
+    store.initMissingSessionCache();
+    when(datastore.run(any(KeyQuery.class))).thenReturn(
+        new IteratorQueryResults<>(Collections.singletonList(key).iterator()),
+        new IteratorQueryResults<>(Arrays.asList(key, attributeKey).iterator())
+    );
+
+    store.remove("456");
+    store.processExpires();
+
+    assertTrue(store.isKnownMissing("456"));
+    assertTrue(store.isKnownMissing(keyId));
+    assertFalse(store.isKnownMissing("789"));
+  }
+
+  @Test
+  public void testSavedSessionIsNoLongerMissing() throws Exception {
+    store.setMissingSessionCacheSize(16);
+    store.initMissingSessionCache();
+    store.remove(keyId);
+
+    DatastoreSession session = new DatastoreSession(manager);
+    session.setValid(true);
+    session.setId(keyId);
+    store.save(session);
+
+    assertFalse(store.isKnownMissing(keyId));
+  }
+
+  @Test
+  public void testEventuallyConsistentLoadIsNeverSaved() throws Exception {
+    DatastoreSession session = new DatastoreSession(manager);
+    session.setValid(true);
+    session.setId(keyId);
+    Entity sessionEntity = session.saveMetadataToEntity(key);
+    when(datastore.<Entity>run(any(), any())).thenReturn(
+        new IteratorQueryResults<>(Collections.singleton(sessionEntity).iterator()));
+    Request request = mock(Request.class);
+    when(request.getAttribute(DatastoreStore.EVENTUAL_CONSISTENCY_ATTRIBUTE))
+        .thenReturn(Boolean.TRUE);
+
+    store.bind(request);
+    Session loaded = store.load(keyId);
+    store.unbind();
+    store.save(loaded);
+
+    ArgumentCaptor<ReadOption> option = ArgumentCaptor.forClass(ReadOption.class);
+    verify(datastore).run(any(), option.capture());
+    assertTrue(option.getValue() instanceof ReadOption.EventualConsistency);
+    assertTrue(DatastoreStore.isReadOnly(loaded));
+    verify(datastore, never()).put(any(FullEntity.class), any(FullEntity.class));
+    verify(datastore, never()).put(any(FullEntity.class));
+  }
+
+  @Test
+  public void testEventuallyConsistentMissIsNotCached() throws Exception {
+    store.setMissingSessionCacheSize(16);
+    store.initMissingSessionCache();
+    when(datastore.<Entity>run(any(), any())).thenReturn(
+        new IteratorQueryResults<>(Collections.emptyIterator()));
+    Request request = mock(Request.class);
+    when(request.getAttribute(DatastoreStore.EVENTUAL_CONSISTENCY_ATTRIBUTE)).thenReturn("true");
+
+    store.bind(request);
+    assertNull(store.load("456"));
+    store.unbind();
+
+    assertFalse(store.isKnownMissing("456"));
+  }
+
+  @Test
+  public void testLoadWaitsForBackgroundSave() throws Exception {
+    CompletableFuture<Void> save = store.beginBackgroundSave(keyId);
+    AtomicBoolean savedBeforeLoad = new AtomicBoolean();
+    when(datastore.run(any())).thenAnswer(invocation -> {
+      savedBeforeLoad.set(save.isDone());
+      return new IteratorQueryResults<>(Collections.emptyIterator());
+    });
+
+    Thread loader = new Thread(() -> {
+      try {
+        store.load(keyId);
+      } catch (ClassNotFoundException | IOException e) {
+        throw new AssertionError(e);
+      }
+    });
+    loader.start();
+    Thread.sleep(50);
+    store.endBackgroundSave(keyId, save);
+    loader.join();
+
+    assertTrue(savedBeforeLoad.get());
+  }
+
+  @Test
+  public void testIgnoredSessionIsNotLoaded() throws Exception {
+    Request request = mock(Request.class);
+    when(request.getAttribute(DatastoreStore.IGNORE_SESSION_ATTRIBUTE)).thenReturn(Boolean.TRUE);
+
+    store.bind(request);
+    assertNull(store.load(keyId));
+    store.unbind();
+
+    verify(datastore, never()).run(any());
+    verify(datastore, never()).run(any(), any());
+  }
+
   @Test
   public void testSessionRemoval() throws Exception {
     store.remove(keyId);
     verify(datastore).delete(any(Key.class));
   }
 
+  @Test
+  public void testSessionKeyFactoryIsCached() throws Exception {
+    store.remove("123");
+    store.remove("456");
+    verify(datastore).newKeyFactory();
+  }
+
   @Test
   public void testSessionExpiration() throws Exception {
     when(datastore.run(any(KeyQuery.class))).thenReturn(
@@ -168,8 +385,11 @@ public class DatastoreStoreTest {
 
     store.save(session);
     ArgumentCaptor captor = ArgumentCaptor.forClass(Entity.class);
-    verify(datastore).put((FullEntity<?>[]) captor.capture());
-    verify(session).saveAttributesToEntity(any());
+    verify(batch).put((FullEntity<?>[]) captor.capture());
+    verify(batch, never()).delete(any());
+    verify(batch).submit();
+    verify(datastore, never()).put(any(FullEntity[].class));
+    verify(session).saveAttributesToEntity(any(), any(), any(), any());
 
     List<Entity> entities = captor.getAllValues();
     assertEquals(2, entities.size());
@@ -181,6 +401,236 @@ public class DatastoreStoreTest {
 
   }
 
+  @Test
+  public void testLargeSessionSplitIntoSeveralCommits() throws Exception {
+    DatastoreSession session = new DatastoreSession(manager);
+    session.setValid(true);
+    session.setId(keyId);
+    for (int i = 0; i < DatastoreStore.MAX_MUTATIONS_PER_COMMIT; i++) {
+      session.setAttribute("attribute" + i, i);
+    }
+
+    store.save(session);
+    verify(datastore, times(2)).newBatch();
+    verify(batch, times(DatastoreStore.MAX_MUTATIONS_PER_COMMIT + 1)).put(any(FullEntity.class));
+    verify(batch, times(2)).submit();
+  }
+
+  @Test
+  public void testTransactionalSave() throws Exception {
+    Transaction transaction = mock(Transaction.class);
+    when(datastore.newTransaction()).thenReturn(transaction);
+    store.setTransactionalSave(true);
+
+    DatastoreSession session = new DatastoreSession(manager);
+    session.setValid(true);
+    session.setId(keyId);
+    session.setAttribute("count", 5);
+
+    store.save(session);
+    verify(transaction).put(any(FullEntity.class), any(FullEntity.class));
+    verify(transaction).commit();
+    verify(datastore, never()).newBatch();
+  }
+
+  @Test
+  public void testGroupCommitSave() throws Exception {
+    store.setGroupCommit(true);
+    store.initGroupCommitter();
+
+    DatastoreSession session = new DatastoreSession(manager);
+    session.setValid(true);
+    session.setId(keyId);
+    session.setAttribute("count", 5);
+
+    store.save(session);
+    verify(batch).submit();
+    verify(datastore, never()).put(any(FullEntity[].class));
+    assertEquals(1, store.getGroupCommitSaveCount());
+  }
+
+  @Test
+  public void testLocalAttributesKeptInMemory() throws Exception {
+    store.setAttributePolicies("derived=NEVER");
+    store.initAttributePolicies();
+
+    DatastoreSession session = new DatastoreSession(manager);
+    session.setValid(true);
+    session.setId(keyId);
+    session.setAttribute("count", 2);
+    session.setAttribute("derived", "cached");
+    store.save(session);
+    verify(batch).put(any(FullEntity.class), any(FullEntity.class));
+
+    session.removeAttribute("derived");
+    KeyFactory attributeKeyFactory = datastore.newKeyFactory()
+        .setKind("kind")
+        .addAncestor(PathElement.of("kind", key.getName()));
+    List<Entity> entities = session.saveToEntities(key, attributeKeyFactory);
+    when(datastore.<Entity>run(any())).thenAnswer(
+        invocation -> new IteratorQueryResults<>(entities.iterator()));
+    when(manager.createEmptySession()).thenAnswer(invocation -> new DatastoreSession(manager));
+
+    Session restored = store.load(keyId);
+    assertEquals(2, restored.getSession().getAttribute("count"));
+    assertEquals("cached", restored.getSession().getAttribute("derived"));
+
+    when(datastore.<Key>run(any(KeyQuery.class))).thenAnswer(
+        invocation -> new IteratorQueryResults<>(Collections.singleton(key).iterator()));
+    store.remove(keyId);
+    assertNull(store.load(keyId).getSession().getAttribute("derived"));
+  }
+
+  @Test
+  public void testSharedBlobOfRemovedSessionIsCollected() throws Exception {
+    store.setDedupThreshold(100);
+    store.initSharedBlobStore();
+    Map<Key, Entity> stored = new HashMap<>();
+    doAnswer(invocation -> {
+      for (Object entity : invocation.getArguments()) {
+        stored.put((Key) ((Entity) entity).getKey(), (Entity) entity);
+      }
+      return null;
+    }).when(batch).put(ArgumentMatchers.<FullEntity<?>[]>any());
+    doAnswer(invocation -> {
+      for (Object deleted : invocation.getArguments()) {
+        stored.remove(deleted);
+      }
+      return null;
+    }).when(datastore).delete(ArgumentMatchers.<Key[]>any());
+    when(datastore.<Key>run(any(KeyQuery.class))).thenAnswer(invocation -> {
+      KeyQuery query = invocation.getArgument(0);
+      Predicate<Entity> matches;
+      if (PropertyFilter.hasAncestor(key).equals(query.getFilter())) {
+        matches = entity -> true;
+      } else if (query.getLimit() != null) {
+        // The only queries with a limit look for the attributes referencing a shared blob
+        matches = entity -> entity.contains(SessionMetadata.ATTRIBUTE_HASH);
+      } else {
+        matches = entity -> entity.contains(SessionMetadata.EXPIRATION_TIME)
+            && entity.getLong(SessionMetadata.EXPIRATION_TIME) <= clock.millis();
+      }
+      return new IteratorQueryResults<>(stored.values().stream()
+          .filter(entity -> entity.getKey().getKind().equals(query.getKind()))
+          .filter(matches)
+          .map(Entity::getKey)
+          .collect(Collectors.toList())
+          .iterator());
+    });
+    Transaction transaction = mock(Transaction.class);
+    when(datastore.newTransaction()).thenReturn(transaction);
+    when(transaction.get(any(Key.class)))
+        .thenAnswer(invocation -> stored.get(invocation.<Key>getArgument(0)));
+    doAnswer(invocation -> stored.remove(invocation.<Key>getArgument(0)))
+        .when(transaction).delete(any(Key.class));
+
+    DatastoreSession session = new DatastoreSession(manager);
+    session.setValid(true);
+    session.setId(keyId);
+    long now = System.currentTimeMillis();
+    session.setCreationTime(now);
+    session.setMaxInactiveInterval(60);
+    session.setAttribute("catalog", String.join("", Collections.nCopies(100, "catalog")));
+    when(clock.millis()).thenReturn(now);
+    store.save(session);
+    assertEquals(1, stored.keySet().stream()
+        .filter(storedKey -> storedKey.getKind().equals("kindBlob"))
+        .count());
+
+    store.remove(keyId);
+    when(clock.millis()).thenReturn(now + 2 * 60_000 * 30 + 1);
+    store.processExpires();
+    assertTrue(stored.isEmpty());
+  }
+
+  @Test
+  public void testSizeBudgetTruncatesSession() throws Exception {
+    store.setSessionSizeLimit(100);
+    store.setSizeLimitAction("truncate");
+    store.setNonCriticalAttributes("cache");
+    store.initSizeBudget();
+
+    DatastoreSession session = new DatastoreSession(manager);
+    session.setValid(true);
+    session.setId(keyId);
+    session.setAttribute("count", 5);
+    session.setAttribute("cache", new byte[1000]);
+
+    store.save(session);
+    ArgumentCaptor<FullEntity> captor = ArgumentCaptor.forClass(FullEntity.class);
+    verify(batch).put(captor.capture(), captor.capture());
+    assertEquals(ImmutableSet.of(keyId, "count"), captor.getAllValues().stream()
+        .map(entity -> ((Key) entity.getKey()).getName())
+        .collect(Collectors.toSet()));
+    assertNull(session.getAttribute("cache"));
+    assertEquals(1, store.getLargestSessions().length);
+    assertTrue(store.getLargestAttributes()[0].startsWith("count:"));
+  }
+
+  @Test(expected = IOException.class)
+  public void testSizeBudgetRejectsSession() throws Exception {
+    store.setSessionSizeLimit(100);
+    store.initSizeBudget();
+
+    DatastoreSession session = new DatastoreSession(manager);
+    session.setValid(true);
+    session.setId(keyId);
+    session.setAttribute("cache", new byte[1000]);
+    store.save(session);
+  }
+
+  @Test
+  public void testColdSessionPromotedOnLoad() throws Exception {
+    store.setColdSessionIdleTime(60);
+    store.setColdStorageDirectory(folder.getRoot().getPath());
+    store.initColdTier();
+
+    DatastoreSession session = new DatastoreSession(manager);
+    session.setValid(true);
+    session.setId(keyId);
+    session.setAttribute("count", 2);
+    KeyFactory attributeKeyFactory = datastore.newKeyFactory()
+        .setKind("kind")
+        .addAncestor(PathElement.of("kind", key.getName()));
+    List<Entity> entities = session.saveToEntities(key, attributeKeyFactory);
+    new FileColdSessionStorage(folder.getRoot().toPath())
+        .write(keyId, ColdSessionTier.encode(entities));
+    Entity stub = Entity.newBuilder(session.saveMetadataToEntity(key))
+        .set(SessionMetadata.COLD, true)
+        .build();
+    when(datastore.<Entity>run(any())).thenReturn(
+        new IteratorQueryResults<>(Collections.singleton(stub).iterator()));
+    Transaction transaction = mock(Transaction.class);
+    when(datastore.newTransaction()).thenReturn(transaction);
+    when(transaction.get(key)).thenReturn(stub);
+
+    Session restored = store.load(keyId);
+    assertEquals(2, restored.getSession().getAttribute("count"));
+    verify(transaction).commit();
+    assertFalse(folder.getRoot().toPath().resolve(keyId + ".session").toFile().exists());
+  }
+
+  @Test(expected = LifecycleException.class)
+  public void testShardedExpirationIndexWithColdStorage() throws Exception {
+    store.setColdSessionIdleTime(60);
+    store.setExpirationIndexShards(8);
+    store.initExpirationIndex();
+  }
+
+  @Test(expected = LifecycleException.class)
+  public void testGroupCommitWithColdStorage() throws Exception {
+    store.setColdSessionIdleTime(60);
+    store.setColdStorageDirectory(folder.getRoot().getPath());
+    store.setGroupCommit(true);
+    store.initColdTier();
+  }
+
+  @Test(expected = LifecycleException.class)
+  public void testInvalidAttributePolicies() throws Exception {
+    store.setAttributePolicies("derived=SOMETIMES");
+    store.initAttributePolicies();
+  }
+
   @Test
   public void testDecomposedSessionLoad() throws Exception {
     DatastoreSession session = new DatastoreSession(manager);
@@ -229,7 +679,8 @@ public class DatastoreStoreTest {
     store.save(session);
 
     ArgumentCaptor<Key> keyCaptors = ArgumentCaptor.forClass(Key.class);
-    verify(datastore).delete(keyCaptors.capture());
+    verify(batch).delete(keyCaptors.capture());
+    verify(batch).submit();
 
     assertNotNull(keyCaptors.getValue());
     assertEquals("map", keyCaptors.getValue().getName());
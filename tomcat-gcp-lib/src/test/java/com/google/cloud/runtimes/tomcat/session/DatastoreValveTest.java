@@ -16,18 +16,28 @@
 
 package com.google.cloud.runtimes.tomcat.session;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleException;
 import org.apache.catalina.Session;
 import org.apache.catalina.Store;
 import org.apache.catalina.Valve;
 import org.apache.catalina.connector.Request;
 import org.apache.catalina.connector.Response;
+import org.apache.catalina.core.StandardContext;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
@@ -82,6 +92,53 @@ public class DatastoreValveTest {
     verify(manager).removeSuper(session);
   }
 
+  @Test
+  public void testEmptyNewSessionNotPersisted() throws Exception {
+    DatastoreSession newSession = new DatastoreSession(manager);
+    newSession.setValid(true);
+    newSession.setNew(true);
+    when(request.getSessionInternal(anyBoolean())).thenReturn(newSession);
+
+    valve.setNext(nextValve);
+    valve.setPersistEmptySessions(false);
+    valve.invoke(request, response);
+
+    verify(store, never()).save(any());
+    verify(manager).removeSuper(newSession);
+    assertEquals(1, valve.getSkippedSaveCount());
+  }
+
+  @Test
+  public void testNewSessionWithAttributesPersisted() throws Exception {
+    DatastoreSession newSession = new DatastoreSession(manager);
+    newSession.setValid(true);
+    newSession.setNew(true);
+    when(manager.getContext()).thenReturn(new StandardContext());
+    newSession.setAttribute("count", 1, false);
+    when(manager.willAttributeDistribute(anyString(), any())).thenReturn(true);
+    when(request.getSessionInternal(anyBoolean())).thenReturn(newSession);
+
+    valve.setNext(nextValve);
+    valve.setPersistEmptySessions(false);
+    valve.invoke(request, response);
+
+    verify(store).save(newSession);
+    assertEquals(0, valve.getSkippedSaveCount());
+  }
+
+  @Test
+  public void testEmptyNewSessionPersistedByDefault() throws Exception {
+    DatastoreSession newSession = new DatastoreSession(manager);
+    newSession.setValid(true);
+    newSession.setNew(true);
+    when(request.getSessionInternal(anyBoolean())).thenReturn(newSession);
+
+    valve.setNext(nextValve);
+    valve.invoke(request, response);
+
+    verify(store).save(newSession);
+  }
+
   @Test
   public void testIgnoredHealthCheck() throws Exception {
     when(request.getRequestURI()).thenReturn("/_ah/health");
@@ -115,4 +172,112 @@ public class DatastoreValveTest {
     verify(session).access();
   }
 
-}
\ No newline at end of file
+  @Test
+  public void testSessionPolicies() throws Exception {
+    valve.setUriExcludePattern("^/_ah/.*");
+    valve.setSessionPolicies("/static/**=NO_SESSION; /api/{id}=read-only; /_ah/start=WRITE_BEHIND");
+    valve.initSessionPolicies();
+
+    assertEquals(SessionPolicy.NO_SESSION, valve.getSessionPolicy("/static/img/logo.png"));
+    assertEquals(SessionPolicy.READ_ONLY, valve.getSessionPolicy("/api/123"));
+    assertEquals(SessionPolicy.WRITE_BEHIND, valve.getSessionPolicy("/_ah/start"));
+    assertEquals(SessionPolicy.READ_ONLY, valve.getSessionPolicy("/_ah/health"));
+    assertEquals(SessionPolicy.WRITE_THROUGH, valve.getSessionPolicy("/api/123/edit"));
+
+    valve.setDefaultSessionPolicy("READ_ONLY");
+    assertEquals(SessionPolicy.READ_ONLY, valve.getSessionPolicy("/api/123/edit"));
+  }
+
+  @Test(expected = LifecycleException.class)
+  public void testInvalidSessionPolicy() throws Exception {
+    valve.setSessionPolicies("/static/**=NEVER");
+    valve.initSessionPolicies();
+  }
+
+  @Test
+  public void testNoSessionPolicy() throws Exception {
+    when(request.getRequestURI()).thenReturn("/static/app.js");
+    valve.setSessionPolicies("/static/**=NO_SESSION");
+    valve.initSessionPolicies();
+
+    valve.setNext(nextValve);
+    valve.invoke(request, response);
+
+    verify(request).setAttribute(DatastoreStore.IGNORE_SESSION_ATTRIBUTE, Boolean.TRUE);
+    verify(request, never()).setRequestedSessionId(any());
+    verify(store, never()).save(any());
+    verify(manager).removeSuper(session);
+  }
+
+  @Test
+  public void testReadOnlySessionPolicy() throws Exception {
+    when(request.getRequestURI()).thenReturn("/api/catalog");
+    valve.setSessionPolicies("/api/catalog=READ_ONLY");
+    valve.initSessionPolicies();
+
+    valve.setNext(nextValve);
+    valve.invoke(request, response);
+
+    verify(request, never()).setRequestedSessionId(any());
+    verify(store, never()).save(any());
+    verify(manager).removeSuper(session);
+  }
+
+  @Test
+  public void testEventualReadOnlySessionPolicy() throws Exception {
+    when(request.getRequestURI()).thenReturn("/dashboard");
+    valve.setSessionPolicies("/dashboard=READ_ONLY_EVENTUAL");
+    valve.initSessionPolicies();
+
+    valve.setNext(nextValve);
+    valve.invoke(request, response);
+
+    verify(request).setAttribute(DatastoreStore.EVENTUAL_CONSISTENCY_ATTRIBUTE, Boolean.TRUE);
+    verify(store, never()).save(any());
+  }
+
+  @Test
+  public void testWriteBehindSessionPolicy() throws Exception {
+    when(request.getRequestURI()).thenReturn("/cart");
+    when(session.getId()).thenReturn("123");
+    valve.setSessionPolicies("/cart=WRITE_BEHIND");
+    valve.initSessionPolicies();
+    WriteBehindExecutor executor = new WriteBehindExecutor(1, 4);
+    valve.setWriteBehindExecutor(executor);
+
+    valve.setNext(nextValve);
+    valve.invoke(request, response);
+    executor.close();
+
+    verify(store).save(session);
+    verify(manager).removeSuper(session);
+  }
+
+  @Test
+  public void testWriteBehindSessionSerializedByRequestThread() throws Exception {
+    DatastoreStore datastoreStore = mock(DatastoreStore.class);
+    when(manager.getStore()).thenReturn(datastoreStore);
+    when(request.getRequestURI()).thenReturn("/cart");
+    when(session.getId()).thenReturn("123");
+    Thread requestThread = Thread.currentThread();
+    CompletableFuture<Thread> commitThread = new CompletableFuture<>();
+    when(datastoreStore.prepareSave(session)).thenAnswer(invocation -> {
+      assertSame(requestThread, Thread.currentThread());
+      return (DatastoreStore.PreparedSave) () -> commitThread.complete(Thread.currentThread());
+    });
+    when(datastoreStore.beginBackgroundSave("123")).thenReturn(new CompletableFuture<>());
+    valve.setSessionPolicies("/cart=WRITE_BEHIND");
+    valve.initSessionPolicies();
+    WriteBehindExecutor executor = new WriteBehindExecutor(1, 4);
+    valve.setWriteBehindExecutor(executor);
+
+    valve.setNext(nextValve);
+    valve.invoke(request, response);
+    executor.close();
+
+    assertNotSame(requestThread, commitThread.get(5, TimeUnit.SECONDS));
+    verify(datastoreStore, never()).save(any());
+    verify(datastoreStore).endBackgroundSave(eq("123"), any());
+    verify(manager).removeSuper(session);
+  }
+}
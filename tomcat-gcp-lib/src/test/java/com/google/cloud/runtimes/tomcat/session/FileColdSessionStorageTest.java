@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.session;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileColdSessionStorageTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private FileColdSessionStorage storage;
+
+  @Before
+  public void setUp() throws Exception {
+    storage = new FileColdSessionStorage(folder.getRoot().toPath().resolve("sessions"));
+  }
+
+  @Test
+  public void testWriteReadDelete() throws Exception {
+    assertNull(storage.read("ABC123.node1"));
+    storage.write("ABC123.node1", new byte[] {1, 2, 3});
+    storage.write("ABC123.node1", new byte[] {4, 5});
+    assertArrayEquals(new byte[] {4, 5}, storage.read("ABC123.node1"));
+
+    storage.delete("ABC123.node1");
+    storage.delete("ABC123.node1");
+    assertNull(storage.read("ABC123.node1"));
+  }
+
+  @Test(expected = IOException.class)
+  public void testInvalidId() throws Exception {
+    storage.read("../../conf/server");
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.cloud.datastore.Batch;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreException;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.FullEntity;
+import com.google.cloud.datastore.KeyFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+public class GroupCommitterTest {
+
+  @Mock
+  private Datastore datastore;
+
+  @Mock
+  private Batch batch;
+
+  private GroupCommitter committer;
+
+  private final KeyFactory keyFactory = new KeyFactory("project").setKind("kind");
+
+  @Before
+  public void setUp() {
+    MockitoAnnotations.initMocks(this);
+    when(datastore.newBatch()).thenReturn(batch);
+    committer = new GroupCommitter(datastore, 200, 500, 1);
+  }
+
+  @After
+  public void tearDown() {
+    committer.close();
+  }
+
+  private Entity entity(String id) {
+    return Entity.newBuilder(keyFactory.newKey(id)).build();
+  }
+
+  private CompletableFuture<Void> save(String id) {
+    List<FullEntity<?>> puts = Collections.singletonList(entity(id));
+    return committer.submit(keyFactory.newKey(id), puts, Collections.emptyList());
+  }
+
+  @Test
+  public void testConcurrentSavesShareCommit() throws Exception {
+    CompletableFuture<Void> first = save("123");
+    CompletableFuture<Void> second = save("456");
+    first.get(5, TimeUnit.SECONDS);
+    second.get(5, TimeUnit.SECONDS);
+
+    verify(batch, times(1)).submit();
+    verify(batch).put(new FullEntity<?>[] {entity("123")});
+    verify(batch).put(new FullEntity<?>[] {entity("456")});
+    verify(batch, never()).delete(any());
+    assertEquals(1, committer.getCommitCount());
+    assertEquals(2, committer.getSaveCount());
+  }
+
+  @Test
+  public void testSavesOfSameSessionAreNotGrouped() throws Exception {
+    CompletableFuture<Void> first = save("123");
+    CompletableFuture<Void> second = save("123");
+    first.get(5, TimeUnit.SECONDS);
+    second.get(5, TimeUnit.SECONDS);
+
+    verify(batch, times(2)).submit();
+    assertEquals(2, committer.getCommitCount());
+  }
+
+  @Test
+  public void testSavesOfSameBlobAreNotGrouped() throws Exception {
+    KeyFactory blobKeyFactory = new KeyFactory("project").setKind("kindBlob");
+    Entity blob = Entity.newBuilder(blobKeyFactory.newKey("hash")).build();
+    CompletableFuture<Void> first = committer.submit(keyFactory.newKey("123"),
+        Arrays.asList(entity("123"), blob), Collections.emptyList());
+    CompletableFuture<Void> second = committer.submit(keyFactory.newKey("456"),
+        Arrays.asList(entity("456"), blob), Collections.emptyList());
+    first.get(5, TimeUnit.SECONDS);
+    second.get(5, TimeUnit.SECONDS);
+
+    verify(batch, times(2)).submit();
+    assertEquals(2, committer.getCommitCount());
+  }
+
+  @Test
+  public void testFailedGroupIsRetriedSessionBySession() throws Exception {
+    DatastoreException error = new DatastoreException(3, "Invalid entity", "INVALID_ARGUMENT");
+    when(batch.submit()).thenThrow(error).thenThrow(error).thenReturn(null);
+
+    CompletableFuture<Void> failing = save("123");
+    CompletableFuture<Void> succeeding = save("456");
+    succeeding.get(5, TimeUnit.SECONDS);
+    try {
+      failing.get(5, TimeUnit.SECONDS);
+      fail("The invalid save must fail");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof DatastoreException);
+    }
+
+    verify(batch, times(3)).submit();
+    assertEquals(1, committer.getSaveCount());
+  }
+
+  @Test
+  public void testCloseCommitsPendingSaves() throws Exception {
+    CompletableFuture<Void> pending = save("123");
+    committer.close();
+    assertTrue(pending.isDone());
+    pending.get();
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+import java.time.Clock;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+public class MissingSessionCacheTest {
+
+  @Mock
+  private Clock clock;
+
+  private MissingSessionCache cache;
+
+  @Before
+  public void setUp() {
+    MockitoAnnotations.initMocks(this);
+    when(clock.millis()).thenReturn(1000L);
+    cache = new MissingSessionCache(4, 10_000, clock);
+  }
+
+  @Test
+  public void testRememberMissingSession() {
+    assertFalse(cache.mightContain("123"));
+    cache.add("123");
+    assertTrue(cache.mightContain("123"));
+    assertFalse(cache.mightContain("456"));
+    assertEquals(1, cache.getHitCount());
+  }
+
+  @Test
+  public void testForgetSavedSession() {
+    cache.add("123");
+    cache.remove("123");
+    assertFalse(cache.mightContain("123"));
+  }
+
+  @Test
+  public void testExpiration() {
+    cache.add("123");
+    when(clock.millis()).thenReturn(7000L);
+    cache.add("456");
+    assertTrue(cache.mightContain("123"));
+
+    when(clock.millis()).thenReturn(11000L);
+    assertFalse(cache.mightContain("123"));
+    assertTrue(cache.mightContain("456"));
+
+    when(clock.millis()).thenReturn(30000L);
+    assertFalse(cache.mightContain("456"));
+  }
+
+  @Test
+  public void testRotationWhenFull() {
+    for (int i = 0; i < 12; i++) {
+      cache.add("id" + i);
+    }
+    assertTrue(cache.mightContain("id11"));
+    assertFalse(cache.mightContain("id0"));
+  }
+}
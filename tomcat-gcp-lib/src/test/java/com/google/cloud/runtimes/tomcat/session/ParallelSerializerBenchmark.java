@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.session;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compare the serialization of the attributes of a session on the calling thread and on a
+ * {@link ParallelSerializer}, to choose {@code parallelSerializationAttributes} and
+ * {@code parallelSerializationSize} for a machine.
+ *
+ * <p>This is not a unit test, run it on the target machine with the test classpath:</p>
+ * <pre>
+ *   java -cp target/classes:target/test-classes:&lt;dependencies&gt; \
+ *       com.google.cloud.runtimes.tomcat.session.ParallelSerializerBenchmark [threads]
+ * </pre>
+ *
+ * <p>Each line reports the best of several runs for a number of attributes of a given size.
+ * The difference between the two columns for small sessions is the cost of handing a session to
+ * the pool, a few tens of microseconds per session on a single processor. The parallel
+ * serialization only pays off once the sequential time is well above this cost and several
+ * processors are available.</p>
+ */
+public class ParallelSerializerBenchmark {
+
+  private static final int[] ATTRIBUTE_COUNTS = {4, 8, 16, 32, 64, 128};
+  private static final int[] ATTRIBUTE_SIZES = {200, 2_000, 20_000, 200_000};
+  private static final int RUNS = 100;
+
+  public static void main(String[] args) throws Exception {
+    int threads = args.length > 0
+        ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+    System.out.println("Serializer threads: " + threads);
+    try (ParallelSerializer serializer = new ParallelSerializer(threads, 0, 0)) {
+      for (int size : ATTRIBUTE_SIZES) {
+        for (int count : ATTRIBUTE_COUNTS) {
+          run(serializer, count, size);
+        }
+      }
+    }
+  }
+
+  private static void run(ParallelSerializer serializer, int count, int size) throws Exception {
+    List<Object> attributes = new ArrayList<>(count);
+    long total = 0;
+    for (int i = 0; i < count; i++) {
+      Object attribute = attribute(size);
+      attributes.add(attribute);
+      total += serialize(attribute).length;
+    }
+
+    long sequential = Long.MAX_VALUE;
+    long parallel = Long.MAX_VALUE;
+    for (int run = 0; run < RUNS; run++) {
+      long start = System.nanoTime();
+      for (Object attribute : attributes) {
+        serialize(attribute);
+      }
+      sequential = Math.min(sequential, System.nanoTime() - start);
+
+      start = System.nanoTime();
+      serializer.map(attributes, ParallelSerializerBenchmark::serialize);
+      parallel = Math.min(parallel, System.nanoTime() - start);
+    }
+    System.out.printf("attributes=%4d serialized size=%9d sequential=%7dus parallel=%7dus%n",
+        count, total, sequential / 1000, parallel / 1000);
+  }
+
+  /**
+   * A map of strings of about {@code size} serialized bytes, as a stand-in for an application
+   * object.
+   */
+  private static Object attribute(int size) {
+    Map<String, String> attribute = new HashMap<>();
+    for (int i = 0; i < size / 40; i++) {
+      attribute.put("key" + i, "value-" + i + "-" + Math.random());
+    }
+    return attribute;
+  }
+
+  private static byte[] serialize(Object attribute) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(attribute);
+    }
+    return bytes.toByteArray();
+  }
+}
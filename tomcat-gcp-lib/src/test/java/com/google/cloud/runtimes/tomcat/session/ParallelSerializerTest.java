@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ParallelSerializerTest {
+
+  private ParallelSerializer serializer;
+
+  @Before
+  public void setUp() {
+    serializer = new ParallelSerializer(4, 10, 1000);
+  }
+
+  @After
+  public void tearDown() {
+    serializer.close();
+  }
+
+  @Test
+  public void testThresholds() {
+    assertFalse(serializer.isWorthwhile(9, 999));
+    assertTrue(serializer.isWorthwhile(10, 0));
+    assertTrue(serializer.isWorthwhile(1, 1000));
+  }
+
+  @Test
+  public void testResultsKeepInputOrder() throws Exception {
+    List<Integer> inputs = IntStream.range(0, 1000).boxed().collect(Collectors.toList());
+    List<String> results = serializer.map(inputs, String::valueOf);
+    assertEquals(1000, results.size());
+    for (int i = 0; i < results.size(); i++) {
+      assertEquals(String.valueOf(i), results.get(i));
+    }
+  }
+
+  @Test
+  public void testFirstFailureIsThrown() throws Exception {
+    List<Integer> inputs = IntStream.range(0, 100).boxed().collect(Collectors.toList());
+    try {
+      serializer.map(inputs, i -> {
+        if (i % 10 == 3) {
+          throw new IOException("Failure " + i);
+        }
+        return i;
+      });
+      fail("The failure must be thrown");
+    } catch (IOException e) {
+      assertEquals("Failure 3", e.getMessage());
+    }
+  }
+
+  @Test(expected = ClassNotFoundException.class)
+  public void testClassNotFoundIsThrown() throws Exception {
+    serializer.map(IntStream.range(0, 20).boxed().collect(Collectors.toList()), i -> {
+      throw new ClassNotFoundException("com.example.Missing");
+    });
+  }
+}
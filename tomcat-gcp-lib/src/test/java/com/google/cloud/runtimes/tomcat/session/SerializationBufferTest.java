@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.session;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import com.google.cloud.datastore.Blob;
+import org.junit.Test;
+
+public class SerializationBufferTest {
+
+  @Test
+  public void testBufferIsReused() throws Exception {
+    SerializationBuffer buffer = SerializationBuffer.acquire();
+    buffer.write(new byte[] {1, 2, 3});
+    Blob blob = buffer.toBlob();
+    buffer.release();
+
+    SerializationBuffer reused = SerializationBuffer.acquire();
+    assertSame(buffer, reused);
+    assertEquals(0, reused.size());
+    reused.release();
+    assertArrayEquals(new byte[] {1, 2, 3}, blob.toByteArray());
+  }
+
+  @Test
+  public void testNestedAcquisition() {
+    SerializationBuffer outer = SerializationBuffer.acquire();
+    SerializationBuffer inner = SerializationBuffer.acquire();
+    assertNotSame(outer, inner);
+    inner.release();
+    outer.release();
+  }
+
+  @Test
+  public void testLargeBufferIsNotRetained() throws Exception {
+    SerializationBuffer buffer = SerializationBuffer.acquire();
+    buffer.write(new byte[SerializationBuffer.MAX_RETAINED_SIZE + 1]);
+    buffer.release();
+
+    SerializationBuffer next = SerializationBuffer.acquire();
+    assertNotSame(buffer, next);
+    next.release();
+  }
+}
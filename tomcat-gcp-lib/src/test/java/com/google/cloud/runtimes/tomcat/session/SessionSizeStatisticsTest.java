@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.session;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.collect.ImmutableMap;
+import java.util.Collections;
+import org.junit.Test;
+
+public class SessionSizeStatisticsTest {
+
+  @Test
+  public void testLargestSessions() {
+    SessionSizeStatistics statistics = new SessionSizeStatistics(2);
+    statistics.record("0123456789", 100, Collections.emptyMap());
+    statistics.record("small", 10, Collections.emptyMap());
+    statistics.record("large", 1000, Collections.emptyMap());
+    statistics.record("tiny", 1, Collections.emptyMap());
+    assertArrayEquals(new String[] {"large: 1000", "01234567...: 100"},
+        statistics.getLargestSessions());
+
+    statistics.remove("large");
+    assertArrayEquals(new String[] {"01234567...: 100"}, statistics.getLargestSessions());
+  }
+
+  @Test
+  public void testLargestAttributes() {
+    SessionSizeStatistics statistics = new SessionSizeStatistics(10);
+    statistics.record("a", 300, ImmutableMap.of("user", 100, "cart", 200));
+    statistics.record("b", 400, ImmutableMap.of("cart", 400));
+    assertArrayEquals(new String[] {
+        "cart: saves=2, average=300, max=400, total=600",
+        "user: saves=1, average=100, max=100, total=100"},
+        statistics.getLargestAttributes());
+  }
+
+  @Test
+  public void testHistogram() {
+    SessionSizeStatistics statistics = new SessionSizeStatistics(10);
+    statistics.record("a", 10, Collections.emptyMap());
+    statistics.record("b", 2048, Collections.emptyMap());
+    statistics.record("c", 2 << 20, Collections.emptyMap());
+    String[] histogram = statistics.getHistogram();
+    assertEquals("< 1024: 1", histogram[0]);
+    assertEquals("< 4096: 1", histogram[1]);
+    assertEquals(">= 1048576: 1", histogram[histogram.length - 1]);
+
+    statistics.reset();
+    assertEquals("< 1024: 0", statistics.getHistogram()[0]);
+    assertEquals(0, statistics.getLargestSessions().length);
+  }
+}
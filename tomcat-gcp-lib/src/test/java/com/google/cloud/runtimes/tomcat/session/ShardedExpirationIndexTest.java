@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.StructuredQuery.CompositeFilter;
+import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
+import com.google.cloud.runtimes.tomcat.session.DatastoreSession.SessionMetadata;
+import java.util.List;
+import org.junit.Test;
+
+public class ShardedExpirationIndexTest {
+
+  private final ShardedExpirationIndex index = new ShardedExpirationIndex(4, 60_000);
+  private final Key sessionKey = new KeyFactory("project").setKind("kind").newKey("123");
+
+  @Test
+  public void testOnlyBucketIsIndexed() {
+    Entity metadata = Entity.newBuilder(sessionKey)
+        .set(SessionMetadata.CREATION_TIME, 1000)
+        .set(SessionMetadata.LAST_ACCESSED_TIME, 2000)
+        .set(SessionMetadata.IS_VALID, true)
+        .set(SessionMetadata.EXPIRATION_TIME, 179_999)
+        .build();
+
+    Entity indexed = index.index(metadata);
+    for (String name : metadata.getNames()) {
+      assertEquals(metadata.getValue(name).get(), indexed.getValue(name).get());
+      assertTrue(indexed.getValue(name).excludeFromIndexes());
+    }
+    int shard = Math.floorMod("123".hashCode(), 4);
+    assertEquals(shard + ":0000000000000000002",
+        indexed.getString(ShardedExpirationIndex.EXPIRATION_BUCKET));
+    assertFalse(indexed.getValue(ShardedExpirationIndex.EXPIRATION_BUCKET).excludeFromIndexes());
+  }
+
+  @Test
+  public void testSessionWithoutExpiration() {
+    Entity indexed = index.index(Entity.newBuilder(sessionKey)
+        .set(SessionMetadata.LAST_ACCESSED_TIME, 2000)
+        .build());
+    assertFalse(indexed.contains(ShardedExpirationIndex.EXPIRATION_BUCKET));
+  }
+
+  @Test
+  public void testExpiredQueries() {
+    List<Query<Key>> queries = index.expiredQueries("kind", 180_000);
+    assertEquals(4, queries.size());
+    assertEquals(Query.newKeyQueryBuilder()
+        .setKind("kind")
+        .setFilter(CompositeFilter.and(
+            PropertyFilter.ge(ShardedExpirationIndex.EXPIRATION_BUCKET, "2:"),
+            PropertyFilter.lt(ShardedExpirationIndex.EXPIRATION_BUCKET,
+                "2:0000000000000000003")))
+        .build(), queries.get(2));
+  }
+}
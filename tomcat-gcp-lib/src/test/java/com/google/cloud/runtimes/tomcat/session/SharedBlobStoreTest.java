@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.cloud.datastore.KeyQuery;
+import com.google.cloud.datastore.PathElement;
+import com.google.cloud.datastore.QueryResults;
+import com.google.cloud.datastore.Transaction;
+import com.google.cloud.runtimes.tomcat.session.DatastoreSession.SessionMetadata;
+import com.google.common.base.Strings;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.apache.catalina.Manager;
+import org.apache.catalina.core.StandardContext;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+public class SharedBlobStoreTest {
+
+  private static final String LARGE_VALUE = Strings.repeat("catalog", 100);
+
+  @Mock
+  private Datastore datastore;
+
+  @Mock
+  private Transaction transaction;
+
+  @Mock
+  private Manager manager;
+
+  private SharedBlobStore store;
+  private Key sessionKey;
+  private KeyFactory attributeKeyFactory;
+  private DatastoreSession session;
+
+  @Before
+  public void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    when(datastore.newKeyFactory()).thenAnswer(invocation -> new KeyFactory("project"));
+    when(datastore.newTransaction()).thenReturn(transaction);
+    when(manager.getContext()).thenReturn(new StandardContext());
+    when(manager.willAttributeDistribute(anyString(), any())).thenReturn(true);
+    store = new SharedBlobStore(datastore, "kind", 100, 1 << 20);
+
+    sessionKey = new KeyFactory("project").setKind("kind").newKey("123");
+    attributeKeyFactory = new KeyFactory("project").setKind("kind")
+        .addAncestor(PathElement.of("kind", "123"));
+    session = new DatastoreSession(manager);
+    session.setValid(true);
+    session.setCreationTime(System.currentTimeMillis());
+    session.setMaxInactiveInterval(60);
+    session.setAttribute("catalog", LARGE_VALUE);
+    session.setAttribute("count", 5);
+  }
+
+  @Test
+  public void testShareAndResolve() throws Exception {
+    List<Entity> shared = store.share(session,
+        session.saveToEntities(sessionKey, attributeKeyFactory), 1000);
+
+    Entity catalog = find(shared, "catalog");
+    assertTrue(catalog.contains(SessionMetadata.ATTRIBUTE_HASH));
+    assertFalse(catalog.contains(SessionMetadata.ATTRIBUTE_VALUE_NAME));
+    assertTrue(find(shared, "count").contains(SessionMetadata.ATTRIBUTE_VALUE_NAME));
+    List<Entity> blobs = blobs(shared);
+    assertEquals(1, blobs.size());
+    assertEquals(catalog.getString(SessionMetadata.ATTRIBUTE_HASH),
+        blobs.get(0).getKey().getName());
+    assertEquals(1000 + 120_000, blobs.get(0).getLong(SessionMetadata.EXPIRATION_TIME));
+
+    store.committed(shared);
+    DatastoreSession restored = new DatastoreSession(manager);
+    restored.restoreFromEntities(sessionKey, store.resolve(shared));
+    assertEquals(LARGE_VALUE, restored.getAttribute("catalog"));
+    assertEquals(5, restored.getAttribute("count"));
+    verify(datastore, never()).get(any(Iterable.class));
+  }
+
+  @Test
+  public void testUnchangedValueNotWrittenAgain() throws Exception {
+    List<Entity> shared = store.share(session,
+        session.saveToEntities(sessionKey, attributeKeyFactory), 1000);
+    store.committed(shared);
+    DatastoreSession restored = new DatastoreSession(manager);
+    restored.restoreFromEntities(sessionKey, store.resolve(shared));
+    assertEquals(catalogHash(shared), restored.getStoredHash("catalog"));
+
+    List<Entity> saved = store.share(restored,
+        restored.saveToEntities(sessionKey, attributeKeyFactory), 2000);
+    assertNull(find(saved, "catalog"));
+    assertTrue(blobs(saved).isEmpty());
+
+    // The blob is saved again before it could expire before the session
+    saved = store.share(restored,
+        restored.saveToEntities(sessionKey, attributeKeyFactory), 100_000);
+    assertEquals(1, blobs(saved).size());
+  }
+
+  @Test
+  public void testSameValueSharedAcrossSessions() throws Exception {
+    List<Entity> first = store.share(session,
+        session.saveToEntities(sessionKey, attributeKeyFactory), 1000);
+    store.committed(first);
+
+    DatastoreSession other = new DatastoreSession(manager);
+    other.setValid(true);
+    other.setCreationTime(System.currentTimeMillis());
+    other.setMaxInactiveInterval(60);
+    other.setAttribute("catalog", LARGE_VALUE);
+    Key otherKey = new KeyFactory("project").setKind("kind").newKey("456");
+    List<Entity> second = store.share(other, other.saveToEntities(otherKey,
+        new KeyFactory("project").setKind("kind").addAncestor(PathElement.of("kind", "456"))),
+        1000);
+    assertEquals(catalogHash(first), catalogHash(second));
+    assertTrue(blobs(second).isEmpty());
+  }
+
+  @Test
+  public void testResolveReadsMissingBlobs() throws Exception {
+    List<Entity> shared = store.share(session,
+        session.saveToEntities(sessionKey, attributeKeyFactory), 1000);
+    Entity blob = blobs(shared).get(0);
+    List<Entity> stored = shared.stream()
+        .filter(entity -> !entity.getKey().getKind().equals("kindBlob"))
+        .collect(Collectors.toList());
+
+    SharedBlobStore otherNode = new SharedBlobStore(datastore, "kind", 100, 1 << 20);
+    when(datastore.get(any(Iterable.class)))
+        .thenReturn(Collections.singleton(blob).iterator());
+    DatastoreSession restored = new DatastoreSession(manager);
+    restored.restoreFromEntities(sessionKey, otherNode.resolve(stored));
+    assertEquals(LARGE_VALUE, restored.getAttribute("catalog"));
+
+    SharedBlobStore emptyNode = new SharedBlobStore(datastore, "kind", 100, 1 << 20);
+    when(datastore.get(any(Iterable.class))).thenReturn(Collections.emptyIterator());
+    restored = new DatastoreSession(manager);
+    restored.restoreFromEntities(sessionKey, emptyNode.resolve(stored));
+    assertNull(restored.getAttribute("catalog"));
+    assertEquals(5, restored.getAttribute("count"));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testCollectGarbage() throws Exception {
+    KeyFactory blobKeyFactory = new KeyFactory("project").setKind("kindBlob");
+    Key expired = blobKeyFactory.newKey("expired");
+    Key referenced = blobKeyFactory.newKey("referenced");
+    Key refreshed = blobKeyFactory.newKey("refreshed");
+    QueryResults<Key> expiredBlobs = mock(QueryResults.class);
+    when(expiredBlobs.hasNext()).thenReturn(true, true, true, false);
+    when(expiredBlobs.next()).thenReturn(expired, referenced, refreshed);
+    QueryResults<Key> noReference = mock(QueryResults.class);
+    QueryResults<Key> reference = mock(QueryResults.class);
+    when(reference.hasNext()).thenReturn(true);
+    when(datastore.run(any(KeyQuery.class))).thenReturn(expiredBlobs, noReference, reference);
+    for (Key key : new Key[] {expired, referenced}) {
+      when(transaction.get(key)).thenReturn(Entity.newBuilder(key)
+          .set(SessionMetadata.EXPIRATION_TIME, 500)
+          .build());
+    }
+    when(transaction.get(refreshed)).thenReturn(Entity.newBuilder(refreshed)
+        .set(SessionMetadata.EXPIRATION_TIME, 5000)
+        .build());
+
+    assertEquals(1, store.collectGarbage(1000, 60_000));
+    verify(transaction).delete(expired);
+    verify(transaction).put(Entity.newBuilder(referenced)
+        .set(SessionMetadata.EXPIRATION_TIME, 61_000)
+        .build());
+    verify(transaction, never()).delete(referenced);
+    verify(transaction, never()).delete(refreshed);
+  }
+
+  private static Entity find(List<Entity> entities, String name) {
+    return entities.stream()
+        .filter(entity -> entity.getKey().getKind().equals("kind")
+            && name.equals(entity.getKey().getName()))
+        .findFirst()
+        .orElse(null);
+  }
+
+  private static List<Entity> blobs(List<Entity> entities) {
+    return entities.stream()
+        .filter(entity -> entity.getKey().getKind().equals("kindBlob"))
+        .collect(Collectors.toList());
+  }
+
+  private static String catalogHash(List<Entity> entities) {
+    return find(entities, "catalog").getString(SessionMetadata.ATTRIBUTE_HASH);
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableMap;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.regex.Pattern;
+import org.junit.Test;
+
+public class SizeBudgetTest {
+
+  private static final Map<String, Integer> SIZES = ImmutableMap.of(
+      "user", 100,
+      "cache.small", 300,
+      "cache.large", 600);
+
+  @Test
+  public void testWithinBudget() throws Exception {
+    SizeBudget budget = new SizeBudget(10, 1000, 10, 1000, SizeBudget.Action.REJECT, null);
+    assertTrue(budget.apply("id", SIZES).isEmpty());
+  }
+
+  @Test
+  public void testTruncateLargestNonCriticalAttributes() throws Exception {
+    SizeBudget budget = new SizeBudget(0, 500, 0, 0, SizeBudget.Action.TRUNCATE,
+        Pattern.compile("cache\\..*"));
+    assertEquals(Collections.singletonList("cache.large"), budget.apply("id", SIZES));
+
+    budget = new SizeBudget(0, 200, 0, 0, SizeBudget.Action.TRUNCATE,
+        Pattern.compile("cache\\..*"));
+    assertEquals(Arrays.asList("cache.large", "cache.small"), budget.apply("id", SIZES));
+  }
+
+  @Test
+  public void testTruncateLargeAttribute() throws Exception {
+    SizeBudget budget = new SizeBudget(0, 0, 0, 500, SizeBudget.Action.TRUNCATE,
+        Pattern.compile("cache\\..*"));
+    assertEquals(Collections.singletonList("cache.large"), budget.apply("id", SIZES));
+  }
+
+  @Test(expected = IOException.class)
+  public void testTruncateNotEnough() throws Exception {
+    SizeBudget budget = new SizeBudget(0, 50, 0, 0, SizeBudget.Action.TRUNCATE,
+        Pattern.compile("cache\\..*"));
+    budget.apply("id", SIZES);
+  }
+
+  @Test(expected = IOException.class)
+  public void testRejectSession() throws Exception {
+    SizeBudget budget = new SizeBudget(0, 500, 0, 0, SizeBudget.Action.REJECT,
+        Pattern.compile("cache\\..*"));
+    budget.apply("id", SIZES);
+  }
+
+  @Test(expected = IOException.class)
+  public void testRejectCriticalAttribute() throws Exception {
+    SizeBudget budget = new SizeBudget(0, 0, 0, 50, SizeBudget.Action.TRUNCATE,
+        Pattern.compile("cache\\..*"));
+    budget.apply("id", SIZES);
+  }
+}
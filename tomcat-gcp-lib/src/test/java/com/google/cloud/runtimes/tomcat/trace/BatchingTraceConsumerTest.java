@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.trace;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import com.google.cloud.runtimes.tomcat.util.BoundedRingBuffer.OverflowPolicy;
+import com.google.devtools.cloudtrace.v1.Trace;
+import com.google.devtools.cloudtrace.v1.TraceSpan;
+import com.google.devtools.cloudtrace.v1.Traces;
+import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Ensures that {@code BatchingTraceConsumer} batches the spans and accounts for dropped spans.
+ */
+public class BatchingTraceConsumerTest {
+
+  private ScheduledExecutorService scheduler;
+
+  private InMemoryTraceExporter exporter;
+
+  @Before
+  public void setUp() throws Exception {
+    scheduler = mock(ScheduledExecutorService.class);
+    exporter = new InMemoryTraceExporter();
+  }
+
+  private static Traces traces(int count) {
+    Traces.Builder traces = Traces.newBuilder();
+    for (int i = 0; i < count; i++) {
+      traces.addTraces(Trace.newBuilder()
+          .setTraceId(Integer.toString(i))
+          .addSpans(TraceSpan.newBuilder().setSpanId(i)));
+    }
+    return traces.build();
+  }
+
+  @Test
+  public void testSizeTriggeredExport() throws Exception {
+    BatchingTraceConsumer consumer = new BatchingTraceConsumer(exporter, 16, 4, 1000,
+        OverflowPolicy.DROP_NEWEST, scheduler);
+
+    consumer.receive(traces(3));
+    verify(scheduler, never()).execute(any());
+
+    consumer.receive(traces(1));
+    verify(scheduler).execute(any());
+  }
+
+  @Test
+  public void testTracesReceivedAfterCloseAreDropped() throws Exception {
+    doThrow(RejectedExecutionException.class).when(scheduler).execute(any());
+    BatchingTraceConsumer consumer = new BatchingTraceConsumer(exporter, 16, 4, 1000,
+        OverflowPolicy.DROP_NEWEST, scheduler);
+    consumer.close();
+
+    consumer.receive(traces(4));
+
+    verify(scheduler, never()).execute(any());
+    assertEquals(0, exporter.getTraces().size());
+    assertEquals(4, consumer.getDroppedSpanCount());
+  }
+
+  @Test
+  public void testRejectedExportIsLeftToClose() throws Exception {
+    doThrow(RejectedExecutionException.class).when(scheduler).execute(any());
+    BatchingTraceConsumer consumer = new BatchingTraceConsumer(exporter, 16, 4, 1000,
+        OverflowPolicy.DROP_NEWEST, scheduler);
+
+    consumer.receive(traces(4));
+    consumer.close();
+
+    assertEquals(4, exporter.getTraces().size());
+    assertEquals(0, consumer.getDroppedSpanCount());
+  }
+
+  @Test
+  public void testFlushExportsInBatches() throws Exception {
+    BatchingTraceConsumer consumer = new BatchingTraceConsumer(exporter, 16, 4, 1000,
+        OverflowPolicy.DROP_NEWEST, scheduler);
+
+    consumer.receive(traces(10));
+    consumer.flush();
+
+    assertEquals(10, exporter.getTraces().size());
+    assertEquals(10, consumer.getExportedSpanCount());
+    assertEquals(0, consumer.getBufferedTraceCount());
+  }
+
+  @Test
+  public void testDropNewestWhenFull() throws Exception {
+    BatchingTraceConsumer consumer = new BatchingTraceConsumer(exporter, 4, 100, 1000,
+        OverflowPolicy.DROP_NEWEST, scheduler);
+
+    consumer.receive(traces(6));
+    consumer.flush();
+
+    assertEquals(2, consumer.getDroppedSpanCount());
+    assertEquals("0", exporter.getTraces().get(0).getTraceId());
+  }
+
+  @Test
+  public void testDropOldestWhenFull() throws Exception {
+    BatchingTraceConsumer consumer = new BatchingTraceConsumer(exporter, 4, 100, 1000,
+        OverflowPolicy.DROP_OLDEST, scheduler);
+
+    consumer.receive(traces(6));
+    consumer.flush();
+
+    assertEquals(2, consumer.getDroppedSpanCount());
+    assertEquals("2", exporter.getTraces().get(0).getTraceId());
+  }
+
+  @Test
+  public void testDropOldestCountsEvictedSpans() throws Exception {
+    BatchingTraceConsumer consumer = new BatchingTraceConsumer(exporter, 2, 100, 1000,
+        OverflowPolicy.DROP_OLDEST, scheduler);
+
+    consumer.receive(Traces.newBuilder()
+        .addTraces(Trace.newBuilder().setTraceId("0")
+            .addSpans(TraceSpan.newBuilder().setSpanId(1))
+            .addSpans(TraceSpan.newBuilder().setSpanId(2))
+            .addSpans(TraceSpan.newBuilder().setSpanId(3)))
+        .addTraces(Trace.newBuilder().setTraceId("1")
+            .addSpans(TraceSpan.newBuilder().setSpanId(4)))
+        .addTraces(Trace.newBuilder().setTraceId("2")
+            .addSpans(TraceSpan.newBuilder().setSpanId(5)))
+        .build());
+    consumer.flush();
+
+    assertEquals(3, consumer.getDroppedSpanCount());
+    assertEquals(2, consumer.getExportedSpanCount());
+  }
+
+  @Test
+  public void testFailedExportIsDropped() throws Exception {
+    TraceExporter failingExporter = mock(TraceExporter.class);
+    doThrow(new IOException()).when(failingExporter).export(any());
+    BatchingTraceConsumer consumer = new BatchingTraceConsumer(failingExporter, 16, 4, 1000,
+        OverflowPolicy.DROP_NEWEST, scheduler);
+
+    consumer.receive(traces(2));
+    consumer.close();
+
+    assertEquals(2, consumer.getDroppedSpanCount());
+    verify(failingExporter).close();
+  }
+}
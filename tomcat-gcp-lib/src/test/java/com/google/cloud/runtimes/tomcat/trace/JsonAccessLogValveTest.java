@@ -0,0 +1,146 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.trace;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.cloud.runtimes.tomcat.trace.RequestTimings.Phase;
+import java.util.concurrent.TimeUnit;
+import org.apache.catalina.AccessLog;
+import org.apache.catalina.Valve;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+public class JsonAccessLogValveTest {
+
+  @Mock
+  private Request request;
+
+  @Mock
+  private Response response;
+
+  @Mock
+  private Valve nextValve;
+
+  private org.apache.coyote.Request coyoteRequest;
+
+  private JsonAccessLogValve valve;
+
+  @Before
+  public void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    valve = new JsonAccessLogValve();
+    valve.setNext(nextValve);
+
+    coyoteRequest = new org.apache.coyote.Request();
+    coyoteRequest.setStartTime(1500000000123L);
+    when(request.getCoyoteRequest()).thenReturn(coyoteRequest);
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getRequestURI()).thenReturn("/index");
+    when(request.getProtocol()).thenReturn("HTTP/1.1");
+    when(request.getRemoteAddr()).thenReturn("10.0.0.1");
+    when(response.getStatus()).thenReturn(200);
+    when(response.getBytesWritten(false)).thenReturn(512L);
+  }
+
+  private String format(long time) {
+    StringBuilder buffer = new StringBuilder();
+    valve.format(request, response, time, buffer);
+    return buffer.toString();
+  }
+
+  @Test
+  public void testHttpRequestFields() {
+    when(request.getQueryString()).thenReturn("q=\"a\"");
+    when(request.getHeader("User-Agent")).thenReturn("curl");
+
+    String entry = format(1234);
+
+    assertEquals("{\"severity\":\"INFO\",\"timestamp\":{\"seconds\":1500000000,\"nanos\":123000000},"
+        + "\"httpRequest\":{\"requestMethod\":\"GET\",\"requestUrl\":\"/index?q=\\\"a\\\"\","
+        + "\"status\":200,\"responseSize\":\"512\",\"userAgent\":\"curl\","
+        + "\"remoteIp\":\"10.0.0.1\",\"referer\":null,\"protocol\":\"HTTP/1.1\","
+        + "\"latency\":\"1.234s\"}}\n", entry);
+  }
+
+  @Test
+  public void testRemoteAddressFromRequestAttributes() {
+    when(request.getAttribute(AccessLog.REMOTE_ADDR_ATTRIBUTE)).thenReturn("203.0.113.1");
+
+    assertTrue(format(5).contains("\"remoteIp\":\"203.0.113.1\""));
+    assertTrue(format(5).contains("\"latency\":\"0.005s\""));
+
+    valve.setRequestAttributesEnabled(false);
+    assertTrue(format(5).contains("\"remoteIp\":\"10.0.0.1\""));
+  }
+
+  @Test
+  public void testTraceAndSeverity() {
+    when(request.getHeader("X-Cloud-Trace-Context"))
+        .thenReturn("105445aa7843bc8bf206b12000100000/1;o=1");
+    when(response.getStatus()).thenReturn(503);
+
+    String entry = format(1);
+
+    assertTrue(entry.startsWith("{\"severity\":\"ERROR\""));
+    assertTrue(entry.contains(
+        "\"logging.googleapis.com/trace\":\"105445aa7843bc8bf206b12000100000\""));
+  }
+
+  @Test
+  public void testExtractTraceId() {
+    assertEquals("abc", JsonAccessLogValve.extractTraceId("abc/123;o=1"));
+    assertEquals("abc", JsonAccessLogValve.extractTraceId("abc;o=1"));
+    assertEquals("abc", JsonAccessLogValve.extractTraceId("abc"));
+  }
+
+  @Test
+  public void testSessionTimings() throws Exception {
+    ArgumentCaptor<Object> note = ArgumentCaptor.forClass(Object.class);
+    doAnswer(invocation -> {
+      RequestTimings.current().add(Phase.SESSION_LOAD, TimeUnit.MILLISECONDS.toNanos(3));
+      RequestTimings.recordSessionSize(Phase.SESSION_LOAD, 100);
+      return null;
+    }).when(nextValve).invoke(any(), any());
+
+    valve.invoke(request, response);
+
+    verify(request).setNote(anyString(), note.capture());
+    when(request.getNote(anyString())).thenReturn(note.getValue());
+    String entry = format(10);
+    assertTrue(entry.contains("\"sessionLoadTime\":3.0,\"sessionSaveTime\":0.0"));
+    assertTrue(entry.contains("\"sessionLoadBytes\":100,\"sessionSaveBytes\":0"));
+    assertEquals(null, RequestTimings.current());
+  }
+
+  @Test
+  public void testNoTimingsWithoutInvoke() {
+    assertFalse(format(10).contains("sessionLoadTime"));
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.trace;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.cloud.trace.core.Label;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RequestSampleRecorderTest {
+
+  private RequestSampleRecorder recorder;
+
+  @Before
+  public void setUp() {
+    recorder = new RequestSampleRecorder(3);
+  }
+
+  private static RequestSample sample(long timestamp, long duration, boolean failed) {
+    return new RequestSample(timestamp, "/span", null, duration, failed, null,
+        Collections.singletonList(new Label("/http/url", "/index")));
+  }
+
+  private static List<Long> durations(List<RequestSample> samples) {
+    return samples.stream().map(RequestSample::getDuration).collect(Collectors.toList());
+  }
+
+  @Test
+  public void testKeepSlowestRequests() {
+    for (long duration : new long[] {5, 1, 7, 3, 9, 2}) {
+      if (recorder.isSampled(duration, false)) {
+        recorder.record(sample(0, duration, false));
+      }
+    }
+
+    assertEquals(Arrays.asList(9L, 7L, 5L), durations(recorder.getSlowest()));
+    assertFalse(recorder.isSampled(4, false));
+    assertTrue(recorder.isSampled(6, false));
+    assertTrue(recorder.getRecentFailures().isEmpty());
+  }
+
+  @Test
+  public void testSlowestRequestsOfRecentWindows() {
+    AtomicLong now = new AtomicLong(0);
+    recorder = new RequestSampleRecorder(2, 1000, now::get);
+    recorder.record(sample(0, 100, false));
+    recorder.record(sample(0, 90, false));
+
+    now.set(1500);
+    assertTrue(recorder.isSampled(5, false));
+    recorder.record(sample(1500, 5, false));
+    assertEquals(Arrays.asList(100L, 90L), durations(recorder.getSlowest()));
+
+    now.set(2500);
+    assertEquals(Collections.singletonList(5L), durations(recorder.getSlowest()));
+
+    now.set(5000);
+    assertTrue(recorder.getSlowest().isEmpty());
+    recorder.record(sample(5000, 1, true));
+    recorder.reset();
+    assertTrue(recorder.getRecentFailures().isEmpty());
+  }
+
+  @Test
+  public void testKeepRecentFailures() {
+    for (int i = 1; i <= 5; i++) {
+      recorder.record(sample(i, i, true));
+    }
+
+    List<RequestSample> failures = recorder.getRecentFailures();
+    assertEquals(3, failures.size());
+    assertEquals(5, failures.get(0).getTimestamp());
+    assertEquals(3, failures.get(2).getTimestamp());
+    assertTrue(recorder.isSampled(0, true));
+  }
+
+  @Test
+  public void testConcurrentRecording() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    for (int thread = 0; thread < 4; thread++) {
+      final int offset = thread;
+      executor.execute(() -> {
+        for (int i = 0; i < 10000; i++) {
+          long duration = i * 4 + offset;
+          if (recorder.isSampled(duration, false)) {
+            recorder.record(sample(0, duration, false));
+          }
+        }
+      });
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+    assertEquals(Arrays.asList(39999L, 39998L, 39997L),
+        durations(recorder.getSlowest()));
+  }
+
+  @Test
+  public void testRender() {
+    recorder.record(sample(0, TimeUnit.MILLISECONDS.toNanos(12), true));
+
+    String page = recorder.render();
+
+    assertTrue(page.contains("Slowest requests"));
+    assertTrue(page.contains("/span total=12.0ms"));
+    assertTrue(page.contains("FAILED"));
+    assertTrue(page.contains("/http/url=/index"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidCapacity() {
+    new RequestSampleRecorder(0);
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.trace;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.mapper.MappingData;
+import org.apache.catalina.servlet4preview.http.MappingMatch;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+public class RouteTemplateResolverTest {
+
+  @Mock
+  private Request request;
+
+  @Mock
+  private Wrapper wrapper;
+
+  private MappingData mappingData;
+
+  @Before
+  public void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    mappingData = new MappingData();
+    mappingData.wrapper = wrapper;
+    mappingData.contextPath.setString("");
+    when(request.getMappingData()).thenReturn(mappingData);
+  }
+
+  @Test
+  public void testConfiguredTemplate() {
+    RouteTemplateResolver resolver = new RouteTemplateResolver(
+        Arrays.asList("/user/{id}", "/user/{id}/orders"), false);
+    when(request.getRequestURI()).thenReturn("/user/123");
+
+    assertEquals("/user/{id}", resolver.resolve(request));
+  }
+
+  @Test
+  public void testFallbackToUri() {
+    RouteTemplateResolver resolver = new RouteTemplateResolver(
+        Collections.singleton("/user/{id}"), false);
+    when(request.getRequestURI()).thenReturn("/index");
+
+    assertEquals("/index", resolver.resolve(request));
+  }
+
+  @Test
+  public void testPathServletMapping() {
+    RouteTemplateResolver resolver = new RouteTemplateResolver(Collections.emptyList(), true);
+    when(request.getRequestURI()).thenReturn("/api/user/123");
+    mappingData.matchType = MappingMatch.PATH;
+    mappingData.wrapperPath.setString("/api");
+
+    String template = resolver.resolve(request);
+    assertEquals("/api/*", template);
+    assertSame(template, resolver.resolve(request));
+  }
+
+  @Test
+  public void testExtensionServletMapping() {
+    RouteTemplateResolver resolver = new RouteTemplateResolver(Collections.emptyList(), true);
+    when(request.getRequestURI()).thenReturn("/pages/home.jsp");
+    mappingData.matchType = MappingMatch.EXTENSION;
+    mappingData.wrapperPath.setString("/pages/home.jsp");
+
+    assertEquals("/*.jsp", resolver.resolve(request));
+  }
+
+  @Test
+  public void testExactServletMappingUsesUri() {
+    RouteTemplateResolver resolver = new RouteTemplateResolver(Collections.emptyList(), true);
+    when(request.getRequestURI()).thenReturn("/hello");
+    mappingData.matchType = MappingMatch.EXACT;
+    mappingData.wrapperPath.setString("/hello");
+
+    assertEquals("/hello", resolver.resolve(request));
+  }
+}
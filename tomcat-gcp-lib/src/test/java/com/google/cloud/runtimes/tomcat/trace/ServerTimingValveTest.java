@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.trace;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.cloud.runtimes.tomcat.trace.RequestTimings.Phase;
+import org.apache.catalina.Valve;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+public class ServerTimingValveTest {
+
+  @Mock
+  private Request request;
+
+  @Mock
+  private Response response;
+
+  @Mock
+  private Valve nextValve;
+
+  private ServerTimingValve valve;
+
+  @Before
+  public void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    valve = new ServerTimingValve();
+    valve.setNext(nextValve);
+  }
+
+  @Test
+  public void testHeaderWithoutSessionPhases() throws Exception {
+    ArgumentCaptor<String> header = ArgumentCaptor.forClass(String.class);
+
+    valve.invoke(request, response);
+
+    verify(response).addHeader(eq(ServerTimingValve.SERVER_TIMING_HEADER), header.capture());
+    assertTrue(header.getValue().matches("app;dur=\\d+\\.\\d, total;dur=\\d+\\.\\d"));
+  }
+
+  @Test
+  public void testHeaderWithSessionPhases() throws Exception {
+    ArgumentCaptor<String> header = ArgumentCaptor.forClass(String.class);
+    doAnswer(invocation -> {
+      long start = System.nanoTime();
+      RequestTimings.record(Phase.SESSION_LOAD, start);
+      RequestTimings.record(Phase.APPLICATION, start);
+      RequestTimings.record(Phase.SESSION_SAVE, start);
+      return null;
+    }).when(nextValve).invoke(any(), any());
+
+    valve.invoke(request, response);
+
+    verify(response).addHeader(eq(ServerTimingValve.SERVER_TIMING_HEADER), header.capture());
+    assertTrue(header.getValue().startsWith("session-load;dur="));
+    assertTrue(header.getValue().contains("session-save;dur="));
+  }
+
+  @Test
+  public void testCommittedResponse() throws Exception {
+    when(response.isCommitted()).thenReturn(true);
+
+    valve.invoke(request, response);
+
+    verify(response, never()).addHeader(anyString(), anyString());
+  }
+
+  @Test
+  public void testNoRecordingOutsideOfTheValve() throws Exception {
+    valve.invoke(request, response);
+
+    RequestTimings.record(Phase.SESSION_SAVE, System.nanoTime());
+    assertNull(RequestTimings.current());
+  }
+}
@@ -16,15 +16,21 @@
 package com.google.cloud.runtimes.tomcat.trace;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.matches;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.google.cloud.runtimes.tomcat.util.BoundedRingBuffer.OverflowPolicy;
 import com.google.cloud.trace.SpanContextHandler;
 import com.google.cloud.trace.Trace;
 import com.google.cloud.trace.Tracer;
@@ -35,8 +41,10 @@ import com.google.cloud.trace.core.SpanContextFactory;
 import com.google.cloud.trace.core.SpanContextHandle;
 import com.google.cloud.trace.core.TraceContext;
 import com.google.cloud.trace.service.TraceGrpcApiService;
-import com.google.cloud.trace.service.TraceGrpcApiService.Builder;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.List;
 import org.apache.catalina.LifecycleException;
 import org.apache.catalina.Valve;
 import org.apache.catalina.connector.Request;
@@ -115,6 +123,139 @@ public class TraceValveTest {
     assertTrue(labelsArgument.getValue().getLabels().contains(statusCodeLabel));
   }
 
+  @Test
+  public void testSpanNamedAfterRouteTemplate() throws Exception {
+    when(request.getRequestURI()).thenReturn("/user/123");
+    ArgumentCaptor<Labels> labelsArgument = ArgumentCaptor.forClass(Labels.class);
+    valve.setRouteTemplates("/user/{id}; /user/{id}/orders");
+    valve.initRouteTemplateResolver();
+
+    valve.invoke(request, response);
+
+    verify(tracer).startSpan("/user/{id}");
+    verify(tracer).annotateSpan(any(), labelsArgument.capture());
+    assertTrue(labelsArgument.getValue().getLabels()
+        .contains(new Label(HttpLabels.HTTP_URL.getValue(), "/user/123")));
+  }
+
+  @Test
+  public void testResourceUsageLabels() throws Exception {
+    ArgumentCaptor<Labels> labelsArgument = ArgumentCaptor.forClass(Labels.class);
+    valve.setTraceResourceUsage(true);
+    doAnswer(invocation -> new byte[1024 * 1024]).when(nextValve).invoke(any(), any());
+
+    valve.invoke(request, response);
+
+    verify(tracer).annotateSpan(any(), labelsArgument.capture());
+    Label allocatedBytes = labelsArgument.getValue().getLabels().stream()
+        .filter(label -> label.getKey().equals(ResourceLabels.ALLOCATED_BYTES.getValue()))
+        .findFirst()
+        .get();
+    assertTrue(Long.parseLong(allocatedBytes.getValue()) >= 1024 * 1024);
+    assertTrue(labelsArgument.getValue().getLabels().stream()
+        .anyMatch(label -> label.getKey().equals(ResourceLabels.CPU_TIME.getValue())));
+  }
+
+  @Test
+  public void testNoResourceUsageLabelsByDefault() throws Exception {
+    ArgumentCaptor<Labels> labelsArgument = ArgumentCaptor.forClass(Labels.class);
+
+    valve.invoke(request, response);
+
+    verify(tracer).annotateSpan(any(), labelsArgument.capture());
+    assertFalse(labelsArgument.getValue().getLabels().stream()
+        .anyMatch(label -> label.getKey().startsWith("/jvm/")));
+  }
+
+  @Test
+  public void testFailedRequestSampled() throws Exception {
+    when(request.getRequestURI()).thenReturn("/index");
+    when(response.getStatus()).thenReturn(500);
+    valve.initRequestSampleRecorder();
+
+    valve.invoke(request, response);
+
+    List<RequestSample> failures = valve.getRequestSampleRecorder().getRecentFailures();
+    assertEquals(1, failures.size());
+    assertEquals("/index", failures.get(0).getSpanName());
+    assertTrue(failures.get(0).isFailed());
+    assertEquals(1, valve.getRequestSampleRecorder().getSlowest().size());
+    assertNull(RequestTimings.current());
+  }
+
+  @Test
+  public void testDebugPageServedWithToken() throws Exception {
+    StringWriter page = new StringWriter();
+    when(request.getRequestURI()).thenReturn("/_requestz");
+    when(request.getHeader(TraceValve.DEBUG_TOKEN_HEADER)).thenReturn("secret");
+    when(response.getWriter()).thenReturn(new PrintWriter(page));
+    valve.setDebugPath("/_requestz");
+    valve.setDebugToken("secret");
+    valve.initRequestSampleRecorder();
+    valve.initDebugPage();
+
+    valve.invoke(request, response);
+
+    verify(nextValve, never()).invoke(any(), any());
+    verify(tracer, never()).startSpan(anyString());
+    assertTrue(page.toString().contains("Slowest requests"));
+  }
+
+  @Test
+  public void testDebugPageNotServedWithWrongToken() throws Exception {
+    when(request.getRequestURI()).thenReturn("/_requestz");
+    when(request.getHeader(TraceValve.DEBUG_TOKEN_HEADER)).thenReturn("guess");
+    when(request.getRemoteAddr()).thenReturn("127.0.0.1");
+    valve.setDebugPath("/_requestz");
+    valve.setDebugToken("secret");
+    valve.initRequestSampleRecorder();
+    valve.initDebugPage();
+
+    valve.invoke(request, response);
+
+    verify(nextValve).invoke(any(), any());
+    verify(response, never()).getWriter();
+  }
+
+  @Test
+  public void testDebugPageServedToAllowedAddresses() throws Exception {
+    when(request.getRequestURI()).thenReturn("/_requestz");
+    when(response.getWriter()).thenReturn(new PrintWriter(new StringWriter()));
+    valve.setDebugPath("/_requestz");
+    valve.setDebugAllowedAddresses("10\\.0\\.0\\.\\d+");
+    valve.initRequestSampleRecorder();
+    valve.initDebugPage();
+
+    when(request.getRemoteAddr()).thenReturn("10.0.0.7");
+    valve.invoke(request, response);
+    verify(nextValve, never()).invoke(any(), any());
+
+    when(request.getRemoteAddr()).thenReturn("172.17.0.2");
+    valve.invoke(request, response);
+    verify(nextValve).invoke(any(), any());
+  }
+
+  @Test
+  public void testDebugPageNotServedWithoutCredential() throws Exception {
+    when(request.getRequestURI()).thenReturn("/_requestz");
+    when(request.getLocalAddr()).thenReturn("127.0.0.1");
+    when(request.getRemoteAddr()).thenReturn("127.0.0.1");
+    valve.setDebugPath("/_requestz");
+    valve.initRequestSampleRecorder();
+    valve.initDebugPage();
+
+    valve.invoke(request, response);
+
+    verify(nextValve).invoke(any(), any());
+    verify(response, never()).getWriter();
+  }
+
+  @Test(expected = LifecycleException.class)
+  public void testInvalidDebugAllowedAddresses() throws Exception {
+    valve.setDebugAllowedAddresses("10.0.0.(");
+    valve.initDebugPage();
+  }
+
   /**
    * If x-cloud-trace-context header is present a new context must created.
    */
@@ -138,24 +279,44 @@ public class TraceValveTest {
   @Test
   public void testServiceInitialization() throws Exception {
     valve.setTraceScheduledDelay(60);
-    TraceValve spiedValve = spy(valve);
-    Builder builder = spy(TraceGrpcApiService.builder());
-    when(builder.build()).thenReturn(traceService);
-    when(spiedValve.getTraceService()).thenReturn(builder);
-    spiedValve.initTraceService();
-    assertEquals(Trace.getTracer(), traceService.getTracer());
+    valve.setTraceExporter("memory");
+    valve.initTraceService();
+    assertTrue(valve.getTraceService() instanceof ExportingTraceService);
+    assertEquals(Trace.getTracer(), valve.getTraceService().getTracer());
   }
 
   @Test(expected = LifecycleException.class)
   public void testServiceInitializationError() throws Exception {
     valve.setTraceScheduledDelay(60);
     TraceValve spiedValve = spy(valve);
-    Builder builder = spy(TraceGrpcApiService.builder());
-    when(builder.build()).thenThrow(new IOException());
-    when(spiedValve.getTraceService()).thenReturn(builder);
+    doThrow(new IOException()).when(spiedValve).createExporter(any());
     spiedValve.initTraceService();
   }
 
+  @Test(expected = LifecycleException.class)
+  public void testInvalidOverflowPolicy() throws Exception {
+    valve.setTraceExporter("memory");
+    valve.setTraceOverflowPolicy("DROP_ALL");
+    valve.initTraceService();
+  }
+
+  @Test
+  public void testSpansExportedInMemory() throws Exception {
+    InMemoryTraceExporter exporter = new InMemoryTraceExporter();
+    BatchingTraceConsumer consumer = new BatchingTraceConsumer(exporter, 16, 16, 1000,
+        OverflowPolicy.DROP_NEWEST);
+    valve.setTraceService(new ExportingTraceService("project", consumer));
+    when(request.getRequestURI()).thenReturn("/index");
+
+    valve.invoke(request, response);
+    valve.destroy();
+
+    assertFalse(exporter.getTraces().isEmpty());
+    assertEquals("project", exporter.getTraces().get(0).getProjectId());
+    assertTrue(valve.getExportedSpanCount() > 0);
+    assertEquals(0, valve.getDroppedSpanCount());
+  }
+
   @Test
   public void testThatSpanHandleIsDetached() throws Exception {
     when(request.getHeader(anyString())).thenReturn("");
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.cloud.runtimes.tomcat.util.BoundedRingBuffer.OverflowPolicy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class BoundedRingBufferTest {
+
+  @Test
+  public void testCapacityIsRoundedToPowerOfTwo() {
+    assertEquals(1, new BoundedRingBuffer<>(1).capacity());
+    assertEquals(4, new BoundedRingBuffer<>(3).capacity());
+    assertEquals(8, new BoundedRingBuffer<>(8).capacity());
+  }
+
+  @Test
+  public void testFifoOrdering() {
+    BoundedRingBuffer<Integer> buffer = new BoundedRingBuffer<>(4);
+    for (int i = 0; i < 10; i++) {
+      assertTrue(buffer.offer(i));
+      assertEquals(Integer.valueOf(i), buffer.poll());
+    }
+    assertNull(buffer.poll());
+  }
+
+  @Test
+  public void testDropNewest() {
+    BoundedRingBuffer<Integer> buffer = new BoundedRingBuffer<>(2);
+    assertTrue(buffer.offer(1, OverflowPolicy.DROP_NEWEST));
+    assertTrue(buffer.offer(2, OverflowPolicy.DROP_NEWEST));
+    assertFalse(buffer.offer(3, OverflowPolicy.DROP_NEWEST));
+
+    List<Integer> content = new ArrayList<>();
+    buffer.drainTo(content, 10);
+    assertEquals(2, content.size());
+    assertEquals(Integer.valueOf(1), content.get(0));
+  }
+
+  @Test
+  public void testDropOldest() {
+    BoundedRingBuffer<Integer> buffer = new BoundedRingBuffer<>(2);
+    buffer.offer(1, OverflowPolicy.DROP_OLDEST);
+    buffer.offer(2, OverflowPolicy.DROP_OLDEST);
+    assertFalse(buffer.offer(3, OverflowPolicy.DROP_OLDEST));
+
+    assertEquals(Integer.valueOf(2), buffer.poll());
+    assertEquals(Integer.valueOf(3), buffer.poll());
+    assertTrue(buffer.isEmpty());
+  }
+
+  @Test
+  public void testDropOldestReportsEvicted() {
+    BoundedRingBuffer<Integer> buffer = new BoundedRingBuffer<>(2);
+    List<Integer> evicted = new ArrayList<>();
+    buffer.offer(1, OverflowPolicy.DROP_OLDEST, evicted::add);
+    buffer.offer(2, OverflowPolicy.DROP_OLDEST, evicted::add);
+    assertFalse(buffer.offer(3, OverflowPolicy.DROP_OLDEST, evicted::add));
+
+    assertEquals(Collections.singletonList(1), evicted);
+  }
+
+  @Test
+  public void testConcurrentProducers() throws Exception {
+    BoundedRingBuffer<Integer> buffer = new BoundedRingBuffer<>(1 << 16);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    CountDownLatch latch = new CountDownLatch(4);
+    for (int thread = 0; thread < 4; thread++) {
+      int offset = thread * 10000;
+      executor.execute(() -> {
+        for (int i = 0; i < 10000; i++) {
+          buffer.offer(offset + i);
+        }
+        latch.countDown();
+      });
+    }
+    latch.await(10, TimeUnit.SECONDS);
+    executor.shutdown();
+
+    Set<Integer> content = ConcurrentHashMap.newKeySet();
+    buffer.drainTo(content, Integer.MAX_VALUE);
+    assertEquals(40000, content.size());
+  }
+}
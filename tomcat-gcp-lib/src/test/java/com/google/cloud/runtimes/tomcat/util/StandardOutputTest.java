@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.base.Strings;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class StandardOutputTest {
+
+  /**
+   * Record each write as a separate chunk.
+   */
+  private static class ChunkRecorder extends OutputStream {
+    private final List<String> chunks = new ArrayList<>();
+
+    @Override
+    public void write(int b) {
+      chunks.add(String.valueOf((char) b));
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+      chunks.add(new String(bytes, offset, length, StandardCharsets.UTF_8));
+    }
+  }
+
+  @Test
+  public void testWritesAreSplitAtLineBoundaries() throws Exception {
+    ChunkRecorder out = new ChunkRecorder();
+    Writer writer = new StandardOutput.LineWriter(out);
+    String line = Strings.repeat("x", 999) + "\n";
+    String content = Strings.repeat(line, 10);
+
+    writer.append(content);
+
+    assertEquals(content, String.join("", out.chunks));
+    for (String chunk : out.chunks) {
+      assertTrue(chunk.length() <= StandardOutput.PIPE_BUF);
+      assertTrue(chunk.endsWith("\n"));
+    }
+    assertEquals(3, out.chunks.size());
+  }
+
+  @Test
+  public void testLongLineWrittenAlone() throws Exception {
+    ChunkRecorder out = new ChunkRecorder();
+    Writer writer = new StandardOutput.LineWriter(out);
+    String longLine = Strings.repeat("y", StandardOutput.PIPE_BUF * 2) + "\n";
+
+    writer.append("a\n" + longLine + "b\n");
+
+    assertEquals(3, out.chunks.size());
+    assertEquals("a\n", out.chunks.get(0));
+    assertEquals(longLine, out.chunks.get(1));
+    assertEquals("b\n", out.chunks.get(2));
+  }
+}
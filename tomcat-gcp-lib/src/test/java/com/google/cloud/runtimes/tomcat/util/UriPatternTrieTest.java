@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.runtimes.tomcat.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class UriPatternTrieTest {
+
+  private UriPatternTrie<String> trie;
+
+  @Before
+  public void setUp() {
+    trie = new UriPatternTrie<>();
+    trie.put("/user/{id}", "user");
+    trie.put("/user/me", "me");
+    trie.put("/user/{id}/orders/*", "orders");
+    trie.put("/static/**", "static");
+    trie.put("/", "root");
+  }
+
+  @Test
+  public void testVariableSegment() {
+    assertEquals("user", trie.match("/user/123"));
+    assertEquals("orders", trie.match("/user/123/orders/456"));
+    assertNull(trie.match("/user/123/orders"));
+    assertNull(trie.match("/user/"));
+  }
+
+  @Test
+  public void testLiteralTakesPrecedence() {
+    assertEquals("me", trie.match("/user/me"));
+  }
+
+  @Test
+  public void testWildcard() {
+    assertEquals("static", trie.match("/static/css/main.css"));
+    assertEquals("static", trie.match("/static"));
+  }
+
+  @Test
+  public void testRootAndUnknown() {
+    assertEquals("root", trie.match("/"));
+    assertNull(trie.match("/unknown"));
+    assertNull(trie.match("relative"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testWildcardMustBeLast() {
+    trie.put("/a/**/b", "invalid");
+  }
+}